@@ -823,21 +823,26 @@ public class CronetDataSource extends BaseDataSource implements HttpDataSource {
    * returned. Otherwise, the call will block until at least one byte of data has been read and the
    * number of bytes read is returned.
    *
-   * <p>Passed buffer must be direct ByteBuffer. If you have a non-direct ByteBuffer, consider the
-   * alternative read method with its backed array.
+   * <p>Direct buffers are passed to Cronet, which writes into them without an intermediate copy.
+   * Non-direct buffers are read into their backing array.
    *
-   * @param buffer The ByteBuffer into which the read data should be stored. Must be a direct
-   *     ByteBuffer.
+   * @param buffer The ByteBuffer into which the read data should be stored.
    * @return The number of bytes read, or {@link C#RESULT_END_OF_INPUT} if no data is available
    *     because the end of the opened range has been reached.
    * @throws HttpDataSourceException If an error occurs reading from the source.
-   * @throws IllegalArgumentException If {@code buffer} is not a direct ByteBuffer.
    */
+  @Override
   public int read(ByteBuffer buffer) throws HttpDataSourceException {
     Assertions.checkState(opened);
 
     if (!buffer.isDirect()) {
-      throw new IllegalArgumentException("Passed buffer is not a direct ByteBuffer");
+      int position = buffer.position();
+      int bytesRead =
+          read(buffer.array(), buffer.arrayOffset() + position, buffer.remaining());
+      if (bytesRead > 0) {
+        buffer.position(position + bytesRead);
+      }
+      return bytesRead;
     }
     if (!buffer.hasRemaining()) {
       return 0;
@@ -1364,18 +1364,17 @@ public final class CronetDataSourceTest {
   }
 
   @Test
-  public void readNonDirectedByteBufferFailure() throws HttpDataSourceException {
+  public void readNonDirectByteBuffer_readsIntoBackingArray() throws HttpDataSourceException {
     mockResponseStartSuccess();
-    mockReadFailure();
+    mockReadSuccess(0, 16);
 
     dataSourceUnderTest.open(testDataSpec);
-    byte[] returnedBuffer = new byte[8];
-    try {
-      dataSourceUnderTest.read(ByteBuffer.wrap(returnedBuffer));
-      fail("dataSourceUnderTest.read() returned, but IllegalArgumentException expected");
-    } catch (IllegalArgumentException e) {
-      // Expected.
-    }
+    ByteBuffer returnedBuffer = ByteBuffer.allocate(8);
+    int bytesRead = dataSourceUnderTest.read(returnedBuffer);
+
+    assertThat(bytesRead).isEqualTo(8);
+    assertThat(returnedBuffer.position()).isEqualTo(8);
+    assertThat(returnedBuffer.array()).isEqualTo(buildTestDataArray(0, 8));
   }
 
   @Test
@@ -24,7 +24,6 @@ import com.google.android.exoplayer2.extractor.ExtractorInput;
 import com.google.android.exoplayer2.extractor.FlacStreamMetadata;
 import com.google.android.exoplayer2.extractor.SeekMap;
 import com.google.android.exoplayer2.extractor.SeekPoint;
-import com.google.android.exoplayer2.util.Util;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
@@ -42,13 +41,12 @@ import java.nio.ByteBuffer;
     }
   }
 
-  private static final int TEMP_BUFFER_SIZE = 8192; // The same buffer size as libflac.
+  private static final int MAX_READ_LENGTH = 8192; // The same buffer size as libflac.
 
   private final long nativeDecoderContext;
 
   @Nullable private ByteBuffer byteBufferData;
   @Nullable private ExtractorInput extractorInput;
-  @Nullable private byte[] tempBuffer;
   private boolean endOfExtractorInput;
 
   public FlacDecoderJni() throws FlacDecoderException {
@@ -80,9 +78,6 @@ import java.nio.ByteBuffer;
     this.byteBufferData = null;
     this.extractorInput = extractorInput;
     endOfExtractorInput = false;
-    if (tempBuffer == null) {
-      tempBuffer = new byte[TEMP_BUFFER_SIZE];
-    }
   }
 
   /**
@@ -125,19 +120,21 @@ import java.nio.ByteBuffer;
       byteBufferData.limit(originalLimit);
     } else if (extractorInput != null) {
       ExtractorInput extractorInput = this.extractorInput;
-      byte[] tempBuffer = Util.castNonNull(this.tempBuffer);
-      byteCount = min(byteCount, TEMP_BUFFER_SIZE);
-      int read = readFromExtractorInput(extractorInput, tempBuffer, /* offset= */ 0, byteCount);
-      if (read < 4) {
-        // Reading less than 4 bytes, most of the time, happens because of getting the bytes left in
-        // the buffer of the input. Do another read to reduce the number of calls to this method
-        // from the native code.
-        read +=
-            readFromExtractorInput(
-                extractorInput, tempBuffer, read, /* length= */ byteCount - read);
+      // Read straight into the target, which is usually a direct buffer owned by libflac.
+      int originalLimit = target.limit();
+      target.limit(target.position() + min(byteCount, MAX_READ_LENGTH));
+      try {
+        int read = readFromExtractorInput(extractorInput, target);
+        if (read < 4) {
+          // Reading less than 4 bytes, most of the time, happens because of getting the bytes left
+          // in the buffer of the input. Do another read to reduce the number of calls to this
+          // method from the native code.
+          read += readFromExtractorInput(extractorInput, target);
+        }
+        byteCount = read;
+      } finally {
+        target.limit(originalLimit);
       }
-      byteCount = read;
-      target.put(tempBuffer, 0, byteCount);
     } else {
       return -1;
     }
@@ -263,9 +260,9 @@ import java.nio.ByteBuffer;
     flacRelease(nativeDecoderContext);
   }
 
-  private int readFromExtractorInput(
-      ExtractorInput extractorInput, byte[] tempBuffer, int offset, int length) throws IOException {
-    int read = extractorInput.read(tempBuffer, offset, length);
+  private int readFromExtractorInput(ExtractorInput extractorInput, ByteBuffer target)
+      throws IOException {
+    int read = extractorInput.read(target);
     if (read == C.RESULT_END_OF_INPUT) {
       endOfExtractorInput = true;
       read = 0;
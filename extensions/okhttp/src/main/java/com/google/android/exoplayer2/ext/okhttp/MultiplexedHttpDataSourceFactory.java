@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.ext.okhttp;
+
+import static com.google.android.exoplayer2.util.Assertions.checkArgument;
+import static com.google.android.exoplayer2.util.Assertions.checkNotNull;
+import static com.google.android.exoplayer2.util.Assertions.checkState;
+
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.HttpDataSource;
+import com.google.android.exoplayer2.upstream.HttpUtil;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import com.google.common.base.Predicate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import okhttp3.CacheControl;
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+
+/**
+ * An {@link HttpDataSource.Factory} whose data sources multiplex their requests over one HTTP/2
+ * connection per origin, admitting requests in order of urgency.
+ *
+ * <p>All data sources created by the factory share one {@link OkHttpClient}, so concurrent requests
+ * to the same origin are sent as streams of the same connection rather than over separate
+ * connections. Sharing one factory between a player and a {@link
+ * com.google.android.exoplayer2.offline.SegmentDownloader} extends this to downloads.
+ *
+ * <p>Requests are prioritized using the urgency in their {@link HttpUtil#PRIORITY_HEADER Priority}
+ * header. The header is sent to the server, and a {@link StreamPrioritizer} also uses it to decide
+ * which request is sent next when an origin's streams are all in use. Requests without the header
+ * have {@link HttpUtil#DEFAULT_PRIORITY_URGENCY the default urgency}. Chunk sources only set the
+ * header if enabled, for example by calling {@code
+ * DefaultDashChunkSource.Factory.setRequestPriorityEnabled}, so that chunks needed soon for playback
+ * are preferred over prefetching. Downloads can be given a low urgency by setting the header as a
+ * default request property of a second factory, created with the same base client so that the
+ * factories share connections.
+ *
+ * <p>HTTPS origins negotiate HTTP/2 using ALPN, falling back to HTTP/1.1. Cleartext origins use
+ * HTTP/1.1 unless {@link #setCleartextHttp2Enabled(boolean) cleartext HTTP/2} is enabled.
+ */
+public final class MultiplexedHttpDataSourceFactory implements HttpDataSource.Factory {
+
+  /** The default maximum number of concurrent streams per origin. */
+  public static final int DEFAULT_MAX_CONCURRENT_STREAMS_PER_ORIGIN = 6;
+
+  private final OkHttpClient baseClient;
+  private final OkHttpDataSource.Factory dataSourceFactory;
+
+  private boolean cleartextHttp2Enabled;
+  private int maxConcurrentStreamsPerOrigin;
+
+  @Nullable private StreamPrioritizer streamPrioritizer;
+  @Nullable private OkHttpClient client;
+
+  /** Creates an instance. */
+  public MultiplexedHttpDataSourceFactory() {
+    this(new OkHttpClient());
+  }
+
+  /**
+   * Creates an instance.
+   *
+   * @param baseClient An {@link OkHttpClient} whose configuration, connection pool and dispatcher
+   *     are used as the basis for the client shared by the created data sources.
+   */
+  @SuppressWarnings("nullness:methodref.receiver.bound")
+  public MultiplexedHttpDataSourceFactory(OkHttpClient baseClient) {
+    this.baseClient = baseClient;
+    dataSourceFactory = new OkHttpDataSource.Factory(this::newCall);
+    maxConcurrentStreamsPerOrigin = DEFAULT_MAX_CONCURRENT_STREAMS_PER_ORIGIN;
+  }
+
+  /**
+   * Sets whether cleartext origins are assumed to support HTTP/2 without upgrade ("h2c" with prior
+   * knowledge). If enabled, all requests must be to cleartext origins.
+   *
+   * <p>The default is {@code false}.
+   *
+   * <p>Must be called before the first data source is created.
+   *
+   * @param cleartextHttp2Enabled Whether cleartext HTTP/2 is enabled.
+   * @return This factory.
+   */
+  public synchronized MultiplexedHttpDataSourceFactory setCleartextHttp2Enabled(
+      boolean cleartextHttp2Enabled) {
+    checkState(client == null);
+    this.cleartextHttp2Enabled = cleartextHttp2Enabled;
+    return this;
+  }
+
+  /**
+   * Sets the maximum number of requests to each origin that may be in progress at the same time.
+   * Further requests wait, and are admitted in order of urgency.
+   *
+   * <p>The default is {@link #DEFAULT_MAX_CONCURRENT_STREAMS_PER_ORIGIN}.
+   *
+   * <p>Must be called before the first data source is created.
+   *
+   * @param maxConcurrentStreamsPerOrigin The maximum number of concurrent streams per origin.
+   * @return This factory.
+   */
+  public synchronized MultiplexedHttpDataSourceFactory setMaxConcurrentStreamsPerOrigin(
+      int maxConcurrentStreamsPerOrigin) {
+    checkState(client == null);
+    checkArgument(maxConcurrentStreamsPerOrigin > 0);
+    this.maxConcurrentStreamsPerOrigin = maxConcurrentStreamsPerOrigin;
+    return this;
+  }
+
+  @Override
+  public MultiplexedHttpDataSourceFactory setDefaultRequestProperties(
+      Map<String, String> defaultRequestProperties) {
+    dataSourceFactory.setDefaultRequestProperties(defaultRequestProperties);
+    return this;
+  }
+
+  /**
+   * Sets the user agent that will be used.
+   *
+   * <p>See {@link OkHttpDataSource.Factory#setUserAgent(String)}.
+   *
+   * @param userAgent The user agent that will be used, or {@code null} to use the default user
+   *     agent of the underlying {@link OkHttpClient}.
+   * @return This factory.
+   */
+  public MultiplexedHttpDataSourceFactory setUserAgent(@Nullable String userAgent) {
+    dataSourceFactory.setUserAgent(userAgent);
+    return this;
+  }
+
+  /**
+   * Sets the {@link CacheControl} that will be used.
+   *
+   * <p>See {@link OkHttpDataSource.Factory#setCacheControl(CacheControl)}.
+   *
+   * @param cacheControl The cache control that will be used.
+   * @return This factory.
+   */
+  public MultiplexedHttpDataSourceFactory setCacheControl(@Nullable CacheControl cacheControl) {
+    dataSourceFactory.setCacheControl(cacheControl);
+    return this;
+  }
+
+  /**
+   * Sets a content type {@link Predicate}.
+   *
+   * <p>See {@link OkHttpDataSource.Factory#setContentTypePredicate(Predicate)}.
+   *
+   * @param contentTypePredicate The content type {@link Predicate}, or {@code null} to clear a
+   *     predicate that was previously set.
+   * @return This factory.
+   */
+  public MultiplexedHttpDataSourceFactory setContentTypePredicate(
+      @Nullable Predicate<String> contentTypePredicate) {
+    dataSourceFactory.setContentTypePredicate(contentTypePredicate);
+    return this;
+  }
+
+  /**
+   * Sets the {@link TransferListener} that will be used.
+   *
+   * <p>See {@link DataSource#addTransferListener(TransferListener)}.
+   *
+   * @param transferListener The listener that will be used.
+   * @return This factory.
+   */
+  public MultiplexedHttpDataSourceFactory setTransferListener(
+      @Nullable TransferListener transferListener) {
+    dataSourceFactory.setTransferListener(transferListener);
+    return this;
+  }
+
+  /** Returns the {@link StreamPrioritizer} that admits the requests of the created data sources. */
+  public synchronized StreamPrioritizer getStreamPrioritizer() {
+    getClient();
+    return checkNotNull(streamPrioritizer);
+  }
+
+  @Override
+  public HttpDataSource createDataSource() {
+    return dataSourceFactory.createDataSource();
+  }
+
+  private Call newCall(Request request) {
+    return getClient().newCall(request);
+  }
+
+  private synchronized OkHttpClient getClient() {
+    if (client == null) {
+      streamPrioritizer = new StreamPrioritizer(maxConcurrentStreamsPerOrigin);
+      client =
+          baseClient
+              .newBuilder()
+              .protocols(
+                  cleartextHttp2Enabled
+                      ? Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE)
+                      : Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+              .addInterceptor(streamPrioritizer)
+              .build();
+    }
+    return client;
+  }
+}
@@ -41,6 +41,7 @@ import com.google.common.net.HttpHeaders;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -55,6 +56,7 @@ import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
+import okio.BufferedSource;
 
 /**
  * An {@link HttpDataSource} that delegates to Square's {@link Call.Factory}.
@@ -192,6 +194,8 @@ public class OkHttpDataSource extends BaseDataSource implements HttpDataSource {
     private Response response;
     @Nullable
     private InputStream responseByteStream;
+    @Nullable
+    private BufferedSource responseSource;
     private boolean opened;
     private long bytesToRead;
     private long bytesRead;
@@ -303,6 +307,7 @@ public class OkHttpDataSource extends BaseDataSource implements HttpDataSource {
             response = this.response;
             responseBody = Assertions.checkNotNull(response.body());
             responseByteStream = responseBody.byteStream();
+            responseSource = responseBody.source();
         } catch (IOException e) {
             throw HttpDataSourceException.createForIOException(
                     e, dataSpec, HttpDataSourceException.TYPE_OPEN);
@@ -383,6 +388,16 @@ public class OkHttpDataSource extends BaseDataSource implements HttpDataSource {
         }
     }
     
+    @Override
+    public int read(ByteBuffer buffer) throws HttpDataSourceException {
+        try {
+            return readInternal(buffer);
+        } catch (IOException e) {
+            throw HttpDataSourceException.createForIOException(
+                    e, castNonNull(dataSpec), HttpDataSourceException.TYPE_READ);
+        }
+    }
+    
     @Override
     public void close() {
         if (opened) {
@@ -526,6 +541,53 @@ public class OkHttpDataSource extends BaseDataSource implements HttpDataSource {
         return read;
     }
     
+    /**
+     * Reads into a {@link ByteBuffer}. Direct buffers are filled straight from the response's
+     * {@link BufferedSource}, without copying through an intermediate array.
+     *
+     * @param buffer The buffer into which the read data should be stored.
+     * @return The number of bytes read, or {@link C#RESULT_END_OF_INPUT} if the end of the opened
+     * range is reached.
+     * @throws IOException If an error occurs reading from the source.
+     */
+    private int readInternal(ByteBuffer buffer) throws IOException {
+        if (buffer.hasArray()) {
+            int position = buffer.position();
+            int read = readInternal(buffer.array(), buffer.arrayOffset() + position, buffer.remaining());
+            if (read > 0) {
+                buffer.position(position + read);
+            }
+            return read;
+        }
+        int readLength = buffer.remaining();
+        if (readLength == 0) {
+            return 0;
+        }
+        if (bytesToRead != C.LENGTH_UNSET) {
+            long bytesRemaining = bytesToRead - bytesRead;
+            if (bytesRemaining == 0) {
+                return C.RESULT_END_OF_INPUT;
+            }
+            readLength = (int) min(readLength, bytesRemaining);
+        }
+        
+        int limit = buffer.limit();
+        buffer.limit(buffer.position() + readLength);
+        int read;
+        try {
+            read = castNonNull(responseSource).read(buffer);
+        } finally {
+            buffer.limit(limit);
+        }
+        if (read == -1) {
+            return C.RESULT_END_OF_INPUT;
+        }
+        
+        bytesRead += read;
+        bytesTransferred(read);
+        return read;
+    }
+    
     /**
      * Closes the current connection quietly, if there is one.
      */
@@ -535,5 +597,6 @@ public class OkHttpDataSource extends BaseDataSource implements HttpDataSource {
             response = null;
         }
         responseByteStream = null;
+        responseSource = null;
     }
 }
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.ext.okhttp;
+
+import static com.google.android.exoplayer2.util.Assertions.checkArgument;
+
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.upstream.HttpUtil;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+
+/**
+ * An OkHttp application {@link Interceptor} that limits the number of concurrent requests to each
+ * origin, admitting waiting requests in order of the urgency in their {@link
+ * HttpUtil#PRIORITY_HEADER Priority} header.
+ *
+ * <p>A request occupies one of its origin's slots from when it's sent until its response body is
+ * closed. When all slots are occupied, requests wait, and the most urgent waiting request is
+ * admitted next. Requests with equal urgency are admitted in the order in which they arrived.
+ *
+ * <p>The header is also sent to the server, which may use it to schedule the streams of a
+ * multiplexed HTTP/2 connection.
+ */
+public final class StreamPrioritizer implements Interceptor {
+
+  private static final class Waiter implements Comparable<Waiter> {
+
+    public final int urgency;
+    public final long sequenceNumber;
+
+    public boolean isAdmitted;
+
+    public Waiter(int urgency, long sequenceNumber) {
+      this.urgency = urgency;
+      this.sequenceNumber = sequenceNumber;
+    }
+
+    @Override
+    public int compareTo(Waiter other) {
+      return urgency != other.urgency
+          ? Integer.compare(urgency, other.urgency)
+          : Long.compare(sequenceNumber, other.sequenceNumber);
+    }
+  }
+
+  private static final class Origin {
+
+    public final PriorityQueue<Waiter> waiters;
+
+    public int activeRequestCount;
+
+    public Origin() {
+      waiters = new PriorityQueue<>();
+    }
+  }
+
+  private final int maxConcurrentRequestsPerOrigin;
+  private final HashMap<String, Origin> origins;
+
+  private long nextSequenceNumber;
+  private int activeRequestCount;
+  private int waitingRequestCount;
+
+  /**
+   * Creates an instance.
+   *
+   * @param maxConcurrentRequestsPerOrigin The maximum number of requests to each origin that may
+   *     be in progress at the same time.
+   */
+  public StreamPrioritizer(int maxConcurrentRequestsPerOrigin) {
+    checkArgument(maxConcurrentRequestsPerOrigin > 0);
+    this.maxConcurrentRequestsPerOrigin = maxConcurrentRequestsPerOrigin;
+    origins = new HashMap<>();
+  }
+
+  /** Returns the number of requests that are in progress, across all origins. */
+  public synchronized int getActiveRequestCount() {
+    return activeRequestCount;
+  }
+
+  /** Returns the number of requests that are waiting to be admitted, across all origins. */
+  public synchronized int getWaitingRequestCount() {
+    return waitingRequestCount;
+  }
+
+  @Override
+  public Response intercept(Chain chain) throws IOException {
+    Request request = chain.request();
+    String originKey = getOriginKey(request.url());
+    acquire(originKey, HttpUtil.getPriorityUrgency(request.header(HttpUtil.PRIORITY_HEADER)));
+    Response response;
+    try {
+      response = chain.proceed(request);
+    } catch (Throwable e) {
+      release(originKey);
+      throw e;
+    }
+    @Nullable ResponseBody body = response.body();
+    if (body == null) {
+      release(originKey);
+      return response;
+    }
+    return response.newBuilder().body(new ReleasingResponseBody(body, originKey)).build();
+  }
+
+  private synchronized void acquire(String originKey, int urgency) throws InterruptedIOException {
+    @Nullable Origin origin = origins.get(originKey);
+    if (origin == null) {
+      origin = new Origin();
+      origins.put(originKey, origin);
+    }
+    if (origin.activeRequestCount < maxConcurrentRequestsPerOrigin && origin.waiters.isEmpty()) {
+      origin.activeRequestCount++;
+      activeRequestCount++;
+      return;
+    }
+    Waiter waiter = new Waiter(urgency, nextSequenceNumber++);
+    origin.waiters.add(waiter);
+    waitingRequestCount++;
+    try {
+      while (!waiter.isAdmitted) {
+        wait();
+      }
+    } catch (InterruptedException e) {
+      if (waiter.isAdmitted) {
+        release(originKey);
+      } else {
+        origin.waiters.remove(waiter);
+        waitingRequestCount--;
+      }
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+  }
+
+  private synchronized void release(String originKey) {
+    @Nullable Origin origin = origins.get(originKey);
+    if (origin == null) {
+      return;
+    }
+    origin.activeRequestCount--;
+    activeRequestCount--;
+    @Nullable Waiter nextWaiter = origin.waiters.poll();
+    if (nextWaiter != null) {
+      nextWaiter.isAdmitted = true;
+      waitingRequestCount--;
+      origin.activeRequestCount++;
+      activeRequestCount++;
+      notifyAll();
+    } else if (origin.activeRequestCount == 0) {
+      origins.remove(originKey);
+    }
+  }
+
+  private static String getOriginKey(HttpUrl url) {
+    return url.scheme() + "://" + url.host() + ":" + url.port();
+  }
+
+  /** A {@link ResponseBody} that releases its request's slot when it's closed. */
+  private final class ReleasingResponseBody extends ResponseBody {
+
+    private final ResponseBody body;
+    private final BufferedSource source;
+
+    public ReleasingResponseBody(ResponseBody body, String originKey) {
+      this.body = body;
+      AtomicBoolean released = new AtomicBoolean();
+      source =
+          Okio.buffer(
+              new ForwardingSource(body.source()) {
+                @Override
+                public void close() throws IOException {
+                  try {
+                    super.close();
+                  } finally {
+                    if (released.compareAndSet(false, true)) {
+                      release(originKey);
+                    }
+                  }
+                }
+              });
+    }
+
+    @Override
+    @Nullable
+    public MediaType contentType() {
+      return body.contentType();
+    }
+
+    @Override
+    public long contentLength() {
+      return body.contentLength();
+    }
+
+    @Override
+    public BufferedSource source() {
+      return source;
+    }
+  }
+}
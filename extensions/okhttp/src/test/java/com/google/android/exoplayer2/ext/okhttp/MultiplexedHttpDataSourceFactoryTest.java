@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.ext.okhttp;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import android.net.Uri;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.HttpDataSource;
+import com.google.android.exoplayer2.upstream.HttpUtil;
+import com.google.common.collect.ImmutableMap;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link MultiplexedHttpDataSourceFactory}. */
+@RunWith(AndroidJUnit4.class)
+public class MultiplexedHttpDataSourceFactoryTest {
+
+  private MockWebServer mockWebServer;
+  private ExecutorService executorService;
+
+  @Before
+  public void setUp() throws Exception {
+    mockWebServer = new MockWebServer();
+    mockWebServer.setProtocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE));
+    mockWebServer.start();
+    executorService = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    executorService.shutdownNow();
+    mockWebServer.shutdown();
+  }
+
+  @Test
+  public void concurrentRequests_shareOneConnection() throws Exception {
+    // Responses are held back until both requests have been received, so they're only served if
+    // the requests are in progress at the same time.
+    CountDownLatch requestsReceived = new CountDownLatch(2);
+    mockWebServer.setDispatcher(
+        new Dispatcher() {
+          @Override
+          public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+            requestsReceived.countDown();
+            return requestsReceived.await(10, SECONDS)
+                ? new MockResponse().setBody("body")
+                : new MockResponse().setResponseCode(503);
+          }
+        });
+    ConnectionPool connectionPool = new ConnectionPool();
+    MultiplexedHttpDataSourceFactory factory =
+        new MultiplexedHttpDataSourceFactory(
+                new OkHttpClient.Builder().connectionPool(connectionPool).build())
+            .setCleartextHttp2Enabled(true);
+
+    Future<?> request1 =
+        executorService.submit(
+            () -> openAndClose(factory, "/1", HttpUtil.DEFAULT_PRIORITY_URGENCY));
+    Future<?> request2 =
+        executorService.submit(
+            () -> openAndClose(factory, "/2", HttpUtil.DEFAULT_PRIORITY_URGENCY));
+    request1.get(20, SECONDS);
+    request2.get(20, SECONDS);
+
+    assertThat(mockWebServer.getRequestCount()).isEqualTo(2);
+    assertThat(connectionPool.connectionCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void waitingRequests_areAdmittedInOrderOfUrgency() throws Exception {
+    for (int i = 0; i < 3; i++) {
+      mockWebServer.enqueue(new MockResponse().setBody("body"));
+    }
+    MultiplexedHttpDataSourceFactory factory =
+        new MultiplexedHttpDataSourceFactory()
+            .setCleartextHttp2Enabled(true)
+            .setMaxConcurrentStreamsPerOrigin(1);
+    StreamPrioritizer streamPrioritizer = factory.getStreamPrioritizer();
+    HttpDataSource activeDataSource = factory.createDataSource();
+    activeDataSource.open(new DataSpec(Uri.parse(mockWebServer.url("/active").toString())));
+
+    Future<?> prefetch = executorService.submit(() -> openAndClose(factory, "/prefetch", 5));
+    waitForWaitingRequestCount(streamPrioritizer, 1);
+    Future<?> urgent = executorService.submit(() -> openAndClose(factory, "/urgent", 1));
+    waitForWaitingRequestCount(streamPrioritizer, 2);
+    activeDataSource.close();
+    urgent.get(10, SECONDS);
+    prefetch.get(10, SECONDS);
+
+    assertThat(mockWebServer.takeRequest(10, SECONDS).getPath()).isEqualTo("/active");
+    RecordedRequest urgentRequest = mockWebServer.takeRequest(10, SECONDS);
+    assertThat(urgentRequest.getPath()).isEqualTo("/urgent");
+    assertThat(urgentRequest.getHeader(HttpUtil.PRIORITY_HEADER)).isEqualTo("u=1");
+    assertThat(mockWebServer.takeRequest(10, SECONDS).getPath()).isEqualTo("/prefetch");
+    assertThat(streamPrioritizer.getActiveRequestCount()).isEqualTo(0);
+  }
+
+  private Void openAndClose(MultiplexedHttpDataSourceFactory factory, String path, int urgency)
+      throws Exception {
+    HttpDataSource dataSource = factory.createDataSource();
+    DataSpec dataSpec =
+        new DataSpec(Uri.parse(mockWebServer.url(path).toString()))
+            .withAdditionalHeaders(
+                ImmutableMap.of(
+                    HttpUtil.PRIORITY_HEADER, HttpUtil.buildPriorityHeader(urgency)));
+    dataSource.open(dataSpec);
+    dataSource.close();
+    return null;
+  }
+
+  private static void waitForWaitingRequestCount(
+      StreamPrioritizer streamPrioritizer, int waitingRequestCount) throws InterruptedException {
+    long deadlineMs = System.currentTimeMillis() + 10_000;
+    while (streamPrioritizer.getWaitingRequestCount() < waitingRequestCount) {
+      assertThat(System.currentTimeMillis()).isLessThan(deadlineMs);
+      Thread.sleep(10);
+    }
+  }
+}
@@ -18,6 +18,7 @@ package com.google.android.exoplayer2.upstream;
 import com.google.android.exoplayer2.C;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Reads bytes from a data stream.
@@ -40,4 +41,42 @@ public interface DataReader {
      * @throws IOException If an error occurs reading from the input.
      */
     int read(byte[] buffer, int offset, int length) throws IOException;
+    
+    /**
+     * Reads up to {@link ByteBuffer#remaining()} bytes of data into {@code buffer}, starting at its
+     * position, and advances its position by the number of bytes read.
+     *
+     * <p>The return value and blocking behavior are the same as for {@link #read(byte[], int, int)},
+     * and the two methods can be called in any order.
+     *
+     * <p>The default implementation reads into the backing array of heap buffers. Direct buffers are
+     * read into through a temporary array allocated by each call, so readers that are passed direct
+     * buffers should override this method, either to read into them without copying or to reuse a
+     * scratch array.
+     *
+     * @param buffer The buffer into which the data should be read.
+     * @return The number of bytes read, or {@link C#RESULT_END_OF_INPUT} if the input has ended.
+     * @throws IOException If an error occurs reading from the input.
+     */
+    default int read(ByteBuffer buffer) throws IOException {
+        int length = buffer.remaining();
+        if (length == 0) {
+            return 0;
+        }
+        int position = buffer.position();
+        if (buffer.hasArray()) {
+            int bytesRead = read(buffer.array(), buffer.arrayOffset() + position, length);
+            if (bytesRead > 0) {
+                buffer.position(position + bytesRead);
+            }
+            return bytesRead;
+        }
+        // Limit the size of the temporary array, since reads may return fewer bytes anyway.
+        byte[] copyBuffer = new byte[Math.min(length, 32 * 1024)];
+        int bytesRead = read(copyBuffer, /* offset= */ 0, copyBuffer.length);
+        if (bytesRead > 0) {
+            buffer.put(copyBuffer, /* offset= */ 0, bytesRead);
+        }
+        return bytesRead;
+    }
 }
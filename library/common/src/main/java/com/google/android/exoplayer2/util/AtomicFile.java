@@ -56,6 +56,14 @@ public final class AtomicFile {
     return baseName.exists() || backupName.exists();
   }
 
+  /**
+   * Returns whether the backup file exists. If it does, the base file is invalid and is replaced by
+   * the backup when the file is next read, so data mustn't be appended to the base file.
+   */
+  public boolean hasBackup() {
+    return backupName.exists();
+  }
+
   /** Delete the atomic file. This deletes both the base and backup files. */
   public void delete() {
     baseName.delete();
@@ -0,0 +1,498 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2;
+
+import static com.google.android.exoplayer2.util.Assertions.checkArgument;
+import static com.google.android.exoplayer2.util.Assertions.checkState;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.analytics.AnalyticsListener.EventTime;
+import com.google.android.exoplayer2.analytics.PlaybackStats;
+import com.google.android.exoplayer2.analytics.PlaybackStatsListener;
+import com.google.android.exoplayer2.source.TrackGroupArray;
+import com.google.android.exoplayer2.trackselection.ExoTrackSelection;
+import com.google.android.exoplayer2.upstream.Allocator;
+import com.google.android.exoplayer2.upstream.BandwidthMeter;
+import com.google.android.exoplayer2.upstream.DefaultAllocator;
+import com.google.android.exoplayer2.util.Util;
+
+/**
+ * A {@link LoadControl} that sizes its buffer targets from the network conditions and the content
+ * being played, rather than from fixed thresholds.
+ *
+ * <p>The target buffer duration lies between a minimum and a maximum duration. It's the minimum
+ * while the network reliably delivers the bitrate of the selected tracks, and grows towards the
+ * maximum as bandwidth dips below that bitrate become likely. It's derived from:
+ *
+ * <ul>
+ *   <li>The mean and variance of the bandwidth, estimated from the transfers reported to {@link
+ *       #onBandwidthSample(int, long, long)}. The load control should be added as an event listener
+ *       of the player's {@link BandwidthMeter}. Until enough transfers have been reported, the
+ *       target is the maximum duration.
+ *   <li>The bitrate of the selected tracks. The highest {@link Format#bitrate} of each track
+ *       selection is used, so that the buffer can hold the tracks that adaptive selections may
+ *       switch up to. If the bitrate of an audio or video selection is unknown, the target is the
+ *       maximum duration.
+ *   <li>Rebuffers. Each rebuffer of the current playback, and the rate of rebuffers of earlier
+ *       playbacks reported to {@link #onPlaybackStatsReady(EventTime, PlaybackStats)}, raises the
+ *       target. The load control can be set as the callback of a {@link PlaybackStatsListener}.
+ * </ul>
+ *
+ * <p>The target buffer size in bytes is derived from the target duration and the bitrate, so that
+ * the memory used on stable networks follows the content rather than the track types.
+ */
+public final class AdaptiveLoadControl
+    implements LoadControl, BandwidthMeter.EventListener, PlaybackStatsListener.Callback {
+
+  /** The default minimum target buffer duration, in milliseconds. */
+  public static final int DEFAULT_MIN_BUFFER_MS = 10_000;
+
+  /** The default maximum target buffer duration, in milliseconds. */
+  public static final int DEFAULT_MAX_BUFFER_MS = DefaultLoadControl.DEFAULT_MAX_BUFFER_MS;
+
+  /**
+   * The default duration of media that must be buffered for playback to start or resume following a
+   * user action such as a seek, in milliseconds.
+   */
+  public static final int DEFAULT_BUFFER_FOR_PLAYBACK_MS =
+      DefaultLoadControl.DEFAULT_BUFFER_FOR_PLAYBACK_MS;
+
+  /**
+   * The default duration of media that must be buffered for playback to resume after a rebuffer, in
+   * milliseconds.
+   */
+  public static final int DEFAULT_BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_MS =
+      DefaultLoadControl.DEFAULT_BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_MS;
+
+  /**
+   * The default duration after which the weight of a bandwidth sample in the bandwidth estimate has
+   * halved, in milliseconds of transfer time.
+   */
+  public static final int DEFAULT_BANDWIDTH_HALF_LIFE_MS = 20_000;
+
+  /** The default duration by which each rebuffer raises the target buffer duration, in ms. */
+  public static final int DEFAULT_REBUFFER_BUFFER_INCREMENT_MS = 10_000;
+
+  /** The minimum target buffer size in bytes. */
+  public static final int MIN_TARGET_BUFFER_BYTES = 32 * C.DEFAULT_BUFFER_SEGMENT_SIZE;
+
+  /** The number of standard deviations below the mean bandwidth that a dip is expected to reach. */
+  private static final int BANDWIDTH_DEVIATIONS = 2;
+  /** The transfer time that must be sampled before the bandwidth estimate is used, in ms. */
+  private static final int MIN_BANDWIDTH_SAMPLE_ELAPSED_MS = 2_000;
+  /**
+   * The standard deviation of the bandwidth assumed before any variance has been observed, as a
+   * fraction of the first sample. It makes the target start high, and fall as samples of a stable
+   * network outweigh it, rather than trusting the first few samples of a bursty network.
+   */
+  private static final double INITIAL_BANDWIDTH_DEVIATION_FRACTION = 0.5;
+  /** The factor by which the target buffer size exceeds the size of the target duration. */
+  private static final float TARGET_BUFFER_BYTES_MARGIN = 1.25f;
+  /** The fraction of the target duration below which loading resumes after it stopped. */
+  private static final float RESUME_LOADING_FRACTION = 0.8f;
+  /** The play time over which the rate of rebuffers of earlier playbacks is counted, in ms. */
+  private static final long REBUFFER_HISTORY_PLAY_TIME_MS = 10 * 60 * 1000;
+  /** The maximum number of rebuffers of earlier playbacks counted per history play time. */
+  private static final float MAX_REBUFFER_HISTORY_COUNT = 3;
+
+  /** Builder for {@link AdaptiveLoadControl}. */
+  public static final class Builder {
+
+    @Nullable private DefaultAllocator allocator;
+    private int minBufferMs;
+    private int maxBufferMs;
+    private int bufferForPlaybackMs;
+    private int bufferForPlaybackAfterRebufferMs;
+    private int bandwidthHalfLifeMs;
+    private int rebufferBufferIncrementMs;
+    private int backBufferDurationMs;
+    private boolean retainBackBufferFromKeyframe;
+    private boolean buildCalled;
+
+    /** Constructs a new instance. */
+    public Builder() {
+      minBufferMs = DEFAULT_MIN_BUFFER_MS;
+      maxBufferMs = DEFAULT_MAX_BUFFER_MS;
+      bufferForPlaybackMs = DEFAULT_BUFFER_FOR_PLAYBACK_MS;
+      bufferForPlaybackAfterRebufferMs = DEFAULT_BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_MS;
+      bandwidthHalfLifeMs = DEFAULT_BANDWIDTH_HALF_LIFE_MS;
+      rebufferBufferIncrementMs = DEFAULT_REBUFFER_BUFFER_INCREMENT_MS;
+      backBufferDurationMs = DefaultLoadControl.DEFAULT_BACK_BUFFER_DURATION_MS;
+      retainBackBufferFromKeyframe = DefaultLoadControl.DEFAULT_RETAIN_BACK_BUFFER_FROM_KEYFRAME;
+    }
+
+    /**
+     * Sets the {@link DefaultAllocator} used by the loader.
+     *
+     * @param allocator The {@link DefaultAllocator}.
+     * @return This builder, for convenience.
+     * @throws IllegalStateException If {@link #build()} has already been called.
+     */
+    public Builder setAllocator(DefaultAllocator allocator) {
+      checkState(!buildCalled);
+      this.allocator = allocator;
+      return this;
+    }
+
+    /**
+     * Sets the buffer duration parameters.
+     *
+     * @param minBufferMs The target buffer duration on a stable network, in milliseconds.
+     * @param maxBufferMs The maximum target buffer duration, in milliseconds.
+     * @param bufferForPlaybackMs The duration of media that must be buffered for playback to start
+     *     or resume following a user action such as a seek, in milliseconds.
+     * @param bufferForPlaybackAfterRebufferMs The duration of media that must be buffered for
+     *     playback to resume after a rebuffer, in milliseconds.
+     * @return This builder, for convenience.
+     * @throws IllegalStateException If {@link #build()} has already been called.
+     */
+    public Builder setBufferDurationsMs(
+        int minBufferMs,
+        int maxBufferMs,
+        int bufferForPlaybackMs,
+        int bufferForPlaybackAfterRebufferMs) {
+      checkState(!buildCalled);
+      checkArgument(bufferForPlaybackMs >= 0);
+      checkArgument(bufferForPlaybackAfterRebufferMs >= 0);
+      checkArgument(minBufferMs >= bufferForPlaybackMs);
+      checkArgument(minBufferMs >= bufferForPlaybackAfterRebufferMs);
+      checkArgument(maxBufferMs >= minBufferMs);
+      this.minBufferMs = minBufferMs;
+      this.maxBufferMs = maxBufferMs;
+      this.bufferForPlaybackMs = bufferForPlaybackMs;
+      this.bufferForPlaybackAfterRebufferMs = bufferForPlaybackAfterRebufferMs;
+      return this;
+    }
+
+    /**
+     * Sets the duration after which the weight of a bandwidth sample in the bandwidth estimate has
+     * halved. Shorter durations follow changes of the network faster, longer durations remember
+     * bandwidth dips for longer.
+     *
+     * @param bandwidthHalfLifeMs The half-life, in milliseconds of transfer time.
+     * @return This builder, for convenience.
+     * @throws IllegalStateException If {@link #build()} has already been called.
+     */
+    public Builder setBandwidthHalfLifeMs(int bandwidthHalfLifeMs) {
+      checkState(!buildCalled);
+      checkArgument(bandwidthHalfLifeMs > 0);
+      this.bandwidthHalfLifeMs = bandwidthHalfLifeMs;
+      return this;
+    }
+
+    /**
+     * Sets the duration by which each rebuffer raises the target buffer duration.
+     *
+     * @param rebufferBufferIncrementMs The duration, in milliseconds.
+     * @return This builder, for convenience.
+     * @throws IllegalStateException If {@link #build()} has already been called.
+     */
+    public Builder setRebufferBufferIncrementMs(int rebufferBufferIncrementMs) {
+      checkState(!buildCalled);
+      checkArgument(rebufferBufferIncrementMs >= 0);
+      this.rebufferBufferIncrementMs = rebufferBufferIncrementMs;
+      return this;
+    }
+
+    /**
+     * Sets the back buffer duration, and whether the back buffer is retained from the previous
+     * keyframe.
+     *
+     * @param backBufferDurationMs The back buffer duration in milliseconds.
+     * @param retainBackBufferFromKeyframe Whether the back buffer is retained from the previous
+     *     keyframe.
+     * @return This builder, for convenience.
+     * @throws IllegalStateException If {@link #build()} has already been called.
+     */
+    public Builder setBackBuffer(int backBufferDurationMs, boolean retainBackBufferFromKeyframe) {
+      checkState(!buildCalled);
+      checkArgument(backBufferDurationMs >= 0);
+      this.backBufferDurationMs = backBufferDurationMs;
+      this.retainBackBufferFromKeyframe = retainBackBufferFromKeyframe;
+      return this;
+    }
+
+    /** Creates an {@link AdaptiveLoadControl}. */
+    public AdaptiveLoadControl build() {
+      checkState(!buildCalled);
+      buildCalled = true;
+      if (allocator == null) {
+        allocator = new DefaultAllocator(/* trimOnReset= */ true, C.DEFAULT_BUFFER_SEGMENT_SIZE);
+      }
+      return new AdaptiveLoadControl(this, allocator);
+    }
+  }
+
+  private final DefaultAllocator allocator;
+  private final long minBufferUs;
+  private final long maxBufferUs;
+  private final long bufferForPlaybackUs;
+  private final long bufferForPlaybackAfterRebufferUs;
+  private final int bandwidthHalfLifeMs;
+  private final long rebufferBufferIncrementUs;
+  private final long backBufferDurationUs;
+  private final boolean retainBackBufferFromKeyframe;
+
+  // Guarded by this. The bandwidth estimate is in bits per second.
+  private double bandwidthMean;
+  private double bandwidthVariance;
+  private long bandwidthSampleElapsedMs;
+  private int selectedBitrate;
+  private int defaultTargetBufferBytes;
+  private int rebufferCount;
+  private float rebufferHistoryCount;
+
+  // Written while holding the lock, read without it by the playback thread.
+  private volatile long targetBufferUs;
+  private volatile int targetBufferBytes;
+
+  // Accessed only by the playback thread.
+  private boolean isLoading;
+  private boolean isRebuffering;
+
+  private AdaptiveLoadControl(Builder builder, DefaultAllocator allocator) {
+    this.allocator = allocator;
+    minBufferUs = Util.msToUs(builder.minBufferMs);
+    maxBufferUs = Util.msToUs(builder.maxBufferMs);
+    bufferForPlaybackUs = Util.msToUs(builder.bufferForPlaybackMs);
+    bufferForPlaybackAfterRebufferUs = Util.msToUs(builder.bufferForPlaybackAfterRebufferMs);
+    bandwidthHalfLifeMs = builder.bandwidthHalfLifeMs;
+    rebufferBufferIncrementUs = Util.msToUs(builder.rebufferBufferIncrementMs);
+    backBufferDurationUs = Util.msToUs(builder.backBufferDurationMs);
+    retainBackBufferFromKeyframe = builder.retainBackBufferFromKeyframe;
+    selectedBitrate = Format.NO_VALUE;
+    defaultTargetBufferBytes = DefaultLoadControl.DEFAULT_MIN_BUFFER_SIZE;
+    updateTargets();
+  }
+
+  /** Returns the current target buffer duration, in microseconds. */
+  public long getTargetBufferUs() {
+    return targetBufferUs;
+  }
+
+  /** Returns the current target buffer size, in bytes. */
+  public int getTargetBufferBytes() {
+    return targetBufferBytes;
+  }
+
+  // LoadControl implementation.
+
+  @Override
+  public void onPrepared() {
+    reset(/* resetAllocator= */ false);
+  }
+
+  @Override
+  public void onTracksSelected(
+      Renderer[] renderers, TrackGroupArray trackGroups, ExoTrackSelection[] trackSelections) {
+    int bitrate = 0;
+    int defaultTargetBufferBytes = 0;
+    for (int i = 0; i < renderers.length; i++) {
+      @Nullable ExoTrackSelection trackSelection = trackSelections[i];
+      if (trackSelection == null) {
+        continue;
+      }
+      @C.TrackType int trackType = renderers[i].getTrackType();
+      defaultTargetBufferBytes += DefaultLoadControl.getDefaultBufferSize(trackType);
+      if (trackType != C.TRACK_TYPE_AUDIO
+          && trackType != C.TRACK_TYPE_VIDEO
+          && trackType != C.TRACK_TYPE_DEFAULT) {
+        // The bitrate of other tracks is negligible, and often unknown.
+        continue;
+      }
+      int maxBitrate = Format.NO_VALUE;
+      for (int j = 0; j < trackSelection.length(); j++) {
+        maxBitrate = max(maxBitrate, trackSelection.getFormat(j).bitrate);
+      }
+      if (maxBitrate == Format.NO_VALUE || bitrate == Format.NO_VALUE) {
+        bitrate = Format.NO_VALUE;
+      } else {
+        bitrate += maxBitrate;
+      }
+    }
+    synchronized (this) {
+      selectedBitrate = bitrate;
+      this.defaultTargetBufferBytes =
+          max(DefaultLoadControl.DEFAULT_MIN_BUFFER_SIZE, defaultTargetBufferBytes);
+      updateTargets();
+    }
+  }
+
+  @Override
+  public void onStopped() {
+    reset(/* resetAllocator= */ true);
+  }
+
+  @Override
+  public void onReleased() {
+    reset(/* resetAllocator= */ true);
+  }
+
+  @Override
+  public Allocator getAllocator() {
+    return allocator;
+  }
+
+  @Override
+  public long getBackBufferDurationUs() {
+    return backBufferDurationUs;
+  }
+
+  @Override
+  public boolean retainBackBufferFromKeyframe() {
+    return retainBackBufferFromKeyframe;
+  }
+
+  @Override
+  public boolean shouldContinueLoading(
+      long playbackPositionUs, long bufferedDurationUs, float playbackSpeed) {
+    long targetBufferUs = this.targetBufferUs;
+    if (playbackSpeed > 1) {
+      // Keep enough media buffered for a playout duration of targetBufferUs.
+      targetBufferUs =
+          min(Util.getMediaDurationForPlayoutDuration(targetBufferUs, playbackSpeed), maxBufferUs);
+    }
+    boolean targetBufferSizeReached = allocator.getTotalBytesAllocated() >= targetBufferBytes;
+    if (bufferedDurationUs < bufferForPlaybackAfterRebufferUs) {
+      // Never let the size target starve playback, in case the bitrate of the media exceeds the
+      // bitrate of its formats.
+      isLoading = true;
+    } else if (bufferedDurationUs < targetBufferUs * RESUME_LOADING_FRACTION) {
+      isLoading = !targetBufferSizeReached;
+    } else if (bufferedDurationUs >= targetBufferUs || targetBufferSizeReached) {
+      isLoading = false;
+    }
+    // Else don't change the loading state.
+    return isLoading;
+  }
+
+  @Override
+  public boolean shouldStartPlayback(
+      long bufferedDurationUs, float playbackSpeed, boolean rebuffering, long targetLiveOffsetUs) {
+    if (rebuffering && !isRebuffering) {
+      isRebuffering = true;
+      synchronized (this) {
+        rebufferCount++;
+        updateTargets();
+      }
+    }
+    bufferedDurationUs = Util.getPlayoutDurationForMediaDuration(bufferedDurationUs, playbackSpeed);
+    long minBufferDurationUs = rebuffering ? bufferForPlaybackAfterRebufferUs : bufferForPlaybackUs;
+    if (targetLiveOffsetUs != C.TIME_UNSET) {
+      minBufferDurationUs = min(targetLiveOffsetUs / 2, minBufferDurationUs);
+    }
+    boolean shouldStartPlayback =
+        minBufferDurationUs <= 0 || bufferedDurationUs >= minBufferDurationUs;
+    if (shouldStartPlayback) {
+      isRebuffering = false;
+    }
+    return shouldStartPlayback;
+  }
+
+  // BandwidthMeter.EventListener implementation.
+
+  @Override
+  public synchronized void onBandwidthSample(
+      int elapsedMs, long bytesTransferred, long bitrateEstimate) {
+    if (elapsedMs <= 0) {
+      return;
+    }
+    double bitrate = bytesTransferred * 8000d / elapsedMs;
+    if (bandwidthSampleElapsedMs == 0) {
+      bandwidthMean = bitrate;
+      double deviation = INITIAL_BANDWIDTH_DEVIATION_FRACTION * bitrate;
+      bandwidthVariance = deviation * deviation;
+    } else {
+      // Exponentially weighted mean and variance, weighting each sample by its transfer time.
+      double weight = 1 - Math.pow(0.5, (double) elapsedMs / bandwidthHalfLifeMs);
+      double difference = bitrate - bandwidthMean;
+      double increment = weight * difference;
+      bandwidthMean += increment;
+      bandwidthVariance = (1 - weight) * (bandwidthVariance + difference * increment);
+    }
+    bandwidthSampleElapsedMs += elapsedMs;
+    updateTargets();
+  }
+
+  // PlaybackStatsListener.Callback implementation.
+
+  /**
+   * Takes the rate of rebuffers of an ended playback into account. Playback stats of earlier
+   * sessions, for example {@link PlaybackStats#merge(PlaybackStats...) merged} stats persisted by
+   * the app, may also be passed to seed the history.
+   */
+  @Override
+  public synchronized void onPlaybackStatsReady(EventTime eventTime, PlaybackStats playbackStats) {
+    if (playbackStats.getTotalPlayTimeMs() == 0) {
+      return;
+    }
+    float rebuffers = playbackStats.getRebufferRate() * (REBUFFER_HISTORY_PLAY_TIME_MS / 1000f);
+    // Give the latest playback as much weight as all earlier playbacks.
+    rebufferHistoryCount = (rebufferHistoryCount + min(rebuffers, MAX_REBUFFER_HISTORY_COUNT)) / 2;
+    updateTargets();
+  }
+
+  // Internal methods.
+
+  private void reset(boolean resetAllocator) {
+    synchronized (this) {
+      selectedBitrate = Format.NO_VALUE;
+      defaultTargetBufferBytes = DefaultLoadControl.DEFAULT_MIN_BUFFER_SIZE;
+      rebufferCount = 0;
+      updateTargets();
+    }
+    isLoading = false;
+    isRebuffering = false;
+    if (resetAllocator) {
+      allocator.reset();
+    }
+  }
+
+  /** Updates the targets from the current estimates. Must be called while holding the lock. */
+  private void updateTargets() {
+    long targetBufferUs;
+    if (selectedBitrate == Format.NO_VALUE
+        || bandwidthSampleElapsedMs < MIN_BANDWIDTH_SAMPLE_ELAPSED_MS) {
+      targetBufferUs = maxBufferUs;
+    } else {
+      // The fraction of the bitrate that the network fails to deliver during an expected dip.
+      double bandwidthDip =
+          bandwidthMean - BANDWIDTH_DEVIATIONS * Math.sqrt(max(0, bandwidthVariance));
+      double shortfall = (selectedBitrate - bandwidthDip) / selectedBitrate;
+      shortfall = min(1, max(0, shortfall));
+      targetBufferUs = minBufferUs + (long) (shortfall * (maxBufferUs - minBufferUs));
+    }
+    targetBufferUs += (long) ((rebufferCount + rebufferHistoryCount) * rebufferBufferIncrementUs);
+    targetBufferUs = min(targetBufferUs, maxBufferUs);
+
+    int targetBufferBytes;
+    if (selectedBitrate == Format.NO_VALUE) {
+      targetBufferBytes = defaultTargetBufferBytes;
+    } else {
+      double bytes = selectedBitrate / 8d * targetBufferUs / C.MICROS_PER_SECOND;
+      bytes = min(Integer.MAX_VALUE, bytes * TARGET_BUFFER_BYTES_MARGIN);
+      targetBufferBytes = (int) max(MIN_TARGET_BUFFER_BYTES, bytes);
+    }
+
+    this.targetBufferUs = targetBufferUs;
+    if (targetBufferBytes != this.targetBufferBytes) {
+      this.targetBufferBytes = targetBufferBytes;
+      allocator.setTargetBufferSize(targetBufferBytes);
+    }
+  }
+}
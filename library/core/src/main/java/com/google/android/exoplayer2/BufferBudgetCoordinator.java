@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2;
+
+import static com.google.android.exoplayer2.util.Assertions.checkArgument;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import android.content.ComponentCallbacks2;
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.upstream.DefaultAllocator;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shares a process-wide buffer memory budget between the {@link DefaultLoadControl}s of multiple
+ * players, for example the players of a multi-view screen.
+ *
+ * <p>Each registered load control limits its target buffer size to its share of the budget, using
+ * {@link DefaultLoadControl#setTargetBufferBytesLimit(int)}. The focused player gets a larger share
+ * than the others. When the system is low on memory, as reported to {@link #onTrimMemory(int)}, the
+ * budget shrinks, taking memory from unfocused players first. Their allocators discard released
+ * allocations beyond their new share, and they stop loading until playback has consumed enough of
+ * their buffers.
+ *
+ * <p>Each registered load control must use its own {@link DefaultAllocator}, so that the memory
+ * used by each player can be reported by {@link #getBytesAllocated(DefaultLoadControl)}.
+ *
+ * <p>Methods may be called from any thread.
+ */
+public final class BufferBudgetCoordinator {
+
+  /** The default share of the budget of the focused player, relative to each other player. */
+  public static final int DEFAULT_FOCUSED_PLAYER_WEIGHT = 4;
+
+  /**
+   * The minimum budget of each player in bytes. Players keep this budget even if the total budget
+   * is smaller, so that they can continue playing.
+   */
+  public static final int MIN_PLAYER_BUFFER_BYTES = 16 * C.DEFAULT_BUFFER_SEGMENT_SIZE;
+
+  private final int totalBufferBytes;
+  private final int focusedPlayerWeight;
+  private final List<DefaultLoadControl> loadControls;
+  private final List<Integer> bufferBudgets;
+
+  @Nullable private DefaultLoadControl focusedLoadControl;
+  private int budgetPercentage;
+
+  /**
+   * Creates an instance with the {@link #DEFAULT_FOCUSED_PLAYER_WEIGHT}.
+   *
+   * @param totalBufferBytes The total buffer size of all players in bytes.
+   */
+  public BufferBudgetCoordinator(int totalBufferBytes) {
+    this(totalBufferBytes, DEFAULT_FOCUSED_PLAYER_WEIGHT);
+  }
+
+  /**
+   * Creates an instance.
+   *
+   * @param totalBufferBytes The total buffer size of all players in bytes.
+   * @param focusedPlayerWeight The share of the budget of the focused player, relative to each
+   *     other player.
+   */
+  public BufferBudgetCoordinator(int totalBufferBytes, int focusedPlayerWeight) {
+    checkArgument(totalBufferBytes > 0);
+    checkArgument(focusedPlayerWeight > 0);
+    this.totalBufferBytes = totalBufferBytes;
+    this.focusedPlayerWeight = focusedPlayerWeight;
+    loadControls = new ArrayList<>();
+    bufferBudgets = new ArrayList<>();
+    budgetPercentage = 100;
+  }
+
+  /**
+   * Adds a load control to share the budget with the other registered load controls. Does nothing
+   * if it's already registered.
+   */
+  public synchronized void register(DefaultLoadControl loadControl) {
+    if (!loadControls.contains(loadControl)) {
+      loadControls.add(loadControl);
+      bufferBudgets.add(0);
+      updateBufferBudgets();
+    }
+  }
+
+  /**
+   * Removes a load control, for example when its player is released, and removes its limit. Its
+   * budget is shared by the remaining load controls.
+   */
+  public synchronized void unregister(DefaultLoadControl loadControl) {
+    int index = loadControls.indexOf(loadControl);
+    if (index == C.INDEX_UNSET) {
+      return;
+    }
+    loadControls.remove(index);
+    bufferBudgets.remove(index);
+    if (loadControl == focusedLoadControl) {
+      focusedLoadControl = null;
+    }
+    loadControl.setTargetBufferBytesLimit(C.LENGTH_UNSET);
+    updateBufferBudgets();
+  }
+
+  /**
+   * Sets the load control of the focused player, which gets a larger share of the budget, or null
+   * if no player is focused.
+   *
+   * @throws IllegalArgumentException If the load control isn't registered.
+   */
+  public synchronized void setFocusedLoadControl(@Nullable DefaultLoadControl loadControl) {
+    checkArgument(loadControl == null || loadControls.contains(loadControl));
+    focusedLoadControl = loadControl;
+    updateBufferBudgets();
+  }
+
+  /**
+   * Shrinks the budget according to the memory pressure reported by {@link
+   * ComponentCallbacks2#onTrimMemory(int)}, replacing the level of a previous call. {@link
+   * ComponentCallbacks2#TRIM_MEMORY_UI_HIDDEN} is ignored.
+   *
+   * @param level The memory trim level.
+   */
+  public synchronized void onTrimMemory(int level) {
+    int newBudgetPercentage;
+    if (level == ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+      return;
+    } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+      newBudgetPercentage = 25;
+    } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+      newBudgetPercentage = 50;
+    } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+      newBudgetPercentage = 75;
+    } else {
+      newBudgetPercentage = 100;
+    }
+    if (newBudgetPercentage != budgetPercentage) {
+      budgetPercentage = newBudgetPercentage;
+      updateBufferBudgets();
+    }
+  }
+
+  /** Restores the full budget after the memory pressure reported to {@link #onTrimMemory(int)}. */
+  public synchronized void clearMemoryPressure() {
+    if (budgetPercentage != 100) {
+      budgetPercentage = 100;
+      updateBufferBudgets();
+    }
+  }
+
+  /**
+   * Returns the budget of a registered load control in bytes.
+   *
+   * @throws IllegalArgumentException If the load control isn't registered.
+   */
+  public synchronized int getBufferBudgetBytes(DefaultLoadControl loadControl) {
+    int index = loadControls.indexOf(loadControl);
+    checkArgument(index != C.INDEX_UNSET);
+    return bufferBudgets.get(index);
+  }
+
+  /**
+   * Returns the number of bytes currently allocated by the player of a registered load control.
+   *
+   * @throws IllegalArgumentException If the load control isn't registered.
+   */
+  public synchronized int getBytesAllocated(DefaultLoadControl loadControl) {
+    checkArgument(loadControls.contains(loadControl));
+    return loadControl.getAllocator().getTotalBytesAllocated();
+  }
+
+  /** Returns the number of bytes currently allocated by all players of registered load controls. */
+  public synchronized int getTotalBytesAllocated() {
+    int totalBytesAllocated = 0;
+    for (int i = 0; i < loadControls.size(); i++) {
+      totalBytesAllocated += loadControls.get(i).getAllocator().getTotalBytesAllocated();
+    }
+    return totalBytesAllocated;
+  }
+
+  private void updateBufferBudgets() {
+    int playerCount = loadControls.size();
+    if (playerCount == 0) {
+      return;
+    }
+    boolean hasFocusedPlayer = focusedLoadControl != null;
+    int unfocusedPlayerCount = hasFocusedPlayer ? playerCount - 1 : playerCount;
+    int totalWeight = unfocusedPlayerCount + (hasFocusedPlayer ? focusedPlayerWeight : 0);
+    long unfocusedBudget = (long) totalBufferBytes / totalWeight;
+    long focusedBudget = unfocusedBudget * focusedPlayerWeight;
+
+    // Take the memory that has to be given up from the unfocused players first.
+    long reduction = (long) totalBufferBytes * (100 - budgetPercentage) / 100;
+    if (unfocusedPlayerCount > 0) {
+      long unfocusedReduction = min(reduction, unfocusedBudget * unfocusedPlayerCount);
+      unfocusedBudget -= unfocusedReduction / unfocusedPlayerCount;
+      reduction -= unfocusedReduction;
+    }
+    focusedBudget -= reduction;
+
+    for (int i = 0; i < playerCount; i++) {
+      DefaultLoadControl loadControl = loadControls.get(i);
+      long budget = loadControl == focusedLoadControl ? focusedBudget : unfocusedBudget;
+      int bufferBudget = (int) max(MIN_PLAYER_BUFFER_BYTES, budget);
+      bufferBudgets.set(i, bufferBudget);
+      loadControl.setTargetBufferBytesLimit(bufferBudget);
+    }
+  }
+}
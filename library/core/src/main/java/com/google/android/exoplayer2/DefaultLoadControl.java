@@ -21,6 +21,7 @@ import static java.lang.Math.min;
 
 import androidx.annotation.Nullable;
 
+import com.google.android.exoplayer2.source.BackBufferSpillingAllocator;
 import com.google.android.exoplayer2.source.TrackGroupArray;
 import com.google.android.exoplayer2.trackselection.ExoTrackSelection;
 import com.google.android.exoplayer2.upstream.Allocator;
@@ -29,6 +30,8 @@ import com.google.android.exoplayer2.util.Assertions;
 import com.google.android.exoplayer2.util.Log;
 import com.google.android.exoplayer2.util.Util;
 
+import java.io.File;
+
 /**
  * The default {@link LoadControl} implementation.
  */
@@ -135,6 +138,8 @@ public class DefaultLoadControl implements LoadControl {
         private boolean prioritizeTimeOverSizeThresholds;
         private int backBufferDurationMs;
         private boolean retainBackBufferFromKeyframe;
+        @Nullable
+        private File backBufferSpillDirectory;
         private boolean buildCalled;
         
         /**
@@ -249,6 +254,24 @@ public class DefaultLoadControl implements LoadControl {
             return this;
         }
         
+        /**
+         * Sets a directory in which the back buffer is kept in files rather than in memory. Sample data
+         * is written to a file once it has been read, and read back from the file when playback seeks
+         * back into the back buffer, so a long back buffer can be retained without holding its
+         * allocations. {@link #build()} wraps the {@link DefaultAllocator} in a {@link
+         * BackBufferSpillingAllocator}, which is returned by {@link DefaultLoadControl#getAllocator()}.
+         *
+         * @param backBufferSpillDirectory The directory, which must exist, for example a subdirectory
+         *                                 of {@link android.content.Context#getCacheDir()}.
+         * @return This builder, for convenience.
+         * @throws IllegalStateException If {@link #build()} has already been called.
+         */
+        public Builder setBackBufferSpillDirectory(File backBufferSpillDirectory) {
+            checkState(!buildCalled);
+            this.backBufferSpillDirectory = backBufferSpillDirectory;
+            return this;
+        }
+        
         /**
          * @deprecated use {@link #build} instead.
          */
@@ -266,7 +289,7 @@ public class DefaultLoadControl implements LoadControl {
             if (allocator == null) {
                 allocator = new DefaultAllocator(/* trimOnReset= */ true, C.DEFAULT_BUFFER_SEGMENT_SIZE);
             }
-            return new DefaultLoadControl(
+            DefaultLoadControl loadControl = new DefaultLoadControl(
                     allocator,
                     minBufferMs,
                     maxBufferMs,
@@ -276,11 +299,19 @@ public class DefaultLoadControl implements LoadControl {
                     prioritizeTimeOverSizeThresholds,
                     backBufferDurationMs,
                     retainBackBufferFromKeyframe);
+            if (backBufferSpillDirectory != null) {
+                loadControl.backBufferSpillingAllocator =
+                        new BackBufferSpillingAllocator(allocator, backBufferSpillDirectory);
+            }
+            return loadControl;
         }
     }
     
     // 资源分配器
     private final DefaultAllocator allocator;
+    // 包装allocator，使SampleQueue将后向缓冲区写入文件；为null时后向缓冲区保留在内存中
+    @Nullable
+    private BackBufferSpillingAllocator backBufferSpillingAllocator;
     
     // 最小缓存时间限制
     private final long minBufferUs;
@@ -300,7 +331,9 @@ public class DefaultLoadControl implements LoadControl {
     private final boolean retainBackBufferFromKeyframe;
     
     // 目标缓冲区大小限制（字节）
-    private int targetBufferBytes;
+    private volatile int targetBufferBytes;
+    // 目标缓冲区大小的上限（字节），可在任意线程设置，比如多个播放器共享内存预算时
+    private volatile int targetBufferBytesLimit;
     // 状态位，是否在loading
     private boolean isLoading;
     
@@ -354,6 +387,7 @@ public class DefaultLoadControl implements LoadControl {
                 targetBufferBytesOverwrite != C.LENGTH_UNSET
                         ? targetBufferBytesOverwrite
                         : DEFAULT_MIN_BUFFER_SIZE;
+        this.targetBufferBytesLimit = Integer.MAX_VALUE;
         this.prioritizeTimeOverSizeThresholds = prioritizeTimeOverSizeThresholds;
         this.backBufferDurationUs = Util.msToUs(backBufferDurationMs);
         this.retainBackBufferFromKeyframe = retainBackBufferFromKeyframe;
@@ -371,7 +405,7 @@ public class DefaultLoadControl implements LoadControl {
                 targetBufferBytesOverwrite == C.LENGTH_UNSET
                         ? calculateTargetBufferBytes(renderers, trackSelections)
                         : targetBufferBytesOverwrite;
-        allocator.setTargetBufferSize(targetBufferBytes);
+        allocator.setTargetBufferSize(getTargetBufferBytes());
     }
     
     @Override
@@ -389,7 +423,32 @@ public class DefaultLoadControl implements LoadControl {
     * */
     @Override
     public Allocator getAllocator() {
-        return allocator;
+        return backBufferSpillingAllocator != null ? backBufferSpillingAllocator : allocator;
+    }
+    
+    /**
+     * Sets the maximum target buffer size in bytes, for example to share a memory budget between
+     * multiple players. May be called from any thread.
+     *
+     * <p>If the player's buffer is larger than the new limit, it stops loading until playback has
+     * consumed enough of its buffer. Released allocations beyond the limit are discarded by the
+     * allocator immediately.
+     *
+     * @param targetBufferBytesLimit The maximum target buffer size in bytes, or {@link
+     *                               C#LENGTH_UNSET} to remove the limit.
+     */
+    public void setTargetBufferBytesLimit(int targetBufferBytesLimit) {
+        this.targetBufferBytesLimit =
+                targetBufferBytesLimit == C.LENGTH_UNSET ? Integer.MAX_VALUE : targetBufferBytesLimit;
+        allocator.setTargetBufferSize(getTargetBufferBytes());
+    }
+    
+    /**
+     * Returns the target buffer size in bytes, taking the limit set by {@link
+     * #setTargetBufferBytesLimit(int)} into account.
+     */
+    public int getTargetBufferBytes() {
+        return min(targetBufferBytes, targetBufferBytesLimit);
     }
     
     @Override
@@ -410,7 +469,7 @@ public class DefaultLoadControl implements LoadControl {
                 ", playbackSpeed" + playbackSpeed
         );
         // 标识位：判断当前缓存的数据是否已经达到目标缓冲大小
-        boolean targetBufferSizeReached = allocator.getTotalBytesAllocated() >= targetBufferBytes;
+        boolean targetBufferSizeReached = allocator.getTotalBytesAllocated() >= getTargetBufferBytes();
         // 获取播放最小缓冲时间限制
         long minBufferUs = this.minBufferUs;
         // 倍数转换，不同倍速，最小缓冲时间限制标准不一样
@@ -471,7 +530,7 @@ public class DefaultLoadControl implements LoadControl {
         return minBufferDurationUs <= 0
                 || bufferedDurationUs >= minBufferDurationUs
                 || (!prioritizeTimeOverSizeThresholds
-                && allocator.getTotalBytesAllocated() >= targetBufferBytes);
+                && allocator.getTotalBytesAllocated() >= getTargetBufferBytes());
     }
     
     /**
@@ -507,7 +566,7 @@ public class DefaultLoadControl implements LoadControl {
     /*
     * 获取每个track默认目标缓存值
     * */
-    private static int getDefaultBufferSize(@C.TrackType int trackType) {
+    /* package */ static int getDefaultBufferSize(@C.TrackType int trackType) {
         switch (trackType) {
             case C.TRACK_TYPE_DEFAULT:
                 return DEFAULT_MUXED_BUFFER_SIZE;
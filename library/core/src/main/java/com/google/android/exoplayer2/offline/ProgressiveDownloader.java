@@ -62,12 +62,29 @@ public final class ProgressiveDownloader implements Downloader {
    * @param mediaItem The media item with a uri to the stream to be downloaded.
    * @param cacheDataSourceFactory A {@link CacheDataSource.Factory} for the cache into which the
    *     download will be written.
-   * @param executor An {@link Executor} used to make requests for the media being downloaded. In
-   *     the future, providing an {@link Executor} that uses multiple threads may speed up the
-   *     download by allowing parts of it to be executed in parallel.
+   * @param executor An {@link Executor} used to make requests for the media being downloaded.
    */
   public ProgressiveDownloader(
       MediaItem mediaItem, CacheDataSource.Factory cacheDataSourceFactory, Executor executor) {
+    this(mediaItem, cacheDataSourceFactory, executor, /* maxParallelRequests= */ 1);
+  }
+
+  /**
+   * Creates a new instance.
+   *
+   * @param mediaItem The media item with a uri to the stream to be downloaded.
+   * @param cacheDataSourceFactory A {@link CacheDataSource.Factory} for the cache into which the
+   *     download will be written.
+   * @param executor An {@link Executor} used to make requests for the media being downloaded.
+   * @param maxParallelRequests The maximum number of byte ranges of the media that are requested
+   *     concurrently. Values greater than 1 may speed up the download if the throughput of
+   *     individual connections is limited, provided {@code executor} uses multiple threads.
+   */
+  public ProgressiveDownloader(
+      MediaItem mediaItem,
+      CacheDataSource.Factory cacheDataSourceFactory,
+      Executor executor,
+      int maxParallelRequests) {
     this.executor = Assertions.checkNotNull(executor);
     Assertions.checkNotNull(mediaItem.localConfiguration);
     dataSpec =
@@ -80,7 +97,8 @@ public final class ProgressiveDownloader implements Downloader {
     @SuppressWarnings("nullness:methodref.receiver.bound")
     CacheWriter.ProgressListener progressListener = this::onProgress;
     cacheWriter =
-        new CacheWriter(dataSource, dataSpec, /* temporaryBuffer= */ null, progressListener);
+        new CacheWriter(
+            cacheDataSourceFactory, dataSpec, progressListener, executor, maxParallelRequests);
     priorityTaskManager = cacheDataSourceFactory.getUpstreamPriorityTaskManager();
   }
 
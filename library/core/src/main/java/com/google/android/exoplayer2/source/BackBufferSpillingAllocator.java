@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.source;
+
+import com.google.android.exoplayer2.upstream.Allocation;
+import com.google.android.exoplayer2.upstream.Allocator;
+import java.io.File;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An {@link Allocator} that delegates to another allocator, and makes the {@link SampleQueue
+ * SampleQueues} using it keep their back buffer in files rather than in allocations.
+ *
+ * <p>Sample data that has been read is written to a {@link SampleDataSpillFile} in the spill
+ * directory, and the allocation holding it is released once it has been written. Data that is
+ * read again, for example after seeking back, is read from the file. Spill files left in the
+ * directory by a previous process are deleted when the first file is created in it.
+ */
+public final class BackBufferSpillingAllocator implements Allocator {
+
+  private static final String SPILL_THREAD_NAME = "ExoPlayer:BackBufferSpill";
+  private static final long SPILL_THREAD_KEEP_ALIVE_MS = 10_000;
+
+  private final Allocator allocator;
+  private final File spillDirectory;
+  private final Executor spillExecutor;
+
+  /**
+   * Creates an instance that writes the files on a background thread, which stops when it has been
+   * idle for a while.
+   *
+   * @param allocator The {@link Allocator} to which allocation requests are delegated.
+   * @param spillDirectory The directory, which must exist, in which the files are created.
+   */
+  public BackBufferSpillingAllocator(Allocator allocator, File spillDirectory) {
+    this(allocator, spillDirectory, createSpillExecutor());
+  }
+
+  /**
+   * Creates an instance.
+   *
+   * @param allocator The {@link Allocator} to which allocation requests are delegated.
+   * @param spillDirectory The directory, which must exist, in which the files are created.
+   * @param spillExecutor The {@link Executor} on which the files are written. Tasks should run on a
+   *     thread other than the playback thread, in the order in which they're submitted.
+   */
+  public BackBufferSpillingAllocator(
+      Allocator allocator, File spillDirectory, Executor spillExecutor) {
+    this.allocator = allocator;
+    this.spillDirectory = spillDirectory;
+    this.spillExecutor = spillExecutor;
+  }
+
+  /** Returns the directory in which the files are created. */
+  public File getSpillDirectory() {
+    return spillDirectory;
+  }
+
+  /** Returns the {@link Executor} on which the files are written. */
+  public Executor getSpillExecutor() {
+    return spillExecutor;
+  }
+
+  @Override
+  public Allocation allocate() {
+    return allocator.allocate();
+  }
+
+  @Override
+  public void release(Allocation allocation) {
+    allocator.release(allocation);
+  }
+
+  @Override
+  public void release(Allocation[] allocations) {
+    allocator.release(allocations);
+  }
+
+  @Override
+  public void trim() {
+    allocator.trim();
+  }
+
+  @Override
+  public int getTotalBytesAllocated() {
+    return allocator.getTotalBytesAllocated();
+  }
+
+  @Override
+  public int getIndividualAllocationLength() {
+    return allocator.getIndividualAllocationLength();
+  }
+
+  private static Executor createSpillExecutor() {
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            /* corePoolSize= */ 1,
+            /* maximumPoolSize= */ 1,
+            SPILL_THREAD_KEEP_ALIVE_MS,
+            TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(),
+            runnable -> new Thread(runnable, SPILL_THREAD_NAME));
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+}
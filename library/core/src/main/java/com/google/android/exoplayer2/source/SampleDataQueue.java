@@ -15,6 +15,8 @@
  */
 package com.google.android.exoplayer2.source;
 
+import static com.google.android.exoplayer2.util.Assertions.checkArgument;
+import static com.google.android.exoplayer2.util.Assertions.checkNotNull;
 import static java.lang.Math.min;
 
 import androidx.annotation.Nullable;
@@ -28,23 +30,37 @@ import com.google.android.exoplayer2.source.SampleQueue.SampleExtrasHolder;
 import com.google.android.exoplayer2.upstream.Allocation;
 import com.google.android.exoplayer2.upstream.Allocator;
 import com.google.android.exoplayer2.upstream.DataReader;
+import com.google.android.exoplayer2.util.Log;
 import com.google.android.exoplayer2.util.ParsableByteArray;
 import com.google.android.exoplayer2.util.Util;
 
 import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.concurrent.Executor;
 
 /**
  * A queue of media sample data.
+ *
+ * <p>If the queue has a spill directory, allocations that have been read are written to a {@link
+ * SampleDataSpillFile} in that directory and returned to the allocator. Data that is read again
+ * after {@link #rewind()} is then read from the file, so a back buffer doesn't hold allocations.
+ * The data is written on the queue's spill executor, and an allocation is only released once its
+ * data has been written.
  */
 /* package */
 class SampleDataQueue {
     
+    private static final String TAG = "SampleDataQueue";
     private static final int INITIAL_SCRATCH_SIZE = 32;
     
     private final Allocator allocator;
+    @Nullable
+    private final File spillDirectory;
+    @Nullable
+    private final Executor spillExecutor;
     private final int allocationLength;
     private final ParsableByteArray scratch;
     
@@ -52,30 +68,65 @@ class SampleDataQueue {
     private AllocationNode firstAllocationNode;
     private AllocationNode readAllocationNode;
     private AllocationNode writeAllocationNode;
+    // The first node that hasn't been handed off for spilling. The nodes before it have been
+    // spilled, or are being spilled.
+    private AllocationNode spillAllocationNode;
+    
+    // Accessed by the consuming thread and the spill executor, guarded by this queue.
+    @Nullable
+    private SampleDataSpillFile spillFile;
+    private boolean spillFailed;
+    // Incremented by reset(), so that nodes handed off before don't create a spill file afterwards.
+    private int spillGeneration;
     
     // Accessed only by the loading thread (or the consuming thread when there is no loading thread).
     private long totalBytesWritten;
     
+    /**
+     * Creates a queue that keeps all its data in allocations.
+     *
+     * @param allocator The {@link Allocator} from which allocations are obtained.
+     */
     public SampleDataQueue(Allocator allocator) {
+        this(allocator, /* spillDirectory= */ null, /* spillExecutor= */ null);
+    }
+    
+    /**
+     * Creates a queue.
+     *
+     * @param allocator      The {@link Allocator} from which allocations are obtained.
+     * @param spillDirectory The directory in which data that has been read is written to a file, or
+     *                       null to keep it in allocations.
+     * @param spillExecutor  The {@link Executor} on which the file is written, which must be non-null
+     *                       if {@code spillDirectory} is.
+     */
+    public SampleDataQueue(
+            Allocator allocator, @Nullable File spillDirectory, @Nullable Executor spillExecutor) {
+        checkArgument(spillDirectory == null || spillExecutor != null);
         this.allocator = allocator;
+        this.spillDirectory = spillDirectory;
+        this.spillExecutor = spillExecutor;
         allocationLength = allocator.getIndividualAllocationLength();
         scratch = new ParsableByteArray(INITIAL_SCRATCH_SIZE);
         firstAllocationNode = new AllocationNode(/* startPosition= */ 0, allocationLength);
         readAllocationNode = firstAllocationNode;
         writeAllocationNode = firstAllocationNode;
+        spillAllocationNode = firstAllocationNode;
     }
     
     // Called by the consuming thread, but only when there is no loading thread.
     
     /**
-     * Clears all sample data.
+     * Clears all sample data, and deletes the spill file if there is one.
      */
     public void reset() {
         clearAllocationNodes(firstAllocationNode);
         firstAllocationNode = new AllocationNode(0, allocationLength);
         readAllocationNode = firstAllocationNode;
         writeAllocationNode = firstAllocationNode;
+        spillAllocationNode = firstAllocationNode;
         totalBytesWritten = 0;
+        releaseSpillFile();
         allocator.trim();
     }
     
@@ -93,6 +144,7 @@ class SampleDataQueue {
             firstAllocationNode = new AllocationNode(this.totalBytesWritten, allocationLength);
             readAllocationNode = firstAllocationNode;
             writeAllocationNode = firstAllocationNode;
+            spillAllocationNode = firstAllocationNode;
         } else {
             // Find the last node containing at least 1 byte of data that we need to keep.
             AllocationNode lastNodeToKeep = firstAllocationNode;
@@ -112,6 +164,9 @@ class SampleDataQueue {
             if (readAllocationNode == firstNodeToDiscard) {
                 readAllocationNode = lastNodeToKeep.next;
             }
+            if (spillAllocationNode == firstNodeToDiscard) {
+                spillAllocationNode = lastNodeToKeep.next;
+            }
         }
     }
     
@@ -132,9 +187,13 @@ class SampleDataQueue {
      * @param extrasHolder The extras holder whose offset should be read and subsequently adjusted.
      * @throws InsufficientCapacityException If the {@code buffer} has insufficient capacity to hold
      *                                       the data being read.
+     * @throws IOException If spilled data can't be read from the spill file. The read position isn't
+     *                     advanced.
      */
-    public void readToBuffer(DecoderInputBuffer buffer, SampleExtrasHolder extrasHolder) {
+    public void readToBuffer(DecoderInputBuffer buffer, SampleExtrasHolder extrasHolder)
+            throws IOException {
         readAllocationNode = readSampleData(readAllocationNode, buffer, extrasHolder, scratch);
+        maybeSpillReadAllocationNodes();
     }
     
     /**
@@ -145,8 +204,10 @@ class SampleDataQueue {
      * @param extrasHolder The extras holder whose offset should be read and subsequently adjusted.
      * @throws InsufficientCapacityException If the {@code buffer} has insufficient capacity to hold
      *                                       the data being peeked.
+     * @throws IOException If spilled data can't be read from the spill file.
      */
-    public void peekToBuffer(DecoderInputBuffer buffer, SampleExtrasHolder extrasHolder) {
+    public void peekToBuffer(DecoderInputBuffer buffer, SampleExtrasHolder extrasHolder)
+            throws IOException {
         readSampleData(readAllocationNode, buffer, extrasHolder, scratch);
     }
     
@@ -162,8 +223,12 @@ class SampleDataQueue {
         }
         while (absolutePosition >= firstAllocationNode.endPosition) {
             // Advance firstAllocationNode to the specified absolute position. Also clear nodes that are
-            // advanced past, and return their underlying allocations to the allocator.
-            allocator.release(firstAllocationNode.allocation);
+            // advanced past, and return their underlying allocations to the allocator or free their
+            // spill file slots.
+            @Nullable Allocation allocation = firstAllocationNode.discardData();
+            if (allocation != null) {
+                allocator.release(allocation);
+            }
             firstAllocationNode = firstAllocationNode.clear();
         }
         if (readAllocationNode.startPosition < firstAllocationNode.startPosition) {
@@ -171,6 +236,9 @@ class SampleDataQueue {
             // remaining node.
             readAllocationNode = firstAllocationNode;
         }
+        if (spillAllocationNode.startPosition < firstAllocationNode.startPosition) {
+            spillAllocationNode = firstAllocationNode;
+        }
     }
     
     // Called by the loading thread.
@@ -220,21 +288,162 @@ class SampleDataQueue {
             return;
         }
         // Bulk release allocations for performance (it's significantly faster when using
-        // DefaultAllocator because the allocator's lock only needs to be acquired and released once)
+        // DefaultAllocator because the allocator only looks up its thread cache and updates its counts
+        // once)
         // [Internal: See b/29542039].
-        int allocationCount =
+        int nodeCount =
                 (writeAllocationNode.wasInitialized ? 1 : 0)
                         + ((int) (writeAllocationNode.startPosition - fromNode.startPosition)
                         / allocationLength);
-        Allocation[] allocationsToRelease = new Allocation[allocationCount];
+        Allocation[] allocationsToRelease = new Allocation[nodeCount];
+        int allocationCount = 0;
         AllocationNode currentNode = fromNode;
-        for (int i = 0; i < allocationsToRelease.length; i++) {
-            allocationsToRelease[i] = currentNode.allocation;
+        for (int i = 0; i < nodeCount; i++) {
+            @Nullable Allocation allocation = currentNode.discardData();
+            if (allocation != null) {
+                allocationsToRelease[allocationCount++] = allocation;
+            }
             currentNode = currentNode.clear();
         }
+        if (allocationCount < nodeCount) {
+            allocationsToRelease = Arrays.copyOf(allocationsToRelease, allocationCount);
+        }
         allocator.release(allocationsToRelease);
     }
     
+    /**
+     * Hands off the nodes before {@link #readAllocationNode} that haven't been handed off yet to the
+     * spill executor, if the queue has a spill directory. The executor writes their data to the
+     * spill file and releases their allocations.
+     */
+    private void maybeSpillReadAllocationNodes() {
+        if (spillAllocationNode.startPosition >= readAllocationNode.startPosition) {
+            return;
+        }
+        @Nullable File spillDirectory = this.spillDirectory;
+        @Nullable Executor spillExecutor = this.spillExecutor;
+        if (spillDirectory == null || spillExecutor == null) {
+            return;
+        }
+        int spillGeneration;
+        synchronized (this) {
+            if (spillFailed) {
+                return;
+            }
+            spillGeneration = this.spillGeneration;
+        }
+        while (spillAllocationNode.startPosition < readAllocationNode.startPosition) {
+            AllocationNode node = spillAllocationNode;
+            synchronized (node) {
+                node.spillPending = true;
+            }
+            spillExecutor.execute(() -> spill(node, spillDirectory, spillGeneration));
+            spillAllocationNode = checkNotNull(node.next);
+        }
+    }
+    
+    /**
+     * Writes the data of a node to the spill file and releases its allocation. Called on the spill
+     * executor. If the data can't be written, it's kept in memory and spilling is disabled until the
+     * next {@link #reset()}.
+     *
+     * @param node            The node handed off by {@link #maybeSpillReadAllocationNodes()}.
+     * @param spillDirectory  The directory in which to create the spill file.
+     * @param spillGeneration The {@link #spillGeneration} when the node was handed off.
+     */
+    private void spill(AllocationNode node, File spillDirectory, int spillGeneration) {
+        Allocation allocation;
+        synchronized (node) {
+            if (!node.spillPending) {
+                // The node was discarded before its data was written.
+                return;
+            }
+            allocation = checkNotNull(node.allocation);
+            node.spillWriting = true;
+        }
+        @Nullable SampleDataSpillFile spillFile = null;
+        int spillSlot = C.INDEX_UNSET;
+        @Nullable IOException writeError = null;
+        try {
+            spillFile = getOrCreateSpillFile(spillDirectory, spillGeneration);
+            if (spillFile != null) {
+                spillSlot = spillFile.write(allocation.data, allocation.offset);
+            }
+        } catch (IOException e) {
+            writeError = e;
+        }
+        boolean releaseAllocation;
+        synchronized (node) {
+            node.spillWriting = false;
+            if (!node.spillPending) {
+                // The node was discarded while its data was written, leaving the allocation to us.
+                if (spillSlot != C.INDEX_UNSET) {
+                    checkNotNull(spillFile).free(spillSlot);
+                }
+                releaseAllocation = true;
+            } else if (spillSlot != C.INDEX_UNSET) {
+                node.spill(checkNotNull(spillFile), spillSlot);
+                releaseAllocation = true;
+            } else {
+                node.spillPending = false;
+                releaseAllocation = false;
+                if (writeError != null) {
+                    Log.w(TAG, "Failed to spill sample data, keeping it in memory.", writeError);
+                    setSpillFailed();
+                }
+            }
+        }
+        if (releaseAllocation) {
+            allocator.release(allocation);
+        }
+    }
+    
+    /**
+     * Returns the spill file, creating it if needed, or null if spilling has failed or the queue has
+     * been reset since the node being spilled was handed off.
+     */
+    @Nullable
+    private SampleDataSpillFile getOrCreateSpillFile(File spillDirectory, int spillGeneration)
+            throws IOException {
+        synchronized (this) {
+            if (spillGeneration != this.spillGeneration) {
+                return null;
+            }
+            if (spillFailed || spillFile != null) {
+                return spillFile;
+            }
+        }
+        // Create the file without holding the lock, so that the consuming thread isn't blocked.
+        SampleDataSpillFile newSpillFile = new SampleDataSpillFile(spillDirectory, allocationLength);
+        @Nullable SampleDataSpillFile existingSpillFile;
+        synchronized (this) {
+            if (spillGeneration != this.spillGeneration) {
+                // The queue was reset while the file was created, and mustn't be left holding it.
+                existingSpillFile = null;
+            } else if (spillFile == null) {
+                spillFile = newSpillFile;
+                return newSpillFile;
+            } else {
+                existingSpillFile = spillFile;
+            }
+        }
+        newSpillFile.release();
+        return existingSpillFile;
+    }
+    
+    private synchronized void setSpillFailed() {
+        spillFailed = true;
+    }
+    
+    private synchronized void releaseSpillFile() {
+        if (spillFile != null) {
+            spillFile.release();
+            spillFile = null;
+        }
+        spillFailed = false;
+        spillGeneration++;
+    }
+    
     /**
      * Called before writing sample data to {@link #writeAllocationNode}. May cause {@link
      * #writeAllocationNode} to be initialized.
@@ -275,12 +484,14 @@ class SampleDataQueue {
      * the invocation read.
      * @throws InsufficientCapacityException If the {@code buffer} has insufficient capacity to hold
      *                                       the sample data.
+     * @throws IOException If spilled data can't be read from the spill file.
      */
     private static AllocationNode readSampleData(
             AllocationNode allocationNode,
             DecoderInputBuffer buffer,
             SampleExtrasHolder extrasHolder,
-            ParsableByteArray scratch) {
+            ParsableByteArray scratch)
+            throws IOException {
         if (buffer.isEncrypted()) {
             allocationNode = readEncryptionData(allocationNode, buffer, extrasHolder, scratch);
         }
@@ -324,12 +535,14 @@ class SampleDataQueue {
      * @param extrasHolder   The extras holder whose offset should be read and subsequently adjusted.
      * @param scratch        A scratch {@link ParsableByteArray}.
      * @return The first {@link AllocationNode} that contains unread bytes after this method returns.
+     * @throws IOException If spilled data can't be read from the spill file.
      */
     private static AllocationNode readEncryptionData(
             AllocationNode allocationNode,
             DecoderInputBuffer buffer,
             SampleExtrasHolder extrasHolder,
-            ParsableByteArray scratch) {
+            ParsableByteArray scratch)
+            throws IOException {
         long offset = extrasHolder.offset;
         
         // Read the signal byte.
@@ -413,15 +626,26 @@ class SampleDataQueue {
      * @param target           The buffer into which data should be written.
      * @param length           The number of bytes to read.
      * @return The first {@link AllocationNode} that contains unread bytes after this method returns.
+     * @throws IOException If spilled data can't be read from the spill file.
      */
     private static AllocationNode readData(
-            AllocationNode allocationNode, long absolutePosition, ByteBuffer target, int length) {
+            AllocationNode allocationNode, long absolutePosition, ByteBuffer target, int length)
+            throws IOException {
         allocationNode = getNodeContainingPosition(allocationNode, absolutePosition);
         int remaining = length;
         while (remaining > 0) {
             int toCopy = min(remaining, (int) (allocationNode.endPosition - absolutePosition));
-            Allocation allocation = allocationNode.allocation;
-            target.put(allocation.data, allocationNode.translateOffset(absolutePosition), toCopy);
+            // Hold the node's lock, so that the spill executor doesn't release the allocation while
+            // it's being copied.
+            synchronized (allocationNode) {
+                if (allocationNode.isSpilled()) {
+                    readSpilledData(allocationNode, absolutePosition, target, toCopy);
+                } else {
+                    Allocation allocation = allocationNode.allocation;
+                    target.put(
+                            allocation.data, allocationNode.translateOffset(absolutePosition), toCopy);
+                }
+            }
             remaining -= toCopy;
             absolutePosition += toCopy;
             if (absolutePosition == allocationNode.endPosition) {
@@ -439,20 +663,32 @@ class SampleDataQueue {
      * @param target           The array into which data should be written.
      * @param length           The number of bytes to read.
      * @return The first {@link AllocationNode} that contains unread bytes after this method returns.
+     * @throws IOException If spilled data can't be read from the spill file.
      */
     private static AllocationNode readData(
-            AllocationNode allocationNode, long absolutePosition, byte[] target, int length) {
+            AllocationNode allocationNode, long absolutePosition, byte[] target, int length)
+            throws IOException {
         allocationNode = getNodeContainingPosition(allocationNode, absolutePosition);
         int remaining = length;
         while (remaining > 0) {
             int toCopy = min(remaining, (int) (allocationNode.endPosition - absolutePosition));
-            Allocation allocation = allocationNode.allocation;
-            System.arraycopy(
-                    allocation.data,
-                    allocationNode.translateOffset(absolutePosition),
-                    target,
-                    length - remaining,
-                    toCopy);
+            synchronized (allocationNode) {
+                if (allocationNode.isSpilled()) {
+                    readSpilledData(
+                            allocationNode,
+                            absolutePosition,
+                            ByteBuffer.wrap(target, length - remaining, toCopy),
+                            toCopy);
+                } else {
+                    Allocation allocation = allocationNode.allocation;
+                    System.arraycopy(
+                            allocation.data,
+                            allocationNode.translateOffset(absolutePosition),
+                            target,
+                            length - remaining,
+                            toCopy);
+                }
+            }
             remaining -= toCopy;
             absolutePosition += toCopy;
             if (absolutePosition == allocationNode.endPosition) {
@@ -462,6 +698,26 @@ class SampleDataQueue {
         return allocationNode;
     }
     
+    /**
+     * Reads data of a spilled {@link AllocationNode} from the spill file.
+     *
+     * @param allocationNode   The spilled {@link AllocationNode} containing the data.
+     * @param absolutePosition The absolute position from which data should be read.
+     * @param target           The buffer into which data should be written.
+     * @param length           The number of bytes to read.
+     * @throws IOException If the data can't be read from the spill file.
+     */
+    private static void readSpilledData(
+            AllocationNode allocationNode, long absolutePosition, ByteBuffer target, int length)
+            throws IOException {
+        checkNotNull(allocationNode.spillFile)
+                .read(
+                        allocationNode.spillSlot,
+                        (int) (absolutePosition - allocationNode.startPosition),
+                        target,
+                        length);
+    }
+    
     /**
      * Returns the {@link AllocationNode} in {@code allocationNode}'s chain which contains the given
      * {@code absolutePosition}.
@@ -492,10 +748,29 @@ class SampleDataQueue {
          */
         public boolean wasInitialized;
         /**
-         * The {@link Allocation}, or {@code null} if the node is not initialized.
+         * The {@link Allocation}, or {@code null} if the node is not initialized or is spilled.
          */
         @Nullable
         public Allocation allocation;
+        /**
+         * The {@link SampleDataSpillFile} holding the data, or {@code null} if the node isn't spilled.
+         */
+        @Nullable
+        public SampleDataSpillFile spillFile;
+        /**
+         * The slot of the {@link #spillFile} holding the data, if the node is spilled.
+         */
+        public int spillSlot;
+        /**
+         * Whether the node's data has been handed off to be written to a spill file, and the node
+         * hasn't been discarded since.
+         */
+        public boolean spillPending;
+        /**
+         * Whether the node's data is being written to a spill file. While it is, the spill executor
+         * is responsible for releasing the {@link #allocation}.
+         */
+        public boolean spillWriting;
         /**
          * The next {@link AllocationNode} in the list, or {@code null} if the node has not been
          * initialized. Remains set after {@link #clear()}.
@@ -525,6 +800,44 @@ class SampleDataQueue {
             wasInitialized = true;
         }
         
+        /**
+         * Moves the node's data to a spill file. The caller is responsible for releasing the {@link
+         * #allocation}.
+         *
+         * @param spillFile The {@link SampleDataSpillFile} to which the data was written.
+         * @param spillSlot The slot of the spill file holding the data.
+         */
+        public void spill(SampleDataSpillFile spillFile, int spillSlot) {
+            allocation = null;
+            this.spillFile = spillFile;
+            this.spillSlot = spillSlot;
+            spillPending = false;
+        }
+        
+        /**
+         * Discards the node's data, cancelling a pending spill. Frees the node's spill file slot if
+         * it's spilled.
+         *
+         * @return The {@link #allocation} to release, or {@code null} if the node is spilled or the
+         * spill executor is writing its data and will release the allocation.
+         */
+        @Nullable
+        public synchronized Allocation discardData() {
+            spillPending = false;
+            if (spillFile != null) {
+                spillFile.free(spillSlot);
+                return null;
+            }
+            return spillWriting ? null : allocation;
+        }
+        
+        /**
+         * Returns whether the node's data has been moved to a spill file.
+         */
+        public boolean isSpilled() {
+            return spillFile != null;
+        }
+        
         /**
          * Gets the offset into the {@link #allocation}'s {@link Allocation#data} that corresponds to
          * the specified absolute position.
@@ -537,12 +850,13 @@ class SampleDataQueue {
         }
         
         /**
-         * Clears {@link #allocation} and {@link #next}.
+         * Clears {@link #allocation}, {@link #spillFile} and {@link #next}.
          *
          * @return The cleared next {@link AllocationNode}.
          */
-        public AllocationNode clear() {
+        public synchronized AllocationNode clear() {
             allocation = null;
+            spillFile = null;
             AllocationNode temp = next;
             next = null;
             return temp;
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.source;
+
+import static com.google.android.exoplayer2.util.Assertions.checkArgument;
+
+import androidx.annotation.Nullable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A file holding sample data that a {@link SampleDataQueue} has moved out of its allocations.
+ *
+ * <p>The file is divided into slots of one allocation length. Each spilled allocation is written to
+ * a free slot, and the slot is freed when the data is discarded, so the file doesn't grow beyond
+ * the largest amount of data spilled at any one time.
+ *
+ * <p>Data may be written on a different thread than the one reading it and freeing slots.
+ *
+ * <p>When the first file of this process is created in a directory, spill files that a previous
+ * process left in the directory, for example because it was killed before it could delete them,
+ * are deleted.
+ */
+/* package */ final class SampleDataSpillFile {
+
+  private static final String FILE_PREFIX = "sample-data";
+  private static final String FILE_SUFFIX = ".spill";
+
+  // The files of this process that haven't been released, and the directories in which this
+  // process has deleted stale files. Both guarded by openFiles.
+  private static final Set<File> openFiles = new HashSet<>();
+  private static final Set<File> cleanedDirectories = new HashSet<>();
+
+  /** Deletes the spill files in a directory that aren't used by this process, once per process. */
+  private static void maybeDeleteStaleFiles(File directory) {
+    synchronized (openFiles) {
+      if (!cleanedDirectories.add(directory)) {
+        return;
+      }
+      @Nullable File[] files = directory.listFiles();
+      if (files == null) {
+        return;
+      }
+      for (File file : files) {
+        String name = file.getName();
+        if (name.startsWith(FILE_PREFIX)
+            && name.endsWith(FILE_SUFFIX)
+            && !openFiles.contains(file)) {
+          file.delete();
+        }
+      }
+    }
+  }
+
+  private final File file;
+  private final RandomAccessFile randomAccessFile;
+  private final FileChannel channel;
+  private final int slotLength;
+
+  private int slotCount;
+  private int[] freeSlots;
+  private int freeSlotCount;
+
+  /**
+   * Creates a new file in a directory.
+   *
+   * @param directory The directory in which to create the file.
+   * @param slotLength The length of each slot, in bytes.
+   * @throws IOException If the file could not be created.
+   */
+  public SampleDataSpillFile(File directory, int slotLength) throws IOException {
+    checkArgument(slotLength > 0);
+    maybeDeleteStaleFiles(directory);
+    file = File.createTempFile(FILE_PREFIX, FILE_SUFFIX, directory);
+    try {
+      randomAccessFile = new RandomAccessFile(file, "rw");
+    } catch (IOException e) {
+      file.delete();
+      throw e;
+    }
+    channel = randomAccessFile.getChannel();
+    this.slotLength = slotLength;
+    freeSlots = new int[16];
+    synchronized (openFiles) {
+      openFiles.add(file);
+    }
+  }
+
+  /** Returns the number of slots holding data. */
+  public synchronized int getUsedSlotCount() {
+    return slotCount - freeSlotCount;
+  }
+
+  /**
+   * Writes data to a free slot.
+   *
+   * @param data The array containing the data.
+   * @param offset The offset of the data in {@code data}.
+   * @return The slot to which the data was written.
+   * @throws IOException If an error occurs writing the data.
+   */
+  public int write(byte[] data, int offset) throws IOException {
+    int slot = obtainSlot();
+    ByteBuffer source = ByteBuffer.wrap(data, offset, slotLength);
+    long position = (long) slot * slotLength;
+    try {
+      while (source.hasRemaining()) {
+        position += channel.write(source, position);
+      }
+    } catch (IOException e) {
+      free(slot);
+      throw e;
+    }
+    return slot;
+  }
+
+  /**
+   * Reads data from a slot.
+   *
+   * @param slot The slot to read from.
+   * @param slotOffset The offset in the slot from which to read.
+   * @param target The buffer into which the data is written, from its position.
+   * @param length The number of bytes to read.
+   * @throws IOException If an error occurs reading the data.
+   */
+  public void read(int slot, int slotOffset, ByteBuffer target, int length) throws IOException {
+    int limit = target.limit();
+    target.limit(target.position() + length);
+    try {
+      long position = (long) slot * slotLength + slotOffset;
+      while (target.hasRemaining()) {
+        int bytesRead = channel.read(target, position);
+        if (bytesRead < 0) {
+          throw new EOFException();
+        }
+        position += bytesRead;
+      }
+    } finally {
+      target.limit(limit);
+    }
+  }
+
+  /** Frees a slot, so that it can hold other data. */
+  public synchronized void free(int slot) {
+    if (freeSlotCount == freeSlots.length) {
+      freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+    }
+    freeSlots[freeSlotCount++] = slot;
+  }
+
+  /** Closes and deletes the file. */
+  public void release() {
+    try {
+      randomAccessFile.close();
+    } catch (IOException e) {
+      // Ignore. The file is deleted anyway.
+    }
+    file.delete();
+    synchronized (openFiles) {
+      openFiles.remove(file);
+    }
+  }
+
+  private synchronized int obtainSlot() {
+    return freeSlotCount > 0 ? freeSlots[--freeSlotCount] : slotCount++;
+  }
+}
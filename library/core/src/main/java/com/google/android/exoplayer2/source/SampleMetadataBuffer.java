@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.source;
+
+import static com.google.android.exoplayer2.util.Assertions.checkArgument;
+
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.extractor.TrackOutput.CryptoData;
+import org.checkerframework.checker.nullness.compatqual.NullableType;
+
+/**
+ * A ring buffer holding the metadata of the samples in a {@link SampleQueue}.
+ *
+ * <p>The timestamp, offset, size, flags and source id of each sample are packed into a record of
+ * consecutive {@code long}s, so that committing or reading a sample accesses one place in memory
+ * rather than one array per field. The capacity is a power of two, and is doubled when the buffer
+ * is full.
+ *
+ * <p>Samples are addressed by their position relative to the first sample in the buffer.
+ */
+/* package */ final class SampleMetadataBuffer {
+
+  private static final int FIELD_TIME_US = 0;
+  private static final int FIELD_OFFSET = 1;
+  private static final int FIELD_SIZE_AND_FLAGS = 2;
+  private static final int FIELD_SOURCE_ID = 3;
+  /** The base 2 logarithm of the number of {@code long}s in each record. */
+  private static final int RECORD_LENGTH_SHIFT = 2;
+
+  private long[] records;
+  private @NullableType CryptoData[] cryptoDatas;
+  private int indexMask;
+  private int firstIndex;
+  private int size;
+
+  /**
+   * Creates an empty buffer.
+   *
+   * @param initialCapacity The number of samples that can be held before the buffer grows. Must be
+   *     a power of two.
+   */
+  public SampleMetadataBuffer(int initialCapacity) {
+    checkArgument(Integer.bitCount(initialCapacity) == 1);
+    records = new long[initialCapacity << RECORD_LENGTH_SHIFT];
+    cryptoDatas = new CryptoData[initialCapacity];
+    indexMask = initialCapacity - 1;
+  }
+
+  /** Returns the number of samples in the buffer. */
+  public int size() {
+    return size;
+  }
+
+  /** Adds a sample after the last sample in the buffer. */
+  public void add(
+      long timeUs,
+      @C.BufferFlags int flags,
+      long offset,
+      int size,
+      int sourceId,
+      @Nullable CryptoData cryptoData) {
+    if (this.size == cryptoDatas.length) {
+      grow();
+    }
+    int index = (firstIndex + this.size) & indexMask;
+    int recordIndex = index << RECORD_LENGTH_SHIFT;
+    records[recordIndex + FIELD_TIME_US] = timeUs;
+    records[recordIndex + FIELD_OFFSET] = offset;
+    records[recordIndex + FIELD_SIZE_AND_FLAGS] = ((long) size << 32) | (flags & 0xFFFFFFFFL);
+    records[recordIndex + FIELD_SOURCE_ID] = sourceId;
+    cryptoDatas[index] = cryptoData;
+    this.size++;
+  }
+
+  /** Returns the timestamp of the sample at {@code position}, in microseconds. */
+  public long getTimeUs(int position) {
+    return records[getRecordIndex(position) + FIELD_TIME_US];
+  }
+
+  /** Returns the absolute offset of the data of the sample at {@code position}. */
+  public long getOffset(int position) {
+    return records[getRecordIndex(position) + FIELD_OFFSET];
+  }
+
+  /** Returns the size of the data of the sample at {@code position}, in bytes. */
+  public int getSize(int position) {
+    return (int) (records[getRecordIndex(position) + FIELD_SIZE_AND_FLAGS] >>> 32);
+  }
+
+  /** Returns the {@link C.BufferFlags} of the sample at {@code position}. */
+  @C.BufferFlags
+  public int getFlags(int position) {
+    return (int) records[getRecordIndex(position) + FIELD_SIZE_AND_FLAGS];
+  }
+
+  /** Returns the source id of the sample at {@code position}. */
+  public int getSourceId(int position) {
+    return (int) records[getRecordIndex(position) + FIELD_SOURCE_ID];
+  }
+
+  /** Returns the {@link CryptoData} of the sample at {@code position}. */
+  @Nullable
+  public CryptoData getCryptoData(int position) {
+    return cryptoDatas[(firstIndex + position) & indexMask];
+  }
+
+  /** Removes {@code count} samples from the start of the buffer. */
+  public void removeFirst(int count) {
+    checkArgument(0 <= count && count <= size);
+    firstIndex = (firstIndex + count) & indexMask;
+    size -= count;
+  }
+
+  /** Removes {@code count} samples from the end of the buffer. */
+  public void removeLast(int count) {
+    checkArgument(0 <= count && count <= size);
+    size -= count;
+  }
+
+  /** Removes all samples. */
+  public void clear() {
+    firstIndex = 0;
+    size = 0;
+  }
+
+  private int getRecordIndex(int position) {
+    return ((firstIndex + position) & indexMask) << RECORD_LENGTH_SHIFT;
+  }
+
+  private void grow() {
+    int capacity = cryptoDatas.length;
+    int newCapacity = capacity * 2;
+    long[] newRecords = new long[newCapacity << RECORD_LENGTH_SHIFT];
+    CryptoData[] newCryptoDatas = new CryptoData[newCapacity];
+    int beforeWrap = capacity - firstIndex;
+    System.arraycopy(
+        records,
+        firstIndex << RECORD_LENGTH_SHIFT,
+        newRecords,
+        /* destPos= */ 0,
+        beforeWrap << RECORD_LENGTH_SHIFT);
+    System.arraycopy(
+        records,
+        /* srcPos= */ 0,
+        newRecords,
+        beforeWrap << RECORD_LENGTH_SHIFT,
+        firstIndex << RECORD_LENGTH_SHIFT);
+    System.arraycopy(cryptoDatas, firstIndex, newCryptoDatas, /* destPos= */ 0, beforeWrap);
+    System.arraycopy(cryptoDatas, /* srcPos= */ 0, newCryptoDatas, beforeWrap, firstIndex);
+    records = newRecords;
+    cryptoDatas = newCryptoDatas;
+    indexMask = newCapacity - 1;
+    firstIndex = 0;
+  }
+}
@@ -51,8 +51,6 @@ import com.google.android.exoplayer2.util.Util;
 
 import java.io.IOException;
 
-import org.checkerframework.checker.nullness.compatqual.NullableType;
-
 /**
  * A queue of media samples.
  */
@@ -71,7 +69,7 @@ public class SampleQueue implements TrackOutput {
         void onUpstreamFormatChanged(Format format);
     }
     
-    @VisibleForTesting /* package */ static final int SAMPLE_CAPACITY_INCREMENT = 1000;
+    @VisibleForTesting /* package */ static final int INITIAL_SAMPLE_CAPACITY = 1024;
     private static final String TAG = "SampleQueue";
     
     private final SampleDataQueue sampleDataQueue;
@@ -90,18 +88,15 @@ public class SampleQueue implements TrackOutput {
     private Format downstreamFormat;
     @Nullable
     private DrmSession currentDrmSession;
+    // 从溢出文件读取样本数据失败时的错误，由maybeThrowError抛出
+    @Nullable
+    private IOException sampleDataReadError;
     
-    private int capacity;
-    private int[] sourceIds;
-    private long[] offsets;
-    private int[] sizes;
-    private int[] flags;
-    private long[] timesUs;
-    private @NullableType CryptoData[] cryptoDatas;
+    // 样本元数据（时间戳、偏移、大小、flags、sourceId）打包存放的环形缓冲区
+    private final SampleMetadataBuffer sampleMetadataBuffer;
     
     private int length;
     private int absoluteFirstIndex;
-    private int relativeFirstIndex;
     private int readPosition;
     
     private long startTimeUs;
@@ -126,6 +121,8 @@ public class SampleQueue implements TrackOutput {
      * Creates a sample queue without DRM resource management.
      *
      * @param allocator An {@link Allocator} from which allocations for sample data can be obtained.
+     *                  If it's a {@link BackBufferSpillingAllocator}, sample data that has been read
+     *                  is kept in files.
      */
     public static SampleQueue createWithoutDrm(Allocator allocator) {
         return new SampleQueue(
@@ -142,6 +139,8 @@ public class SampleQueue implements TrackOutput {
      * keys needed to decrypt it.
      *
      * @param allocator          An {@link Allocator} from which allocations for sample data can be obtained.
+     *                           If it's a {@link BackBufferSpillingAllocator}, sample data that has
+     *                           been read is kept in files.
      * @param playbackLooper     The looper associated with the media playback thread.
      * @param drmSessionManager  The {@link DrmSessionManager} to obtain {@link DrmSession DrmSessions}
      *                           from. The created instance does not take ownership of this {@link DrmSessionManager}.
@@ -168,15 +167,18 @@ public class SampleQueue implements TrackOutput {
         this.playbackLooper = playbackLooper;
         this.drmSessionManager = drmSessionManager;
         this.drmEventDispatcher = drmEventDispatcher;
-        sampleDataQueue = new SampleDataQueue(allocator);
+        if (allocator instanceof BackBufferSpillingAllocator) {
+            BackBufferSpillingAllocator spillingAllocator = (BackBufferSpillingAllocator) allocator;
+            sampleDataQueue =
+                    new SampleDataQueue(
+                            allocator,
+                            spillingAllocator.getSpillDirectory(),
+                            spillingAllocator.getSpillExecutor());
+        } else {
+            sampleDataQueue = new SampleDataQueue(allocator);
+        }
         extrasHolder = new SampleExtrasHolder();
-        capacity = SAMPLE_CAPACITY_INCREMENT;
-        sourceIds = new int[capacity];
-        offsets = new long[capacity];
-        timesUs = new long[capacity];
-        flags = new int[capacity];
-        sizes = new int[capacity];
-        cryptoDatas = new CryptoData[capacity];
+        sampleMetadataBuffer = new SampleMetadataBuffer(INITIAL_SAMPLE_CAPACITY);
         sharedSampleMetadata =
                 new SpannedData<>(/* removeCallback= */ metadata -> metadata.drmSessionReference.release());
         startTimeUs = Long.MIN_VALUE;
@@ -215,9 +217,9 @@ public class SampleQueue implements TrackOutput {
     @CallSuper
     public void reset(boolean resetUpstreamFormat) {
         sampleDataQueue.reset();
+        sampleMetadataBuffer.clear();
         length = 0;
         absoluteFirstIndex = 0;
-        relativeFirstIndex = 0;
         readPosition = 0;
         upstreamKeyframeRequired = true;
         startTimeUs = Long.MIN_VALUE;
@@ -225,6 +227,7 @@ public class SampleQueue implements TrackOutput {
         largestQueuedTimestampUs = Long.MIN_VALUE;
         isLastSampleQueued = false;
         sharedSampleMetadata.clear();
+        sampleDataReadError = null;
         if (resetUpstreamFormat) {
             unadjustedUpstreamFormat = null;
             upstreamFormat = null;
@@ -309,6 +312,9 @@ public class SampleQueue implements TrackOutput {
      */
     @CallSuper
     public void maybeThrowError() throws IOException {
+        if (sampleDataReadError != null) {
+            throw sampleDataReadError;
+        }
         // TODO: Avoid throwing if the DRM error is not preventing a read operation.
         if (currentDrmSession != null && currentDrmSession.getState() == DrmSession.STATE_ERROR) {
             throw Assertions.checkNotNull(currentDrmSession.getError());
@@ -336,8 +342,7 @@ public class SampleQueue implements TrackOutput {
      * @return The source id.
      */
     public final synchronized int peekSourceId() {
-        int relativeReadIndex = getRelativeIndex(readPosition);
-        return hasNextSample() ? sourceIds[relativeReadIndex] : upstreamSourceId;
+        return hasNextSample() ? sampleMetadataBuffer.getSourceId(readPosition) : upstreamSourceId;
     }
     
     /**
@@ -389,7 +394,7 @@ public class SampleQueue implements TrackOutput {
      * Returns the timestamp of the first sample, or {@link Long#MIN_VALUE} if the queue is empty.
      */
     public final synchronized long getFirstTimestampUs() {
-        return length == 0 ? Long.MIN_VALUE : timesUs[relativeFirstIndex];
+        return length == 0 ? Long.MIN_VALUE : sampleMetadataBuffer.getTimeUs(/* position= */ 0);
     }
     
     /**
@@ -415,7 +420,7 @@ public class SampleQueue implements TrackOutput {
             // A format can be read.
             return true;
         }
-        return mayReadSample(getRelativeIndex(readPosition));
+        return mayReadSample(readPosition);
     }
     
     /**
@@ -431,7 +436,9 @@ public class SampleQueue implements TrackOutput {
      * @param readFlags       Flags controlling the behavior of this read operation.
      * @param loadingFinished True if an empty queue should be considered the end of the stream.
      * @return The result, which can be {@link C#RESULT_NOTHING_READ}, {@link C#RESULT_FORMAT_READ} or
-     * {@link C#RESULT_BUFFER_READ}.
+     * {@link C#RESULT_BUFFER_READ}. {@link C#RESULT_NOTHING_READ} is also returned if the sample
+     * data can't be read from the back buffer spill file, in which case {@link #maybeThrowError()}
+     * throws the error.
      * @throws InsufficientCapacityException If the {@code buffer} has insufficient capacity to hold
      *                                       the data of a sample being read. The buffer {@link DecoderInputBuffer#timeUs timestamp} and
      *                                       flags are populated if this exception is thrown, but the read position is not advanced.
@@ -452,10 +459,16 @@ public class SampleQueue implements TrackOutput {
         if (result == C.RESULT_BUFFER_READ && !buffer.isEndOfStream()) {
             boolean peek = (readFlags & FLAG_PEEK) != 0;
             if ((readFlags & FLAG_OMIT_SAMPLE_DATA) == 0) {
-                if (peek) {
-                    sampleDataQueue.peekToBuffer(buffer, extrasHolder);
-                } else {
-                    sampleDataQueue.readToBuffer(buffer, extrasHolder);
+                try {
+                    if (peek) {
+                        sampleDataQueue.peekToBuffer(buffer, extrasHolder);
+                    } else {
+                        sampleDataQueue.readToBuffer(buffer, extrasHolder);
+                    }
+                    sampleDataReadError = null;
+                } catch (IOException e) {
+                    sampleDataReadError = e;
+                    return C.RESULT_NOTHING_READ;
                 }
             }
             if (!peek) {
@@ -491,14 +504,13 @@ public class SampleQueue implements TrackOutput {
      */
     public final synchronized boolean seekTo(long timeUs, boolean allowTimeBeyondBuffer) {
         rewind();
-        int relativeReadIndex = getRelativeIndex(readPosition);
         if (!hasNextSample()
-                || timeUs < timesUs[relativeReadIndex]
+                || timeUs < sampleMetadataBuffer.getTimeUs(readPosition)
                 || (timeUs > largestQueuedTimestampUs && !allowTimeBeyondBuffer)) {
             return false;
         }
         int offset =
-                findSampleBefore(relativeReadIndex, length - readPosition, timeUs, /* keyframe= */ true);
+                findSampleBefore(readPosition, length - readPosition, timeUs, /* keyframe= */ true);
         if (offset == -1) {
             return false;
         }
@@ -517,15 +529,14 @@ public class SampleQueue implements TrackOutput {
      * @return The number of samples that need to be skipped, which may be equal to 0.
      */
     public final synchronized int getSkipCount(long timeUs, boolean allowEndOfQueue) {
-        int relativeReadIndex = getRelativeIndex(readPosition);
-        if (!hasNextSample() || timeUs < timesUs[relativeReadIndex]) {
+        if (!hasNextSample() || timeUs < sampleMetadataBuffer.getTimeUs(readPosition)) {
             return 0;
         }
         if (timeUs > largestQueuedTimestampUs && allowEndOfQueue) {
             return length - readPosition;
         }
         int offset =
-                findSampleBefore(relativeReadIndex, length - readPosition, timeUs, /* keyframe= */ true);
+                findSampleBefore(readPosition, length - readPosition, timeUs, /* keyframe= */ true);
         if (offset == -1) {
             return 0;
         }
@@ -736,20 +747,19 @@ public class SampleQueue implements TrackOutput {
             return C.RESULT_FORMAT_READ;
         }
         
-        int relativeReadIndex = getRelativeIndex(readPosition);
-        if (!mayReadSample(relativeReadIndex)) {
+        if (!mayReadSample(readPosition)) {
             buffer.waitingForKeys = true;
             return C.RESULT_NOTHING_READ;
         }
         
-        buffer.setFlags(flags[relativeReadIndex]);
-        buffer.timeUs = timesUs[relativeReadIndex];
+        buffer.setFlags(sampleMetadataBuffer.getFlags(readPosition));
+        buffer.timeUs = sampleMetadataBuffer.getTimeUs(readPosition);
         if (buffer.timeUs < startTimeUs) {
             buffer.addFlag(C.BUFFER_FLAG_DECODE_ONLY);
         }
-        extrasHolder.size = sizes[relativeReadIndex];
-        extrasHolder.offset = offsets[relativeReadIndex];
-        extrasHolder.cryptoData = cryptoDatas[relativeReadIndex];
+        extrasHolder.size = sampleMetadataBuffer.getSize(readPosition);
+        extrasHolder.offset = sampleMetadataBuffer.getOffset(readPosition);
+        extrasHolder.cryptoData = sampleMetadataBuffer.getCryptoData(readPosition);
         
         return C.RESULT_BUFFER_READ;
     }
@@ -780,11 +790,11 @@ public class SampleQueue implements TrackOutput {
     
     private synchronized long discardSampleMetadataTo(
             long timeUs, boolean toKeyframe, boolean stopAtReadPosition) {
-        if (length == 0 || timeUs < timesUs[relativeFirstIndex]) {
+        if (length == 0 || timeUs < sampleMetadataBuffer.getTimeUs(/* position= */ 0)) {
             return C.POSITION_UNSET;
         }
         int searchLength = stopAtReadPosition && readPosition != length ? readPosition + 1 : length;
-        int discardCount = findSampleBefore(relativeFirstIndex, searchLength, timeUs, toKeyframe);
+        int discardCount = findSampleBefore(/* startPosition= */ 0, searchLength, timeUs, toKeyframe);
         if (discardCount == -1) {
             return C.POSITION_UNSET;
         }
@@ -823,21 +833,17 @@ public class SampleQueue implements TrackOutput {
             @Nullable CryptoData cryptoData) {
         if (length > 0) {
             // Ensure sample data doesn't overlap.
-            int previousSampleRelativeIndex = getRelativeIndex(length - 1);
+            int previousSamplePosition = length - 1;
             checkArgument(
-                    offsets[previousSampleRelativeIndex] + sizes[previousSampleRelativeIndex] <= offset);
+                    sampleMetadataBuffer.getOffset(previousSamplePosition)
+                            + sampleMetadataBuffer.getSize(previousSamplePosition)
+                            <= offset);
         }
         
         isLastSampleQueued = (sampleFlags & C.BUFFER_FLAG_LAST_SAMPLE) != 0;
         largestQueuedTimestampUs = max(largestQueuedTimestampUs, timeUs);
         
-        int relativeEndIndex = getRelativeIndex(length);
-        timesUs[relativeEndIndex] = timeUs;
-        offsets[relativeEndIndex] = offset;
-        sizes[relativeEndIndex] = size;
-        flags[relativeEndIndex] = sampleFlags;
-        cryptoDatas[relativeEndIndex] = cryptoData;
-        sourceIds[relativeEndIndex] = upstreamSourceId;
+        sampleMetadataBuffer.add(timeUs, sampleFlags, offset, size, upstreamSourceId, cryptoData);
         
         if (sharedSampleMetadata.isEmpty()
                 || !sharedSampleMetadata.getEndValue().format.equals(upstreamFormat)) {
@@ -853,38 +859,6 @@ public class SampleQueue implements TrackOutput {
         }
         
         length++;
-        if (length == capacity) {
-            // Increase the capacity.
-            int newCapacity = capacity + SAMPLE_CAPACITY_INCREMENT;
-            int[] newSourceIds = new int[newCapacity];
-            long[] newOffsets = new long[newCapacity];
-            long[] newTimesUs = new long[newCapacity];
-            int[] newFlags = new int[newCapacity];
-            int[] newSizes = new int[newCapacity];
-            CryptoData[] newCryptoDatas = new CryptoData[newCapacity];
-            int beforeWrap = capacity - relativeFirstIndex;
-            System.arraycopy(offsets, relativeFirstIndex, newOffsets, 0, beforeWrap);
-            System.arraycopy(timesUs, relativeFirstIndex, newTimesUs, 0, beforeWrap);
-            System.arraycopy(flags, relativeFirstIndex, newFlags, 0, beforeWrap);
-            System.arraycopy(sizes, relativeFirstIndex, newSizes, 0, beforeWrap);
-            System.arraycopy(cryptoDatas, relativeFirstIndex, newCryptoDatas, 0, beforeWrap);
-            System.arraycopy(sourceIds, relativeFirstIndex, newSourceIds, 0, beforeWrap);
-            int afterWrap = relativeFirstIndex;
-            System.arraycopy(offsets, 0, newOffsets, beforeWrap, afterWrap);
-            System.arraycopy(timesUs, 0, newTimesUs, beforeWrap, afterWrap);
-            System.arraycopy(flags, 0, newFlags, beforeWrap, afterWrap);
-            System.arraycopy(sizes, 0, newSizes, beforeWrap, afterWrap);
-            System.arraycopy(cryptoDatas, 0, newCryptoDatas, beforeWrap, afterWrap);
-            System.arraycopy(sourceIds, 0, newSourceIds, beforeWrap, afterWrap);
-            offsets = newOffsets;
-            timesUs = newTimesUs;
-            flags = newFlags;
-            sizes = newSizes;
-            cryptoDatas = newCryptoDatas;
-            sourceIds = newSourceIds;
-            relativeFirstIndex = 0;
-            capacity = newCapacity;
-        }
     }
     
     /**
@@ -910,12 +884,14 @@ public class SampleQueue implements TrackOutput {
         int discardCount = getWriteIndex() - discardFromIndex;
         checkArgument(0 <= discardCount && discardCount <= (length - readPosition));
         length -= discardCount;
+        sampleMetadataBuffer.removeLast(discardCount);
         largestQueuedTimestampUs = max(largestDiscardedTimestampUs, getLargestTimestamp(length));
         isLastSampleQueued = discardCount == 0 && isLastSampleQueued;
         sharedSampleMetadata.discardFrom(discardFromIndex);
         if (length != 0) {
-            int relativeLastWriteIndex = getRelativeIndex(length - 1);
-            return offsets[relativeLastWriteIndex] + sizes[relativeLastWriteIndex];
+            int lastWritePosition = length - 1;
+            return sampleMetadataBuffer.getOffset(lastWritePosition)
+                    + sampleMetadataBuffer.getSize(lastWritePosition);
         }
         return 0;
     }
@@ -966,13 +942,13 @@ public class SampleQueue implements TrackOutput {
     /**
      * Returns whether it's possible to read the next sample.
      *
-     * @param relativeReadIndex The relative read index of the next sample.
+     * @param readPosition The read position of the next sample.
      * @return Whether it's possible to read the next sample.
      */
-    private boolean mayReadSample(int relativeReadIndex) {
+    private boolean mayReadSample(int readPosition) {
         return currentDrmSession == null
                 || currentDrmSession.getState() == DrmSession.STATE_OPENED_WITH_KEYS
-                || ((flags[relativeReadIndex] & C.BUFFER_FLAG_ENCRYPTED) == 0
+                || ((sampleMetadataBuffer.getFlags(readPosition) & C.BUFFER_FLAG_ENCRYPTED) == 0
                 && currentDrmSession.playClearSamplesWithoutKeys());
     }
     
@@ -980,33 +956,33 @@ public class SampleQueue implements TrackOutput {
      * Finds the sample in the specified range that's before or at the specified time. If {@code
      * keyframe} is {@code true} then the sample is additionally required to be a keyframe.
      *
-     * @param relativeStartIndex The relative index from which to start searching.
-     * @param length             The length of the range being searched.
-     * @param timeUs             The specified time.
-     * @param keyframe           Whether only keyframes should be considered.
-     * @return The offset from {@code relativeFirstIndex} to the found sample, or -1 if no matching
-     * sample was found.
+     * @param startPosition The position from which to start searching.
+     * @param length        The length of the range being searched.
+     * @param timeUs        The specified time.
+     * @param keyframe      Whether only keyframes should be considered.
+     * @return The offset from {@code startPosition} to the found sample, or -1 if no matching sample
+     * was found.
      */
-    private int findSampleBefore(int relativeStartIndex, int length, long timeUs, boolean keyframe) {
+    private int findSampleBefore(int startPosition, int length, long timeUs, boolean keyframe) {
         // This could be optimized to use a binary search, however in practice callers to this method
         // normally pass times near to the start of the search region. Hence it's unclear whether
         // switching to a binary search would yield any real benefit.
         int sampleCountToTarget = -1;
-        int searchIndex = relativeStartIndex;
-        for (int i = 0; i < length && timesUs[searchIndex] <= timeUs; i++) {
-            if (!keyframe || (flags[searchIndex] & C.BUFFER_FLAG_KEY_FRAME) != 0) {
+        for (int i = 0; i < length; i++) {
+            long sampleTimeUs = sampleMetadataBuffer.getTimeUs(startPosition + i);
+            if (sampleTimeUs > timeUs) {
+                break;
+            }
+            if (!keyframe
+                    || (sampleMetadataBuffer.getFlags(startPosition + i) & C.BUFFER_FLAG_KEY_FRAME) != 0) {
                 // We've found a suitable sample.
                 sampleCountToTarget = i;
-                if (timesUs[searchIndex] == timeUs) {
+                if (sampleTimeUs == timeUs) {
                     // Stop the search if we found a sample at the specified time to avoid returning a later
                     // sample with the same exactly matching timestamp.
                     break;
                 }
             }
-            searchIndex++;
-            if (searchIndex == capacity) {
-                searchIndex = 0;
-            }
         }
         return sampleCountToTarget;
     }
@@ -1020,13 +996,8 @@ public class SampleQueue implements TrackOutput {
      */
     private int countUnreadSamplesBefore(long timeUs) {
         int count = length;
-        int relativeSampleIndex = getRelativeIndex(length - 1);
-        while (count > readPosition && timesUs[relativeSampleIndex] >= timeUs) {
+        while (count > readPosition && sampleMetadataBuffer.getTimeUs(count - 1) >= timeUs) {
             count--;
-            relativeSampleIndex--;
-            if (relativeSampleIndex == -1) {
-                relativeSampleIndex = capacity - 1;
-            }
         }
         return count;
     }
@@ -1041,24 +1012,21 @@ public class SampleQueue implements TrackOutput {
     private long discardSamples(int discardCount) {
         largestDiscardedTimestampUs =
                 max(largestDiscardedTimestampUs, getLargestTimestamp(discardCount));
+        int lastDiscardPosition = discardCount - 1;
+        long discardToOffset =
+                discardCount == length
+                        ? sampleMetadataBuffer.getOffset(lastDiscardPosition)
+                        + sampleMetadataBuffer.getSize(lastDiscardPosition)
+                        : sampleMetadataBuffer.getOffset(discardCount);
         length -= discardCount;
         absoluteFirstIndex += discardCount;
-        relativeFirstIndex += discardCount;
-        if (relativeFirstIndex >= capacity) {
-            relativeFirstIndex -= capacity;
-        }
+        sampleMetadataBuffer.removeFirst(discardCount);
         readPosition -= discardCount;
         if (readPosition < 0) {
             readPosition = 0;
         }
         sharedSampleMetadata.discardTo(absoluteFirstIndex);
-        
-        if (length == 0) {
-            int relativeLastDiscardIndex = (relativeFirstIndex == 0 ? capacity : relativeFirstIndex) - 1;
-            return offsets[relativeLastDiscardIndex] + sizes[relativeLastDiscardIndex];
-        } else {
-            return offsets[relativeFirstIndex];
-        }
+        return discardToOffset;
     }
     
     /**
@@ -1074,30 +1042,15 @@ public class SampleQueue implements TrackOutput {
             return Long.MIN_VALUE;
         }
         long largestTimestampUs = Long.MIN_VALUE;
-        int relativeSampleIndex = getRelativeIndex(length - 1);
-        for (int i = 0; i < length; i++) {
-            largestTimestampUs = max(largestTimestampUs, timesUs[relativeSampleIndex]);
-            if ((flags[relativeSampleIndex] & C.BUFFER_FLAG_KEY_FRAME) != 0) {
+        for (int position = length - 1; position >= 0; position--) {
+            largestTimestampUs = max(largestTimestampUs, sampleMetadataBuffer.getTimeUs(position));
+            if ((sampleMetadataBuffer.getFlags(position) & C.BUFFER_FLAG_KEY_FRAME) != 0) {
                 break;
             }
-            relativeSampleIndex--;
-            if (relativeSampleIndex == -1) {
-                relativeSampleIndex = capacity - 1;
-            }
         }
         return largestTimestampUs;
     }
     
-    /**
-     * Returns the relative index for a given offset from the start of the queue.
-     *
-     * @param offset The offset, which must be in the range [0, length].
-     */
-    private int getRelativeIndex(int offset) {
-        int relativeIndex = relativeFirstIndex + offset;
-        return relativeIndex < capacity ? relativeIndex : relativeIndex - capacity;
-    }
-    
     /**
      * A holder for sample metadata not held by {@link DecoderInputBuffer}.
      */
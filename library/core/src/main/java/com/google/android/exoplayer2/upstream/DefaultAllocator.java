@@ -22,16 +22,34 @@ import androidx.annotation.Nullable;
 import com.google.android.exoplayer2.util.Assertions;
 import com.google.android.exoplayer2.util.Util;
 
-import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.checkerframework.checker.nullness.compatqual.NullableType;
 
 /**
  * Default implementation of {@link Allocator}.
+ *
+ * <p>Allocations are typically obtained on loading threads and released on the playback thread, so
+ * {@link #allocate()} and {@link #release(Allocation)} don't take a lock. Each thread caches up to
+ * {@link #THREAD_CACHE_CAPACITY} released allocations, from which it allocates first. When its
+ * cache is full, the cached allocations are moved as one batch to a lock-free pool shared by all
+ * threads, and a thread whose cache is empty takes a whole batch from the pool. Threads therefore
+ * only access shared state once per batch.
+ *
+ * <p>{@link #trim()} discards allocations from the shared pool and from the cache of the calling
+ * thread. The caches of other threads can't be accessed without making every allocation take a
+ * lock, so each of them is moved to the pool, and the pool trimmed again, the next time its thread
+ * allocates or releases. Until then, up to {@link #THREAD_CACHE_CAPACITY} allocations per thread
+ * can outlive a trim. A thread that stops using the allocator, such as an idle loading thread,
+ * keeps them until it terminates, when they're garbage collected with its cache.
  */
 public final class DefaultAllocator implements Allocator {
     
-    private static final int AVAILABLE_EXTRA_CAPACITY = 100;
+    /**
+     * The maximum number of released allocations that are cached by each thread.
+     */
+    public static final int THREAD_CACHE_CAPACITY = 8;
     
     // reset时，是否释放内存
     private final boolean trimOnReset;
@@ -40,16 +58,18 @@ public final class DefaultAllocator implements Allocator {
     @Nullable
     // 初始缓存占位，取决于初始化时availableCount是否>0，<=0则为空
     private final byte[] initialAllocationBlock;
-    // 纯打辅助，用途只有一个，release单个Allocation的时候，通过singleAllocationReleaseHolder组成一个数组
-    private final Allocation[] singleAllocationReleaseHolder;
+    // 每个线程回收的Allocation缓存，同一线程allocate时优先使用
+    private final ThreadLocal<ThreadCache> threadCaches;
+    // 所有线程共享的无锁Allocation池，以批为单位的栈
+    private final AtomicReference<@NullableType Batch> availableBatches;
+    // 已经分配的Allocation个数
+    private final AtomicInteger allocatedCount;
+    // 共享池里面还剩的Allocation个数
+    private final AtomicInteger availableCount;
     
     private int targetBufferSize;
-    // 已经分配的Allocation个数
-    private int allocatedCount;
-    // 池子里面还剩的Allocation个数
-    private int availableCount;
-    // Allocation池，初始化最大空间为AVAILABLE_EXTRA_CAPACITY + availableCount个。后面回收，空间不够会做扩容
-    private @NullableType Allocation[] availableAllocations;
+    // trim次数，其他线程的缓存发现变化后把缓存移回共享池
+    private volatile int trimCount;
     
     /**
      * Constructs an instance without creating any {@link Allocation}s up front.
@@ -82,18 +102,27 @@ public final class DefaultAllocator implements Allocator {
         Assertions.checkArgument(initialAllocationCount >= 0);
         this.trimOnReset = trimOnReset;
         this.individualAllocationSize = individualAllocationSize;
-        this.availableCount = initialAllocationCount;
-        this.availableAllocations = new Allocation[initialAllocationCount + AVAILABLE_EXTRA_CAPACITY];
+        threadCaches =
+                new ThreadLocal<ThreadCache>() {
+                    @Override
+                    protected ThreadCache initialValue() {
+                        return new ThreadCache();
+                    }
+                };
+        availableBatches = new AtomicReference<>();
+        allocatedCount = new AtomicInteger();
+        availableCount = new AtomicInteger();
         if (initialAllocationCount > 0) {
             initialAllocationBlock = new byte[initialAllocationCount * individualAllocationSize];
+            Allocation[] initialAllocations = new Allocation[initialAllocationCount];
             for (int i = 0; i < initialAllocationCount; i++) {
                 int allocationOffset = i * individualAllocationSize;
-                availableAllocations[i] = new Allocation(initialAllocationBlock, allocationOffset);
+                initialAllocations[i] = new Allocation(initialAllocationBlock, allocationOffset);
             }
+            addToPool(initialAllocations, initialAllocationCount);
         } else {
             initialAllocationBlock = null;
         }
-        singleAllocationReleaseHolder = new Allocation[1];
     }
     /*
     * 重置
@@ -115,32 +144,23 @@ public final class DefaultAllocator implements Allocator {
     }
     
     /*
-    * 池子里面有就从池子里面拿，没有就重新new一个Allocation
+    * 先从当前线程的缓存拿，缓存空了就从共享池拿一批，都没有就重新new一个Allocation
     * */
     @Override
-    public synchronized Allocation allocate() {
-        allocatedCount++;
-        Allocation allocation;
-        // availableCount > 0，说明当前有可用的Allocation，直接从availableAllocations取出来用
-        // availableCount <= 0，直接new一个Allocation给外部使用
+    public Allocation allocate() {
+        allocatedCount.incrementAndGet();
         // 一旦allocate，DefaultAllocator不在持有Allocation引用
-        if (availableCount > 0) {
-            allocation = Assertions.checkNotNull(availableAllocations[--availableCount]);
-            availableAllocations[availableCount] = null;
-        } else {
+        @Nullable Allocation allocation = threadCaches.get().poll();
+        if (allocation == null) {
             allocation = new Allocation(new byte[individualAllocationSize], 0);
         }
         return allocation;
     }
     
-    /*
-    * singleAllocationReleaseHolder存在就是为了这个接口。
-    * release单个Allocation的时候，通过singleAllocationReleaseHolder组成一个数组，传给真正release接口
-    * */
     @Override
-    public synchronized void release(Allocation allocation) {
-        singleAllocationReleaseHolder[0] = allocation;
-        release(singleAllocationReleaseHolder);
+    public void release(Allocation allocation) {
+        allocatedCount.decrementAndGet();
+        threadCaches.get().add(allocation);
     }
     
     /*
@@ -149,80 +169,205 @@ public final class DefaultAllocator implements Allocator {
     * 外部一定要将release的allocations置空清理掉
     * */
     @Override
-    public synchronized void release(Allocation[] allocations) {
-        if (availableCount + allocations.length >= availableAllocations.length) {
-            // availableAllocations 扩容，扩到原来的两倍或者【availableCount + allocations.length】大小，哪个大，扩到哪个
-            availableAllocations =
-                    Arrays.copyOf(
-                            availableAllocations,
-                            max(availableAllocations.length * 2, availableCount + allocations.length));
-        }
-        // 回收release的allocations
+    public void release(Allocation[] allocations) {
+        // 从已经分配的allocatedCount中删除
+        allocatedCount.addAndGet(-allocations.length);
+        ThreadCache threadCache = threadCaches.get();
         for (Allocation allocation : allocations) {
-            availableAllocations[availableCount++] = allocation;
+            threadCache.add(allocation);
         }
-        
-        // 从已经分配的allocatedCount中删除
-        allocatedCount -= allocations.length;
-        // Wake up threads waiting for the allocated size to drop.
-        notifyAll();
     }
     
     @Override
     public synchronized void trim() {
+        // Move the allocations cached by this thread to the pool, so that they can be discarded, and
+        // have other threads do the same when they next use their caches.
+        trimCount++;
+        threadCaches.get().flushAfterTrim();
+        trimPool();
+    }
+    
+    /**
+     * Discards allocations from the pool shared by all threads, down to the number needed to reach
+     * the target buffer size.
+     */
+    private synchronized void trimPool() {
         // size换算成Allocation个数
         int targetAllocationCount = Util.ceilDivide(targetBufferSize, individualAllocationSize);
         // 获取目标剩余Allocation个数
-        int targetAvailableCount = max(0, targetAllocationCount - allocatedCount);
+        int targetAvailableCount = max(0, targetAllocationCount - allocatedCount.get());
         
         // 这里可以看出availableCount如果==0或者targetAvailableCount > availableCount，代表当前可用的缓存空间，并不满足目标空间大小，直接return
-        if (targetAvailableCount >= availableCount) {
+        if (targetAvailableCount >= availableCount.get()) {
             // We're already at or below the target.
             return;
         }
         
-        if (initialAllocationBlock != null) {
-            // Some allocations are backed by an initial block. We need to make sure that we hold onto all
-            // such allocations. Re-order the available allocations so that the ones backed by the initial
-            // block come first.
-            // 排序把初始预创建缓存，放在缓存池最前面
-            int lowIndex = 0;
-            int highIndex = availableCount - 1;
-            while (lowIndex <= highIndex) {
-                Allocation lowAllocation = Assertions.checkNotNull(availableAllocations[lowIndex]);
-                if (lowAllocation.data == initialAllocationBlock) {
-                    lowIndex++;
-                } else {
-                    Allocation highAllocation = Assertions.checkNotNull(availableAllocations[highIndex]);
-                    if (highAllocation.data != initialAllocationBlock) {
-                        highIndex--;
-                    } else {
-                        availableAllocations[lowIndex++] = highAllocation;
-                        availableAllocations[highIndex--] = lowAllocation;
+        // Take the whole pool, and return the allocations to keep to it. Allocations backed by the
+        // initial block are always kept, since we need to hold onto all of them.
+        // 清理多余的Allocation，这里多余的Allocation才真正释放
+        @Nullable Batch batch = availableBatches.getAndSet(null);
+        int keptCount = 0;
+        Allocation[] keptAllocations = new Allocation[THREAD_CACHE_CAPACITY];
+        while (batch != null) {
+            availableCount.addAndGet(-batch.size);
+            for (int i = 0; i < batch.size; i++) {
+                Allocation allocation = Assertions.checkNotNull(batch.allocations[i]);
+                if (allocation.data == initialAllocationBlock || targetAvailableCount > 0) {
+                    if (allocation.data != initialAllocationBlock) {
+                        targetAvailableCount--;
+                    }
+                    keptAllocations[keptCount++] = allocation;
+                    if (keptCount == keptAllocations.length) {
+                        addToPool(keptAllocations, keptCount);
+                        keptAllocations = new Allocation[THREAD_CACHE_CAPACITY];
+                        keptCount = 0;
                     }
                 }
             }
-            // lowIndex is the index of the first allocation not backed by an initial block.
-            targetAvailableCount = max(targetAvailableCount, lowIndex);
-            if (targetAvailableCount >= availableCount) {
-                // We're already at or below the target.
-                return;
-            }
+            batch = batch.next;
+        }
+        if (keptCount > 0) {
+            addToPool(keptAllocations, keptCount);
         }
-        
-        // Discard allocations beyond the target.
-        // 清理末尾的memory，这里多余的Allocation才真正释放
-        Arrays.fill(availableAllocations, targetAvailableCount, availableCount, null);
-        availableCount = targetAvailableCount;
     }
     
     @Override
-    public synchronized int getTotalBytesAllocated() {
-        return allocatedCount * individualAllocationSize;
+    public int getTotalBytesAllocated() {
+        return allocatedCount.get() * individualAllocationSize;
     }
     
     @Override
     public int getIndividualAllocationLength() {
         return individualAllocationSize;
     }
+    
+    /**
+     * Adds a batch of allocations to the pool shared by all threads.
+     */
+    private void addToPool(@NullableType Allocation[] allocations, int size) {
+        Batch batch = new Batch(allocations, size);
+        @Nullable Batch head;
+        do {
+            head = availableBatches.get();
+            batch.next = head;
+        } while (!availableBatches.compareAndSet(head, batch));
+        availableCount.addAndGet(size);
+    }
+    
+    /**
+     * Removes a batch of allocations from the pool shared by all threads, or returns null if the
+     * pool is empty.
+     */
+    @Nullable
+    private Batch removeFromPool() {
+        // Each batch is only added to the pool once, so a batch at the head can't be removed and
+        // added again between reading it and replacing it, which would corrupt the pool.
+        @Nullable Batch head;
+        do {
+            head = availableBatches.get();
+            if (head == null) {
+                return null;
+            }
+        } while (!availableBatches.compareAndSet(head, head.next));
+        availableCount.addAndGet(-head.size);
+        return head;
+    }
+    
+    /**
+     * A batch of allocations in the pool shared by all threads.
+     */
+    private static final class Batch {
+        
+        public final @NullableType Allocation[] allocations;
+        public final int size;
+        @Nullable
+        public Batch next;
+        
+        public Batch(@NullableType Allocation[] allocations, int size) {
+            this.allocations = allocations;
+            this.size = size;
+        }
+    }
+    
+    /**
+     * A stack of released allocations that's only accessed by the thread that owns it.
+     */
+    private final class ThreadCache {
+        
+        private @NullableType Allocation[] allocations;
+        private int size;
+        // 本缓存最后一次移回共享池时的trim次数
+        private int flushedTrimCount;
+        
+        public ThreadCache() {
+            allocations = new Allocation[THREAD_CACHE_CAPACITY];
+            flushedTrimCount = trimCount;
+        }
+        
+        /**
+         * Adds an allocation, first moving the cached allocations to the pool if the cache is full.
+         */
+        public void add(Allocation allocation) {
+            maybeFlushAfterTrim();
+            if (size == allocations.length) {
+                flush();
+            }
+            allocations[size++] = allocation;
+        }
+        
+        /**
+         * Removes and returns an allocation, first taking a batch from the pool if the cache is
+         * empty. Returns null if both are empty.
+         */
+        @Nullable
+        public Allocation poll() {
+            maybeFlushAfterTrim();
+            if (size == 0) {
+                @Nullable Batch batch = removeFromPool();
+                if (batch == null) {
+                    return null;
+                }
+                allocations = batch.allocations;
+                size = batch.size;
+            }
+            Allocation allocation = Assertions.checkNotNull(allocations[--size]);
+            allocations[size] = null;
+            return allocation;
+        }
+        
+        /**
+         * Moves the cached allocations to the pool.
+         */
+        public void flush() {
+            if (size > 0) {
+                addToPool(allocations, size);
+                allocations = new Allocation[THREAD_CACHE_CAPACITY];
+                size = 0;
+            }
+        }
+        
+        /**
+         * Moves the cached allocations to the pool, and records that the cache has been flushed
+         * since the last trim.
+         */
+        public void flushAfterTrim() {
+            flushedTrimCount = trimCount;
+            flush();
+        }
+        
+        /**
+         * Moves the cached allocations to the pool and trims the pool, if the allocator has been
+         * trimmed by another thread since the cache was last flushed.
+         */
+        private void maybeFlushAfterTrim() {
+            if (flushedTrimCount != trimCount) {
+                boolean hadAllocations = size > 0;
+                flushAfterTrim();
+                if (hadAllocations) {
+                    trimPool();
+                }
+            }
+        }
+    }
 }
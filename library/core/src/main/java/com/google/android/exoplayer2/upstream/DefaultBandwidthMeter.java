@@ -413,8 +413,11 @@ public final class DefaultBandwidthMeter implements BandwidthMeter, TransferList
     @Override
     public synchronized void onBytesTransferred(
             DataSource source, DataSpec dataSpec, boolean isNetwork, int bytesTransferred) {
-        Log.d(TAG, "[onBytesTransferred] " +
-                "bytesTransferred = " + bytesTransferred);
+        // Called for every read, so avoid building the message unless it will be logged.
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "[onBytesTransferred] " +
+                    "bytesTransferred = " + bytesTransferred);
+        }
         if (!isTransferAtFullNetworkSpeed(dataSpec, isNetwork)) {
             return;
         }
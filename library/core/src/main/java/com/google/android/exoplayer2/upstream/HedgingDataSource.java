@@ -0,0 +1,548 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import static com.google.android.exoplayer2.util.Assertions.checkArgument;
+import static com.google.android.exoplayer2.util.Assertions.checkNotNull;
+import static com.google.android.exoplayer2.util.Assertions.checkState;
+import static java.lang.Math.max;
+
+import android.net.Uri;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.util.Clock;
+import com.google.android.exoplayer2.util.Consumer;
+import com.google.android.exoplayer2.util.Log;
+import com.google.android.exoplayer2.util.Util;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * A {@link DataSource} that reduces the tail latency of loads by hedging slow requests.
+ *
+ * <p>The request is opened on an upstream {@link DataSource}. If it hasn't responded once the
+ * hedge delay has passed, a second upstream {@link DataSource} is opened for the same data,
+ * optionally at an alternate location provided by a {@link HedgeDataSpecProvider}, and whichever
+ * of the two responds first is read from. The other one is closed as soon as its open completes.
+ *
+ * <p>The hedge delay is the estimate of a {@link TimeToFirstByteEstimator} that is fed with the
+ * time to first byte of every request, so that by default only the slowest 5% of requests are
+ * hedged. Requests that fail quickly aren't hedged, since retrying them is left to the {@link
+ * LoadErrorHandlingPolicy}. Only GET requests without a body are hedged, since other requests,
+ * such as DRM license requests, may not be idempotent.
+ *
+ * <p>Only the request whose response is used is reported to the {@link TransferListener
+ * TransferListeners} of the data source, so that the other request doesn't affect bandwidth
+ * estimates.
+ *
+ * <p>Opens of upstream data sources run on the {@link Executor} passed to the {@link Factory}. A
+ * stalled request keeps running until it completes or its upstream times out, so the executor
+ * should not limit the number of threads below twice the number of concurrent loads.
+ */
+public final class HedgingDataSource implements DataSource {
+
+  /** Provides the {@link DataSpec} of hedged requests. */
+  public interface HedgeDataSpecProvider {
+
+    /**
+     * Returns the {@link DataSpec} of the hedged request for a request that is slow to respond, or
+     * null if the request shouldn't be hedged.
+     *
+     * <p>Called on the thread that opens the {@link HedgingDataSource}.
+     *
+     * @param dataSpec The {@link DataSpec} of the slow request.
+     * @return The {@link DataSpec} of the hedged request, or null.
+     */
+    @Nullable
+    DataSpec getHedgeDataSpec(DataSpec dataSpec);
+
+    /**
+     * Called when a hedged request responded before the request it hedged.
+     *
+     * <p>Called on the thread that opens the {@link HedgingDataSource}.
+     *
+     * @param dataSpec The {@link DataSpec} of the slow request.
+     * @param hedgeDataSpec The {@link DataSpec} of the hedged request.
+     */
+    default void onHedgeWon(DataSpec dataSpec, DataSpec hedgeDataSpec) {}
+  }
+
+  /** {@link DataSource.Factory} for {@link HedgingDataSource} instances. */
+  public static final class Factory implements DataSource.Factory {
+
+    private final DataSource.Factory upstreamFactory;
+    private final Executor executor;
+
+    private TimeToFirstByteEstimator timeToFirstByteEstimator;
+    private HedgeDataSpecProvider hedgeDataSpecProvider;
+    private long initialHedgeDelayMs;
+    private long minHedgeDelayMs;
+    private Clock clock;
+
+    private final SlidingPercentile loadLatencyPercentile;
+    private int openCount;
+    private int hedgedRequestCount;
+    private int hedgeWinCount;
+    private int loadLatencySampleCount;
+
+    /**
+     * Creates an instance.
+     *
+     * @param upstreamFactory The {@link DataSource.Factory} of the upstream data sources.
+     * @param executor The {@link Executor} on which upstream data sources are opened.
+     */
+    public Factory(DataSource.Factory upstreamFactory, Executor executor) {
+      this.upstreamFactory = upstreamFactory;
+      this.executor = executor;
+      timeToFirstByteEstimator =
+          new PercentileTimeToFirstByteEstimator(
+              DEFAULT_TIME_TO_FIRST_BYTE_SAMPLE_COUNT, DEFAULT_HEDGE_PERCENTILE);
+      hedgeDataSpecProvider = dataSpec -> dataSpec;
+      initialHedgeDelayMs = DEFAULT_INITIAL_HEDGE_DELAY_MS;
+      minHedgeDelayMs = DEFAULT_MIN_HEDGE_DELAY_MS;
+      clock = Clock.DEFAULT;
+      loadLatencyPercentile = new SlidingPercentile(/* maxWeight= */ LOAD_LATENCY_SAMPLE_COUNT);
+    }
+
+    /**
+     * Sets the {@link TimeToFirstByteEstimator} whose estimate is the hedge delay. It's notified
+     * of the start of every upstream request.
+     *
+     * <p>The default is a {@link PercentileTimeToFirstByteEstimator} returning the {@link
+     * #DEFAULT_HEDGE_PERCENTILE} of the last {@link #DEFAULT_TIME_TO_FIRST_BYTE_SAMPLE_COUNT}
+     * samples.
+     *
+     * @param timeToFirstByteEstimator The {@link TimeToFirstByteEstimator}.
+     * @return This factory.
+     */
+    public Factory setTimeToFirstByteEstimator(TimeToFirstByteEstimator timeToFirstByteEstimator) {
+      this.timeToFirstByteEstimator = timeToFirstByteEstimator;
+      return this;
+    }
+
+    /**
+     * Sets the {@link HedgeDataSpecProvider}. The default hedges every slow request with an
+     * identical request.
+     *
+     * @param hedgeDataSpecProvider The {@link HedgeDataSpecProvider}.
+     * @return This factory.
+     */
+    public Factory setHedgeDataSpecProvider(HedgeDataSpecProvider hedgeDataSpecProvider) {
+      this.hedgeDataSpecProvider = hedgeDataSpecProvider;
+      return this;
+    }
+
+    /**
+     * Sets the hedge delay used while the {@link TimeToFirstByteEstimator} has no estimate, in
+     * milliseconds. The default is {@link #DEFAULT_INITIAL_HEDGE_DELAY_MS}.
+     *
+     * @param initialHedgeDelayMs The initial hedge delay, in milliseconds.
+     * @return This factory.
+     */
+    public Factory setInitialHedgeDelayMs(long initialHedgeDelayMs) {
+      checkArgument(initialHedgeDelayMs >= 0);
+      this.initialHedgeDelayMs = initialHedgeDelayMs;
+      return this;
+    }
+
+    /**
+     * Sets the minimum hedge delay, in milliseconds, which prevents fast networks from hedging
+     * requests whose time to first byte only varies by a few milliseconds. The default is {@link
+     * #DEFAULT_MIN_HEDGE_DELAY_MS}.
+     *
+     * @param minHedgeDelayMs The minimum hedge delay, in milliseconds.
+     * @return This factory.
+     */
+    public Factory setMinHedgeDelayMs(long minHedgeDelayMs) {
+      checkArgument(minHedgeDelayMs >= 0);
+      this.minHedgeDelayMs = minHedgeDelayMs;
+      return this;
+    }
+
+    @VisibleForTesting
+    /* package */ Factory setClock(Clock clock) {
+      this.clock = clock;
+      return this;
+    }
+
+    @Override
+    public HedgingDataSource createDataSource() {
+      return new HedgingDataSource(this);
+    }
+
+    /** Returns the number of opens of data sources created by this factory. */
+    public synchronized int getOpenCount() {
+      return openCount;
+    }
+
+    /** Returns the number of requests that were hedged. */
+    public synchronized int getHedgedRequestCount() {
+      return hedgedRequestCount;
+    }
+
+    /** Returns the number of hedged requests that responded before the request they hedged. */
+    public synchronized int getHedgeWinCount() {
+      return hedgeWinCount;
+    }
+
+    /**
+     * Returns a percentile of the latency of recent loads, in milliseconds, or {@link
+     * C#TIME_UNSET} if no load has completed. The latency of a load is the time from when a data
+     * source is opened until it's closed, and a percentile of 0.99 returns the p99 load latency.
+     *
+     * @param percentile The percentile, between 0 and 1.
+     * @return The percentile of the load latency, in milliseconds, or {@link C#TIME_UNSET}.
+     */
+    public synchronized long getLoadLatencyMs(float percentile) {
+      checkArgument(percentile > 0 && percentile <= 1);
+      return loadLatencySampleCount > 0
+          ? (long) loadLatencyPercentile.getPercentile(percentile)
+          : C.TIME_UNSET;
+    }
+
+    private synchronized long getHedgeDelayMs() {
+      long timeToFirstByteEstimateUs = timeToFirstByteEstimator.getTimeToFirstByteEstimateUs();
+      if (timeToFirstByteEstimateUs == C.TIME_UNSET) {
+        return max(minHedgeDelayMs, initialHedgeDelayMs);
+      }
+      return max(minHedgeDelayMs, Util.usToMs(timeToFirstByteEstimateUs));
+    }
+
+    private synchronized void onRequestInitializing(DataSpec dataSpec) {
+      timeToFirstByteEstimator.onTransferInitializing(dataSpec);
+    }
+
+    private synchronized void onRequestStarted(DataSpec dataSpec) {
+      timeToFirstByteEstimator.onTransferStart(dataSpec);
+    }
+
+    private synchronized void onOpened(boolean hedged, boolean hedgeWon) {
+      openCount++;
+      if (hedged) {
+        hedgedRequestCount++;
+      }
+      if (hedgeWon) {
+        hedgeWinCount++;
+      }
+    }
+
+    private synchronized void onLoadCompleted(long loadLatencyMs) {
+      loadLatencyPercentile.addSample(/* weight= */ 1, loadLatencyMs);
+      loadLatencySampleCount++;
+    }
+  }
+
+  /** The default percentile of the time to first byte after which requests are hedged. */
+  public static final float DEFAULT_HEDGE_PERCENTILE = 0.95f;
+
+  /** The default number of samples from which the hedge percentile is calculated. */
+  public static final int DEFAULT_TIME_TO_FIRST_BYTE_SAMPLE_COUNT = 40;
+
+  /** The default hedge delay before any time to first byte has been measured, in milliseconds. */
+  public static final long DEFAULT_INITIAL_HEDGE_DELAY_MS = 1_000;
+
+  /** The default minimum hedge delay, in milliseconds. */
+  public static final long DEFAULT_MIN_HEDGE_DELAY_MS = 50;
+
+  private static final String TAG = "HedgingDataSource";
+  private static final int LOAD_LATENCY_SAMPLE_COUNT = 500;
+
+  private final Factory factory;
+  private final List<TransferListener> transferListeners;
+
+  @Nullable private DataSource upstream;
+  private long openTimeMs;
+
+  private HedgingDataSource(Factory factory) {
+    this.factory = factory;
+    transferListeners = new ArrayList<>();
+  }
+
+  @Override
+  public void addTransferListener(TransferListener transferListener) {
+    checkNotNull(transferListener);
+    transferListeners.add(transferListener);
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws IOException {
+    checkState(upstream == null);
+    openTimeMs = factory.clock.elapsedRealtime();
+    OpenRace race = new OpenRace();
+    Attempt primary = new Attempt(race, dataSpec, /* isHedge= */ false);
+    @Nullable Attempt hedge = null;
+    try {
+      synchronized (race) {
+        race.start(primary);
+        // Requests that may not be idempotent are never sent twice.
+        if (isHedgeable(dataSpec)) {
+          race.awaitCompletion(factory.getHedgeDelayMs());
+          if (race.winner == null && race.pendingAttemptCount > 0) {
+            @Nullable
+            DataSpec hedgeDataSpec = factory.hedgeDataSpecProvider.getHedgeDataSpec(dataSpec);
+            if (hedgeDataSpec != null) {
+              // The time to first byte estimator tracks transfers by DataSpec instance.
+              if (hedgeDataSpec == dataSpec) {
+                hedgeDataSpec = dataSpec.buildUpon().build();
+              }
+              hedge = new Attempt(race, hedgeDataSpec, /* isHedge= */ true);
+              race.start(hedge);
+            }
+          }
+        }
+        race.awaitCompletion(/* timeoutMs= */ C.TIME_UNSET);
+      }
+    } catch (InterruptedException e) {
+      @Nullable Attempt winner;
+      synchronized (race) {
+        // Attempts that complete later close their upstream data sources.
+        race.abandoned = true;
+        // An attempt may have won while the interrupted wait was reacquiring the lock, in which case
+        // it left its upstream data source open for us.
+        winner = race.winner;
+      }
+      if (winner != null) {
+        try {
+          winner.upstream.close();
+        } catch (IOException closeException) {
+          Log.w(TAG, "Failed to close hedged request", closeException);
+        }
+      }
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+    @Nullable Attempt winner = race.winner;
+    if (winner == null) {
+      throw checkNotNull(race.primaryError != null ? race.primaryError : race.hedgeError);
+    }
+    upstream = winner.upstream;
+    winner.transferListener.onWon();
+    factory.onOpened(/* hedged= */ hedge != null, /* hedgeWon= */ winner == hedge);
+    if (hedge != null && winner == hedge) {
+      factory.hedgeDataSpecProvider.onHedgeWon(dataSpec, hedge.dataSpec);
+    }
+    return winner.length;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    return checkNotNull(upstream).read(buffer, offset, length);
+  }
+
+  @Override
+  public int read(ByteBuffer buffer) throws IOException {
+    return checkNotNull(upstream).read(buffer);
+  }
+
+  @Override
+  @Nullable
+  public Uri getUri() {
+    @Nullable DataSource upstream = this.upstream;
+    return upstream != null ? upstream.getUri() : null;
+  }
+
+  @Override
+  public Map<String, List<String>> getResponseHeaders() {
+    @Nullable DataSource upstream = this.upstream;
+    return upstream != null ? upstream.getResponseHeaders() : Collections.emptyMap();
+  }
+
+  @Override
+  public void close() throws IOException {
+    @Nullable DataSource upstream = this.upstream;
+    if (upstream == null) {
+      return;
+    }
+    this.upstream = null;
+    try {
+      upstream.close();
+    } finally {
+      factory.onLoadCompleted(factory.clock.elapsedRealtime() - openTimeMs);
+    }
+  }
+
+  private static boolean isHedgeable(DataSpec dataSpec) {
+    return dataSpec.httpMethod == DataSpec.HTTP_METHOD_GET && dataSpec.httpBody == null;
+  }
+
+  /** The requests competing to open the data source. Fields are guarded by the instance lock. */
+  private final class OpenRace {
+
+    @Nullable public Attempt winner;
+    @Nullable public IOException primaryError;
+    @Nullable public IOException hedgeError;
+    @Nullable public RuntimeException runtimeError;
+    public int pendingAttemptCount;
+    public boolean abandoned;
+
+    public void start(Attempt attempt) {
+      pendingAttemptCount++;
+      factory.executor.execute(attempt);
+    }
+
+    /**
+     * Waits until an attempt has succeeded, all attempts have completed or the timeout has passed.
+     *
+     * @param timeoutMs The timeout in milliseconds, or {@link C#TIME_UNSET} to wait indefinitely.
+     */
+    public void awaitCompletion(long timeoutMs) throws InterruptedException {
+      Clock clock = factory.clock;
+      long endTimeMs =
+          timeoutMs == C.TIME_UNSET ? C.TIME_UNSET : clock.elapsedRealtime() + timeoutMs;
+      while (winner == null && pendingAttemptCount > 0) {
+        if (endTimeMs == C.TIME_UNSET) {
+          wait();
+        } else {
+          long remainingMs = endTimeMs - clock.elapsedRealtime();
+          if (remainingMs <= 0) {
+            return;
+          }
+          wait(remainingMs);
+        }
+      }
+      if (winner == null && runtimeError != null) {
+        throw runtimeError;
+      }
+    }
+  }
+
+  /** A request that opens an upstream data source. */
+  private final class Attempt implements Runnable {
+
+    public final OpenRace race;
+    public final DataSpec dataSpec;
+    public final boolean isHedge;
+    public final DataSource upstream;
+    public final AttemptTransferListener transferListener;
+
+    public long length;
+
+    public Attempt(OpenRace race, DataSpec dataSpec, boolean isHedge) {
+      this.race = race;
+      this.dataSpec = dataSpec;
+      this.isHedge = isHedge;
+      upstream = factory.upstreamFactory.createDataSource();
+      transferListener = new AttemptTransferListener();
+      if (!transferListeners.isEmpty()) {
+        upstream.addTransferListener(transferListener);
+      }
+    }
+
+    @Override
+    public void run() {
+      @Nullable IOException error = null;
+      @Nullable RuntimeException runtimeError = null;
+      factory.onRequestInitializing(dataSpec);
+      try {
+        length = upstream.open(dataSpec);
+        factory.onRequestStarted(dataSpec);
+      } catch (IOException e) {
+        error = e;
+      } catch (RuntimeException e) {
+        runtimeError = e;
+      }
+      synchronized (race) {
+        race.pendingAttemptCount--;
+        race.notifyAll();
+        if (error == null && runtimeError == null && race.winner == null && !race.abandoned) {
+          race.winner = this;
+          return;
+        }
+        if (isHedge) {
+          race.hedgeError = error;
+        } else {
+          race.primaryError = error;
+        }
+        if (race.runtimeError == null) {
+          race.runtimeError = runtimeError;
+        }
+      }
+      // This attempt lost the race or failed. Close it to release its connection.
+      try {
+        upstream.close();
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to close hedged request", e);
+      }
+    }
+  }
+
+  /**
+   * Forwards the transfer events of an attempt to the {@link #transferListeners}. Events are held
+   * back until the attempt wins the race, and the events of attempts that don't win are dropped.
+   */
+  private final class AttemptTransferListener implements TransferListener {
+
+    private final ArrayList<Consumer<TransferListener>> pendingEvents;
+
+    private boolean won;
+
+    public AttemptTransferListener() {
+      pendingEvents = new ArrayList<>();
+    }
+
+    /** Called on the thread that opens the data source, once the attempt has won the race. */
+    public synchronized void onWon() {
+      won = true;
+      for (int i = 0; i < pendingEvents.size(); i++) {
+        dispatch(pendingEvents.get(i));
+      }
+      pendingEvents.clear();
+    }
+
+    @Override
+    public void onTransferInitializing(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+      onEvent(listener -> listener.onTransferInitializing(source, dataSpec, isNetwork));
+    }
+
+    @Override
+    public void onTransferStart(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+      onEvent(listener -> listener.onTransferStart(source, dataSpec, isNetwork));
+    }
+
+    @Override
+    public void onBytesTransferred(
+        DataSource source, DataSpec dataSpec, boolean isNetwork, int bytesTransferred) {
+      onEvent(
+          listener -> listener.onBytesTransferred(source, dataSpec, isNetwork, bytesTransferred));
+    }
+
+    @Override
+    public void onTransferEnd(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+      onEvent(listener -> listener.onTransferEnd(source, dataSpec, isNetwork));
+    }
+
+    private synchronized void onEvent(Consumer<TransferListener> event) {
+      if (won) {
+        dispatch(event);
+      } else {
+        pendingEvents.add(event);
+      }
+    }
+
+    private void dispatch(Consumer<TransferListener> event) {
+      for (int i = 0; i < transferListeners.size(); i++) {
+        event.accept(transferListeners.get(i));
+      }
+    }
+  }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import static com.google.android.exoplayer2.util.Assertions.checkArgument;
+import static com.google.android.exoplayer2.util.Assertions.checkNotNull;
+import static com.google.android.exoplayer2.util.Assertions.checkState;
+
+import android.os.Handler;
+import com.google.android.exoplayer2.upstream.BandwidthMeter.EventListener.EventDispatcher;
+import com.google.android.exoplayer2.util.Clock;
+
+/**
+ * A {@link BandwidthMeter} that measures the throughput of the link, rather than of individual
+ * transfers, when several transfers are in progress at the same time.
+ *
+ * <p>Bytes transferred by all network transfers are aggregated over consecutive wall-clock windows
+ * during which at least one transfer is in progress. Each window yields one throughput sample, so
+ * transfers that share the link (for example audio, video and prefetch loads) contribute to the
+ * same sample instead of each under-reporting the available bandwidth, and long transfers produce
+ * samples while they're in progress rather than only when they end. The bitrate estimate is the
+ * weighted median of recent samples.
+ *
+ * <p>The time from when a transfer is initialized until it starts is latency rather than
+ * throughput. It's excluded from the throughput samples and measured separately by a {@link
+ * TimeToFirstByteEstimator}.
+ */
+public final class ParallelTransferBandwidthMeter implements BandwidthMeter, TransferListener {
+
+  /** The default duration of the windows over which transferred bytes are aggregated. */
+  public static final int DEFAULT_SAMPLE_WINDOW_MS = 500;
+
+  /** Builder for a bandwidth meter. */
+  public static final class Builder {
+
+    private long initialBitrateEstimate;
+    private int sampleWindowMs;
+    private int slidingWindowMaxWeight;
+    private TimeToFirstByteEstimator timeToFirstByteEstimator;
+    private Clock clock;
+
+    /** Creates a builder with default parameters. */
+    public Builder() {
+      initialBitrateEstimate = DefaultBandwidthMeter.DEFAULT_INITIAL_BITRATE_ESTIMATE;
+      sampleWindowMs = DEFAULT_SAMPLE_WINDOW_MS;
+      slidingWindowMaxWeight = DefaultBandwidthMeter.DEFAULT_SLIDING_WINDOW_MAX_WEIGHT;
+      timeToFirstByteEstimator = new PercentileTimeToFirstByteEstimator();
+      clock = Clock.DEFAULT;
+    }
+
+    /**
+     * Sets the initial bitrate estimate in bits per second that should be assumed when a bandwidth
+     * estimate is unavailable.
+     *
+     * @param initialBitrateEstimate The initial bitrate estimate in bits per second.
+     * @return This builder.
+     */
+    public Builder setInitialBitrateEstimate(long initialBitrateEstimate) {
+      this.initialBitrateEstimate = initialBitrateEstimate;
+      return this;
+    }
+
+    /**
+     * Sets the duration of the windows over which the bytes transferred by all transfers are
+     * aggregated into one sample.
+     *
+     * @param sampleWindowMs The sample window duration, in milliseconds.
+     * @return This builder.
+     */
+    public Builder setSampleWindowMs(int sampleWindowMs) {
+      checkArgument(sampleWindowMs > 0);
+      this.sampleWindowMs = sampleWindowMs;
+      return this;
+    }
+
+    /**
+     * Sets the maximum weight for the sliding window.
+     *
+     * @param slidingWindowMaxWeight The maximum weight for the sliding window.
+     * @return This builder.
+     */
+    public Builder setSlidingWindowMaxWeight(int slidingWindowMaxWeight) {
+      this.slidingWindowMaxWeight = slidingWindowMaxWeight;
+      return this;
+    }
+
+    /**
+     * Sets the {@link TimeToFirstByteEstimator} that estimates the latency of transfers.
+     *
+     * @param timeToFirstByteEstimator The {@link TimeToFirstByteEstimator}.
+     * @return This builder.
+     */
+    public Builder setTimeToFirstByteEstimator(TimeToFirstByteEstimator timeToFirstByteEstimator) {
+      this.timeToFirstByteEstimator = timeToFirstByteEstimator;
+      return this;
+    }
+
+    /**
+     * Sets the clock used to estimate bandwidth from data transfers. Should only be set for testing
+     * purposes.
+     *
+     * @param clock The clock used to estimate bandwidth from data transfers.
+     * @return This builder.
+     */
+    public Builder setClock(Clock clock) {
+      this.clock = clock;
+      return this;
+    }
+
+    /**
+     * Builds the bandwidth meter.
+     *
+     * @return A bandwidth meter with the configured properties.
+     */
+    public ParallelTransferBandwidthMeter build() {
+      return new ParallelTransferBandwidthMeter(this);
+    }
+  }
+
+  private static final int ELAPSED_MILLIS_FOR_ESTIMATE = 2000;
+  private static final int BYTES_TRANSFERRED_FOR_ESTIMATE = 512 * 1024;
+
+  private final EventDispatcher eventDispatcher;
+  private final SlidingPercentile slidingPercentile;
+  private final TimeToFirstByteEstimator timeToFirstByteEstimator;
+  private final Clock clock;
+  private final int sampleWindowMs;
+
+  private int activeTransferCount;
+  private long windowStartTimeMs;
+  private long windowBytesTransferred;
+
+  private long totalElapsedTimeMs;
+  private long totalBytesTransferred;
+  private long bitrateEstimate;
+  private long lastReportedBitrateEstimate;
+
+  private ParallelTransferBandwidthMeter(Builder builder) {
+    eventDispatcher = new EventDispatcher();
+    slidingPercentile = new SlidingPercentile(builder.slidingWindowMaxWeight);
+    timeToFirstByteEstimator = builder.timeToFirstByteEstimator;
+    clock = builder.clock;
+    sampleWindowMs = builder.sampleWindowMs;
+    bitrateEstimate = builder.initialBitrateEstimate;
+  }
+
+  @Override
+  public synchronized long getBitrateEstimate() {
+    return bitrateEstimate;
+  }
+
+  @Override
+  public synchronized long getTimeToFirstByteEstimateUs() {
+    return timeToFirstByteEstimator.getTimeToFirstByteEstimateUs();
+  }
+
+  @Override
+  public TransferListener getTransferListener() {
+    return this;
+  }
+
+  @Override
+  public void addEventListener(Handler eventHandler, EventListener eventListener) {
+    checkNotNull(eventHandler);
+    checkNotNull(eventListener);
+    eventDispatcher.addListener(eventHandler, eventListener);
+  }
+
+  @Override
+  public void removeEventListener(EventListener eventListener) {
+    eventDispatcher.removeListener(eventListener);
+  }
+
+  @Override
+  public synchronized void onTransferInitializing(
+      DataSource source, DataSpec dataSpec, boolean isNetwork) {
+    if (isNetwork) {
+      timeToFirstByteEstimator.onTransferInitializing(dataSpec);
+    }
+  }
+
+  @Override
+  public synchronized void onTransferStart(
+      DataSource source, DataSpec dataSpec, boolean isNetwork) {
+    if (isNetwork) {
+      timeToFirstByteEstimator.onTransferStart(dataSpec);
+    }
+    if (!isTransferAtFullNetworkSpeed(dataSpec, isNetwork)) {
+      return;
+    }
+    if (activeTransferCount == 0) {
+      windowStartTimeMs = clock.elapsedRealtime();
+    }
+    activeTransferCount++;
+  }
+
+  @Override
+  public synchronized void onBytesTransferred(
+      DataSource source, DataSpec dataSpec, boolean isNetwork, int bytesTransferred) {
+    if (!isTransferAtFullNetworkSpeed(dataSpec, isNetwork)) {
+      return;
+    }
+    windowBytesTransferred += bytesTransferred;
+    long nowMs = clock.elapsedRealtime();
+    if (nowMs - windowStartTimeMs >= sampleWindowMs) {
+      addSample(nowMs);
+    }
+  }
+
+  @Override
+  public synchronized void onTransferEnd(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+    if (!isTransferAtFullNetworkSpeed(dataSpec, isNetwork)) {
+      return;
+    }
+    checkState(activeTransferCount > 0);
+    activeTransferCount--;
+    if (activeTransferCount == 0) {
+      // The link is about to become idle, so close the window rather than counting the idle time.
+      addSample(clock.elapsedRealtime());
+    }
+  }
+
+  private void addSample(long nowMs) {
+    long sampleElapsedTimeMs = nowMs - windowStartTimeMs;
+    if (sampleElapsedTimeMs <= 0) {
+      // Any bytes transferred will be carried forward into the next sample.
+      return;
+    }
+    totalElapsedTimeMs += sampleElapsedTimeMs;
+    totalBytesTransferred += windowBytesTransferred;
+    float bitsPerSecond = (windowBytesTransferred * 8000f) / sampleElapsedTimeMs;
+    slidingPercentile.addSample((int) Math.sqrt(windowBytesTransferred), bitsPerSecond);
+    if (totalElapsedTimeMs >= ELAPSED_MILLIS_FOR_ESTIMATE
+        || totalBytesTransferred >= BYTES_TRANSFERRED_FOR_ESTIMATE) {
+      bitrateEstimate = (long) slidingPercentile.getPercentile(0.5f);
+    }
+    maybeNotifyBandwidthSample(
+        (int) sampleElapsedTimeMs, windowBytesTransferred, bitrateEstimate);
+    windowStartTimeMs = nowMs;
+    windowBytesTransferred = 0;
+  }
+
+  private void maybeNotifyBandwidthSample(
+      int elapsedMs, long bytesTransferred, long bitrateEstimate) {
+    if (elapsedMs == 0 && bytesTransferred == 0 && bitrateEstimate == lastReportedBitrateEstimate) {
+      return;
+    }
+    lastReportedBitrateEstimate = bitrateEstimate;
+    eventDispatcher.bandwidthSample(elapsedMs, bytesTransferred, bitrateEstimate);
+  }
+
+  private static boolean isTransferAtFullNetworkSpeed(DataSpec dataSpec, boolean isNetwork) {
+    return isNetwork && !dataSpec.isFlagSet(DataSpec.FLAG_MIGHT_NOT_USE_FULL_NETWORK_SPEED);
+  }
+}
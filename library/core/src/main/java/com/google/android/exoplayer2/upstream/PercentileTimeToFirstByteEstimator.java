@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import static com.google.android.exoplayer2.util.Assertions.checkArgument;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.util.Clock;
+import com.google.android.exoplayer2.util.Util;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link TimeToFirstByteEstimator} that returns a percentile of the time to first byte of recent
+ * transfers.
+ *
+ * <p>The time to first byte of a transfer is the time from when it's initialized until it starts,
+ * which for HTTP transfers includes connection establishment and the wait for the response
+ * headers. Times measured by the caller, such as the connection setup time reported by a {@link
+ * Preconnector}, can be added with {@link #addSample(long)}.
+ */
+public final class PercentileTimeToFirstByteEstimator implements TimeToFirstByteEstimator {
+
+  /** The default number of samples from which the percentile is calculated. */
+  public static final int DEFAULT_MAX_SAMPLES_COUNT = 10;
+
+  /** The default percentile to return. */
+  public static final float DEFAULT_PERCENTILE = 0.5f;
+
+  /**
+   * The maximum number of transfers that may be initialized but not started. The oldest such
+   * transfers are forgotten if more are initialized, for example because they failed to start.
+   */
+  private static final int MAX_INITIALIZED_TRANSFERS = 10;
+
+  private final LinkedHashMap<DataSpec, Long> initializationTimesMs;
+  private final SlidingPercentile slidingPercentile;
+  private final float percentile;
+  private final Clock clock;
+
+  private boolean hasSamples;
+
+  /** Creates an instance that returns the median of the last ten samples. */
+  public PercentileTimeToFirstByteEstimator() {
+    this(DEFAULT_MAX_SAMPLES_COUNT, DEFAULT_PERCENTILE);
+  }
+
+  /**
+   * Creates an instance.
+   *
+   * @param maxSamplesCount The number of samples from which the percentile is calculated.
+   * @param percentile The percentile to return, between 0 and 1.
+   */
+  public PercentileTimeToFirstByteEstimator(int maxSamplesCount, float percentile) {
+    this(maxSamplesCount, percentile, Clock.DEFAULT);
+  }
+
+  @VisibleForTesting
+  /* package */ PercentileTimeToFirstByteEstimator(
+      int maxSamplesCount, float percentile, Clock clock) {
+    checkArgument(maxSamplesCount > 0 && percentile >= 0 && percentile <= 1);
+    this.percentile = percentile;
+    this.clock = clock;
+    slidingPercentile = new SlidingPercentile(/* maxWeight= */ maxSamplesCount);
+    initializationTimesMs =
+        new LinkedHashMap<DataSpec, Long>() {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<DataSpec, Long> eldest) {
+            return size() > MAX_INITIALIZED_TRANSFERS;
+          }
+        };
+  }
+
+  @Override
+  public synchronized long getTimeToFirstByteEstimateUs() {
+    return hasSamples ? (long) slidingPercentile.getPercentile(percentile) : C.TIME_UNSET;
+  }
+
+  @Override
+  public synchronized void reset() {
+    slidingPercentile.reset();
+    initializationTimesMs.clear();
+    hasSamples = false;
+  }
+
+  @Override
+  public synchronized void onTransferInitializing(DataSpec dataSpec) {
+    initializationTimesMs.remove(dataSpec);
+    initializationTimesMs.put(dataSpec, clock.elapsedRealtime());
+  }
+
+  @Override
+  public synchronized void onTransferStart(DataSpec dataSpec) {
+    @Nullable Long initializationTimeMs = initializationTimesMs.remove(dataSpec);
+    if (initializationTimeMs == null) {
+      return;
+    }
+    addSample(Util.msToUs(clock.elapsedRealtime() - initializationTimeMs));
+  }
+
+  /**
+   * Adds a time to first byte that was measured by the caller, rather than from the calls to
+   * {@link #onTransferInitializing(DataSpec)} and {@link #onTransferStart(DataSpec)}.
+   *
+   * @param timeToFirstByteUs The time to first byte, in microseconds.
+   */
+  public synchronized void addSample(long timeToFirstByteUs) {
+    slidingPercentile.addSample(/* weight= */ 1, timeToFirstByteUs);
+    hasSamples = true;
+  }
+}
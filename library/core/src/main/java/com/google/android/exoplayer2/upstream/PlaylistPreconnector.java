@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import static com.google.android.exoplayer2.util.Assertions.checkArgument;
+
+import android.net.Uri;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.MediaItem;
+import com.google.android.exoplayer2.Player;
+import com.google.android.exoplayer2.Timeline;
+import com.google.android.exoplayer2.util.Clock;
+import com.google.android.exoplayer2.util.Log;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Preconnects to the hosts of the media items that a {@link Player} will play next, so that the
+ * first request for each of them doesn't wait for DNS resolution and connection establishment.
+ *
+ * <p>Whenever the playlist, the current item, the repeat mode or the shuffle mode changes, the
+ * upcoming items are found in the same order in which the player will play them, and the {@link
+ * Preconnector} is run on the given {@link Executor} for the URI of each. An origin isn't
+ * preconnected again within {@link #DEFAULT_PRECONNECT_INTERVAL_MS} of a previous preconnect, since
+ * its connection is then still likely to be idle in the pool.
+ *
+ * <p>The connection setup time reported by each preconnect is added to a {@link
+ * PercentileTimeToFirstByteEstimator}, from which {@link #getTimeToFirstByteSavedEstimateUs()}
+ * estimates how much shorter the time to first byte of the first request to a preconnected origin
+ * is. Time that a preconnect spends waiting for a server response isn't included, since later
+ * requests still wait for their own responses.
+ *
+ * <p>Instances must be created and released on the application thread of the player.
+ */
+public final class PlaylistPreconnector {
+
+  /** The default number of upcoming media items that are preconnected. */
+  public static final int DEFAULT_LOOKAHEAD_ITEM_COUNT = 2;
+
+  /** The default minimum interval between preconnects to the same origin, in milliseconds. */
+  public static final long DEFAULT_PRECONNECT_INTERVAL_MS = 30_000;
+
+  private static final String TAG = "PlaylistPreconnector";
+
+  private final Player player;
+  private final Preconnector preconnector;
+  private final Executor executor;
+  private final int lookaheadItemCount;
+  private final PercentileTimeToFirstByteEstimator timeToFirstByteSavedEstimator;
+  private final Clock clock;
+  private final ComponentListener componentListener;
+  private final Timeline.Window window;
+  private final HashMap<String, Long> lastPreconnectTimesMs;
+
+  private int preconnectCount;
+  private int failureCount;
+  private volatile boolean released;
+
+  /**
+   * Creates an instance that preconnects to the hosts of the next {@link
+   * #DEFAULT_LOOKAHEAD_ITEM_COUNT} media items.
+   *
+   * @param player The {@link Player} whose upcoming media items are preconnected.
+   * @param preconnector The {@link Preconnector}, for example one created by the factory of the
+   *     {@link HttpDataSource} used by the player.
+   * @param executor The {@link Executor} on which the preconnector is run.
+   */
+  public PlaylistPreconnector(Player player, Preconnector preconnector, Executor executor) {
+    this(player, preconnector, executor, DEFAULT_LOOKAHEAD_ITEM_COUNT);
+  }
+
+  /**
+   * Creates an instance.
+   *
+   * @param player The {@link Player} whose upcoming media items are preconnected.
+   * @param preconnector The {@link Preconnector}, for example one created by the factory of the
+   *     {@link HttpDataSource} used by the player.
+   * @param executor The {@link Executor} on which the preconnector is run.
+   * @param lookaheadItemCount The number of upcoming media items that are preconnected.
+   */
+  public PlaylistPreconnector(
+      Player player, Preconnector preconnector, Executor executor, int lookaheadItemCount) {
+    this(
+        player,
+        preconnector,
+        executor,
+        lookaheadItemCount,
+        Clock.DEFAULT);
+  }
+
+  @VisibleForTesting
+  /* package */ PlaylistPreconnector(
+      Player player,
+      Preconnector preconnector,
+      Executor executor,
+      int lookaheadItemCount,
+      Clock clock) {
+    checkArgument(lookaheadItemCount > 0);
+    this.player = player;
+    this.preconnector = preconnector;
+    this.executor = executor;
+    this.lookaheadItemCount = lookaheadItemCount;
+    timeToFirstByteSavedEstimator = new PercentileTimeToFirstByteEstimator();
+    this.clock = clock;
+    componentListener = new ComponentListener();
+    window = new Timeline.Window();
+    lastPreconnectTimesMs = new HashMap<>();
+    player.addListener(componentListener);
+    preconnectUpcomingItems();
+  }
+
+  /** Stops preconnecting. Preconnects that are already running complete normally. */
+  public void release() {
+    released = true;
+    player.removeListener(componentListener);
+  }
+
+  /** Returns the number of preconnects that have completed successfully. */
+  public synchronized int getPreconnectCount() {
+    return preconnectCount;
+  }
+
+  /** Returns the number of preconnects that have failed. */
+  public synchronized int getFailureCount() {
+    return failureCount;
+  }
+
+  /**
+   * Returns an estimate of the time to first byte saved by the first request to a preconnected
+   * origin, in microseconds, or {@link C#TIME_UNSET} if no preconnect has reported a connection
+   * setup time.
+   */
+  public long getTimeToFirstByteSavedEstimateUs() {
+    return timeToFirstByteSavedEstimator.getTimeToFirstByteEstimateUs();
+  }
+
+  /**
+   * Returns the {@link TimeToFirstByteEstimator} to which the connection setup time reported by
+   * each preconnect is added, and from which {@link #getTimeToFirstByteSavedEstimateUs()} is
+   * returned.
+   */
+  public TimeToFirstByteEstimator getTimeToFirstByteEstimator() {
+    return timeToFirstByteSavedEstimator;
+  }
+
+  private void preconnectUpcomingItems() {
+    Timeline timeline = player.getCurrentTimeline();
+    if (released || timeline.isEmpty()) {
+      return;
+    }
+    // The current item is connected to already. With REPEAT_MODE_ONE, the next item is the one
+    // that's played if the user skips, as for Player.seekToNextMediaItem.
+    @Player.RepeatMode int repeatMode = player.getRepeatMode();
+    if (repeatMode == Player.REPEAT_MODE_ONE) {
+      repeatMode = Player.REPEAT_MODE_OFF;
+    }
+    boolean shuffleModeEnabled = player.getShuffleModeEnabled();
+    int currentIndex = player.getCurrentMediaItemIndex();
+    int index = currentIndex;
+    for (int i = 0; i < lookaheadItemCount; i++) {
+      index = timeline.getNextWindowIndex(index, repeatMode, shuffleModeEnabled);
+      if (index == C.INDEX_UNSET || index == currentIndex) {
+        break;
+      }
+      @Nullable
+      MediaItem.LocalConfiguration localConfiguration =
+          timeline.getWindow(index, window).mediaItem.localConfiguration;
+      if (localConfiguration != null) {
+        maybePreconnect(localConfiguration.uri);
+      }
+    }
+  }
+
+  private void maybePreconnect(Uri uri) {
+    @Nullable String origin = getOrigin(uri);
+    if (origin == null) {
+      return;
+    }
+    long nowMs = clock.elapsedRealtime();
+    synchronized (this) {
+      @Nullable Long lastPreconnectTimeMs = lastPreconnectTimesMs.get(origin);
+      if (lastPreconnectTimeMs != null
+          && nowMs - lastPreconnectTimeMs < DEFAULT_PRECONNECT_INTERVAL_MS) {
+        return;
+      }
+      lastPreconnectTimesMs.put(origin, nowMs);
+    }
+    executor.execute(() -> preconnect(uri, origin));
+  }
+
+  private void preconnect(Uri uri, String origin) {
+    if (released) {
+      synchronized (this) {
+        lastPreconnectTimesMs.remove(origin);
+      }
+      return;
+    }
+    long connectionSetupTimeUs;
+    try {
+      connectionSetupTimeUs = preconnector.preconnect(uri);
+    } catch (IOException e) {
+      Log.w(TAG, "Preconnect failed: " + origin, e);
+      synchronized (this) {
+        failureCount++;
+        // Allow the origin to be retried when the playlist next changes.
+        lastPreconnectTimesMs.remove(origin);
+      }
+      return;
+    }
+    synchronized (this) {
+      preconnectCount++;
+    }
+    if (connectionSetupTimeUs != C.TIME_UNSET) {
+      timeToFirstByteSavedEstimator.addSample(connectionSetupTimeUs);
+    }
+  }
+
+  @Nullable
+  private static String getOrigin(Uri uri) {
+    @Nullable String scheme = uri.getScheme();
+    @Nullable String host = uri.getHost();
+    if (host == null || !("http".equals(scheme) || "https".equals(scheme))) {
+      return null;
+    }
+    return scheme + "://" + host + ":" + uri.getPort();
+  }
+
+  private final class ComponentListener implements Player.Listener {
+
+    @Override
+    public void onTimelineChanged(Timeline timeline, @Player.TimelineChangeReason int reason) {
+      preconnectUpcomingItems();
+    }
+
+    @Override
+    public void onMediaItemTransition(
+        @Nullable MediaItem mediaItem, @Player.MediaItemTransitionReason int reason) {
+      preconnectUpcomingItems();
+    }
+
+    @Override
+    public void onRepeatModeChanged(@Player.RepeatMode int repeatMode) {
+      preconnectUpcomingItems();
+    }
+
+    @Override
+    public void onShuffleModeEnabledChanged(boolean shuffleModeEnabled) {
+      preconnectUpcomingItems();
+    }
+  }
+}
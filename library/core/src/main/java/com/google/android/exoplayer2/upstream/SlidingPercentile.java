@@ -15,9 +15,7 @@
  */
 package com.google.android.exoplayer2.upstream;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
 
 /**
  * Calculate any percentile over a sliding window of weighted values. A maximum weight is
@@ -29,52 +27,76 @@ import java.util.Comparator;
  * rate observations. This is an alternative to sliding mean and exponential averaging which suffer
  * from susceptibility to outliers and slow adaptation to step functions.
  *
+ * <p>Samples are held in primitive arrays in order of age, and are also ordered by value. While the
+ * window holds few samples, as it does for bandwidth estimation, they're ordered in a sorted array
+ * that is updated by insertion and scanned to compute a percentile. Larger windows switch to a
+ * treap whose nodes record the total weight of their subtrees, so that adding a sample and
+ * computing a percentile take logarithmic time in the number of samples. No memory is allocated
+ * once the arrays are large enough to hold the window.
+ *
  * @see <a href="http://en.wikipedia.org/wiki/Moving_average">Wiki: Moving average</a>
  * @see <a href="http://en.wikipedia.org/wiki/Selection_algorithm">Wiki: Selection algorithm</a>
  */
 public class SlidingPercentile {
     
-    // Orderings.
-    // index 排序器
-    private static final Comparator<Sample> INDEX_COMPARATOR = (a, b) -> a.index - b.index;
-    // value 排序器
-    private static final Comparator<Sample> VALUE_COMPARATOR =
-            (a, b) -> Float.compare(a.value, b.value);
-    
-    private static final int SORT_ORDER_NONE = -1;
-    private static final int SORT_ORDER_BY_VALUE = 0;
-    private static final int SORT_ORDER_BY_INDEX = 1;
-    
-    private static final int MAX_RECYCLED_SAMPLES = 5;
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int NIL = -1;
+    // Sample counts above which the samples are moved from the sorted array to the treap, and at or
+    // below which they're moved back. The gap stops a window whose size hovers around a single
+    // threshold from being converted on every sample.
+    private static final int MAX_SORTED_ARRAY_SAMPLES = 32;
+    private static final int MIN_TREAP_SAMPLES = 16;
     
     private final int maxWeight;
-    private final ArrayList<Sample> samples;
     
-    private final Sample[] recycledSamples;
+    // Per-sample state, indexed by slot. The samples occupy consecutive slots (wrapping around at
+    // the end of the arrays) in order of age, starting from oldestSlot.
+    private float[] values;
+    private int[] weights;
+    private int[] sequenceNumbers;
+    // The slots of the samples in order of value, while the treap isn't used.
+    private int[] sortedSlots;
+    // Treap state, indexed by slot.
+    private int[] priorities;
+    private int[] leftChildren;
+    private int[] rightChildren;
+    private int[] subtreeWeights;
     
-    private int currentSortOrder;
-    private int nextSampleIndex;
+    private int oldestSlot;
+    private int sampleCount;
+    private boolean useTreap;
+    private int root;
     private int totalWeight;
-    private int recycledSampleCount;
+    private int nextSequenceNumber;
+    private int randomState;
     
     /**
      * @param maxWeight The maximum weight.
      */
     public SlidingPercentile(int maxWeight) {
         this.maxWeight = maxWeight;
-        recycledSamples = new Sample[MAX_RECYCLED_SAMPLES];
-        samples = new ArrayList<>();
-        currentSortOrder = SORT_ORDER_NONE;
+        values = new float[INITIAL_CAPACITY];
+        weights = new int[INITIAL_CAPACITY];
+        sequenceNumbers = new int[INITIAL_CAPACITY];
+        sortedSlots = new int[INITIAL_CAPACITY];
+        priorities = new int[INITIAL_CAPACITY];
+        leftChildren = new int[INITIAL_CAPACITY];
+        rightChildren = new int[INITIAL_CAPACITY];
+        subtreeWeights = new int[INITIAL_CAPACITY];
+        root = NIL;
+        randomState = 0x2545F491;
     }
     
     /**
      * Resets the sliding percentile.
      */
     public void reset() {
-        samples.clear();
-        currentSortOrder = SORT_ORDER_NONE;
-        nextSampleIndex = 0;
+        oldestSlot = 0;
+        sampleCount = 0;
+        useTreap = false;
+        root = NIL;
         totalWeight = 0;
+        nextSequenceNumber = 0;
     }
     
     /**
@@ -87,36 +109,59 @@ public class SlidingPercentile {
     * add 一个新的权重值
     * */
     public void addSample(int weight, float value) {
-        // samples 按 index 排序
-        ensureSortedByIndex();
-        
-        Sample newSample =
-                recycledSampleCount > 0 ? recycledSamples[--recycledSampleCount] : new Sample();
-        newSample.index = nextSampleIndex++;
-        newSample.weight = weight;
-        newSample.value = value;
-        samples.add(newSample);
+        if (sampleCount == values.length) {
+            growCapacity();
+        }
+        int slot = oldestSlot + sampleCount;
+        if (slot >= values.length) {
+            slot -= values.length;
+        }
+        sampleCount++;
+        values[slot] = value;
+        weights[slot] = weight;
+        sequenceNumbers[slot] = nextSequenceNumber++;
+        priorities[slot] = nextPriority();
+        if (useTreap) {
+            insertIntoTreap(slot);
+        } else if (sampleCount > MAX_SORTED_ARRAY_SAMPLES) {
+            buildTreap();
+            insertIntoTreap(slot);
+        } else {
+            insertIntoSortedArray(slot);
+        }
         
         // 计算总权重
         totalWeight += weight;
         
-        // 总权重超过最大权重情况下做调整，多出来的权重通过削减列表前面sample的权重来均衡，始终保证totalWeight < maxWeight
+        // 总权重超过最大权重情况下做调整，多出来的权重通过削减最旧sample的权重来均衡，始终保证totalWeight < maxWeight
         // 削减方式如下：maxWeight = 100,sample列表权重如{1:20,2:30,3:20,4:10,5:50},其中50为新增sample，多出来的权重为 sum - maxWeight = 30，最后处理结果为{2:20,3:20,4:10,5:50}
         while (totalWeight > maxWeight) {
             int excessWeight = totalWeight - maxWeight;
-            Sample oldestSample = samples.get(0);
-            if (oldestSample.weight <= excessWeight) {
-                totalWeight -= oldestSample.weight;
-                samples.remove(0);
-                // 尝试放到sample复用池
-                if (recycledSampleCount < MAX_RECYCLED_SAMPLES) {
-                    recycledSamples[recycledSampleCount++] = oldestSample;
+            int oldestSampleSlot = oldestSlot;
+            if (weights[oldestSampleSlot] <= excessWeight) {
+                totalWeight -= weights[oldestSampleSlot];
+                if (useTreap) {
+                    root = remove(root, oldestSampleSlot);
+                } else {
+                    removeFromSortedArray(oldestSampleSlot);
                 }
+                oldestSlot = oldestSlot + 1 == values.length ? 0 : oldestSlot + 1;
+                sampleCount--;
             } else {
-                oldestSample.weight -= excessWeight;
+                if (useTreap) {
+                    reduceWeight(oldestSampleSlot, excessWeight);
+                } else {
+                    weights[oldestSampleSlot] -= excessWeight;
+                }
                 totalWeight -= excessWeight;
             }
         }
+        if (useTreap && sampleCount <= MIN_TREAP_SAMPLES) {
+            // Move the samples back to the sorted array, in order of value.
+            copyToSortedArray(root, /* index= */ 0);
+            useTreap = false;
+            root = NIL;
+        }
     }
     
     /**
@@ -126,50 +171,241 @@ public class SlidingPercentile {
      * @return The requested percentile value or {@link Float#NaN} if no samples have been added.
      */
     public float getPercentile(float percentile) {
-        ensureSortedByValue();
+        if (sampleCount == 0) {
+            return Float.NaN;
+        }
         float desiredWeight = percentile * totalWeight;
+        if (!useTreap) {
+            int accumulatedWeight = 0;
+            for (int i = 0; i < sampleCount; i++) {
+                int slot = sortedSlots[i];
+                accumulatedWeight += weights[slot];
+                if (accumulatedWeight >= desiredWeight) {
+                    return values[slot];
+                }
+            }
+            // Clamp to maximum value.
+            return values[sortedSlots[sampleCount - 1]];
+        }
+        // The weight of the samples whose values are lower than those in the current subtree.
         int accumulatedWeight = 0;
-        for (int i = 0; i < samples.size(); i++) {
-            Sample currentSample = samples.get(i);
-            accumulatedWeight += currentSample.weight;
-            if (accumulatedWeight >= desiredWeight) {
-                return currentSample.value;
+        int node = root;
+        int lastNode = root;
+        while (node != NIL) {
+            lastNode = node;
+            int leftChild = leftChildren[node];
+            int leftWeight = getSubtreeWeight(leftChild);
+            if (leftChild != NIL && accumulatedWeight + leftWeight >= desiredWeight) {
+                node = leftChild;
+            } else {
+                accumulatedWeight += leftWeight + weights[node];
+                if (accumulatedWeight >= desiredWeight) {
+                    return values[node];
+                }
+                node = rightChildren[node];
             }
         }
-        // Clamp to maximum value or NaN if no values.
-        return samples.isEmpty() ? Float.NaN : samples.get(samples.size() - 1).value;
+        // Clamp to maximum value, which is the last node on a path that only ever went right.
+        return values[lastNode];
+    }
+    
+    /** Inserts the newest sample into the sorted array, which holds all older samples. */
+    private void insertIntoSortedArray(int slot) {
+        int index = findSortedIndex(slot, /* sortedSampleCount= */ sampleCount - 1);
+        System.arraycopy(sortedSlots, index, sortedSlots, index + 1, sampleCount - 1 - index);
+        sortedSlots[index] = slot;
+    }
+    
+    /** Removes a sample from the sorted array, which holds all samples. */
+    private void removeFromSortedArray(int slot) {
+        int index = findSortedIndex(slot, sampleCount);
+        System.arraycopy(sortedSlots, index + 1, sortedSlots, index, sampleCount - 1 - index);
     }
     
     /**
-     * Sorts the samples by index.
-     */
-    /**
-     * 将sample按index排序
+     * Returns the index in the sorted array of the first sample that isn't ordered before the sample
+     * in {@code slot}.
      */
-    private void ensureSortedByIndex() {
-        if (currentSortOrder != SORT_ORDER_BY_INDEX) {
-            Collections.sort(samples, INDEX_COMPARATOR);
-            currentSortOrder = SORT_ORDER_BY_INDEX;
+    private int findSortedIndex(int slot, int sortedSampleCount) {
+        int low = 0;
+        int high = sortedSampleCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compare(sortedSlots[middle], slot) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+    
+    /** Moves all samples except the newest from the sorted array into the treap. */
+    private void buildTreap() {
+        useTreap = true;
+        root = NIL;
+        for (int i = 0; i < sampleCount - 1; i++) {
+            insertIntoTreap(sortedSlots[i]);
         }
     }
     
     /**
-     * Sorts the samples by value.
-     */
-    /**
-     * 将sample按value排序
+     * Copies the samples in a subtree to the sorted array in order of value, starting at {@code
+     * index}, and returns the index after the last sample copied.
      */
-    private void ensureSortedByValue() {
-        if (currentSortOrder != SORT_ORDER_BY_VALUE) {
-            Collections.sort(samples, VALUE_COMPARATOR);
-            currentSortOrder = SORT_ORDER_BY_VALUE;
+    private int copyToSortedArray(int node, int index) {
+        if (node == NIL) {
+            return index;
+        }
+        index = copyToSortedArray(leftChildren[node], index);
+        sortedSlots[index++] = node;
+        return copyToSortedArray(rightChildren[node], index);
+    }
+    
+    private void insertIntoTreap(int slot) {
+        leftChildren[slot] = NIL;
+        rightChildren[slot] = NIL;
+        subtreeWeights[slot] = weights[slot];
+        root = insert(root, slot);
+    }
+    
+    private int insert(int node, int slot) {
+        if (node == NIL) {
+            return slot;
         }
+        subtreeWeights[node] += weights[slot];
+        if (compare(slot, node) < 0) {
+            leftChildren[node] = insert(leftChildren[node], slot);
+            if (priorities[leftChildren[node]] > priorities[node]) {
+                return rotateRight(node);
+            }
+        } else {
+            rightChildren[node] = insert(rightChildren[node], slot);
+            if (priorities[rightChildren[node]] > priorities[node]) {
+                return rotateLeft(node);
+            }
+        }
+        return node;
     }
     
+    private int remove(int node, int slot) {
+        if (node == slot) {
+            return merge(leftChildren[node], rightChildren[node]);
+        }
+        subtreeWeights[node] -= weights[slot];
+        if (compare(slot, node) < 0) {
+            leftChildren[node] = remove(leftChildren[node], slot);
+        } else {
+            rightChildren[node] = remove(rightChildren[node], slot);
+        }
+        return node;
+    }
+    
+    /** Merges two treaps, where all samples in the first are ordered before those in the second. */
+    private int merge(int lowerNode, int upperNode) {
+        if (lowerNode == NIL) {
+            return upperNode;
+        } else if (upperNode == NIL) {
+            return lowerNode;
+        } else if (priorities[lowerNode] > priorities[upperNode]) {
+            subtreeWeights[lowerNode] += subtreeWeights[upperNode];
+            rightChildren[lowerNode] = merge(rightChildren[lowerNode], upperNode);
+            return lowerNode;
+        } else {
+            subtreeWeights[upperNode] += subtreeWeights[lowerNode];
+            leftChildren[upperNode] = merge(lowerNode, leftChildren[upperNode]);
+            return upperNode;
+        }
+    }
+    
+    private void reduceWeight(int slot, int weightReduction) {
+        int node = root;
+        while (node != slot) {
+            subtreeWeights[node] -= weightReduction;
+            node = compare(slot, node) < 0 ? leftChildren[node] : rightChildren[node];
+        }
+        subtreeWeights[slot] -= weightReduction;
+        weights[slot] -= weightReduction;
+    }
+    
+    private int rotateRight(int node) {
+        int pivot = leftChildren[node];
+        leftChildren[node] = rightChildren[pivot];
+        rightChildren[pivot] = node;
+        subtreeWeights[pivot] = subtreeWeights[node];
+        subtreeWeights[node] = getSubtreeWeight(leftChildren[node]) + weights[node]
+                + getSubtreeWeight(rightChildren[node]);
+        return pivot;
+    }
+    
+    private int rotateLeft(int node) {
+        int pivot = rightChildren[node];
+        rightChildren[node] = leftChildren[pivot];
+        leftChildren[pivot] = node;
+        subtreeWeights[pivot] = subtreeWeights[node];
+        subtreeWeights[node] = getSubtreeWeight(leftChildren[node]) + weights[node]
+                + getSubtreeWeight(rightChildren[node]);
+        return pivot;
+    }
+    
+    private int getSubtreeWeight(int node) {
+        return node == NIL ? 0 : subtreeWeights[node];
+    }
+    
+    /** Orders samples by value, and samples with equal values by age. */
+    private int compare(int slot1, int slot2) {
+        int result = Float.compare(values[slot1], values[slot2]);
+        return result != 0
+                ? result
+                : Integer.compare(sequenceNumbers[slot1], sequenceNumbers[slot2]);
+    }
+    
+    private int nextPriority() {
+        // Xorshift, which is random enough to keep the treap balanced.
+        randomState ^= randomState << 13;
+        randomState ^= randomState >>> 17;
+        randomState ^= randomState << 5;
+        return randomState;
+    }
+    
+    /** Doubles the capacity of the arrays, moving the oldest sample to slot 0. */
+    private void growCapacity() {
+        int capacity = values.length;
+        int newCapacity = capacity * 2;
+        float[] newValues = new float[newCapacity];
+        int[] newWeights = new int[newCapacity];
+        int[] newSequenceNumbers = new int[newCapacity];
+        int[] newSortedSlots = new int[newCapacity];
+        int[] newPriorities = new int[newCapacity];
+        int[] newLeftChildren = new int[newCapacity];
+        int[] newRightChildren = new int[newCapacity];
+        int[] newSubtreeWeights = new int[newCapacity];
+        for (int i = 0; i < sampleCount; i++) {
+            int slot = (oldestSlot + i) % capacity;
+            newValues[i] = values[slot];
+            newWeights[i] = weights[slot];
+            newSequenceNumbers[i] = sequenceNumbers[slot];
+            newSortedSlots[i] = toGrownSlot(sortedSlots[i], capacity);
+            newPriorities[i] = priorities[slot];
+            newLeftChildren[i] = toGrownSlot(leftChildren[slot], capacity);
+            newRightChildren[i] = toGrownSlot(rightChildren[slot], capacity);
+            newSubtreeWeights[i] = subtreeWeights[slot];
+        }
+        Arrays.fill(newLeftChildren, sampleCount, newCapacity, NIL);
+        Arrays.fill(newRightChildren, sampleCount, newCapacity, NIL);
+        root = toGrownSlot(root, capacity);
+        values = newValues;
+        weights = newWeights;
+        sequenceNumbers = newSequenceNumbers;
+        sortedSlots = newSortedSlots;
+        priorities = newPriorities;
+        leftChildren = newLeftChildren;
+        rightChildren = newRightChildren;
+        subtreeWeights = newSubtreeWeights;
+        oldestSlot = 0;
+    }
     
-    private static class Sample {
-        public int index;
-        public int weight;
-        public float value;
+    private int toGrownSlot(int slot, int capacity) {
+        return slot == NIL ? NIL : (slot - oldestSlot + capacity) % capacity;
     }
 }
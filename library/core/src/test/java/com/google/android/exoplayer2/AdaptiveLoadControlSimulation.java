@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import com.google.android.exoplayer2.source.TrackGroup;
+import com.google.android.exoplayer2.source.TrackGroupArray;
+import com.google.android.exoplayer2.testutil.FakeRenderer;
+import com.google.android.exoplayer2.testutil.FakeTrackSelection;
+import com.google.android.exoplayer2.trackselection.ExoTrackSelection;
+import com.google.android.exoplayer2.upstream.Allocation;
+import com.google.android.exoplayer2.upstream.Allocator;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Simulation comparing the rebuffers and memory use of {@link AdaptiveLoadControl} with those of
+ * {@link DefaultLoadControl}, with its default buffer durations and with a fixed buffer as short as
+ * the adaptive one's minimum, over bandwidth traces.
+ *
+ * <p>A stream of fixed bitrate is loaded in chunks over a network whose bandwidth follows the
+ * trace, and played. Loaded data is held in allocations of the load control's allocator until it's
+ * played, as sample queues do. Each load control decides when chunks are loaded and when playback
+ * starts, and the adaptive one is told the bandwidth of each chunk transfer, as a bandwidth meter
+ * would. The number of rebuffers, the fraction of time spent rebuffering, and the mean and peak
+ * number of bytes allocated are printed for each trace.
+ *
+ * <p>Run it on a JVM with {@code main}. Without arguments, it runs over built-in synthetic traces
+ * of a stable network, a bursty cellular network and a congested Wi-Fi network. Trace files, with
+ * one bandwidth value in kbit/s for each second per line, can be passed as arguments instead.
+ */
+public final class AdaptiveLoadControlSimulation {
+
+  private static final int STREAM_BITRATE = 4_000_000;
+  private static final long CHUNK_DURATION_US = 4_000_000;
+  private static final int TICK_MS = 100;
+  private static final int TRACE_DURATION_S = 30 * 60;
+
+  private interface LoadControlFactory {
+    LoadControl create();
+  }
+
+  private static final class Result {
+    public int rebufferCount;
+    public long rebufferMs;
+    public long playMs;
+    public long allocatedByteTicks;
+    public long tickCount;
+    public int peakBytesAllocated;
+  }
+
+  private AdaptiveLoadControlSimulation() {}
+
+  public static void main(String[] args) throws IOException {
+    List<String> names = new ArrayList<>();
+    List<int[]> traces = new ArrayList<>();
+    if (args.length == 0) {
+      names.add("stable");
+      traces.add(createStableTrace(new Random(/* seed= */ 1)));
+      names.add("bursty cellular");
+      traces.add(createBurstyTrace(new Random(/* seed= */ 2)));
+      names.add("congested wifi");
+      traces.add(createCongestedTrace(new Random(/* seed= */ 3)));
+    } else {
+      for (String path : args) {
+        names.add(path);
+        traces.add(readTrace(path));
+      }
+    }
+    for (int i = 0; i < traces.size(); i++) {
+      System.out.println(names.get(i) + ":");
+      print(
+          "  default",
+          simulate(traces.get(i), () -> new DefaultLoadControl.Builder().build()));
+      print(
+          "  default, 10 s buffer",
+          simulate(
+              traces.get(i),
+              () ->
+                  new DefaultLoadControl.Builder()
+                      .setBufferDurationsMs(
+                          AdaptiveLoadControl.DEFAULT_MIN_BUFFER_MS,
+                          AdaptiveLoadControl.DEFAULT_MIN_BUFFER_MS,
+                          DefaultLoadControl.DEFAULT_BUFFER_FOR_PLAYBACK_MS,
+                          DefaultLoadControl.DEFAULT_BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_MS)
+                      .build()));
+      print(
+          "  adaptive", simulate(traces.get(i), () -> new AdaptiveLoadControl.Builder().build()));
+    }
+  }
+
+  private static void print(String name, Result result) {
+    System.out.println(
+        String.format(
+            Locale.US,
+            "%s: %d rebuffers (%.2f%% of time), memory mean %.1f MB, peak %.1f MB",
+            name,
+            result.rebufferCount,
+            100f * result.rebufferMs / (result.rebufferMs + result.playMs),
+            (double) result.allocatedByteTicks / result.tickCount / 1e6,
+            result.peakBytesAllocated / 1e6));
+  }
+
+  private static Result simulate(int[] traceKbps, LoadControlFactory loadControlFactory) {
+    LoadControl loadControl = loadControlFactory.create();
+    Allocator allocator = loadControl.getAllocator();
+    int allocationLength = allocator.getIndividualAllocationLength();
+    Format format =
+        new Format.Builder()
+            .setAverageBitrate(STREAM_BITRATE)
+            .setPeakBitrate(STREAM_BITRATE)
+            .build();
+    loadControl.onPrepared();
+    loadControl.onTracksSelected(
+        new Renderer[] {new FakeRenderer(C.TRACK_TYPE_VIDEO)},
+        TrackGroupArray.EMPTY,
+        new ExoTrackSelection[] {new FakeTrackSelection(new TrackGroup(format))});
+
+    Result result = new Result();
+    ArrayDeque<Allocation> allocations = new ArrayDeque<>();
+    long chunkBytes = STREAM_BITRATE / 8 * CHUNK_DURATION_US / C.MICROS_PER_SECOND;
+    long tickUs = TICK_MS * 1000L;
+    long loadedChunkCount = 0;
+    long chunkBytesRemaining = 0;
+    long chunkElapsedMs = 0;
+    long allocatedBytes = 0;
+    long releasedBytes = 0;
+    long playedUs = 0;
+    boolean isPlaying = false;
+    boolean isRebuffering = false;
+    for (int tick = 0; tick < traceKbps.length * 1000 / TICK_MS; tick++) {
+      // Load.
+      long bufferedUs = loadedChunkCount * CHUNK_DURATION_US - playedUs;
+      if (chunkBytesRemaining == 0
+          && loadControl.shouldContinueLoading(playedUs, bufferedUs, /* playbackSpeed= */ 1f)) {
+        chunkBytesRemaining = chunkBytes;
+        chunkElapsedMs = 0;
+      }
+      if (chunkBytesRemaining > 0) {
+        long bandwidthKbps = traceKbps[tick * TICK_MS / 1000];
+        chunkBytesRemaining -= min(chunkBytesRemaining, bandwidthKbps * TICK_MS / 8);
+        chunkElapsedMs += TICK_MS;
+        long loadedBytes = loadedChunkCount * chunkBytes + chunkBytes - chunkBytesRemaining;
+        while (allocatedBytes < loadedBytes) {
+          allocations.add(allocator.allocate());
+          allocatedBytes += allocationLength;
+        }
+        if (chunkBytesRemaining == 0) {
+          loadedChunkCount++;
+          if (loadControl instanceof AdaptiveLoadControl) {
+            ((AdaptiveLoadControl) loadControl)
+                .onBandwidthSample((int) chunkElapsedMs, chunkBytes, /* bitrateEstimate= */ 0);
+          }
+        }
+      }
+
+      // Play.
+      bufferedUs = loadedChunkCount * CHUNK_DURATION_US - playedUs;
+      if (isPlaying && bufferedUs < tickUs) {
+        isPlaying = false;
+        isRebuffering = true;
+        result.rebufferCount++;
+      } else if (!isPlaying
+          && loadControl.shouldStartPlayback(
+              bufferedUs,
+              /* playbackSpeed= */ 1f,
+              isRebuffering,
+              /* targetLiveOffsetUs= */ C.TIME_UNSET)) {
+        isPlaying = true;
+      }
+      if (isPlaying) {
+        playedUs += tickUs;
+        result.playMs += TICK_MS;
+      } else if (isRebuffering) {
+        result.rebufferMs += TICK_MS;
+      }
+      long playedBytes = playedUs * chunkBytes / CHUNK_DURATION_US;
+      while (releasedBytes + allocationLength <= playedBytes) {
+        allocator.release(allocations.remove());
+        releasedBytes += allocationLength;
+      }
+
+      int bytesAllocated = allocator.getTotalBytesAllocated();
+      result.allocatedByteTicks += bytesAllocated;
+      result.tickCount++;
+      result.peakBytesAllocated = max(result.peakBytesAllocated, bytesAllocated);
+    }
+    loadControl.onReleased();
+    return result;
+  }
+
+  /** Returns a trace of a stable network of about 20 Mbit/s. */
+  private static int[] createStableTrace(Random random) {
+    int[] traceKbps = new int[TRACE_DURATION_S];
+    for (int i = 0; i < traceKbps.length; i++) {
+      traceKbps[i] = (int) (20_000 * (1 + 0.05 * random.nextGaussian()));
+    }
+    return traceKbps;
+  }
+
+  /**
+   * Returns a trace of a cellular network that alternates between periods of about 12 Mbit/s
+   * lasting 20 seconds on average, and periods of about 1.5 Mbit/s lasting 6 seconds on average.
+   */
+  private static int[] createBurstyTrace(Random random) {
+    int[] traceKbps = new int[TRACE_DURATION_S];
+    boolean isGood = true;
+    for (int i = 0; i < traceKbps.length; i++) {
+      if (random.nextFloat() < (isGood ? 1 / 20f : 1 / 6f)) {
+        isGood = !isGood;
+      }
+      int meanKbps = isGood ? 12_000 : 1_500;
+      traceKbps[i] = (int) (meanKbps * Math.exp(0.3 * random.nextGaussian()));
+    }
+    return traceKbps;
+  }
+
+  /**
+   * Returns a trace of a Wi-Fi network of about 6 Mbit/s that varies widely from second to second,
+   * with outages of 3 to 8 seconds once per minute on average.
+   */
+  private static int[] createCongestedTrace(Random random) {
+    int[] traceKbps = new int[TRACE_DURATION_S];
+    int outageRemainingS = 0;
+    for (int i = 0; i < traceKbps.length; i++) {
+      if (outageRemainingS == 0 && random.nextFloat() < 1 / 60f) {
+        outageRemainingS = 3 + random.nextInt(6);
+      }
+      if (outageRemainingS > 0) {
+        outageRemainingS--;
+        traceKbps[i] = 300;
+      } else {
+        traceKbps[i] = (int) (6_000 * Math.exp(0.6 * random.nextGaussian() - 0.18));
+      }
+    }
+    return traceKbps;
+  }
+
+  /** Reads a trace file with one bandwidth value in kbit/s for each second per line. */
+  private static int[] readTrace(String path) throws IOException {
+    List<Integer> traceKbps = new ArrayList<>();
+    try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if (!line.isEmpty() && !line.startsWith("#")) {
+          traceKbps.add((int) Double.parseDouble(line));
+        }
+      }
+    }
+    int[] trace = new int[traceKbps.size()];
+    for (int i = 0; i < trace.length; i++) {
+      trace[i] = traceKbps.get(i);
+    }
+    return trace;
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.exoplayer2.source.TrackGroup;
+import com.google.android.exoplayer2.source.TrackGroupArray;
+import com.google.android.exoplayer2.testutil.FakeRenderer;
+import com.google.android.exoplayer2.testutil.FakeTrackSelection;
+import com.google.android.exoplayer2.trackselection.ExoTrackSelection;
+import com.google.android.exoplayer2.util.Util;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link AdaptiveLoadControl}. */
+@RunWith(AndroidJUnit4.class)
+public final class AdaptiveLoadControlTest {
+
+  private static final float SPEED = 1f;
+  private static final int BITRATE = 4_000_000;
+  private static final long MIN_BUFFER_US = Util.msToUs(AdaptiveLoadControl.DEFAULT_MIN_BUFFER_MS);
+  private static final long MAX_BUFFER_US = Util.msToUs(AdaptiveLoadControl.DEFAULT_MAX_BUFFER_MS);
+
+  private AdaptiveLoadControl loadControl;
+
+  @Before
+  public void setUp() {
+    loadControl = new AdaptiveLoadControl.Builder().build();
+    loadControl.onPrepared();
+  }
+
+  @Test
+  public void targetBufferUs_withoutBandwidthSamples_isMaxBuffer() {
+    selectVideoTrack(BITRATE);
+
+    assertThat(loadControl.getTargetBufferUs()).isEqualTo(MAX_BUFFER_US);
+  }
+
+  @Test
+  public void targetBufferUs_withUnknownBitrate_isMaxBuffer() {
+    selectVideoTrack(Format.NO_VALUE);
+    sampleStableNetwork(/* bitrate= */ 20_000_000);
+
+    assertThat(loadControl.getTargetBufferUs()).isEqualTo(MAX_BUFFER_US);
+  }
+
+  @Test
+  public void targetBufferUs_onStableNetwork_isMinBuffer() {
+    selectVideoTrack(BITRATE);
+    sampleStableNetwork(/* bitrate= */ 20_000_000);
+
+    assertThat(loadControl.getTargetBufferUs()).isEqualTo(MIN_BUFFER_US);
+  }
+
+  @Test
+  public void targetBufferBytes_onStableNetwork_isSmallerThanDefaultLoadControl() {
+    selectVideoTrack(BITRATE);
+    sampleStableNetwork(/* bitrate= */ 20_000_000);
+
+    assertThat(loadControl.getTargetBufferBytes())
+        .isLessThan(DefaultLoadControl.DEFAULT_VIDEO_BUFFER_SIZE);
+    assertThat(loadControl.getTargetBufferBytes())
+        .isAtLeast((int) (BITRATE / 8 * MIN_BUFFER_US / C.MICROS_PER_SECOND));
+  }
+
+  @Test
+  public void targetBufferUs_onBurstyNetwork_isMaxBuffer() {
+    selectVideoTrack(BITRATE);
+    for (int i = 0; i < 60; i++) {
+      sampleBandwidth(/* bitrate= */ i % 2 == 0 ? 12_000_000 : 1_500_000);
+    }
+
+    assertThat(loadControl.getTargetBufferUs()).isEqualTo(MAX_BUFFER_US);
+  }
+
+  @Test
+  public void targetBufferUs_afterRebuffer_isRaised() {
+    selectVideoTrack(BITRATE);
+    sampleStableNetwork(/* bitrate= */ 20_000_000);
+
+    loadControl.shouldStartPlayback(
+        /* bufferedDurationUs= */ 0,
+        SPEED,
+        /* rebuffering= */ true,
+        /* targetLiveOffsetUs= */ C.TIME_UNSET);
+
+    assertThat(loadControl.getTargetBufferUs())
+        .isEqualTo(
+            MIN_BUFFER_US + Util.msToUs(AdaptiveLoadControl.DEFAULT_REBUFFER_BUFFER_INCREMENT_MS));
+  }
+
+  @Test
+  public void shouldContinueLoading_stopsAtTargetBuffer_untilBelowResumeThreshold() {
+    selectVideoTrack(BITRATE);
+    sampleStableNetwork(/* bitrate= */ 20_000_000);
+
+    assertThat(loadControl.shouldContinueLoading(/* playbackPositionUs= */ 0, MIN_BUFFER_US, SPEED))
+        .isFalse();
+    assertThat(
+            loadControl.shouldContinueLoading(
+                /* playbackPositionUs= */ 0, MIN_BUFFER_US * 9 / 10, SPEED))
+        .isFalse();
+    assertThat(
+            loadControl.shouldContinueLoading(
+                /* playbackPositionUs= */ 0, MIN_BUFFER_US * 7 / 10, SPEED))
+        .isTrue();
+  }
+
+  private void selectVideoTrack(int bitrate) {
+    Format format = new Format.Builder().setAverageBitrate(bitrate).setPeakBitrate(bitrate).build();
+    loadControl.onTracksSelected(
+        new Renderer[] {new FakeRenderer(C.TRACK_TYPE_VIDEO)},
+        TrackGroupArray.EMPTY,
+        new ExoTrackSelection[] {new FakeTrackSelection(new TrackGroup(format))});
+  }
+
+  private void sampleStableNetwork(int bitrate) {
+    for (int i = 0; i < 60; i++) {
+      sampleBandwidth(bitrate);
+    }
+  }
+
+  /** Reports a transfer of one second at the given bitrate. */
+  private void sampleBandwidth(int bitrate) {
+    loadControl.onBandwidthSample(
+        /* elapsedMs= */ 1_000, /* bytesTransferred= */ bitrate / 8, /* bitrateEstimate= */ 0);
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.ComponentCallbacks2;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.exoplayer2.upstream.DefaultAllocator;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link BufferBudgetCoordinator}. */
+@RunWith(AndroidJUnit4.class)
+public final class BufferBudgetCoordinatorTest {
+
+  private static final int TOTAL_BUFFER_BYTES = 240 * C.DEFAULT_BUFFER_SEGMENT_SIZE;
+
+  @Test
+  public void register_sharesBudgetEqually() {
+    BufferBudgetCoordinator coordinator = new BufferBudgetCoordinator(TOTAL_BUFFER_BYTES);
+    DefaultLoadControl loadControl1 = buildLoadControl();
+    DefaultLoadControl loadControl2 = buildLoadControl();
+
+    coordinator.register(loadControl1);
+    coordinator.register(loadControl2);
+
+    assertThat(coordinator.getBufferBudgetBytes(loadControl1)).isEqualTo(TOTAL_BUFFER_BYTES / 2);
+    assertThat(coordinator.getBufferBudgetBytes(loadControl2)).isEqualTo(TOTAL_BUFFER_BYTES / 2);
+    assertThat(loadControl1.getTargetBufferBytes()).isEqualTo(TOTAL_BUFFER_BYTES / 2);
+  }
+
+  @Test
+  public void setFocusedLoadControl_givesFocusedPlayerLargerShare() {
+    BufferBudgetCoordinator coordinator =
+        new BufferBudgetCoordinator(TOTAL_BUFFER_BYTES, /* focusedPlayerWeight= */ 4);
+    DefaultLoadControl focusedLoadControl = buildLoadControl();
+    DefaultLoadControl otherLoadControl1 = buildLoadControl();
+    DefaultLoadControl otherLoadControl2 = buildLoadControl();
+    coordinator.register(focusedLoadControl);
+    coordinator.register(otherLoadControl1);
+    coordinator.register(otherLoadControl2);
+
+    coordinator.setFocusedLoadControl(focusedLoadControl);
+
+    assertThat(coordinator.getBufferBudgetBytes(focusedLoadControl))
+        .isEqualTo(TOTAL_BUFFER_BYTES * 4 / 6);
+    assertThat(coordinator.getBufferBudgetBytes(otherLoadControl1))
+        .isEqualTo(TOTAL_BUFFER_BYTES / 6);
+    assertThat(coordinator.getBufferBudgetBytes(otherLoadControl2))
+        .isEqualTo(TOTAL_BUFFER_BYTES / 6);
+  }
+
+  @Test
+  public void onTrimMemory_shrinksUnfocusedPlayersFirst() {
+    BufferBudgetCoordinator coordinator =
+        new BufferBudgetCoordinator(TOTAL_BUFFER_BYTES, /* focusedPlayerWeight= */ 2);
+    DefaultLoadControl focusedLoadControl = buildLoadControl();
+    DefaultLoadControl otherLoadControl = buildLoadControl();
+    coordinator.register(focusedLoadControl);
+    coordinator.register(otherLoadControl);
+    coordinator.setFocusedLoadControl(focusedLoadControl);
+
+    coordinator.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+
+    // A quarter of the budget is given up by the other player, which had a third of it.
+    assertThat(coordinator.getBufferBudgetBytes(focusedLoadControl))
+        .isEqualTo(TOTAL_BUFFER_BYTES * 2 / 3);
+    assertThat(coordinator.getBufferBudgetBytes(otherLoadControl))
+        .isEqualTo(TOTAL_BUFFER_BYTES / 3 - TOTAL_BUFFER_BYTES / 4);
+
+    coordinator.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+
+    // Half of the budget is given up, so the focused player gives up the rest.
+    assertThat(coordinator.getBufferBudgetBytes(focusedLoadControl))
+        .isEqualTo(TOTAL_BUFFER_BYTES / 2);
+    assertThat(coordinator.getBufferBudgetBytes(otherLoadControl))
+        .isEqualTo(BufferBudgetCoordinator.MIN_PLAYER_BUFFER_BYTES);
+
+    coordinator.clearMemoryPressure();
+
+    assertThat(coordinator.getBufferBudgetBytes(otherLoadControl))
+        .isEqualTo(TOTAL_BUFFER_BYTES / 3);
+  }
+
+  @Test
+  public void unregister_removesLimitAndSharesBudgetWithRemainingPlayers() {
+    BufferBudgetCoordinator coordinator = new BufferBudgetCoordinator(TOTAL_BUFFER_BYTES);
+    DefaultLoadControl loadControl1 = buildLoadControl();
+    DefaultLoadControl loadControl2 = buildLoadControl();
+    coordinator.register(loadControl1);
+    coordinator.register(loadControl2);
+
+    coordinator.unregister(loadControl2);
+
+    assertThat(coordinator.getBufferBudgetBytes(loadControl1)).isEqualTo(TOTAL_BUFFER_BYTES);
+    assertThat(loadControl2.getTargetBufferBytes()).isEqualTo(TOTAL_BUFFER_BYTES);
+  }
+
+  @Test
+  public void getBytesAllocated_returnsBytesAllocatedByEachPlayer() {
+    BufferBudgetCoordinator coordinator = new BufferBudgetCoordinator(TOTAL_BUFFER_BYTES);
+    DefaultLoadControl loadControl1 = buildLoadControl();
+    DefaultLoadControl loadControl2 = buildLoadControl();
+    coordinator.register(loadControl1);
+    coordinator.register(loadControl2);
+
+    loadControl1.getAllocator().allocate();
+    loadControl2.getAllocator().allocate();
+    loadControl2.getAllocator().allocate();
+
+    assertThat(coordinator.getBytesAllocated(loadControl1))
+        .isEqualTo(C.DEFAULT_BUFFER_SEGMENT_SIZE);
+    assertThat(coordinator.getBytesAllocated(loadControl2))
+        .isEqualTo(2 * C.DEFAULT_BUFFER_SEGMENT_SIZE);
+    assertThat(coordinator.getTotalBytesAllocated()).isEqualTo(3 * C.DEFAULT_BUFFER_SEGMENT_SIZE);
+  }
+
+  private static DefaultLoadControl buildLoadControl() {
+    return new DefaultLoadControl.Builder()
+        .setAllocator(new DefaultAllocator(/* trimOnReset= */ true, C.DEFAULT_BUFFER_SEGMENT_SIZE))
+        .setTargetBufferBytes(TOTAL_BUFFER_BYTES)
+        .build();
+  }
+}
@@ -200,6 +200,27 @@ public class DefaultLoadControlTest {
                 .isFalse();
     }
     
+    @Test
+    public void shouldContinueLoading_withTargetBufferBytesLimitReached_returnsFalse() {
+        build();
+        loadControl.setTargetBufferBytesLimit(C.DEFAULT_BUFFER_SEGMENT_SIZE);
+        allocator.allocate();
+        
+        assertThat(loadControl.getTargetBufferBytes()).isEqualTo(C.DEFAULT_BUFFER_SEGMENT_SIZE);
+        assertThat(
+                loadControl.shouldContinueLoading(
+                        /* playbackPositionUs= */ 0, /* bufferedDurationUs= */ 0, SPEED))
+                .isFalse();
+        
+        loadControl.setTargetBufferBytesLimit(C.LENGTH_UNSET);
+        
+        assertThat(loadControl.getTargetBufferBytes()).isEqualTo(TARGET_BUFFER_BYTES);
+        assertThat(
+                loadControl.shouldContinueLoading(
+                        /* playbackPositionUs= */ 0, /* bufferedDurationUs= */ 0, SPEED))
+                .isTrue();
+    }
+    
     @Test
     public void shouldStartPlayback_whenMinBufferSizeReached_returnsTrue() {
         build();
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.source;
+
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.decoder.DecoderInputBuffer;
+import com.google.android.exoplayer2.source.SampleQueue.SampleExtrasHolder;
+import com.google.android.exoplayer2.upstream.DefaultAllocator;
+import com.google.android.exoplayer2.util.ParsableByteArray;
+import com.google.android.exoplayer2.util.Util;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Microbenchmark comparing a {@link SampleDataQueue} that keeps its back buffer in allocations with
+ * one that spills it to a file.
+ *
+ * <p>The back buffer of a 4K live stream is written to the queue and read, as during playback, and
+ * then read again after {@link SampleDataQueue#rewind()}, as after a seek back into the back
+ * buffer. The memory allocated by the back buffer after the first read, and the throughput of both
+ * reads, are printed. Each configuration runs warm-up iterations followed by measured iterations.
+ * Run it on a JVM with {@code main}, passing no arguments.
+ */
+public final class SampleDataSpillBenchmark {
+
+  private static final int WARM_UP_ITERATIONS = 3;
+  private static final int MEASURED_ITERATIONS = 5;
+  // Frames of 25 Mbit/s video at 30 fps.
+  private static final int SAMPLE_SIZE = 104_166;
+  // About 20 seconds of video.
+  private static final int SAMPLE_COUNT = 640;
+
+  private SampleDataSpillBenchmark() {}
+
+  public static void main(String[] args) throws Exception {
+    File spillDirectory = Files.createTempDirectory("SampleDataSpillBenchmark").toFile();
+    byte[] sampleData = new byte[SAMPLE_SIZE];
+    DecoderInputBuffer buffer =
+        new DecoderInputBuffer(DecoderInputBuffer.BUFFER_REPLACEMENT_MODE_NORMAL);
+    ExecutorService spillExecutor = Util.newSingleThreadExecutor("SampleDataSpillBenchmark");
+    long[] inMemoryNanos = new long[2];
+    long[] spilledNanos = new long[2];
+    int inMemoryBytesAllocated = 0;
+    int spilledBytesAllocated = 0;
+    // Alternate between the configurations, so that both run with the same compiled code.
+    for (int iteration = 0; iteration < WARM_UP_ITERATIONS + MEASURED_ITERATIONS; iteration++) {
+      boolean measured = iteration >= WARM_UP_ITERATIONS;
+      inMemoryBytesAllocated =
+          run(
+              /* spillDirectory= */ null,
+              spillExecutor,
+              sampleData,
+              buffer,
+              measured ? inMemoryNanos : new long[2]);
+      spilledBytesAllocated =
+          run(
+              spillDirectory,
+              spillExecutor,
+              sampleData,
+              buffer,
+              measured ? spilledNanos : new long[2]);
+    }
+    spillExecutor.shutdown();
+    spillDirectory.delete();
+
+    System.out.println(
+        String.format(
+            Locale.US,
+            "back buffer memory: in memory %.1f MB, spilled %.1f MB",
+            inMemoryBytesAllocated / 1e6,
+            spilledBytesAllocated / 1e6));
+    printThroughput("first read", inMemoryNanos[0], spilledNanos[0]);
+    printThroughput("seek-back read", inMemoryNanos[1], spilledNanos[1]);
+  }
+
+  /**
+   * Writes and reads the back buffer, then reads it again after rewinding.
+   *
+   * @param spillDirectory The spill directory, or null to keep the back buffer in allocations.
+   * @param spillExecutor The executor on which data is spilled. Spilling isn't included in the
+   *     measured durations, but finishes before the allocated bytes are measured.
+   * @param sampleData The data of each sample.
+   * @param buffer The buffer into which samples are read.
+   * @param nanos Array to whose elements the durations of the first and second read are added.
+   * @return The number of bytes allocated after the first read.
+   */
+  private static int run(
+      @Nullable File spillDirectory,
+      ExecutorService spillExecutor,
+      byte[] sampleData,
+      DecoderInputBuffer buffer,
+      long[] nanos)
+      throws Exception {
+    DefaultAllocator allocator =
+        new DefaultAllocator(/* trimOnReset= */ true, C.DEFAULT_BUFFER_SEGMENT_SIZE);
+    SampleDataQueue sampleDataQueue =
+        new SampleDataQueue(allocator, spillDirectory, spillExecutor);
+    ParsableByteArray sampleDataArray = new ParsableByteArray(sampleData);
+    SampleExtrasHolder extrasHolder = new SampleExtrasHolder();
+
+    long startNanos = System.nanoTime();
+    for (int i = 0; i < SAMPLE_COUNT; i++) {
+      sampleDataArray.setPosition(0);
+      sampleDataQueue.sampleData(sampleDataArray, SAMPLE_SIZE);
+    }
+    readSamples(sampleDataQueue, buffer, extrasHolder);
+    long firstReadEndNanos = System.nanoTime();
+    // Wait for the read data to be spilled.
+    spillExecutor.submit(() -> {}).get();
+    int bytesAllocated = allocator.getTotalBytesAllocated();
+    long rewindStartNanos = System.nanoTime();
+    sampleDataQueue.rewind();
+    readSamples(sampleDataQueue, buffer, extrasHolder);
+    long endNanos = System.nanoTime();
+
+    sampleDataQueue.reset();
+    nanos[0] += firstReadEndNanos - startNanos;
+    nanos[1] += endNanos - rewindStartNanos;
+    return bytesAllocated;
+  }
+
+  private static void readSamples(
+      SampleDataQueue sampleDataQueue, DecoderInputBuffer buffer, SampleExtrasHolder extrasHolder)
+      throws IOException {
+    for (int i = 0; i < SAMPLE_COUNT; i++) {
+      buffer.clear();
+      extrasHolder.offset = (long) i * SAMPLE_SIZE;
+      extrasHolder.size = SAMPLE_SIZE;
+      sampleDataQueue.readToBuffer(buffer, extrasHolder);
+    }
+  }
+
+  private static void printThroughput(String name, long inMemoryNanos, long spilledNanos) {
+    double megabytes = (double) MEASURED_ITERATIONS * SAMPLE_COUNT * SAMPLE_SIZE / 1e6;
+    double inMemoryMegabytesPerSecond = megabytes / (inMemoryNanos / 1e9);
+    double spilledMegabytesPerSecond = megabytes / (spilledNanos / 1e9);
+    System.out.println(
+        String.format(
+            Locale.US,
+            "%s: in memory %.0f MB/s, spilled %.0f MB/s (%.2fx)",
+            name,
+            inMemoryMegabytesPerSecond,
+            spilledMegabytesPerSecond,
+            spilledMegabytesPerSecond / inMemoryMegabytesPerSecond));
+  }
+}
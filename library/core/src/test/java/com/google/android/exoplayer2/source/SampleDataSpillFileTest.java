@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.source;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.exoplayer2.testutil.TestUtil;
+import com.google.android.exoplayer2.util.Util;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit test for {@link SampleDataSpillFile}. */
+@RunWith(AndroidJUnit4.class)
+public final class SampleDataSpillFileTest {
+
+  private static final int SLOT_LENGTH = 16;
+
+  private File directory;
+  private SampleDataSpillFile spillFile;
+
+  @Before
+  public void setUp() throws Exception {
+    directory =
+        Util.createTempDirectory(ApplicationProvider.getApplicationContext(), "ExoPlayerTest");
+    spillFile = new SampleDataSpillFile(directory, SLOT_LENGTH);
+  }
+
+  @After
+  public void tearDown() {
+    spillFile.release();
+    Util.recursiveDelete(directory);
+  }
+
+  @Test
+  public void read_returnsWrittenData() throws Exception {
+    byte[] data = TestUtil.buildTestData(3 * SLOT_LENGTH);
+
+    int slot1 = spillFile.write(data, /* offset= */ 0);
+    int slot2 = spillFile.write(data, /* offset= */ SLOT_LENGTH);
+    int slot3 = spillFile.write(data, /* offset= */ 2 * SLOT_LENGTH);
+    ByteBuffer target = ByteBuffer.allocate(2 * SLOT_LENGTH);
+    spillFile.read(slot2, /* slotOffset= */ 4, target, /* length= */ SLOT_LENGTH - 4);
+    spillFile.read(slot3, /* slotOffset= */ 0, target, /* length= */ SLOT_LENGTH);
+    spillFile.read(slot1, /* slotOffset= */ 0, target, /* length= */ 4);
+
+    assertThat(target.position()).isEqualTo(2 * SLOT_LENGTH);
+    assertThat(Arrays.copyOf(target.array(), 2 * SLOT_LENGTH - 4))
+        .isEqualTo(Arrays.copyOfRange(data, SLOT_LENGTH + 4, 3 * SLOT_LENGTH));
+    assertThat(Arrays.copyOfRange(target.array(), 2 * SLOT_LENGTH - 4, 2 * SLOT_LENGTH))
+        .isEqualTo(Arrays.copyOf(data, 4));
+  }
+
+  @Test
+  public void write_afterFree_reusesSlot() throws Exception {
+    byte[] data = TestUtil.buildTestData(SLOT_LENGTH);
+    int slot1 = spillFile.write(data, /* offset= */ 0);
+    spillFile.write(data, /* offset= */ 0);
+
+    spillFile.free(slot1);
+    int slot3 = spillFile.write(data, /* offset= */ 0);
+
+    assertThat(slot3).isEqualTo(slot1);
+    assertThat(spillFile.getUsedSlotCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void firstFileInDirectory_deletesOnlyStaleSpillFiles() throws Exception {
+    File otherDirectory =
+        Util.createTempDirectory(ApplicationProvider.getApplicationContext(), "ExoPlayerTest");
+    File staleFile = new File(otherDirectory, "sample-data123.spill");
+    File otherFile = new File(otherDirectory, "other.spill");
+    assertThat(staleFile.createNewFile()).isTrue();
+    assertThat(otherFile.createNewFile()).isTrue();
+
+    SampleDataSpillFile firstSpillFile = new SampleDataSpillFile(otherDirectory, SLOT_LENGTH);
+    try {
+      assertThat(staleFile.exists()).isFalse();
+      assertThat(otherFile.exists()).isTrue();
+      // The new spill file is kept.
+      assertThat(otherDirectory.listFiles()).hasLength(2);
+    } finally {
+      firstSpillFile.release();
+      Util.recursiveDelete(otherDirectory);
+    }
+  }
+
+  @Test
+  public void release_deletesFile() {
+    assertThat(directory.listFiles()).hasLength(1);
+
+    spillFile.release();
+
+    assertThat(directory.listFiles()).isEmpty();
+  }
+}
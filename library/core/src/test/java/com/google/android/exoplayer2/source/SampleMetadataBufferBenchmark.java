@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.source;
+
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.extractor.TrackOutput.CryptoData;
+import java.util.Locale;
+import org.checkerframework.checker.nullness.compatqual.NullableType;
+
+/**
+ * Microbenchmark comparing {@link SampleMetadataBuffer} with the sample metadata storage of {@link
+ * SampleQueue} that it replaced, which kept one array per field and grew by a fixed increment.
+ *
+ * <p>In the "playback" scenario the buffer holds a window of samples, and each operation commits a
+ * sample, reads every field of the oldest sample and discards it, as a loading thread and a
+ * playback thread do during playback. In the "long buffer" scenario the samples of a long buffer
+ * are committed to an empty buffer, then read and discarded, which includes growing the buffer.
+ * Each scenario runs warm-up iterations followed by measured iterations, and the number of samples
+ * committed and read per second in the measured iterations is printed. Run it on a JVM with {@code
+ * main}, passing no arguments.
+ */
+public final class SampleMetadataBufferBenchmark {
+
+  private static final int WARM_UP_ITERATIONS = 5;
+  private static final int MEASURED_ITERATIONS = 10;
+
+  /** Sample metadata storage under benchmark. */
+  private interface MetadataStore {
+    void add(long timeUs, int flags, long offset, int size, int sourceId);
+
+    /** Reads every field of the first sample, returning a value derived from them. */
+    long readFirst();
+
+    void removeFirst(int count);
+  }
+
+  private interface MetadataStoreFactory {
+    MetadataStore create();
+  }
+
+  private SampleMetadataBufferBenchmark() {}
+
+  public static void main(String[] args) {
+    // 60 seconds of 30 fps video.
+    runScenario("playback", /* windowSize= */ 1_800, /* samplesPerIteration= */ 2_000_000);
+    // 10 minutes of 60 fps video.
+    runScenario("long buffer", /* windowSize= */ 36_000, /* samplesPerIteration= */ 36_000);
+  }
+
+  private static void runScenario(String name, int windowSize, int samplesPerIteration) {
+    MetadataStoreFactory legacyStoreFactory =
+        () -> {
+          LegacySampleMetadata legacy = new LegacySampleMetadata();
+          return new MetadataStore() {
+            @Override
+            public void add(long timeUs, int flags, long offset, int size, int sourceId) {
+              legacy.add(timeUs, flags, offset, size, sourceId, /* cryptoData= */ null);
+            }
+
+            @Override
+            public long readFirst() {
+              return legacy.timesUs[legacy.relativeFirstIndex]
+                  + legacy.flags[legacy.relativeFirstIndex]
+                  + legacy.offsets[legacy.relativeFirstIndex]
+                  + legacy.sizes[legacy.relativeFirstIndex]
+                  + legacy.sourceIds[legacy.relativeFirstIndex]
+                  + (legacy.cryptoDatas[legacy.relativeFirstIndex] == null ? 0 : 1);
+            }
+
+            @Override
+            public void removeFirst(int count) {
+              legacy.removeFirst(count);
+            }
+          };
+        };
+    MetadataStoreFactory storeFactory =
+        () -> {
+          SampleMetadataBuffer buffer =
+              new SampleMetadataBuffer(SampleQueue.INITIAL_SAMPLE_CAPACITY);
+          return new MetadataStore() {
+            @Override
+            public void add(long timeUs, int flags, long offset, int size, int sourceId) {
+              buffer.add(timeUs, flags, offset, size, sourceId, /* cryptoData= */ null);
+            }
+
+            @Override
+            public long readFirst() {
+              return buffer.getTimeUs(/* position= */ 0)
+                  + buffer.getFlags(/* position= */ 0)
+                  + buffer.getOffset(/* position= */ 0)
+                  + buffer.getSize(/* position= */ 0)
+                  + buffer.getSourceId(/* position= */ 0)
+                  + (buffer.getCryptoData(/* position= */ 0) == null ? 0 : 1);
+            }
+
+            @Override
+            public void removeFirst(int count) {
+              buffer.removeFirst(count);
+            }
+          };
+        };
+
+    // Alternate between the implementations, so that both run with the same compiled code.
+    long legacyNanos = 0;
+    long nanos = 0;
+    long checksum = 0;
+    for (int iteration = 0; iteration < WARM_UP_ITERATIONS + MEASURED_ITERATIONS; iteration++) {
+      long startNanos = System.nanoTime();
+      checksum += run(legacyStoreFactory.create(), windowSize, samplesPerIteration);
+      long legacyEndNanos = System.nanoTime();
+      checksum += run(storeFactory.create(), windowSize, samplesPerIteration);
+      long endNanos = System.nanoTime();
+      if (iteration >= WARM_UP_ITERATIONS) {
+        legacyNanos += legacyEndNanos - startNanos;
+        nanos += endNanos - legacyEndNanos;
+      }
+    }
+    if (checksum == 0) {
+      // Prevent the reads from being optimized away.
+      System.out.println("Unexpected checksum");
+    }
+    double legacySamplesPerSecond = getSamplesPerSecond(samplesPerIteration, legacyNanos);
+    double samplesPerSecond = getSamplesPerSecond(samplesPerIteration, nanos);
+    System.out.println(
+        String.format(
+            Locale.US,
+            "%s: legacy %.1fM samples/s, current %.1fM samples/s (%.1fx)",
+            name,
+            legacySamplesPerSecond / 1_000_000,
+            samplesPerSecond / 1_000_000,
+            samplesPerSecond / legacySamplesPerSecond));
+  }
+
+  /** Returns the number of samples committed and read per second. */
+  private static double getSamplesPerSecond(int samplesPerIteration, long measuredNanos) {
+    return (double) MEASURED_ITERATIONS * samplesPerIteration / (measuredNanos / 1e9);
+  }
+
+  private static long run(MetadataStore store, int windowSize, int sampleCount) {
+    long checksum = 0;
+    long offset = 0;
+    int queuedCount = 0;
+    for (int i = 0; i < sampleCount; i++) {
+      int size = 1_000 + (i & 0xFFF);
+      store.add(
+          /* timeUs= */ i * 33_333L,
+          /* flags= */ i % 30 == 0 ? C.BUFFER_FLAG_KEY_FRAME : 0,
+          offset,
+          size,
+          /* sourceId= */ i / 100);
+      offset += size;
+      queuedCount++;
+      if (queuedCount == windowSize) {
+        checksum += store.readFirst();
+        store.removeFirst(/* count= */ 1);
+        queuedCount--;
+      }
+    }
+    while (queuedCount > 0) {
+      checksum += store.readFirst();
+      store.removeFirst(/* count= */ 1);
+      queuedCount--;
+    }
+    return checksum;
+  }
+
+  /** The sample metadata storage that {@link SampleMetadataBuffer} replaced, for comparison. */
+  private static final class LegacySampleMetadata {
+
+    private static final int SAMPLE_CAPACITY_INCREMENT = 1000;
+
+    private int capacity;
+    private int[] sourceIds;
+    private long[] offsets;
+    private int[] sizes;
+    private int[] flags;
+    private long[] timesUs;
+    private @NullableType CryptoData[] cryptoDatas;
+    private int length;
+    private int relativeFirstIndex;
+
+    public LegacySampleMetadata() {
+      capacity = SAMPLE_CAPACITY_INCREMENT;
+      sourceIds = new int[capacity];
+      offsets = new long[capacity];
+      timesUs = new long[capacity];
+      flags = new int[capacity];
+      sizes = new int[capacity];
+      cryptoDatas = new CryptoData[capacity];
+    }
+
+    public void add(
+        long timeUs,
+        int sampleFlags,
+        long offset,
+        int size,
+        int sourceId,
+        @Nullable CryptoData cryptoData) {
+      int relativeEndIndex = getRelativeIndex(length);
+      timesUs[relativeEndIndex] = timeUs;
+      offsets[relativeEndIndex] = offset;
+      sizes[relativeEndIndex] = size;
+      flags[relativeEndIndex] = sampleFlags;
+      cryptoDatas[relativeEndIndex] = cryptoData;
+      sourceIds[relativeEndIndex] = sourceId;
+      length++;
+      if (length == capacity) {
+        int newCapacity = capacity + SAMPLE_CAPACITY_INCREMENT;
+        int[] newSourceIds = new int[newCapacity];
+        long[] newOffsets = new long[newCapacity];
+        long[] newTimesUs = new long[newCapacity];
+        int[] newFlags = new int[newCapacity];
+        int[] newSizes = new int[newCapacity];
+        CryptoData[] newCryptoDatas = new CryptoData[newCapacity];
+        int beforeWrap = capacity - relativeFirstIndex;
+        System.arraycopy(offsets, relativeFirstIndex, newOffsets, 0, beforeWrap);
+        System.arraycopy(timesUs, relativeFirstIndex, newTimesUs, 0, beforeWrap);
+        System.arraycopy(flags, relativeFirstIndex, newFlags, 0, beforeWrap);
+        System.arraycopy(sizes, relativeFirstIndex, newSizes, 0, beforeWrap);
+        System.arraycopy(cryptoDatas, relativeFirstIndex, newCryptoDatas, 0, beforeWrap);
+        System.arraycopy(sourceIds, relativeFirstIndex, newSourceIds, 0, beforeWrap);
+        int afterWrap = relativeFirstIndex;
+        System.arraycopy(offsets, 0, newOffsets, beforeWrap, afterWrap);
+        System.arraycopy(timesUs, 0, newTimesUs, beforeWrap, afterWrap);
+        System.arraycopy(flags, 0, newFlags, beforeWrap, afterWrap);
+        System.arraycopy(sizes, 0, newSizes, beforeWrap, afterWrap);
+        System.arraycopy(cryptoDatas, 0, newCryptoDatas, beforeWrap, afterWrap);
+        System.arraycopy(sourceIds, 0, newSourceIds, beforeWrap, afterWrap);
+        offsets = newOffsets;
+        timesUs = newTimesUs;
+        flags = newFlags;
+        sizes = newSizes;
+        cryptoDatas = newCryptoDatas;
+        sourceIds = newSourceIds;
+        relativeFirstIndex = 0;
+        capacity = newCapacity;
+      }
+    }
+
+    public void removeFirst(int count) {
+      length -= count;
+      relativeFirstIndex += count;
+      if (relativeFirstIndex >= capacity) {
+        relativeFirstIndex -= capacity;
+      }
+    }
+
+    private int getRelativeIndex(int offset) {
+      int relativeIndex = relativeFirstIndex + offset;
+      return relativeIndex < capacity ? relativeIndex : relativeIndex - capacity;
+    }
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.source;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.extractor.TrackOutput.CryptoData;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Tests for {@link SampleMetadataBuffer}. */
+@RunWith(AndroidJUnit4.class)
+public final class SampleMetadataBufferTest {
+
+  private static final CryptoData CRYPTO_DATA =
+      new CryptoData(
+          C.CRYPTO_MODE_AES_CTR,
+          /* encryptionKey= */ new byte[16],
+          /* encryptedBlocks= */ 0,
+          /* clearBlocks= */ 0);
+
+  @Test
+  public void add_thenGet_returnsFields() {
+    SampleMetadataBuffer buffer = new SampleMetadataBuffer(/* initialCapacity= */ 4);
+
+    buffer.add(
+        /* timeUs= */ -1000,
+        /* flags= */ C.BUFFER_FLAG_KEY_FRAME | C.BUFFER_FLAG_DECODE_ONLY,
+        /* offset= */ 1L << 40,
+        /* size= */ Integer.MAX_VALUE,
+        /* sourceId= */ -2,
+        CRYPTO_DATA);
+
+    assertThat(buffer.size()).isEqualTo(1);
+    assertThat(buffer.getTimeUs(/* position= */ 0)).isEqualTo(-1000);
+    assertThat(buffer.getFlags(/* position= */ 0))
+        .isEqualTo(C.BUFFER_FLAG_KEY_FRAME | C.BUFFER_FLAG_DECODE_ONLY);
+    assertThat(buffer.getOffset(/* position= */ 0)).isEqualTo(1L << 40);
+    assertThat(buffer.getSize(/* position= */ 0)).isEqualTo(Integer.MAX_VALUE);
+    assertThat(buffer.getSourceId(/* position= */ 0)).isEqualTo(-2);
+    assertThat(buffer.getCryptoData(/* position= */ 0)).isSameInstanceAs(CRYPTO_DATA);
+  }
+
+  @Test
+  public void addBeyondCapacity_afterRemoveFirst_keepsSamplesInOrder() {
+    SampleMetadataBuffer buffer = new SampleMetadataBuffer(/* initialCapacity= */ 4);
+    for (int i = 0; i < 3; i++) {
+      addSample(buffer, i);
+    }
+    buffer.removeFirst(2);
+
+    // Wrap around the end of the initial capacity, then grow while wrapped.
+    for (int i = 3; i < 10; i++) {
+      addSample(buffer, i);
+    }
+
+    assertThat(buffer.size()).isEqualTo(8);
+    for (int position = 0; position < 8; position++) {
+      assertThat(buffer.getTimeUs(position)).isEqualTo(position + 2);
+      assertThat(buffer.getSize(position)).isEqualTo(position + 2);
+      assertThat(buffer.getSourceId(position)).isEqualTo(position + 2);
+    }
+  }
+
+  @Test
+  public void removeLast_removesSamplesFromEnd() {
+    SampleMetadataBuffer buffer = new SampleMetadataBuffer(/* initialCapacity= */ 4);
+    for (int i = 0; i < 4; i++) {
+      addSample(buffer, i);
+    }
+
+    buffer.removeLast(3);
+    addSample(buffer, 10);
+
+    assertThat(buffer.size()).isEqualTo(2);
+    assertThat(buffer.getTimeUs(/* position= */ 0)).isEqualTo(0);
+    assertThat(buffer.getTimeUs(/* position= */ 1)).isEqualTo(10);
+  }
+
+  @Test
+  public void clear_removesAllSamples() {
+    SampleMetadataBuffer buffer = new SampleMetadataBuffer(/* initialCapacity= */ 4);
+    addSample(buffer, 0);
+    addSample(buffer, 1);
+
+    buffer.clear();
+    addSample(buffer, 2);
+
+    assertThat(buffer.size()).isEqualTo(1);
+    assertThat(buffer.getTimeUs(/* position= */ 0)).isEqualTo(2);
+  }
+
+  private static void addSample(SampleMetadataBuffer buffer, int value) {
+    buffer.add(
+        /* timeUs= */ value,
+        C.BUFFER_FLAG_KEY_FRAME,
+        /* offset= */ value,
+        /* size= */ value,
+        /* sourceId= */ value,
+        /* cryptoData= */ null);
+  }
+}
@@ -31,6 +31,7 @@ import static org.mockito.Mockito.when;
 
 import android.os.Looper;
 import androidx.annotation.Nullable;
+import androidx.test.core.app.ApplicationProvider;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.Format;
@@ -49,8 +50,11 @@ import com.google.android.exoplayer2.upstream.DefaultAllocator;
 import com.google.android.exoplayer2.util.Assertions;
 import com.google.android.exoplayer2.util.MimeTypes;
 import com.google.android.exoplayer2.util.ParsableByteArray;
+import com.google.android.exoplayer2.util.Util;
 import com.google.common.primitives.Bytes;
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicReference;
 import org.junit.After;
@@ -166,7 +170,7 @@ public final class SampleQueueTest {
 
   @Test
   public void capacityIncreases() {
-    int numberOfSamplesToInput = 3 * SampleQueue.SAMPLE_CAPACITY_INCREMENT + 1;
+    int numberOfSamplesToInput = 3 * SampleQueue.INITIAL_SAMPLE_CAPACITY + 1;
     sampleQueue.format(FORMAT_1);
     sampleQueue.sampleData(
         new ParsableByteArray(numberOfSamplesToInput), /* length= */ numberOfSamplesToInput);
@@ -779,6 +783,55 @@ public final class SampleQueueTest {
     assertNoSamplesToRead(FORMAT_2);
   }
 
+  @Test
+  public void seekToStart_withBackBufferSpilled_readsDataFromSpillFile() throws Exception {
+    File spillDirectory =
+        Util.createTempDirectory(ApplicationProvider.getApplicationContext(), "ExoPlayerTest");
+    ArrayDeque<Runnable> spillTasks = new ArrayDeque<>();
+    try {
+      useBackBufferSpillingAllocator(spillDirectory, spillTasks);
+      writeTestData();
+      assertReadTestData();
+      // All of the data has been read and handed off for spilling, but isn't written yet.
+      assertAllocationCount(10);
+      assertThat(spillDirectory.listFiles()).isEmpty();
+      runAll(spillTasks);
+      // The data has been spilled and its allocations released.
+      assertAllocationCount(0);
+      assertThat(spillDirectory.listFiles()).hasLength(1);
+
+      boolean success = sampleQueue.seekTo(SAMPLE_TIMESTAMPS[0], false);
+
+      assertThat(success).isTrue();
+      assertReadTestData();
+      assertNoSamplesToRead(FORMAT_2);
+      sampleQueue.release();
+      assertThat(spillDirectory.listFiles()).isEmpty();
+    } finally {
+      Util.recursiveDelete(spillDirectory);
+    }
+  }
+
+  @Test
+  public void discardToEnd_whileBackBufferSpillIsPending_releasesAllocations() throws Exception {
+    File spillDirectory =
+        Util.createTempDirectory(ApplicationProvider.getApplicationContext(), "ExoPlayerTest");
+    ArrayDeque<Runnable> spillTasks = new ArrayDeque<>();
+    try {
+      useBackBufferSpillingAllocator(spillDirectory, spillTasks);
+      writeTestData();
+      assertReadTestData();
+
+      sampleQueue.discardToEnd();
+      runAll(spillTasks);
+
+      assertAllocationCount(0);
+      assertThat(spillDirectory.listFiles()).isEmpty();
+    } finally {
+      Util.recursiveDelete(spillDirectory);
+    }
+  }
+
   @Test
   public void setStartTimeUs_allSamplesAreSyncSamples_discardsOnWriteSide() {
     // The format uses a MIME type for which MimeTypes.allSamplesAreSyncSamples() is true.
@@ -1747,6 +1800,22 @@ public final class SampleQueueTest {
     inputBuffer.clear();
   }
 
+  private void useBackBufferSpillingAllocator(File spillDirectory, ArrayDeque<Runnable> spillTasks) {
+    sampleQueue.release();
+    sampleQueue =
+        new SampleQueue(
+            new BackBufferSpillingAllocator(allocator, spillDirectory, spillTasks::add),
+            /* playbackLooper= */ Assertions.checkNotNull(Looper.myLooper()),
+            mockDrmSessionManager,
+            eventDispatcher);
+  }
+
+  private static void runAll(ArrayDeque<Runnable> tasks) {
+    while (!tasks.isEmpty()) {
+      tasks.remove().run();
+    }
+  }
+
   private static Format adjustFormat(@Nullable Format format, long sampleOffsetUs) {
     return format == null || sampleOffsetUs == 0
         ? format
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import static java.lang.Math.max;
+
+import com.google.android.exoplayer2.C;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Microbenchmark comparing the allocation and release throughput of {@link DefaultAllocator} with
+ * the implementation that it replaced, which guarded its pool with the allocator's lock.
+ *
+ * <p>Each scenario runs with 1 to 8 threads sharing one allocator, as several players sharing an
+ * allocator would. In the "same thread" scenario each thread allocates a few allocations and
+ * releases them, as a loader discarding upstream data does. In the "hand-off" scenario half of the
+ * threads allocate and pass the allocations to the other half, which release them in batches, as
+ * loading threads and playback threads do. Each scenario runs warm-up iterations followed by
+ * measured iterations, and the throughput of the measured iterations is printed. Run it on a JVM
+ * with {@code main}, passing no arguments.
+ */
+public final class DefaultAllocatorBenchmark {
+
+  private static final int WARM_UP_ITERATIONS = 3;
+  private static final int MEASURED_ITERATIONS = 5;
+  private static final int OPERATIONS_PER_THREAD = 200_000;
+  private static final int BATCH_SIZE = 4;
+
+  private interface AllocatorFactory {
+    Allocator create();
+  }
+
+  private interface Scenario {
+    void run(Allocator allocator, int threadCount, ExecutorService executorService)
+        throws Exception;
+  }
+
+  private DefaultAllocatorBenchmark() {}
+
+  public static void main(String[] args) throws Exception {
+    ExecutorService executorService = Executors.newCachedThreadPool();
+    for (int threadCount : new int[] {1, 2, 4, 8}) {
+      runScenario(
+          "same thread", threadCount, executorService, DefaultAllocatorBenchmark::runSameThread);
+    }
+    for (int threadCount : new int[] {2, 4, 8}) {
+      runScenario("hand-off", threadCount, executorService, DefaultAllocatorBenchmark::runHandOff);
+    }
+    executorService.shutdown();
+  }
+
+  private static void runScenario(
+      String name, int threadCount, ExecutorService executorService, Scenario scenario)
+      throws Exception {
+    double legacyOperationsPerMs =
+        measure(
+            () -> new LegacyDefaultAllocator(C.DEFAULT_BUFFER_SEGMENT_SIZE),
+            threadCount,
+            executorService,
+            scenario);
+    double operationsPerMs =
+        measure(
+            () -> new DefaultAllocator(/* trimOnReset= */ true, C.DEFAULT_BUFFER_SEGMENT_SIZE),
+            threadCount,
+            executorService,
+            scenario);
+    System.out.println(
+        String.format(
+            Locale.US,
+            "%s, %d threads: legacy %.0f ops/ms, current %.0f ops/ms (%.1fx)",
+            name,
+            threadCount,
+            legacyOperationsPerMs,
+            operationsPerMs,
+            operationsPerMs / legacyOperationsPerMs));
+  }
+
+  /** Returns the number of allocations and releases per millisecond. */
+  private static double measure(
+      AllocatorFactory allocatorFactory,
+      int threadCount,
+      ExecutorService executorService,
+      Scenario scenario)
+      throws Exception {
+    long measuredNanos = 0;
+    for (int iteration = 0; iteration < WARM_UP_ITERATIONS + MEASURED_ITERATIONS; iteration++) {
+      Allocator allocator = allocatorFactory.create();
+      long startNanos = System.nanoTime();
+      scenario.run(allocator, threadCount, executorService);
+      long elapsedNanos = System.nanoTime() - startNanos;
+      if (iteration >= WARM_UP_ITERATIONS) {
+        measuredNanos += elapsedNanos;
+      }
+    }
+    long operations = 2L * MEASURED_ITERATIONS * threadCount * OPERATIONS_PER_THREAD;
+    return operations / (measuredNanos / 1_000_000d);
+  }
+
+  private static void runSameThread(
+      Allocator allocator, int threadCount, ExecutorService executorService) throws Exception {
+    CyclicBarrier startBarrier = new CyclicBarrier(threadCount);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int thread = 0; thread < threadCount; thread++) {
+      futures.add(
+          executorService.submit(
+              () -> {
+                startBarrier.await();
+                Allocation[] allocations = new Allocation[BATCH_SIZE];
+                for (int i = 0; i < OPERATIONS_PER_THREAD; i += BATCH_SIZE) {
+                  for (int j = 0; j < BATCH_SIZE; j++) {
+                    allocations[j] = allocator.allocate();
+                  }
+                  for (int j = 0; j < BATCH_SIZE; j++) {
+                    allocator.release(allocations[j]);
+                  }
+                }
+                return null;
+              }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+  }
+
+  private static void runHandOff(
+      Allocator allocator, int threadCount, ExecutorService executorService) throws Exception {
+    int pairCount = threadCount / 2;
+    CyclicBarrier startBarrier = new CyclicBarrier(pairCount * 2);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int pair = 0; pair < pairCount; pair++) {
+      BlockingQueue<Allocation[]> queue = new LinkedBlockingQueue<>(/* capacity= */ 64);
+      // Allocating thread.
+      futures.add(
+          executorService.submit(
+              () -> {
+                startBarrier.await();
+                for (int i = 0; i < OPERATIONS_PER_THREAD * 2; i += BATCH_SIZE) {
+                  Allocation[] allocations = new Allocation[BATCH_SIZE];
+                  for (int j = 0; j < BATCH_SIZE; j++) {
+                    allocations[j] = allocator.allocate();
+                  }
+                  queue.put(allocations);
+                }
+                return null;
+              }));
+      // Releasing thread.
+      futures.add(
+          executorService.submit(
+              () -> {
+                startBarrier.await();
+                for (int i = 0; i < OPERATIONS_PER_THREAD * 2; i += BATCH_SIZE) {
+                  allocator.release(queue.take());
+                }
+                return null;
+              }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+  }
+
+  /** The previous implementation of {@link DefaultAllocator}, for comparison. */
+  private static final class LegacyDefaultAllocator implements Allocator {
+
+    private final int individualAllocationSize;
+    private final Allocation[] singleAllocationReleaseHolder;
+
+    private int allocatedCount;
+    private int availableCount;
+    private Allocation[] availableAllocations;
+
+    public LegacyDefaultAllocator(int individualAllocationSize) {
+      this.individualAllocationSize = individualAllocationSize;
+      availableAllocations = new Allocation[100];
+      singleAllocationReleaseHolder = new Allocation[1];
+    }
+
+    @Override
+    public synchronized Allocation allocate() {
+      allocatedCount++;
+      Allocation allocation;
+      if (availableCount > 0) {
+        allocation = availableAllocations[--availableCount];
+        availableAllocations[availableCount] = null;
+      } else {
+        allocation = new Allocation(new byte[individualAllocationSize], 0);
+      }
+      return allocation;
+    }
+
+    @Override
+    public synchronized void release(Allocation allocation) {
+      singleAllocationReleaseHolder[0] = allocation;
+      release(singleAllocationReleaseHolder);
+    }
+
+    @Override
+    public synchronized void release(Allocation[] allocations) {
+      if (availableCount + allocations.length >= availableAllocations.length) {
+        availableAllocations =
+            Arrays.copyOf(
+                availableAllocations,
+                max(availableAllocations.length * 2, availableCount + allocations.length));
+      }
+      for (Allocation allocation : allocations) {
+        availableAllocations[availableCount++] = allocation;
+      }
+      allocatedCount -= allocations.length;
+      notifyAll();
+    }
+
+    @Override
+    public synchronized void trim() {}
+
+    @Override
+    public synchronized int getTotalBytesAllocated() {
+      return allocatedCount * individualAllocationSize;
+    }
+
+    @Override
+    public int getIndividualAllocationLength() {
+      return individualAllocationSize;
+    }
+  }
+}
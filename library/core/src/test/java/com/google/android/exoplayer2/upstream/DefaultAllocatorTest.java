@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit test for {@link DefaultAllocator}. */
+@RunWith(AndroidJUnit4.class)
+public final class DefaultAllocatorTest {
+
+  private static final int ALLOCATION_SIZE = 16;
+
+  @Test
+  public void allocate_afterRelease_reusesAllocation() {
+    DefaultAllocator allocator = new DefaultAllocator(/* trimOnReset= */ true, ALLOCATION_SIZE);
+
+    Allocation allocation = allocator.allocate();
+    allocator.release(allocation);
+
+    assertThat(allocator.allocate()).isSameInstanceAs(allocation);
+  }
+
+  @Test
+  public void allocate_afterReleaseOnOtherThread_reusesAllocations() throws Exception {
+    DefaultAllocator allocator = new DefaultAllocator(/* trimOnReset= */ true, ALLOCATION_SIZE);
+    int cachedCount = DefaultAllocator.THREAD_CACHE_CAPACITY;
+    int allocationCount = cachedCount * 2;
+    Allocation[] allocations = new Allocation[allocationCount];
+    for (int i = 0; i < allocationCount; i++) {
+      allocations[i] = allocator.allocate();
+    }
+    ExecutorService executorService = Executors.newSingleThreadExecutor();
+
+    executorService.submit(() -> allocator.release(allocations)).get(10, SECONDS);
+    Set<Allocation> reusedAllocations = Collections.newSetFromMap(new IdentityHashMap<>());
+    for (int i = 0; i < allocationCount - cachedCount; i++) {
+      reusedAllocations.add(allocator.allocate());
+    }
+    executorService.shutdown();
+
+    // The releasing thread caches some allocations, and the rest can be allocated by any thread.
+    assertThat(reusedAllocations).hasSize(allocationCount - cachedCount);
+    assertThat(allocations).asList().containsAtLeastElementsIn(reusedAllocations);
+  }
+
+  @Test
+  public void getTotalBytesAllocated_returnsBytesOfUnreleasedAllocations() {
+    DefaultAllocator allocator = new DefaultAllocator(/* trimOnReset= */ true, ALLOCATION_SIZE);
+
+    Allocation allocation1 = allocator.allocate();
+    Allocation allocation2 = allocator.allocate();
+    allocator.allocate();
+    allocator.release(new Allocation[] {allocation1, allocation2});
+
+    assertThat(allocator.getTotalBytesAllocated()).isEqualTo(ALLOCATION_SIZE);
+  }
+
+  @Test
+  public void reset_discardsReleasedAllocationsExceptInitialAllocations() {
+    DefaultAllocator allocator =
+        new DefaultAllocator(
+            /* trimOnReset= */ true, ALLOCATION_SIZE, /* initialAllocationCount= */ 2);
+    List<Allocation> allocations = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      allocations.add(allocator.allocate());
+    }
+    allocator.release(allocations.toArray(new Allocation[0]));
+
+    allocator.reset();
+    Allocation initialAllocation1 = allocator.allocate();
+    Allocation initialAllocation2 = allocator.allocate();
+    Allocation newAllocation = allocator.allocate();
+
+    assertThat(initialAllocation1.data).isSameInstanceAs(allocations.get(0).data);
+    assertThat(initialAllocation2.data).isSameInstanceAs(allocations.get(0).data);
+    assertThat(allocations).doesNotContain(newAllocation);
+  }
+
+  @Test
+  public void reset_discardsAllocationsCachedByOtherThread() throws Exception {
+    DefaultAllocator allocator = new DefaultAllocator(/* trimOnReset= */ true, ALLOCATION_SIZE);
+    allocator.setTargetBufferSize(ALLOCATION_SIZE);
+    Allocation allocation = allocator.allocate();
+    ExecutorService executorService = Executors.newSingleThreadExecutor();
+
+    // The executor thread stays alive, so the released allocation is cached by it during the reset.
+    executorService.submit(() -> allocator.release(allocation)).get(10, SECONDS);
+    allocator.reset();
+    Allocation reallocationOnOtherThread =
+        executorService.submit(allocator::allocate).get(10, SECONDS);
+    executorService.shutdown();
+
+    assertThat(reallocationOnOtherThread).isNotSameInstanceAs(allocation);
+  }
+
+  @Test
+  public void setTargetBufferSize_reduced_keepsAllocationsUpToTarget() {
+    DefaultAllocator allocator = new DefaultAllocator(/* trimOnReset= */ true, ALLOCATION_SIZE);
+    allocator.setTargetBufferSize(20 * ALLOCATION_SIZE);
+    List<Allocation> allocations = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      allocations.add(allocator.allocate());
+    }
+    allocator.release(allocations.toArray(new Allocation[0]));
+
+    allocator.setTargetBufferSize(5 * ALLOCATION_SIZE);
+    List<Allocation> reallocations = new ArrayList<>();
+    for (int i = 0; i < 6; i++) {
+      reallocations.add(allocator.allocate());
+    }
+
+    assertThat(allocations).containsAtLeastElementsIn(reallocations.subList(0, 5));
+    assertThat(allocations).doesNotContain(reallocations.get(5));
+  }
+
+  @Test
+  public void allocateAndRelease_onManyThreads_neverHandsOutAllocationTwice() throws Exception {
+    DefaultAllocator allocator = new DefaultAllocator(/* trimOnReset= */ true, ALLOCATION_SIZE);
+    Set<Allocation> allocationsInUse =
+        Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+    ExecutorService executorService = Executors.newFixedThreadPool(4);
+    List<Future<Boolean>> results = new ArrayList<>();
+
+    for (int thread = 0; thread < 4; thread++) {
+      results.add(
+          executorService.submit(
+              () -> {
+                for (int i = 0; i < 10_000; i++) {
+                  Allocation allocation1 = allocator.allocate();
+                  Allocation allocation2 = allocator.allocate();
+                  if (!allocationsInUse.add(allocation1) || !allocationsInUse.add(allocation2)) {
+                    return false;
+                  }
+                  allocationsInUse.remove(allocation1);
+                  allocationsInUse.remove(allocation2);
+                  if (i % 2 == 0) {
+                    allocator.release(allocation1);
+                    allocator.release(allocation2);
+                  } else {
+                    allocator.release(new Allocation[] {allocation1, allocation2});
+                  }
+                }
+                return true;
+              }));
+    }
+    for (Future<Boolean> result : results) {
+      assertThat(result.get(10, SECONDS)).isTrue();
+    }
+    executorService.shutdown();
+
+    assertThat(allocator.getTotalBytesAllocated()).isEqualTo(0);
+  }
+}
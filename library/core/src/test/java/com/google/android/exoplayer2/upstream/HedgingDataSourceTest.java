@@ -0,0 +1,370 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import static com.google.android.exoplayer2.util.Assertions.checkNotNull;
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertThrows;
+
+import android.net.Uri;
+import androidx.annotation.Nullable;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.testutil.FakeClock;
+import com.google.android.exoplayer2.testutil.FakeDataSet;
+import com.google.android.exoplayer2.testutil.FakeDataSource;
+import com.google.android.exoplayer2.testutil.TestUtil;
+import com.google.android.exoplayer2.util.ConditionVariable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link HedgingDataSource}. */
+@RunWith(AndroidJUnit4.class)
+public final class HedgingDataSourceTest {
+
+  private static final String SLOW_URI = "test://slow.test/segment";
+  private static final String FAST_URI = "test://fast.test/segment";
+  private static final String NOT_FOUND_URI = "test://not-found.test/segment";
+  private static final String INTERRUPTING_URI = "test://interrupting.test/segment";
+  private static final byte[] SLOW_DATA = TestUtil.buildTestData(/* length= */ 20, /* seed= */ 1);
+  private static final byte[] FAST_DATA = TestUtil.buildTestData(/* length= */ 20, /* seed= */ 2);
+
+  private FakeDataSet fakeDataSet;
+  private ConditionVariable slowRequestCondition;
+  private AtomicInteger upstreamOpenCount;
+  private AtomicInteger upstreamCloseCount;
+  private ExecutorService executorService;
+  @Nullable private volatile Thread openingThread;
+
+  @Before
+  public void setUp() {
+    fakeDataSet =
+        new FakeDataSet()
+            .newData(SLOW_URI)
+            .appendReadData(SLOW_DATA)
+            .endData()
+            .newData(FAST_URI)
+            .appendReadData(FAST_DATA)
+            .endData()
+            .newData(INTERRUPTING_URI)
+            .appendReadData(FAST_DATA)
+            .endData();
+    slowRequestCondition = new ConditionVariable();
+    upstreamOpenCount = new AtomicInteger();
+    upstreamCloseCount = new AtomicInteger();
+    executorService = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void tearDown() {
+    slowRequestCondition.open();
+    executorService.shutdown();
+  }
+
+  @Test
+  public void fastRequest_isNotHedged() throws Exception {
+    HedgingDataSource.Factory factory = createFactory().setInitialHedgeDelayMs(10_000);
+    DataSource dataSource = factory.createDataSource();
+
+    byte[] data = readToEnd(dataSource, new DataSpec(Uri.parse(FAST_URI)));
+
+    assertThat(data).isEqualTo(FAST_DATA);
+    assertThat(upstreamOpenCount.get()).isEqualTo(1);
+    assertThat(factory.getOpenCount()).isEqualTo(1);
+    assertThat(factory.getHedgedRequestCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void slowRequest_isHedgedAndFirstResponseIsUsed() throws Exception {
+    HedgingDataSource.Factory factory =
+        createFactory().setHedgeDataSpecProvider(dataSpec -> dataSpec.withUri(Uri.parse(FAST_URI)));
+    DataSource dataSource = factory.createDataSource();
+
+    byte[] data = readToEnd(dataSource, new DataSpec(Uri.parse(SLOW_URI)));
+    slowRequestCondition.open();
+
+    assertThat(data).isEqualTo(FAST_DATA);
+    assertThat(factory.getHedgedRequestCount()).isEqualTo(1);
+    assertThat(factory.getHedgeWinCount()).isEqualTo(1);
+    // The slow request is closed when its open completes.
+    executorService.shutdown();
+    assertThat(executorService.awaitTermination(10, SECONDS)).isTrue();
+    assertThat(upstreamOpenCount.get()).isEqualTo(2);
+    assertThat(upstreamCloseCount.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void slowRequest_withoutHedgeDataSpec_waitsForResponse() throws Exception {
+    HedgingDataSource.Factory factory = createFactory().setHedgeDataSpecProvider(dataSpec -> null);
+    DataSource dataSource = factory.createDataSource();
+    ExecutorService testExecutorService = Executors.newSingleThreadExecutor();
+
+    Future<byte[]> data =
+        testExecutorService.submit(() -> readToEnd(dataSource, new DataSpec(Uri.parse(SLOW_URI))));
+    slowRequestCondition.open();
+
+    assertThat(data.get(10, SECONDS)).isEqualTo(SLOW_DATA);
+    assertThat(upstreamOpenCount.get()).isEqualTo(1);
+    assertThat(factory.getHedgedRequestCount()).isEqualTo(0);
+    testExecutorService.shutdown();
+  }
+
+  @Test
+  public void slowPostRequest_isNotHedged() throws Exception {
+    HedgingDataSource.Factory factory =
+        createFactory().setHedgeDataSpecProvider(dataSpec -> dataSpec.withUri(Uri.parse(FAST_URI)));
+    DataSource dataSource = factory.createDataSource();
+    DataSpec dataSpec =
+        new DataSpec.Builder()
+            .setUri(SLOW_URI)
+            .setHttpMethod(DataSpec.HTTP_METHOD_POST)
+            .setHttpBody(new byte[] {1})
+            .build();
+    ExecutorService testExecutorService = Executors.newSingleThreadExecutor();
+
+    Future<byte[]> data = testExecutorService.submit(() -> readToEnd(dataSource, dataSpec));
+    slowRequestCondition.open();
+
+    assertThat(data.get(10, SECONDS)).isEqualTo(SLOW_DATA);
+    assertThat(upstreamOpenCount.get()).isEqualTo(1);
+    assertThat(factory.getHedgedRequestCount()).isEqualTo(0);
+    testExecutorService.shutdown();
+  }
+
+  @Test
+  public void slowRequest_onlyReportsUsedResponseToTransferListeners() throws Exception {
+    HedgingDataSource.Factory factory =
+        createFactory().setHedgeDataSpecProvider(dataSpec -> dataSpec.withUri(Uri.parse(FAST_URI)));
+    DataSource dataSource = factory.createDataSource();
+    List<String> transferEvents = Collections.synchronizedList(new ArrayList<>());
+    dataSource.addTransferListener(
+        new TransferListener() {
+          @Override
+          public void onTransferInitializing(
+              DataSource source, DataSpec dataSpec, boolean isNetwork) {
+            transferEvents.add("initializing " + dataSpec.uri);
+          }
+
+          @Override
+          public void onTransferStart(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+            transferEvents.add("start " + dataSpec.uri);
+          }
+
+          @Override
+          public void onBytesTransferred(
+              DataSource source, DataSpec dataSpec, boolean isNetwork, int bytesTransferred) {}
+
+          @Override
+          public void onTransferEnd(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+            transferEvents.add("end " + dataSpec.uri);
+          }
+        });
+
+    readToEnd(dataSource, new DataSpec(Uri.parse(SLOW_URI)));
+    slowRequestCondition.open();
+    // Let the slow request open and close.
+    executorService.shutdown();
+    assertThat(executorService.awaitTermination(10, SECONDS)).isTrue();
+
+    assertThat(upstreamCloseCount.get()).isEqualTo(2);
+    assertThat(transferEvents)
+        .containsExactly("initializing " + FAST_URI, "start " + FAST_URI, "end " + FAST_URI)
+        .inOrder();
+  }
+
+  @Test
+  public void slowRequest_withFailingHedge_usesSlowResponse() throws Exception {
+    ConditionVariable hedgeRequestedCondition = new ConditionVariable();
+    HedgingDataSource.Factory factory =
+        createFactory()
+            .setHedgeDataSpecProvider(
+                dataSpec -> {
+                  hedgeRequestedCondition.open();
+                  return dataSpec.withUri(Uri.parse(NOT_FOUND_URI));
+                });
+    DataSource dataSource = factory.createDataSource();
+    ExecutorService testExecutorService = Executors.newSingleThreadExecutor();
+
+    Future<byte[]> data =
+        testExecutorService.submit(() -> readToEnd(dataSource, new DataSpec(Uri.parse(SLOW_URI))));
+    assertThat(hedgeRequestedCondition.block(/* timeoutMs= */ 10_000)).isTrue();
+    slowRequestCondition.open();
+
+    assertThat(data.get(10, SECONDS)).isEqualTo(SLOW_DATA);
+    assertThat(factory.getHedgedRequestCount()).isEqualTo(1);
+    assertThat(factory.getHedgeWinCount()).isEqualTo(0);
+    testExecutorService.shutdown();
+  }
+
+  @Test
+  public void failingRequest_isNotHedgedAndThrows() {
+    HedgingDataSource.Factory factory = createFactory().setInitialHedgeDelayMs(10_000);
+    DataSource dataSource = factory.createDataSource();
+
+    assertThrows(
+        IOException.class, () -> dataSource.open(new DataSpec(Uri.parse(NOT_FOUND_URI))));
+
+    assertThat(upstreamOpenCount.get()).isEqualTo(1);
+    assertThat(factory.getHedgedRequestCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void open_notifiesTimeToFirstByteEstimator() throws Exception {
+    PercentileTimeToFirstByteEstimator timeToFirstByteEstimator =
+        new PercentileTimeToFirstByteEstimator();
+    HedgingDataSource.Factory factory =
+        createFactory()
+            .setInitialHedgeDelayMs(10_000)
+            .setTimeToFirstByteEstimator(timeToFirstByteEstimator);
+
+    readToEnd(factory.createDataSource(), new DataSpec(Uri.parse(FAST_URI)));
+
+    assertThat(timeToFirstByteEstimator.getTimeToFirstByteEstimateUs())
+        .isNotEqualTo(C.TIME_UNSET);
+  }
+
+  @Test
+  public void getLoadLatencyMs_returnsPercentileOfOpenToCloseTime() throws Exception {
+    FakeClock clock = new FakeClock(/* initialTimeMs= */ 0);
+    HedgingDataSource.Factory factory =
+        createFactory().setInitialHedgeDelayMs(10_000).setClock(clock);
+    DataSource dataSource = factory.createDataSource();
+    DataSpec dataSpec = new DataSpec(Uri.parse(FAST_URI));
+
+    assertThat(factory.getLoadLatencyMs(/* percentile= */ 0.99f)).isEqualTo(C.TIME_UNSET);
+    dataSource.open(dataSpec);
+    clock.advanceTime(100);
+    dataSource.close();
+    dataSource.open(dataSpec);
+    clock.advanceTime(300);
+    dataSource.close();
+
+    assertThat(factory.getLoadLatencyMs(/* percentile= */ 0.5f)).isEqualTo(100);
+    assertThat(factory.getLoadLatencyMs(/* percentile= */ 0.99f)).isEqualTo(300);
+  }
+
+  @Test
+  public void open_interruptedWhenRequestSucceeds_closesUpstream() throws Exception {
+    HedgingDataSource.Factory factory = createFactory().setInitialHedgeDelayMs(10_000);
+    ExecutorService testExecutorService = Executors.newSingleThreadExecutor();
+
+    // The upstream interrupts the opening thread while it waits, just before the request succeeds,
+    // as when a load is canceled while the request is completing. Whether the interrupt or the
+    // response is seen first depends on timing, so the open is repeated to exercise both.
+    for (int i = 0; i < 100; i++) {
+      DataSource dataSource = factory.createDataSource();
+      Future<?> open =
+          testExecutorService.submit(
+              () -> {
+                openingThread = Thread.currentThread();
+                try {
+                  dataSource.open(new DataSpec(Uri.parse(INTERRUPTING_URI)));
+                  dataSource.close();
+                } catch (InterruptedIOException e) {
+                  // Expected if the interrupt was seen first.
+                } finally {
+                  Thread.interrupted();
+                }
+                return null;
+              });
+      open.get(10, SECONDS);
+    }
+
+    executorService.shutdown();
+    assertThat(executorService.awaitTermination(10, SECONDS)).isTrue();
+    assertThat(upstreamOpenCount.get()).isEqualTo(100);
+    assertThat(upstreamCloseCount.get()).isEqualTo(100);
+    testExecutorService.shutdown();
+  }
+
+  /**
+   * Returns a factory that hedges requests that haven't responded immediately, and whose upstream
+   * requests to {@link #SLOW_URI} block until {@link #slowRequestCondition} is opened.
+   */
+  private HedgingDataSource.Factory createFactory() {
+    return new HedgingDataSource.Factory(
+            () -> new TestDataSource(new FakeDataSource(fakeDataSet)), executorService)
+        .setInitialHedgeDelayMs(0)
+        .setMinHedgeDelayMs(0);
+  }
+
+  private static byte[] readToEnd(DataSource dataSource, DataSpec dataSpec) throws IOException {
+    try {
+      dataSource.open(dataSpec);
+      return DataSourceUtil.readToEnd(dataSource);
+    } finally {
+      dataSource.close();
+    }
+  }
+
+  private final class TestDataSource implements DataSource {
+
+    private final FakeDataSource fakeDataSource;
+
+    public TestDataSource(FakeDataSource fakeDataSource) {
+      this.fakeDataSource = fakeDataSource;
+    }
+
+    @Override
+    public void addTransferListener(TransferListener transferListener) {
+      fakeDataSource.addTransferListener(transferListener);
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+      upstreamOpenCount.incrementAndGet();
+      if (dataSpec.uri.toString().equals(SLOW_URI)) {
+        slowRequestCondition.blockUninterruptible();
+      } else if (dataSpec.uri.toString().equals(INTERRUPTING_URI)) {
+        Thread openingThread = checkNotNull(HedgingDataSourceTest.this.openingThread);
+        while (openingThread.getState() != Thread.State.TIMED_WAITING) {
+          Thread.yield();
+        }
+        openingThread.interrupt();
+      }
+      return fakeDataSource.open(dataSpec);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      return fakeDataSource.read(buffer, offset, length);
+    }
+
+    @Override
+    @Nullable
+    public Uri getUri() {
+      return fakeDataSource.getUri();
+    }
+
+    @Override
+    public void close() throws IOException {
+      upstreamCloseCount.incrementAndGet();
+      fakeDataSource.close();
+    }
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.testutil.FakeClock;
+import com.google.android.exoplayer2.testutil.TestUtil;
+import com.google.android.exoplayer2.testutil.TransferTrace;
+import com.google.android.exoplayer2.util.NetworkTypeObserver;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit test for {@link ParallelTransferBandwidthMeter}. */
+@RunWith(AndroidJUnit4.class)
+public final class ParallelTransferBandwidthMeterTest {
+
+  private static final String SESSION_TRACE = "bandwidthtraces/adaptive_session.trace";
+  private static final long INITIAL_BITRATE_ESTIMATE = 1_000_000;
+
+  private FakeClock clock;
+
+  @Before
+  public void setUp() {
+    NetworkTypeObserver.resetForTests();
+    clock = new FakeClock(/* initialTimeMs= */ 0);
+  }
+
+  @Test
+  public void parallelTransfers_estimateLinkCapacity() {
+    TransferTrace trace =
+        new TransferTrace.Builder()
+            .setCapacity(/* timeMs= */ 0, /* bitsPerSecond= */ 3_000_000)
+            .addTransfer(
+                /* initTimeMs= */ 0,
+                /* timeToFirstByteMs= */ 100,
+                /* durationMs= */ 10_000,
+                /* byteCount= */ 1_250_000,
+                /* intervalMs= */ 100)
+            .addTransfer(
+                /* initTimeMs= */ 0,
+                /* timeToFirstByteMs= */ 100,
+                /* durationMs= */ 10_000,
+                /* byteCount= */ 1_250_000,
+                /* intervalMs= */ 100)
+            .addTransfer(
+                /* initTimeMs= */ 0,
+                /* timeToFirstByteMs= */ 100,
+                /* durationMs= */ 10_000,
+                /* byteCount= */ 1_250_000,
+                /* intervalMs= */ 100)
+            .build();
+    ParallelTransferBandwidthMeter bandwidthMeter = buildBandwidthMeter();
+
+    TransferTrace.Score score = trace.replay(bandwidthMeter, clock, /* warmUpTimeMs= */ 2_000);
+
+    assertThat(bandwidthMeter.getBitrateEstimate()).isWithin(30_000).of(3_000_000);
+    assertThat(score.maxAbsoluteRelativeError).isLessThan(0.01);
+  }
+
+  @Test
+  public void timeToFirstByte_isEstimatedSeparatelyFromThroughput() {
+    TransferTrace.Builder traceBuilder =
+        new TransferTrace.Builder().setCapacity(/* timeMs= */ 0, /* bitsPerSecond= */ 2_000_000);
+    for (int i = 0; i < 10; i++) {
+      traceBuilder.addTransfer(
+          /* initTimeMs= */ i * 1_500L,
+          /* timeToFirstByteMs= */ 300,
+          /* durationMs= */ 1_000,
+          /* byteCount= */ 250_000,
+          /* intervalMs= */ 100);
+    }
+    ParallelTransferBandwidthMeter bandwidthMeter = buildBandwidthMeter();
+
+    TransferTrace.Score score =
+        traceBuilder.build().replay(bandwidthMeter, clock, /* warmUpTimeMs= */ 3_000);
+
+    assertThat(bandwidthMeter.getBitrateEstimate()).isWithin(20_000).of(2_000_000);
+    assertThat(score.timeToFirstByteEstimateUs).isEqualTo(300_000);
+  }
+
+  @Test
+  public void noTransfers_returnsInitialEstimates() {
+    ParallelTransferBandwidthMeter bandwidthMeter = buildBandwidthMeter();
+
+    assertThat(bandwidthMeter.getBitrateEstimate()).isEqualTo(INITIAL_BITRATE_ESTIMATE);
+    assertThat(bandwidthMeter.getTimeToFirstByteEstimateUs()).isEqualTo(C.TIME_UNSET);
+  }
+
+  @Test
+  public void replaySessionTrace_hasLowerErrorThanDefaultBandwidthMeter() throws Exception {
+    TransferTrace trace =
+        TransferTrace.parse(
+            TestUtil.getString(ApplicationProvider.getApplicationContext(), SESSION_TRACE));
+    DefaultBandwidthMeter defaultBandwidthMeter =
+        new DefaultBandwidthMeter.Builder(ApplicationProvider.getApplicationContext())
+            .setInitialBitrateEstimate(INITIAL_BITRATE_ESTIMATE)
+            .setResetOnNetworkTypeChange(false)
+            .setClock(clock)
+            .build();
+    TransferTrace.Score defaultScore =
+        trace.replay(defaultBandwidthMeter, clock, /* warmUpTimeMs= */ 2_000);
+    clock = new FakeClock(/* initialTimeMs= */ 0);
+    ParallelTransferBandwidthMeter bandwidthMeter = buildBandwidthMeter();
+
+    TransferTrace.Score score = trace.replay(bandwidthMeter, clock, /* warmUpTimeMs= */ 2_000);
+
+    assertThat(score.estimateCount).isEqualTo(defaultScore.estimateCount);
+    assertThat(score.meanAbsoluteRelativeError).isLessThan(0.1);
+    assertThat(score.meanAbsoluteRelativeError).isLessThan(defaultScore.meanAbsoluteRelativeError);
+  }
+
+  private ParallelTransferBandwidthMeter buildBandwidthMeter() {
+    return new ParallelTransferBandwidthMeter.Builder()
+        .setInitialBitrateEstimate(INITIAL_BITRATE_ESTIMATE)
+        .setTimeToFirstByteEstimator(
+            new PercentileTimeToFirstByteEstimator(
+                PercentileTimeToFirstByteEstimator.DEFAULT_MAX_SAMPLES_COUNT,
+                PercentileTimeToFirstByteEstimator.DEFAULT_PERCENTILE,
+                clock))
+        .setClock(clock)
+        .build();
+  }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.net.Uri;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.MediaItem;
+import com.google.android.exoplayer2.Player;
+import com.google.android.exoplayer2.Timeline;
+import com.google.android.exoplayer2.source.ads.AdPlaybackState;
+import com.google.android.exoplayer2.testutil.FakeClock;
+import com.google.android.exoplayer2.testutil.FakeTimeline;
+import com.google.android.exoplayer2.testutil.FakeTimeline.TimelineWindowDefinition;
+import com.google.android.exoplayer2.testutil.StubPlayer;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit test for {@link PlaylistPreconnector}. */
+@RunWith(AndroidJUnit4.class)
+public final class PlaylistPreconnectorTest {
+
+  private FakeClock clock;
+  private TestPlayer player;
+  private List<Uri> preconnectedUris;
+
+  @Before
+  public void setUp() {
+    clock = new FakeClock(/* initialTimeMs= */ 0);
+    player = new TestPlayer();
+    preconnectedUris = new ArrayList<>();
+  }
+
+  @Test
+  public void create_preconnectsUpcomingItemsInPlaybackOrder() {
+    player.timeline =
+        createTimeline("http://a.test/1", "http://b.test/2", "https://c.test/3", "http://d.test/4");
+
+    createPlaylistPreconnector(recordingPreconnector(), /* lookaheadItemCount= */ 2);
+
+    assertThat(preconnectedUris)
+        .containsExactly(Uri.parse("http://b.test/2"), Uri.parse("https://c.test/3"))
+        .inOrder();
+  }
+
+  @Test
+  public void itemsOnSameOrigin_arePreconnectedOnce() {
+    player.timeline =
+        createTimeline("http://a.test/1", "http://b.test/2", "http://b.test/3", "http://b:81/4");
+
+    createPlaylistPreconnector(recordingPreconnector(), /* lookaheadItemCount= */ 3);
+
+    assertThat(preconnectedUris)
+        .containsExactly(Uri.parse("http://b.test/2"), Uri.parse("http://b:81/4"))
+        .inOrder();
+  }
+
+  @Test
+  public void mediaItemTransition_preconnectsNewUpcomingItems() {
+    player.timeline =
+        createTimeline("http://a.test/1", "http://b.test/2", "http://c.test/3", "http://d.test/4");
+    createPlaylistPreconnector(recordingPreconnector(), /* lookaheadItemCount= */ 2);
+
+    player.currentMediaItemIndex = 1;
+    for (Player.Listener listener : player.listeners) {
+      listener.onMediaItemTransition(
+          player.timeline.getWindow(/* windowIndex= */ 1, new Timeline.Window()).mediaItem,
+          Player.MEDIA_ITEM_TRANSITION_REASON_AUTO);
+    }
+
+    assertThat(preconnectedUris)
+        .containsExactly(
+            Uri.parse("http://b.test/2"),
+            Uri.parse("http://c.test/3"),
+            Uri.parse("http://d.test/4"))
+        .inOrder();
+  }
+
+  @Test
+  public void originPreconnectedLongAgo_isPreconnectedAgain() {
+    player.timeline = createTimeline("http://a.test/1", "http://b.test/2", "http://b.test/3");
+    createPlaylistPreconnector(recordingPreconnector(), /* lookaheadItemCount= */ 1);
+
+    clock.advanceTime(PlaylistPreconnector.DEFAULT_PRECONNECT_INTERVAL_MS);
+    player.currentMediaItemIndex = 1;
+    for (Player.Listener listener : player.listeners) {
+      listener.onMediaItemTransition(
+          /* mediaItem= */ null, Player.MEDIA_ITEM_TRANSITION_REASON_SEEK);
+    }
+
+    assertThat(preconnectedUris)
+        .containsExactly(Uri.parse("http://b.test/2"), Uri.parse("http://b.test/3"))
+        .inOrder();
+  }
+
+  @Test
+  public void repeatModeAll_preconnectsFirstItemAfterLastItem() {
+    player.timeline = createTimeline("http://a.test/1", "http://b.test/2");
+    player.currentMediaItemIndex = 1;
+    player.repeatMode = Player.REPEAT_MODE_ALL;
+
+    createPlaylistPreconnector(recordingPreconnector(), /* lookaheadItemCount= */ 2);
+
+    assertThat(preconnectedUris).containsExactly(Uri.parse("http://a.test/1"));
+  }
+
+  @Test
+  public void nonHttpUris_areNotPreconnected() {
+    player.timeline =
+        createTimeline("http://a.test/1", "file:///sdcard/2.mp4", "asset:///3.mp4");
+
+    createPlaylistPreconnector(recordingPreconnector(), /* lookaheadItemCount= */ 2);
+
+    assertThat(preconnectedUris).isEmpty();
+  }
+
+  @Test
+  public void release_stopsPreconnecting() {
+    player.timeline = createTimeline("http://a.test/1", "http://b.test/2", "http://c.test/3");
+    PlaylistPreconnector playlistPreconnector =
+        createPlaylistPreconnector(recordingPreconnector(), /* lookaheadItemCount= */ 1);
+
+    playlistPreconnector.release();
+
+    assertThat(player.listeners).isEmpty();
+    assertThat(preconnectedUris).containsExactly(Uri.parse("http://b.test/2"));
+  }
+
+  @Test
+  public void timeToFirstByteSavedEstimate_isReportedConnectionSetupTime() {
+    player.timeline = createTimeline("http://a.test/1", "http://b.test/2", "http://c.test/3");
+
+    PlaylistPreconnector playlistPreconnector =
+        createPlaylistPreconnector(
+            uri -> {
+              // Time spent waiting for a response isn't part of the reported setup time.
+              clock.advanceTime(300);
+              if (uri.getHost().equals("c.test")) {
+                throw new IOException();
+              }
+              return 100_000;
+            },
+            /* lookaheadItemCount= */ 2);
+
+    assertThat(playlistPreconnector.getPreconnectCount()).isEqualTo(1);
+    assertThat(playlistPreconnector.getFailureCount()).isEqualTo(1);
+    assertThat(playlistPreconnector.getTimeToFirstByteSavedEstimateUs()).isEqualTo(100_000);
+    assertThat(playlistPreconnector.getTimeToFirstByteEstimator().getTimeToFirstByteEstimateUs())
+        .isEqualTo(100_000);
+  }
+
+  @Test
+  public void preconnectsWithoutSetupTime_timeToFirstByteSavedEstimateIsUnset() {
+    player.timeline = createTimeline("http://a.test/1", "http://b.test/2");
+
+    PlaylistPreconnector playlistPreconnector =
+        createPlaylistPreconnector(recordingPreconnector(), /* lookaheadItemCount= */ 1);
+
+    assertThat(playlistPreconnector.getPreconnectCount()).isEqualTo(1);
+    assertThat(playlistPreconnector.getTimeToFirstByteSavedEstimateUs()).isEqualTo(C.TIME_UNSET);
+  }
+
+  @Test
+  public void noPreconnects_timeToFirstByteSavedEstimateIsUnset() {
+    player.timeline = createTimeline("http://a.test/1");
+
+    PlaylistPreconnector playlistPreconnector =
+        createPlaylistPreconnector(recordingPreconnector(), /* lookaheadItemCount= */ 2);
+
+    assertThat(playlistPreconnector.getPreconnectCount()).isEqualTo(0);
+    assertThat(playlistPreconnector.getTimeToFirstByteSavedEstimateUs()).isEqualTo(C.TIME_UNSET);
+  }
+
+  private PlaylistPreconnector createPlaylistPreconnector(
+      Preconnector preconnector, int lookaheadItemCount) {
+    return new PlaylistPreconnector(
+        player, preconnector, /* executor= */ Runnable::run, lookaheadItemCount, clock);
+  }
+
+  /** Returns a preconnector that records the URIs it's called for, without a setup time. */
+  private Preconnector recordingPreconnector() {
+    return uri -> {
+      preconnectedUris.add(uri);
+      return C.TIME_UNSET;
+    };
+  }
+
+  private static Timeline createTimeline(String... uris) {
+    TimelineWindowDefinition[] windowDefinitions = new TimelineWindowDefinition[uris.length];
+    for (int i = 0; i < uris.length; i++) {
+      windowDefinitions[i] =
+          new TimelineWindowDefinition(
+              /* periodCount= */ 1,
+              /* id= */ i,
+              /* isSeekable= */ true,
+              /* isDynamic= */ false,
+              /* isLive= */ false,
+              /* isPlaceholder= */ false,
+              /* durationUs= */ 10 * C.MICROS_PER_SECOND,
+              /* defaultPositionUs= */ 0,
+              /* windowOffsetInFirstPeriodUs= */ 0,
+              AdPlaybackState.NONE,
+              MediaItem.fromUri(uris[i]));
+    }
+    return new FakeTimeline(windowDefinitions);
+  }
+
+  private static final class TestPlayer extends StubPlayer {
+
+    public final List<Player.Listener> listeners;
+    public Timeline timeline;
+    public int currentMediaItemIndex;
+    public @Player.RepeatMode int repeatMode;
+
+    public TestPlayer() {
+      listeners = new ArrayList<>();
+      timeline = Timeline.EMPTY;
+      repeatMode = Player.REPEAT_MODE_OFF;
+    }
+
+    @Override
+    public void addListener(Player.Listener listener) {
+      listeners.add(listener);
+    }
+
+    @Override
+    public void removeListener(Player.Listener listener) {
+      listeners.remove(listener);
+    }
+
+    @Override
+    public Timeline getCurrentTimeline() {
+      return timeline;
+    }
+
+    @Override
+    public int getCurrentMediaItemIndex() {
+      return currentMediaItemIndex;
+    }
+
+    @Override
+    public @Player.RepeatMode int getRepeatMode() {
+      return repeatMode;
+    }
+
+    @Override
+    public boolean getShuffleModeEnabled() {
+      return false;
+    }
+  }
+}
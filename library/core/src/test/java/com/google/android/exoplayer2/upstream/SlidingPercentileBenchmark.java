@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Microbenchmark comparing {@link SlidingPercentile} with the list-based implementation that it
+ * replaced, which sorted its samples whenever it switched between adding samples and computing a
+ * percentile.
+ *
+ * <p>Each operation adds a sample and computes the median, as a bandwidth meter does for each
+ * bandwidth sample. Each scenario runs warm-up iterations followed by measured iterations, and the
+ * mean time per operation of the measured iterations is printed. Run it on a JVM with {@code main},
+ * passing no arguments.
+ */
+public final class SlidingPercentileBenchmark {
+
+  private static final int WARM_UP_ITERATIONS = 3;
+  private static final int MEASURED_ITERATIONS = 5;
+
+  /** A sliding percentile under benchmark. */
+  private interface Percentile {
+    void addSample(int weight, float value);
+
+    float getPercentile(float percentile);
+  }
+
+  private SlidingPercentileBenchmark() {}
+
+  public static void main(String[] args) {
+    // DefaultBandwidthMeter: samples weighted by the square root of the bytes transferred.
+    runScenario(
+        "bandwidth meter window",
+        /* maxWeight= */ DefaultBandwidthMeter.DEFAULT_SLIDING_WINDOW_MAX_WEIGHT,
+        /* minWeight= */ 100,
+        /* maxSampleWeight= */ 700,
+        /* operationsPerIteration= */ 200_000);
+    // Many small samples, for example one per read.
+    runScenario(
+        "large window",
+        /* maxWeight= */ 10_000,
+        /* minWeight= */ 1,
+        /* maxSampleWeight= */ 10,
+        /* operationsPerIteration= */ 5_000);
+  }
+
+  private static void runScenario(
+      String name, int maxWeight, int minWeight, int maxSampleWeight, int operationsPerIteration) {
+    Random random = new Random(/* seed= */ 0);
+    int[] weights = new int[operationsPerIteration];
+    float[] values = new float[operationsPerIteration];
+    for (int i = 0; i < operationsPerIteration; i++) {
+      weights[i] = minWeight + random.nextInt(maxSampleWeight - minWeight + 1);
+      values[i] = 500_000 + random.nextFloat() * 10_000_000;
+    }
+    double legacyNanosPerOperation =
+        measure(() -> new LegacySlidingPercentile(maxWeight), weights, values);
+    double nanosPerOperation =
+        measure(
+            () -> {
+              SlidingPercentile slidingPercentile = new SlidingPercentile(maxWeight);
+              return new Percentile() {
+                @Override
+                public void addSample(int weight, float value) {
+                  slidingPercentile.addSample(weight, value);
+                }
+
+                @Override
+                public float getPercentile(float percentile) {
+                  return slidingPercentile.getPercentile(percentile);
+                }
+              };
+            },
+            weights,
+            values);
+    System.out.println(
+        String.format(
+            Locale.US,
+            "%s: legacy %.1f ns/op, current %.1f ns/op (%.1fx)",
+            name,
+            legacyNanosPerOperation,
+            nanosPerOperation,
+            legacyNanosPerOperation / nanosPerOperation));
+  }
+
+  private interface PercentileFactory {
+    Percentile create();
+  }
+
+  private static double measure(PercentileFactory factory, int[] weights, float[] values) {
+    float sink = 0;
+    long measuredNanos = 0;
+    for (int iteration = 0; iteration < WARM_UP_ITERATIONS + MEASURED_ITERATIONS; iteration++) {
+      Percentile percentile = factory.create();
+      long startNanos = System.nanoTime();
+      for (int i = 0; i < weights.length; i++) {
+        percentile.addSample(weights[i], values[i]);
+        sink += percentile.getPercentile(0.5f);
+      }
+      long elapsedNanos = System.nanoTime() - startNanos;
+      if (iteration >= WARM_UP_ITERATIONS) {
+        measuredNanos += elapsedNanos;
+      }
+    }
+    if (sink == Float.MIN_VALUE) {
+      // Consume the results so that the computation can't be optimized away.
+      System.out.println(sink);
+    }
+    return (double) measuredNanos / ((long) MEASURED_ITERATIONS * weights.length);
+  }
+
+  /** The previous implementation of {@link SlidingPercentile}, for comparison. */
+  private static final class LegacySlidingPercentile implements Percentile {
+
+    private static final Comparator<Sample> INDEX_COMPARATOR = (a, b) -> a.index - b.index;
+    private static final Comparator<Sample> VALUE_COMPARATOR =
+        (a, b) -> Float.compare(a.value, b.value);
+
+    private static final int SORT_ORDER_NONE = -1;
+    private static final int SORT_ORDER_BY_VALUE = 0;
+    private static final int SORT_ORDER_BY_INDEX = 1;
+
+    private static final int MAX_RECYCLED_SAMPLES = 5;
+
+    private final int maxWeight;
+    private final ArrayList<Sample> samples;
+    private final Sample[] recycledSamples;
+
+    private int currentSortOrder;
+    private int nextSampleIndex;
+    private int totalWeight;
+    private int recycledSampleCount;
+
+    public LegacySlidingPercentile(int maxWeight) {
+      this.maxWeight = maxWeight;
+      recycledSamples = new Sample[MAX_RECYCLED_SAMPLES];
+      samples = new ArrayList<>();
+      currentSortOrder = SORT_ORDER_NONE;
+    }
+
+    @Override
+    public void addSample(int weight, float value) {
+      ensureSortedByIndex();
+      Sample newSample =
+          recycledSampleCount > 0 ? recycledSamples[--recycledSampleCount] : new Sample();
+      newSample.index = nextSampleIndex++;
+      newSample.weight = weight;
+      newSample.value = value;
+      samples.add(newSample);
+      totalWeight += weight;
+      while (totalWeight > maxWeight) {
+        int excessWeight = totalWeight - maxWeight;
+        Sample oldestSample = samples.get(0);
+        if (oldestSample.weight <= excessWeight) {
+          totalWeight -= oldestSample.weight;
+          samples.remove(0);
+          if (recycledSampleCount < MAX_RECYCLED_SAMPLES) {
+            recycledSamples[recycledSampleCount++] = oldestSample;
+          }
+        } else {
+          oldestSample.weight -= excessWeight;
+          totalWeight -= excessWeight;
+        }
+      }
+    }
+
+    @Override
+    public float getPercentile(float percentile) {
+      ensureSortedByValue();
+      float desiredWeight = percentile * totalWeight;
+      int accumulatedWeight = 0;
+      for (int i = 0; i < samples.size(); i++) {
+        Sample currentSample = samples.get(i);
+        accumulatedWeight += currentSample.weight;
+        if (accumulatedWeight >= desiredWeight) {
+          return currentSample.value;
+        }
+      }
+      return samples.isEmpty() ? Float.NaN : samples.get(samples.size() - 1).value;
+    }
+
+    private void ensureSortedByIndex() {
+      if (currentSortOrder != SORT_ORDER_BY_INDEX) {
+        Collections.sort(samples, INDEX_COMPARATOR);
+        currentSortOrder = SORT_ORDER_BY_INDEX;
+      }
+    }
+
+    private void ensureSortedByValue() {
+      if (currentSortOrder != SORT_ORDER_BY_VALUE) {
+        Collections.sort(samples, VALUE_COMPARATOR);
+        currentSortOrder = SORT_ORDER_BY_VALUE;
+      }
+    }
+
+    private static final class Sample {
+      public int index;
+      public int weight;
+      public float value;
+    }
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit test for {@link SlidingPercentile}. */
+@RunWith(AndroidJUnit4.class)
+public final class SlidingPercentileTest {
+
+  @Test
+  public void getPercentile_noSamples_returnsNaN() {
+    SlidingPercentile slidingPercentile = new SlidingPercentile(/* maxWeight= */ 10);
+
+    assertThat(slidingPercentile.getPercentile(0.5f)).isNaN();
+  }
+
+  @Test
+  public void getPercentile_returnsWeightedPercentile() {
+    SlidingPercentile slidingPercentile = new SlidingPercentile(/* maxWeight= */ 100);
+    slidingPercentile.addSample(/* weight= */ 10, /* value= */ 30);
+    slidingPercentile.addSample(/* weight= */ 30, /* value= */ 10);
+    slidingPercentile.addSample(/* weight= */ 20, /* value= */ 20);
+
+    assertThat(slidingPercentile.getPercentile(0.1f)).isEqualTo(10);
+    assertThat(slidingPercentile.getPercentile(0.5f)).isEqualTo(10);
+    assertThat(slidingPercentile.getPercentile(0.6f)).isEqualTo(20);
+    assertThat(slidingPercentile.getPercentile(0.9f)).isEqualTo(30);
+    assertThat(slidingPercentile.getPercentile(1f)).isEqualTo(30);
+  }
+
+  @Test
+  public void addSample_exceedingMaxWeight_reducesWeightOfOldestSamples() {
+    SlidingPercentile slidingPercentile = new SlidingPercentile(/* maxWeight= */ 100);
+    slidingPercentile.addSample(/* weight= */ 20, /* value= */ 1);
+    slidingPercentile.addSample(/* weight= */ 30, /* value= */ 2);
+    slidingPercentile.addSample(/* weight= */ 20, /* value= */ 3);
+    slidingPercentile.addSample(/* weight= */ 10, /* value= */ 4);
+    // The first sample is removed, and the weight of the second is reduced to 20.
+    slidingPercentile.addSample(/* weight= */ 50, /* value= */ 5);
+
+    assertThat(slidingPercentile.getPercentile(0.2f)).isEqualTo(2);
+    assertThat(slidingPercentile.getPercentile(0.21f)).isEqualTo(3);
+    assertThat(slidingPercentile.getPercentile(0.5f)).isEqualTo(4);
+    assertThat(slidingPercentile.getPercentile(0.51f)).isEqualTo(5);
+  }
+
+  @Test
+  public void reset_removesAllSamples() {
+    SlidingPercentile slidingPercentile = new SlidingPercentile(/* maxWeight= */ 10);
+    slidingPercentile.addSample(/* weight= */ 5, /* value= */ 1);
+    slidingPercentile.reset();
+    slidingPercentile.addSample(/* weight= */ 5, /* value= */ 2);
+
+    assertThat(slidingPercentile.getPercentile(0f)).isEqualTo(2);
+  }
+
+  @Test
+  public void getPercentile_manyRandomSamples_matchesSortedWindow() {
+    Random random = new Random(/* seed= */ 0);
+    int[] weights = new int[10_000];
+    for (int i = 0; i < weights.length; i++) {
+      weights[i] = random.nextInt(100);
+    }
+
+    assertMatchesSortedWindow(random, /* maxWeight= */ 5_000, weights);
+  }
+
+  @Test
+  public void getPercentile_sampleCountGrowingAndShrinking_matchesSortedWindow() {
+    Random random = new Random(/* seed= */ 0);
+    // Alternate between light samples, which fill the window with many samples, and heavy ones,
+    // which leave only a few.
+    int[] weights = new int[10_000];
+    for (int i = 0; i < weights.length; i++) {
+      weights[i] = (i / 500) % 2 == 0 ? random.nextInt(100) : random.nextInt(2_000);
+    }
+
+    assertMatchesSortedWindow(random, /* maxWeight= */ 5_000, weights);
+  }
+
+  /**
+   * Adds samples with the given weights and random values, asserting after each one that a random
+   * percentile matches the one computed by sorting the window.
+   */
+  private static void assertMatchesSortedWindow(Random random, int maxWeight, int[] weights) {
+    SlidingPercentile slidingPercentile = new SlidingPercentile(maxWeight);
+    // The window of samples, as {weight, value} pairs in order of age.
+    ArrayList<float[]> window = new ArrayList<>();
+    int totalWeight = 0;
+    for (int weight : weights) {
+      float value = random.nextInt(1_000);
+      slidingPercentile.addSample(weight, value);
+      window.add(new float[] {weight, value});
+      totalWeight += weight;
+      while (totalWeight > maxWeight) {
+        float[] oldestSample = window.get(0);
+        int excessWeight = totalWeight - maxWeight;
+        if (oldestSample[0] <= excessWeight) {
+          totalWeight -= (int) oldestSample[0];
+          window.remove(0);
+        } else {
+          oldestSample[0] -= excessWeight;
+          totalWeight -= excessWeight;
+        }
+      }
+      float percentile = random.nextFloat();
+
+      assertThat(slidingPercentile.getPercentile(percentile))
+          .isEqualTo(getPercentile(window, totalWeight, percentile));
+    }
+  }
+
+  private static float getPercentile(ArrayList<float[]> window, int totalWeight, float percentile) {
+    ArrayList<float[]> sortedWindow = new ArrayList<>(window);
+    Collections.sort(sortedWindow, (sample1, sample2) -> Float.compare(sample1[1], sample2[1]));
+    float desiredWeight = percentile * totalWeight;
+    int accumulatedWeight = 0;
+    for (float[] sample : sortedWindow) {
+      accumulatedWeight += (int) sample[0];
+      if (accumulatedWeight >= desiredWeight) {
+        return sample[1];
+      }
+    }
+    return sortedWindow.get(sortedWindow.size() - 1)[1];
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.source.dash;
+
+import android.net.Uri;
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.source.dash.manifest.BaseUrl;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.DefaultLoadErrorHandlingPolicy;
+import com.google.android.exoplayer2.upstream.HedgingDataSource;
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link HedgingDataSource.HedgeDataSpecProvider} that sends hedged requests to an alternate
+ * {@link BaseUrl base URL}.
+ *
+ * <p>The alternate is selected by a {@link BaseUrlExclusionList} from the base URLs whose service
+ * location differs from that of the slow request. When a hedged request responds first, the base
+ * URL of the slow request is excluded, so that later hedged requests avoid it too.
+ *
+ * <p>Requests whose URI doesn't start with one of the base URLs aren't hedged.
+ */
+public final class BaseUrlHedgeDataSpecProvider implements HedgingDataSource.HedgeDataSpecProvider {
+
+  private final ImmutableList<BaseUrl> baseUrls;
+  private final BaseUrlExclusionList baseUrlExclusionList;
+  private final long exclusionDurationMs;
+
+  /**
+   * Creates an instance that excludes the base URLs of slow requests for {@link
+   * DefaultLoadErrorHandlingPolicy#DEFAULT_LOCATION_EXCLUSION_MS}.
+   *
+   * @param baseUrls The base URLs of the content, typically those of the DASH manifest.
+   */
+  public BaseUrlHedgeDataSpecProvider(List<BaseUrl> baseUrls) {
+    this(
+        baseUrls,
+        new BaseUrlExclusionList(),
+        DefaultLoadErrorHandlingPolicy.DEFAULT_LOCATION_EXCLUSION_MS);
+  }
+
+  /**
+   * Creates an instance.
+   *
+   * @param baseUrls The base URLs of the content, typically those of the DASH manifest.
+   * @param baseUrlExclusionList The {@link BaseUrlExclusionList} from which alternate base URLs
+   *     are selected. It must not be used elsewhere, since it's accessed on loading threads.
+   * @param exclusionDurationMs The duration for which the base URL of a slow request is excluded
+   *     when a hedged request responds first, in milliseconds.
+   */
+  public BaseUrlHedgeDataSpecProvider(
+      List<BaseUrl> baseUrls, BaseUrlExclusionList baseUrlExclusionList, long exclusionDurationMs) {
+    this.baseUrls = ImmutableList.copyOf(baseUrls);
+    this.baseUrlExclusionList = baseUrlExclusionList;
+    this.exclusionDurationMs = exclusionDurationMs;
+  }
+
+  @Override
+  @Nullable
+  public DataSpec getHedgeDataSpec(DataSpec dataSpec) {
+    String uri = dataSpec.uri.toString();
+    @Nullable BaseUrl baseUrl = findBaseUrl(uri);
+    if (baseUrl == null) {
+      return null;
+    }
+    List<BaseUrl> alternateBaseUrls = new ArrayList<>();
+    for (int i = 0; i < baseUrls.size(); i++) {
+      BaseUrl alternateBaseUrl = baseUrls.get(i);
+      if (!alternateBaseUrl.serviceLocation.equals(baseUrl.serviceLocation)) {
+        alternateBaseUrls.add(alternateBaseUrl);
+      }
+    }
+    @Nullable BaseUrl selectedBaseUrl;
+    synchronized (baseUrlExclusionList) {
+      selectedBaseUrl = baseUrlExclusionList.selectBaseUrl(alternateBaseUrls);
+    }
+    if (selectedBaseUrl == null) {
+      return null;
+    }
+    return dataSpec.withUri(
+        Uri.parse(selectedBaseUrl.url + uri.substring(baseUrl.url.length())));
+  }
+
+  @Override
+  public void onHedgeWon(DataSpec dataSpec, DataSpec hedgeDataSpec) {
+    @Nullable BaseUrl baseUrl = findBaseUrl(dataSpec.uri.toString());
+    if (baseUrl != null) {
+      synchronized (baseUrlExclusionList) {
+        baseUrlExclusionList.exclude(baseUrl, exclusionDurationMs);
+      }
+    }
+  }
+
+  /** Returns the longest base URL that the URI starts with, or null if there is none. */
+  @Nullable
+  private BaseUrl findBaseUrl(String uri) {
+    @Nullable BaseUrl longestBaseUrl = null;
+    for (int i = 0; i < baseUrls.size(); i++) {
+      BaseUrl baseUrl = baseUrls.get(i);
+      if (uri.startsWith(baseUrl.url)
+          && (longestBaseUrl == null || baseUrl.url.length() > longestBaseUrl.url.length())) {
+        longestBaseUrl = baseUrl;
+      }
+    }
+    return longestBaseUrl;
+  }
+}
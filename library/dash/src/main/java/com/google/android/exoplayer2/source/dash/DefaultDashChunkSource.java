@@ -15,6 +15,7 @@
  */
 package com.google.android.exoplayer2.source.dash;
 
+import static com.google.android.exoplayer2.util.Assertions.checkArgument;
 import static java.lang.Math.max;
 import static java.lang.Math.min;
 
@@ -47,10 +48,12 @@ import com.google.android.exoplayer2.trackselection.ExoTrackSelection;
 import com.google.android.exoplayer2.upstream.DataSource;
 import com.google.android.exoplayer2.upstream.DataSpec;
 import com.google.android.exoplayer2.upstream.HttpDataSource.InvalidResponseCodeException;
+import com.google.android.exoplayer2.upstream.HttpUtil;
 import com.google.android.exoplayer2.upstream.LoadErrorHandlingPolicy;
 import com.google.android.exoplayer2.upstream.LoaderErrorThrower;
 import com.google.android.exoplayer2.upstream.TransferListener;
 import com.google.android.exoplayer2.util.Util;
+import com.google.common.collect.ImmutableMap;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -64,9 +67,13 @@ public class DefaultDashChunkSource implements DashChunkSource {
     private final int maxSegmentsPerLoad;
     private final ChunkExtractor.Factory chunkExtractorFactory;
 
+    private boolean requestPriorityEnabled;
+    private long highUrgencyDurationUs;
+
     /**
      * Equivalent to {@link #Factory(ChunkExtractor.Factory, DataSource.Factory, int) new
-     * Factory(BundledChunkExtractor.FACTORY, dataSourceFactory, maxSegmentsPerLoad = 1)}.
+     * Factory(BundledChunkExtractor.FACTORY, dataSourceFactory, maxSegmentsPerLoad = 1)}, which
+     * loads each segment with a separate request.
      */
     public Factory(DataSource.Factory dataSourceFactory) {
       this(dataSourceFactory, /* maxSegmentsPerLoad= */ 1);
@@ -86,7 +93,8 @@ public class DefaultDashChunkSource implements DashChunkSource {
      * @param chunkExtractorFactory Creates {@link ChunkExtractor} instances to use for extracting
      *     chunks.
      * @param dataSourceFactory Creates the {@link DataSource} to use for downloading chunks.
-     * @param maxSegmentsPerLoad See {@link DefaultDashChunkSource#DefaultDashChunkSource}.
+     * @param maxSegmentsPerLoad See {@link DefaultDashChunkSource#DefaultDashChunkSource}. Combining
+     *     segments is opt-in: pass a value greater than 1 to enable it.
      */
     public Factory(
         ChunkExtractor.Factory chunkExtractorFactory,
@@ -95,6 +103,42 @@ public class DefaultDashChunkSource implements DashChunkSource {
       this.chunkExtractorFactory = chunkExtractorFactory;
       this.dataSourceFactory = dataSourceFactory;
       this.maxSegmentsPerLoad = maxSegmentsPerLoad;
+      highUrgencyDurationUs = DEFAULT_HIGH_URGENCY_DURATION_US;
+    }
+
+    /**
+     * Sets whether chunk requests carry an HTTP {@code Priority} header, as defined by RFC 9218,
+     * that signals how urgently each chunk is needed. Initialization chunks and media chunks needed
+     * soon are requested with high urgency, and media chunks that are prefetched with low urgency.
+     *
+     * <p>The header only helps if the server or the {@link DataSource} acts on it, for example
+     * when using the OkHttp extension's {@code MultiplexedHttpDataSourceFactory}. It's sent as is
+     * to any other server, which may reject requests with unexpected headers or bypass caches that
+     * vary on them.
+     *
+     * <p>The default is {@code false}.
+     *
+     * @param requestPriorityEnabled Whether chunk requests carry a {@code Priority} header.
+     * @return This factory.
+     */
+    public Factory setRequestPriorityEnabled(boolean requestPriorityEnabled) {
+      this.requestPriorityEnabled = requestPriorityEnabled;
+      return this;
+    }
+
+    /**
+     * Sets the duration after the playback position within which media chunks are requested with
+     * high urgency. Only used if {@link #setRequestPriorityEnabled request priorities} are enabled.
+     *
+     * <p>The default is {@link DefaultDashChunkSource#DEFAULT_HIGH_URGENCY_DURATION_US}.
+     *
+     * @param highUrgencyDurationUs The duration in microseconds.
+     * @return This factory.
+     */
+    public Factory setHighUrgencyDurationUs(long highUrgencyDurationUs) {
+      checkArgument(highUrgencyDurationUs >= 0);
+      this.highUrgencyDurationUs = highUrgencyDurationUs;
+      return this;
     }
 
     @Override
@@ -129,10 +173,23 @@ public class DefaultDashChunkSource implements DashChunkSource {
           maxSegmentsPerLoad,
           enableEventMessageTrack,
           closedCaptionFormats,
-          playerEmsgHandler);
+          playerEmsgHandler,
+          requestPriorityEnabled ? highUrgencyDurationUs : C.TIME_UNSET);
     }
   }
 
+  /**
+   * The default duration after the playback position within which media chunks are requested with
+   * high urgency, if request priorities are enabled. Later chunks are prefetched, and are requested
+   * with low urgency.
+   */
+  public static final long DEFAULT_HIGH_URGENCY_DURATION_US = 10_000_000;
+
+  /** The request urgency of initialization chunks and of media chunks needed soon. */
+  private static final int HIGH_URGENCY = 1;
+  /** The request urgency of media chunks that are prefetched. */
+  private static final int PREFETCH_URGENCY = 4;
+
   private final LoaderErrorThrower manifestLoaderErrorThrower;
   private final BaseUrlExclusionList baseUrlExclusionList;
   private final int[] adaptationSetIndices;
@@ -141,6 +198,7 @@ public class DefaultDashChunkSource implements DashChunkSource {
   private final long elapsedRealtimeOffsetMs;
   private final int maxSegmentsPerLoad;
   @Nullable private final PlayerTrackEmsgHandler playerTrackEmsgHandler;
+  private final long highUrgencyDurationUs;
 
   protected final RepresentationHolder[] representationHolders;
 
@@ -149,6 +207,7 @@ public class DefaultDashChunkSource implements DashChunkSource {
   private int periodIndex;
   @Nullable private IOException fatalError;
   private boolean missingLastSegment;
+  private long playbackPositionUs;
 
   /**
    * @param chunkExtractorFactory Creates {@link ChunkExtractor} instances to use for extracting
@@ -166,7 +225,10 @@ public class DefaultDashChunkSource implements DashChunkSource {
    *     as the server's unix time minus the local elapsed time. Or {@link C#TIME_UNSET} if unknown.
    * @param maxSegmentsPerLoad The maximum number of segments to combine into a single request. Note
    *     that segments will only be combined if their {@link Uri}s are the same and if their data
-   *     ranges are adjacent.
+   *     ranges are adjacent. A value of 1, which is the default of {@link Factory}, loads each
+   *     segment separately. With larger values, the first request after joining or seeking loads a
+   *     single segment, and the number of combined segments doubles with each following request up
+   *     to this maximum.
    * @param enableEventMessageTrack Whether to output an event message track.
    * @param closedCaptionFormats The {@link Format Formats} of closed caption tracks to be output.
    * @param playerTrackEmsgHandler The {@link PlayerTrackEmsgHandler} instance to handle emsg
@@ -187,6 +249,50 @@ public class DefaultDashChunkSource implements DashChunkSource {
       boolean enableEventMessageTrack,
       List<Format> closedCaptionFormats,
       @Nullable PlayerTrackEmsgHandler playerTrackEmsgHandler) {
+    this(
+        chunkExtractorFactory,
+        manifestLoaderErrorThrower,
+        manifest,
+        baseUrlExclusionList,
+        periodIndex,
+        adaptationSetIndices,
+        trackSelection,
+        trackType,
+        dataSource,
+        elapsedRealtimeOffsetMs,
+        maxSegmentsPerLoad,
+        enableEventMessageTrack,
+        closedCaptionFormats,
+        playerTrackEmsgHandler,
+        /* highUrgencyDurationUs= */ C.TIME_UNSET);
+  }
+
+  /**
+   * @param chunkExtractorFactory See {@link #DefaultDashChunkSource(ChunkExtractor.Factory,
+   *     LoaderErrorThrower, DashManifest, BaseUrlExclusionList, int, int[], ExoTrackSelection, int,
+   *     DataSource, long, int, boolean, List, PlayerTrackEmsgHandler)}. So are the other parameters,
+   *     except for {@code highUrgencyDurationUs}.
+   * @param highUrgencyDurationUs The duration after the playback position within which media
+   *     chunks are requested with high urgency, signaled in an HTTP {@code Priority} header. Or
+   *     {@link C#TIME_UNSET} to not send the header. See {@link
+   *     Factory#setRequestPriorityEnabled(boolean)}.
+   */
+  public DefaultDashChunkSource(
+      ChunkExtractor.Factory chunkExtractorFactory,
+      LoaderErrorThrower manifestLoaderErrorThrower,
+      DashManifest manifest,
+      BaseUrlExclusionList baseUrlExclusionList,
+      int periodIndex,
+      int[] adaptationSetIndices,
+      ExoTrackSelection trackSelection,
+      @C.TrackType int trackType,
+      DataSource dataSource,
+      long elapsedRealtimeOffsetMs,
+      int maxSegmentsPerLoad,
+      boolean enableEventMessageTrack,
+      List<Format> closedCaptionFormats,
+      @Nullable PlayerTrackEmsgHandler playerTrackEmsgHandler,
+      long highUrgencyDurationUs) {
     this.manifestLoaderErrorThrower = manifestLoaderErrorThrower;
     this.manifest = manifest;
     this.baseUrlExclusionList = baseUrlExclusionList;
@@ -198,6 +304,7 @@ public class DefaultDashChunkSource implements DashChunkSource {
     this.elapsedRealtimeOffsetMs = elapsedRealtimeOffsetMs;
     this.maxSegmentsPerLoad = maxSegmentsPerLoad;
     this.playerTrackEmsgHandler = playerTrackEmsgHandler;
+    this.highUrgencyDurationUs = highUrgencyDurationUs;
 
     long periodDurationUs = manifest.getPeriodDurationUs(periodIndex);
 
@@ -303,6 +410,7 @@ public class DefaultDashChunkSource implements DashChunkSource {
       return;
     }
 
+    this.playbackPositionUs = playbackPositionUs;
     long bufferedDurationUs = loadPositionUs - playbackPositionUs;
     long presentationPositionUs =
         Util.msToUs(manifest.availabilityStartTimeMs)
@@ -414,7 +522,8 @@ public class DefaultDashChunkSource implements DashChunkSource {
       return;
     }
 
-    int maxSegmentCount = (int) min(maxSegmentsPerLoad, lastAvailableSegmentNum - segmentNum + 1);
+    int maxSegmentCount =
+        (int) min(getMaxSegmentCountForNextLoad(queue), lastAvailableSegmentNum - segmentNum + 1);
     if (periodDurationUs != C.TIME_UNSET) {
       while (maxSegmentCount > 1
           && representationHolder.getSegmentStartTimeUs(segmentNum + maxSegmentCount - 1)
@@ -576,6 +685,20 @@ public class DefaultDashChunkSource implements DashChunkSource {
             lastAvailableSegmentNum);
   }
 
+  /**
+   * Returns the maximum number of segments to combine into the next load. When the queue is empty,
+   * for example when joining or after a seek, only a single segment is requested so that it can be
+   * played before the following segments are loaded. The number of combined segments then doubles
+   * with every queued chunk, up to {@link #maxSegmentsPerLoad}.
+   */
+  private int getMaxSegmentCountForNextLoad(List<? extends MediaChunk> queue) {
+    int maxSegmentCount = 1;
+    for (int i = 0; i < queue.size() && maxSegmentCount < maxSegmentsPerLoad; i++) {
+      maxSegmentCount *= 2;
+    }
+    return min(maxSegmentCount, maxSegmentsPerLoad);
+  }
+
   private ArrayList<Representation> getRepresentations() {
     List<AdaptationSet> manifestAdaptationSets = manifest.getPeriod(periodIndex).adaptationSets;
     ArrayList<Representation> representations = new ArrayList<>();
@@ -626,8 +749,13 @@ public class DefaultDashChunkSource implements DashChunkSource {
       requestUri = indexUri;
     }
     DataSpec dataSpec =
-        DashUtil.buildDataSpec(
-            representation, representationHolder.selectedBaseUrl.url, requestUri, /* flags= */ 0);
+        withPriority(
+            DashUtil.buildDataSpec(
+                representation,
+                representationHolder.selectedBaseUrl.url,
+                requestUri,
+                /* flags= */ 0),
+            HIGH_URGENCY);
     return new InitializationChunk(
         dataSource,
         dataSpec,
@@ -659,8 +787,10 @@ public class DefaultDashChunkSource implements DashChunkSource {
               ? 0
               : DataSpec.FLAG_MIGHT_NOT_USE_FULL_NETWORK_SPEED;
       DataSpec dataSpec =
-          DashUtil.buildDataSpec(
-              representation, representationHolder.selectedBaseUrl.url, segmentUri, flags);
+          withPriority(
+              DashUtil.buildDataSpec(
+                  representation, representationHolder.selectedBaseUrl.url, segmentUri, flags),
+              getMediaChunkUrgency(trackType, startTimeUs));
       return new SingleSampleMediaChunk(
           dataSource,
           dataSpec,
@@ -698,8 +828,10 @@ public class DefaultDashChunkSource implements DashChunkSource {
               ? 0
               : DataSpec.FLAG_MIGHT_NOT_USE_FULL_NETWORK_SPEED;
       DataSpec dataSpec =
-          DashUtil.buildDataSpec(
-              representation, representationHolder.selectedBaseUrl.url, segmentUri, flags);
+          withPriority(
+              DashUtil.buildDataSpec(
+                  representation, representationHolder.selectedBaseUrl.url, segmentUri, flags),
+              getMediaChunkUrgency(trackType, startTimeUs));
       long sampleOffsetUs = -representation.presentationTimeOffsetUs;
       return new ContainerMediaChunk(
           dataSource,
@@ -718,6 +850,25 @@ public class DefaultDashChunkSource implements DashChunkSource {
     }
   }
 
+  /**
+   * Returns the request urgency of a media chunk. Chunks needed soon are more urgent than chunks
+   * that are prefetched, and audio and video chunks are more urgent than text chunks.
+   */
+  private int getMediaChunkUrgency(@C.TrackType int trackType, long startTimeUs) {
+    if (startTimeUs - playbackPositionUs >= highUrgencyDurationUs) {
+      return PREFETCH_URGENCY;
+    }
+    return trackType == C.TRACK_TYPE_TEXT ? HIGH_URGENCY + 1 : HIGH_URGENCY;
+  }
+
+  private DataSpec withPriority(DataSpec dataSpec, int urgency) {
+    if (highUrgencyDurationUs == C.TIME_UNSET) {
+      return dataSpec;
+    }
+    return dataSpec.withAdditionalHeaders(
+        ImmutableMap.of(HttpUtil.PRIORITY_HEADER, HttpUtil.buildPriorityHeader(urgency)));
+  }
+
   private RepresentationHolder updateSelectedBaseUrl(int trackIndex) {
     RepresentationHolder representationHolder = representationHolders[trackIndex];
     @Nullable
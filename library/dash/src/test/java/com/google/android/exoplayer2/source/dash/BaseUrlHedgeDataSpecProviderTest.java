@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.source.dash;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.net.Uri;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.exoplayer2.source.dash.manifest.BaseUrl;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.common.collect.ImmutableList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link BaseUrlHedgeDataSpecProvider}. */
+@RunWith(AndroidJUnit4.class)
+public class BaseUrlHedgeDataSpecProviderTest {
+
+  private static final List<BaseUrl> BASE_URLS =
+      ImmutableList.of(
+          new BaseUrl(
+              /* url= */ "https://a.test/content/",
+              /* serviceLocation= */ "a",
+              /* priority= */ 1,
+              /* weight= */ 1),
+          new BaseUrl(
+              /* url= */ "https://b.test/content/",
+              /* serviceLocation= */ "b",
+              /* priority= */ 2,
+              /* weight= */ 1),
+          new BaseUrl(
+              /* url= */ "https://c.test/content/",
+              /* serviceLocation= */ "c",
+              /* priority= */ 3,
+              /* weight= */ 1));
+
+  @Test
+  public void getHedgeDataSpec_replacesBaseUrlWithAlternate() {
+    BaseUrlHedgeDataSpecProvider provider = new BaseUrlHedgeDataSpecProvider(BASE_URLS);
+    DataSpec dataSpec =
+        new DataSpec.Builder()
+            .setUri("https://a.test/content/video/segment-1.m4s")
+            .setPosition(100)
+            .build();
+
+    DataSpec hedgeDataSpec = provider.getHedgeDataSpec(dataSpec);
+
+    assertThat(hedgeDataSpec.uri)
+        .isEqualTo(Uri.parse("https://b.test/content/video/segment-1.m4s"));
+    assertThat(hedgeDataSpec.position).isEqualTo(100);
+  }
+
+  @Test
+  public void getHedgeDataSpec_uriWithoutBaseUrl_returnsNull() {
+    BaseUrlHedgeDataSpecProvider provider = new BaseUrlHedgeDataSpecProvider(BASE_URLS);
+
+    assertThat(provider.getHedgeDataSpec(new DataSpec(Uri.parse("https://d.test/segment-1.m4s"))))
+        .isNull();
+  }
+
+  @Test
+  public void getHedgeDataSpec_withSingleBaseUrl_returnsNull() {
+    BaseUrlHedgeDataSpecProvider provider =
+        new BaseUrlHedgeDataSpecProvider(BASE_URLS.subList(0, 1));
+
+    assertThat(
+            provider.getHedgeDataSpec(
+                new DataSpec(Uri.parse("https://a.test/content/segment-1.m4s"))))
+        .isNull();
+  }
+
+  @Test
+  public void onHedgeWon_excludesBaseUrlOfSlowRequest() {
+    BaseUrlHedgeDataSpecProvider provider = new BaseUrlHedgeDataSpecProvider(BASE_URLS);
+    DataSpec dataSpec = new DataSpec(Uri.parse("https://a.test/content/segment-1.m4s"));
+    DataSpec hedgeDataSpec = provider.getHedgeDataSpec(dataSpec);
+
+    provider.onHedgeWon(dataSpec, hedgeDataSpec);
+    DataSpec nextHedgeDataSpec =
+        provider.getHedgeDataSpec(new DataSpec(Uri.parse("https://b.test/content/segment-2.m4s")));
+
+    assertThat(nextHedgeDataSpec.uri)
+        .isEqualTo(Uri.parse("https://c.test/content/segment-2.m4s"));
+  }
+}
@@ -32,6 +32,7 @@ import com.google.android.exoplayer2.source.TrackGroup;
 import com.google.android.exoplayer2.source.chunk.BundledChunkExtractor;
 import com.google.android.exoplayer2.source.chunk.Chunk;
 import com.google.android.exoplayer2.source.chunk.ChunkHolder;
+import com.google.android.exoplayer2.source.chunk.MediaChunk;
 import com.google.android.exoplayer2.source.dash.manifest.DashManifest;
 import com.google.android.exoplayer2.source.dash.manifest.DashManifestParser;
 import com.google.android.exoplayer2.testutil.FakeDataSource;
@@ -67,6 +68,8 @@ public class DefaultDashChunkSourceTest {
   private static final String SAMPLE_MPD_VOD = "media/mpd/sample_mpd_vod";
   private static final String SAMPLE_MPD_VOD_LOCATION_FALLBACK =
       "media/mpd/sample_mpd_vod_location_fallback";
+  private static final String SAMPLE_MPD_VOD_SEGMENT_LIST_RANGES =
+      "media/mpd/sample_mpd_vod_segment_list_ranges";
 
   @Test
   public void getNextChunk_forLowLatencyManifest_setsCorrectMayNotLoadAtFullNetworkSpeedFlag()
@@ -156,6 +159,54 @@ public class DefaultDashChunkSourceTest {
         .isEqualTo(0);
   }
 
+  @Test
+  public void getNextChunk_withMaxSegmentsPerLoad_loadsSingleSegmentFirstAndThenMergesMore()
+      throws Exception {
+    DashManifest manifest =
+        new DashManifestParser()
+            .parse(
+                Uri.parse("https://example.com/test.mpd"),
+                TestUtil.getInputStream(
+                    ApplicationProvider.getApplicationContext(),
+                    SAMPLE_MPD_VOD_SEGMENT_LIST_RANGES));
+    DefaultDashChunkSource chunkSource =
+        new DefaultDashChunkSource(
+            BundledChunkExtractor.FACTORY,
+            new LoaderErrorThrower.Dummy(),
+            manifest,
+            new BaseUrlExclusionList(),
+            /* periodIndex= */ 0,
+            /* adaptationSetIndices= */ new int[] {0},
+            new FixedTrackSelection(new TrackGroup(new Format.Builder().build()), /* track= */ 0),
+            C.TRACK_TYPE_VIDEO,
+            new FakeDataSource(),
+            /* elapsedRealtimeOffsetMs= */ 0,
+            /* maxSegmentsPerLoad= */ 4,
+            /* enableEventMessageTrack= */ false,
+            /* closedCaptionFormats */ ImmutableList.of(),
+            /* playerTrackEmsgHandler= */ null);
+    List<MediaChunk> queue = new ArrayList<>();
+    List<DataSpec> dataSpecs = new ArrayList<>();
+
+    for (int i = 0; i < 4; i++) {
+      ChunkHolder output = new ChunkHolder();
+      long loadPositionUs = queue.isEmpty() ? 0 : queue.get(queue.size() - 1).endTimeUs;
+      chunkSource.getNextChunk(/* playbackPositionUs= */ 0, loadPositionUs, queue, output);
+      MediaChunk chunk = (MediaChunk) checkNotNull(output.chunk);
+      queue.add(chunk);
+      dataSpecs.add(chunk.dataSpec);
+    }
+
+    assertThat(dataSpecs.get(0).position).isEqualTo(1000);
+    assertThat(dataSpecs.get(0).length).isEqualTo(1000);
+    assertThat(dataSpecs.get(1).position).isEqualTo(2000);
+    assertThat(dataSpecs.get(1).length).isEqualTo(2000);
+    assertThat(dataSpecs.get(2).position).isEqualTo(4000);
+    assertThat(dataSpecs.get(2).length).isEqualTo(4000);
+    assertThat(dataSpecs.get(3).position).isEqualTo(8000);
+    assertThat(dataSpecs.get(3).length).isEqualTo(1000);
+  }
+
   @Test
   public void getNextChunk_onChunkLoadErrorLocationExclusionEnabled_correctFallbackBehavior()
       throws Exception {
@@ -20,6 +20,8 @@ import static com.google.android.exoplayer2.util.Util.castNonNull;
 
 import androidx.annotation.Nullable;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 /**
@@ -37,6 +39,8 @@ public abstract class BaseDataSource implements DataSource {
     private int listenerCount;
     @Nullable
     private DataSpec dataSpec;
+    @Nullable
+    private byte[] scratchBuffer;
     
     /**
      * Creates base data source.
@@ -57,6 +61,31 @@ public abstract class BaseDataSource implements DataSource {
         }
     }
     
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Heap buffers are read into through their backing array, and direct buffers through a
+     * scratch array that's allocated on first use and reused by later reads. Subclasses that can
+     * read into direct buffers without copying should override this method.
+     */
+    @Override
+    public int read(ByteBuffer buffer) throws IOException {
+        return DataSourceUtil.readToByteBuffer(this, buffer, getScratchBuffer());
+    }
+    
+    /**
+     * Returns an array through which subclasses may copy data into direct buffers, allocating it on
+     * first use.
+     */
+    protected final byte[] getScratchBuffer() {
+        @Nullable byte[] scratchBuffer = this.scratchBuffer;
+        if (scratchBuffer == null) {
+            scratchBuffer = new byte[DataSourceUtil.SCRATCH_BUFFER_SIZE];
+            this.scratchBuffer = scratchBuffer;
+        }
+        return scratchBuffer;
+    }
+    
     /**
      * Notifies listeners that data transfer for the specified {@link DataSpec} is being initialized.
      *
@@ -0,0 +1,767 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import static com.google.android.exoplayer2.util.Assertions.checkArgument;
+import static com.google.android.exoplayer2.util.Assertions.checkNotNull;
+import static com.google.android.exoplayer2.util.Assertions.checkStateNotNull;
+import static java.lang.Math.min;
+
+import android.net.Uri;
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.PlaybackException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link DataSource} that shares upstream transfers between concurrent readers of the same data.
+ *
+ * <p>When a data source created by a {@link Factory} is opened, it attaches to a transfer that
+ * another data source created by the same factory has already started, if the range of that
+ * transfer includes the requested range and the transfer has buffered, or will soon buffer, the
+ * requested position. Otherwise it starts a new upstream transfer, to which data sources opened
+ * later may attach. The bytes of a transfer are buffered in memory as they arrive, and each
+ * attached data source reads them at its own pace. Whichever data source needs bytes that haven't
+ * arrived yet reads them from upstream, so a transfer continues for as long as any of its data
+ * sources is open.
+ *
+ * <p>Upstream errors are thrown to all data sources attached to the transfer, except for
+ * interruptions, for example when the loader of one data source is canceled. Those are only thrown
+ * to the interrupted data source, and the next data source that needs more bytes reopens the
+ * transfer from where it stopped.
+ *
+ * <p>Requests are for the same data if their {@link DataSpec#key} (or URI, if no key is set),
+ * flags and HTTP request headers are equal. Only GET requests without a body are shared. Other
+ * requests are made by a dedicated upstream data source.
+ *
+ * <p>All bytes of a transfer are kept while fewer than the factory's maximum retained bytes have
+ * been buffered, so that data sources opened shortly after the transfer started can still attach
+ * to it. Beyond that, bytes that all attached data sources have read are discarded.
+ *
+ * <p>A data source that reads more slowly than the others, or stops reading while staying open,
+ * keeps the bytes it hasn't read buffered. To bound the memory used, a data source that falls
+ * behind the fastest one by more than the factory's maximum retained bytes plus its maximum lead
+ * is detached from the transfer, and continues reading from its own upstream request, from the
+ * position it reached.
+ *
+ * <p>To share transfers between several players, or between playback and downloads, use the same
+ * factory as the upstream factory of each of their data source factories.
+ */
+public final class CoalescingDataSource implements DataSource {
+
+  /** {@link DataSource.Factory} for {@link CoalescingDataSource} instances. */
+  public static final class Factory implements DataSource.Factory {
+
+    private final DataSource.Factory upstreamFactory;
+    private final TransferRegistry transferRegistry;
+
+    /**
+     * Creates an instance that retains up to {@link #DEFAULT_MAX_RETAINED_BYTES} of each transfer,
+     * and lets data sources fall behind by up to {@link #DEFAULT_MAX_LEAD_BYTES} more.
+     *
+     * @param upstreamFactory A {@link DataSource.Factory} for the upstream {@link DataSource
+     *     DataSources} that make the transfers.
+     */
+    public Factory(DataSource.Factory upstreamFactory) {
+      this(upstreamFactory, DEFAULT_MAX_RETAINED_BYTES);
+    }
+
+    /**
+     * Creates an instance.
+     *
+     * @param upstreamFactory A {@link DataSource.Factory} for the upstream {@link DataSource
+     *     DataSources} that make the transfers.
+     * @param maxRetainedBytes The number of bytes of each transfer that are kept for data sources
+     *     that attach to it later.
+     */
+    public Factory(DataSource.Factory upstreamFactory, int maxRetainedBytes) {
+      this(upstreamFactory, maxRetainedBytes, DEFAULT_MAX_LEAD_BYTES);
+    }
+
+    /**
+     * Creates an instance.
+     *
+     * @param upstreamFactory A {@link DataSource.Factory} for the upstream {@link DataSource
+     *     DataSources} that make the transfers.
+     * @param maxRetainedBytes The number of bytes of each transfer that are kept for data sources
+     *     that attach to it later.
+     * @param maxLeadBytes The number of bytes, beyond {@code maxRetainedBytes}, by which the data
+     *     source furthest ahead in a transfer may lead the others. Data sources that fall further
+     *     behind continue with their own upstream request, so that each transfer buffers at most
+     *     about {@code maxRetainedBytes + maxLeadBytes}.
+     */
+    public Factory(DataSource.Factory upstreamFactory, int maxRetainedBytes, int maxLeadBytes) {
+      checkArgument(maxRetainedBytes >= 0);
+      checkArgument(maxLeadBytes > 0);
+      this.upstreamFactory = upstreamFactory;
+      transferRegistry = new TransferRegistry(maxRetainedBytes, maxLeadBytes);
+    }
+
+    /** Returns the number of upstream transfers that have been started for shared requests. */
+    public int getTransferCount() {
+      return transferRegistry.getTransferCount();
+    }
+
+    /** Returns the number of requests that attached to a transfer started for another request. */
+    public int getCoalescedRequestCount() {
+      return transferRegistry.getCoalescedRequestCount();
+    }
+
+    /**
+     * Returns the number of requests that fell too far behind their transfer and continued with
+     * their own upstream request.
+     */
+    public int getDetachedRequestCount() {
+      return transferRegistry.getDetachedRequestCount();
+    }
+
+    @Override
+    public CoalescingDataSource createDataSource() {
+      return new CoalescingDataSource(upstreamFactory, transferRegistry);
+    }
+  }
+
+  /** The default number of bytes of each transfer that are retained. */
+  public static final int DEFAULT_MAX_RETAINED_BYTES = 4 * 1024 * 1024;
+
+  /**
+   * The default number of bytes, beyond the retained bytes, by which a data source may lead the
+   * others attached to the same transfer.
+   */
+  public static final int DEFAULT_MAX_LEAD_BYTES = 4 * 1024 * 1024;
+
+  private static final int BLOCK_SIZE = 64 * 1024;
+
+  /**
+   * The maximum number of bytes by which a requested position may be ahead of the bytes a transfer
+   * has buffered for the request to attach to the transfer. Requests further ahead would otherwise
+   * wait for all bytes before their position to be transferred.
+   */
+  private static final int MAX_ATTACH_DISTANCE = BLOCK_SIZE;
+
+  /** Returned by {@link Transfer#read} if the reader has been detached from the transfer. */
+  private static final int RESULT_DETACHED = Integer.MIN_VALUE;
+
+  private final DataSource.Factory upstreamFactory;
+  private final TransferRegistry transferRegistry;
+  private final ArrayList<TransferListener> transferListeners;
+
+  @Nullable private DataSpec dataSpec;
+  @Nullable private Transfer transfer;
+  @Nullable private DataSource directUpstream;
+  private long bytesRemaining;
+
+  /**
+   * The position in the transfer of the next byte to read. Accessed while holding the lock of the
+   * transfer, since it determines which bytes the transfer may discard.
+   */
+  private long transferPosition;
+
+  /**
+   * Whether the transfer has detached this data source for falling too far behind. Accessed while
+   * holding the lock of the transfer.
+   */
+  private boolean detachedFromTransfer;
+
+  private CoalescingDataSource(
+      DataSource.Factory upstreamFactory, TransferRegistry transferRegistry) {
+    this.upstreamFactory = upstreamFactory;
+    this.transferRegistry = transferRegistry;
+    transferListeners = new ArrayList<>();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The listener is added to the upstream data sources of the transfers that this data source
+   * starts. Transfers to which it attaches are reported to the listeners of the data source that
+   * started them.
+   */
+  @Override
+  public void addTransferListener(TransferListener transferListener) {
+    checkNotNull(transferListener);
+    transferListeners.add(transferListener);
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws IOException {
+    @Nullable TransferKey key = TransferKey.create(dataSpec);
+    if (key == null) {
+      DataSource directUpstream = createUpstream();
+      this.directUpstream = directUpstream;
+      return directUpstream.open(dataSpec);
+    }
+    this.dataSpec = dataSpec;
+    Transfer transfer = transferRegistry.attach(key, dataSpec, /* reader= */ this);
+    this.transfer = transfer;
+    long transferLength = transfer.awaitOpened(/* reader= */ this);
+    long skippedLength = dataSpec.position - transfer.dataSpec.position;
+    if (transferLength != C.LENGTH_UNSET && skippedLength > transferLength) {
+      throw new DataSourceException(PlaybackException.ERROR_CODE_IO_READ_POSITION_OUT_OF_RANGE);
+    }
+    long availableLength =
+        transferLength == C.LENGTH_UNSET ? C.LENGTH_UNSET : transferLength - skippedLength;
+    if (dataSpec.length == C.LENGTH_UNSET) {
+      bytesRemaining = availableLength;
+    } else {
+      bytesRemaining =
+          availableLength == C.LENGTH_UNSET
+              ? dataSpec.length
+              : min(dataSpec.length, availableLength);
+    }
+    return bytesRemaining;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    if (length == 0) {
+      return 0;
+    }
+    if (directUpstream != null) {
+      return directUpstream.read(buffer, offset, length);
+    }
+    Transfer transfer = checkStateNotNull(this.transfer);
+    if (bytesRemaining == 0) {
+      return C.RESULT_END_OF_INPUT;
+    }
+    int bytesToRead = bytesRemaining == C.LENGTH_UNSET ? length : (int) min(length, bytesRemaining);
+    int bytesRead = transfer.read(/* reader= */ this, buffer, offset, bytesToRead);
+    if (bytesRead == RESULT_DETACHED) {
+      DataSource directUpstream = openDirectUpstreamAfterDetach(transfer);
+      return directUpstream.read(buffer, offset, bytesToRead);
+    }
+    if (bytesRead != C.RESULT_END_OF_INPUT && bytesRemaining != C.LENGTH_UNSET) {
+      bytesRemaining -= bytesRead;
+    }
+    return bytesRead;
+  }
+
+  @Override
+  @Nullable
+  public Uri getUri() {
+    if (directUpstream != null) {
+      return directUpstream.getUri();
+    }
+    return transfer != null ? transfer.getUri() : null;
+  }
+
+  @Override
+  public Map<String, List<String>> getResponseHeaders() {
+    if (directUpstream != null) {
+      return directUpstream.getResponseHeaders();
+    }
+    return transfer != null ? transfer.getResponseHeaders() : Collections.emptyMap();
+  }
+
+  @Override
+  public void close() throws IOException {
+    @Nullable DataSource directUpstream = this.directUpstream;
+    @Nullable Transfer transfer = this.transfer;
+    this.directUpstream = null;
+    this.transfer = null;
+    dataSpec = null;
+    if (directUpstream != null) {
+      directUpstream.close();
+    } else if (transfer != null) {
+      transferRegistry.detach(transfer, /* reader= */ this);
+    }
+  }
+
+  /**
+   * Leaves a transfer that detached this data source, and opens a dedicated upstream data source
+   * for the remaining requested bytes.
+   */
+  private DataSource openDirectUpstreamAfterDetach(Transfer transfer) throws IOException {
+    DataSpec dataSpec = checkNotNull(this.dataSpec);
+    long bytesRead = transferPosition - (dataSpec.position - transfer.dataSpec.position);
+    this.transfer = null;
+    transferRegistry.detach(transfer, /* reader= */ this);
+    transferRegistry.onRequestDetached();
+    DataSpec remainingDataSpec =
+        bytesRemaining == C.LENGTH_UNSET
+            ? dataSpec.subrange(bytesRead)
+            : dataSpec.subrange(bytesRead, bytesRemaining);
+    DataSource directUpstream = createUpstream();
+    this.directUpstream = directUpstream;
+    directUpstream.open(remainingDataSpec);
+    return directUpstream;
+  }
+
+  private DataSource createUpstream() {
+    DataSource upstream = upstreamFactory.createDataSource();
+    for (int i = 0; i < transferListeners.size(); i++) {
+      upstream.addTransferListener(transferListeners.get(i));
+    }
+    return upstream;
+  }
+
+  /** Identifies the data of a request. */
+  private static final class TransferKey {
+
+    private final String key;
+    private final @DataSpec.Flags int flags;
+    private final Map<String, String> httpRequestHeaders;
+
+    private TransferKey(String key, int flags, Map<String, String> httpRequestHeaders) {
+      this.key = key;
+      this.flags = flags;
+      this.httpRequestHeaders = httpRequestHeaders;
+    }
+
+    /** Returns the key of the data of a request, or null if the request mustn't be shared. */
+    @Nullable
+    public static TransferKey create(DataSpec dataSpec) {
+      if (dataSpec.httpMethod != DataSpec.HTTP_METHOD_GET || dataSpec.httpBody != null) {
+        return null;
+      }
+      return new TransferKey(
+          dataSpec.key != null ? dataSpec.key : dataSpec.uri.toString(),
+          dataSpec.flags,
+          dataSpec.httpRequestHeaders);
+    }
+
+    @Override
+    public boolean equals(@Nullable Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (obj == null || getClass() != obj.getClass()) {
+        return false;
+      }
+      TransferKey other = (TransferKey) obj;
+      return flags == other.flags
+          && key.equals(other.key)
+          && httpRequestHeaders.equals(other.httpRequestHeaders);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = key.hashCode();
+      result = 31 * result + flags;
+      result = 31 * result + httpRequestHeaders.hashCode();
+      return result;
+    }
+  }
+
+  /** The transfers of the data sources created by a factory. */
+  private static final class TransferRegistry {
+
+    private final int maxRetainedBytes;
+    private final int maxLeadBytes;
+    private final HashMap<TransferKey, ArrayList<Transfer>> transfers;
+
+    private int transferCount;
+    private int coalescedRequestCount;
+    private int detachedRequestCount;
+
+    public TransferRegistry(int maxRetainedBytes, int maxLeadBytes) {
+      this.maxRetainedBytes = maxRetainedBytes;
+      this.maxLeadBytes = maxLeadBytes;
+      transfers = new HashMap<>();
+    }
+
+    public synchronized int getTransferCount() {
+      return transferCount;
+    }
+
+    public synchronized int getCoalescedRequestCount() {
+      return coalescedRequestCount;
+    }
+
+    public synchronized int getDetachedRequestCount() {
+      return detachedRequestCount;
+    }
+
+    public synchronized void onRequestDetached() {
+      detachedRequestCount++;
+    }
+
+    /** Attaches a reader to a transfer that includes the requested data, or to a new transfer. */
+    public synchronized Transfer attach(
+        TransferKey key, DataSpec dataSpec, CoalescingDataSource reader) {
+      @Nullable ArrayList<Transfer> keyTransfers = transfers.get(key);
+      if (keyTransfers == null) {
+        keyTransfers = new ArrayList<>();
+        transfers.put(key, keyTransfers);
+      }
+      for (int i = 0; i < keyTransfers.size(); i++) {
+        Transfer transfer = keyTransfers.get(i);
+        if (transfer.tryAttach(reader, dataSpec)) {
+          coalescedRequestCount++;
+          return transfer;
+        }
+      }
+      Transfer transfer = new Transfer(key, dataSpec, reader, maxRetainedBytes, maxLeadBytes);
+      keyTransfers.add(transfer);
+      transferCount++;
+      return transfer;
+    }
+
+    /** Detaches a reader from a transfer, closing the transfer if it was the last reader. */
+    public void detach(Transfer transfer, CoalescingDataSource reader) throws IOException {
+      synchronized (this) {
+        if (!transfer.detach(reader)) {
+          return;
+        }
+        @Nullable ArrayList<Transfer> keyTransfers = transfers.get(transfer.key);
+        if (keyTransfers != null && keyTransfers.remove(transfer) && keyTransfers.isEmpty()) {
+          transfers.remove(transfer.key);
+        }
+      }
+      transfer.closeUpstream();
+    }
+  }
+
+  /**
+   * An upstream transfer and the bytes it has buffered.
+   *
+   * <p>The bytes are held in blocks of {@link #BLOCK_SIZE} bytes. The reader that's {@link
+   * #readingUpstream reading upstream} writes to the last block, beyond {@link #bufferedLength},
+   * without holding the lock, so that the other readers can copy the buffered bytes meanwhile. The
+   * same reader opens the upstream data source when {@link #upstreamOpenRequired required}, which
+   * is initially and after a read was interrupted. Before it adds a block, it detaches the readers
+   * whose unread bytes would otherwise exceed the maximum retained bytes plus the maximum lead.
+   */
+  private static final class Transfer {
+
+    public final TransferKey key;
+    public final DataSpec dataSpec;
+
+    private final int maxRetainedBytes;
+    private final int maxLeadBytes;
+    private final ArrayList<CoalescingDataSource> readers;
+    private final ArrayList<byte[]> blocks;
+
+    @Nullable private DataSource upstream;
+    @Nullable private IOException failure;
+    @Nullable private Uri uri;
+    private Map<String, List<String>> responseHeaders;
+    private boolean upstreamOpenRequired;
+    private boolean opened;
+    private long length;
+    private long firstBlockPosition;
+    private long bufferedLength;
+    private boolean readingUpstream;
+    private boolean ended;
+
+    public Transfer(
+        TransferKey key,
+        DataSpec dataSpec,
+        CoalescingDataSource reader,
+        int maxRetainedBytes,
+        int maxLeadBytes) {
+      this.key = key;
+      this.dataSpec = dataSpec;
+      this.maxRetainedBytes = maxRetainedBytes;
+      this.maxLeadBytes = maxLeadBytes;
+      readers = new ArrayList<>();
+      blocks = new ArrayList<>();
+      responseHeaders = Collections.emptyMap();
+      upstreamOpenRequired = true;
+      reader.transferPosition = 0;
+      reader.detachedFromTransfer = false;
+      readers.add(reader);
+    }
+
+    /**
+     * Attaches a reader if the transfer includes the requested data, has retained it, and has
+     * buffered the data up to at most {@link #MAX_ATTACH_DISTANCE} before it.
+     */
+    public synchronized boolean tryAttach(CoalescingDataSource reader, DataSpec dataSpec) {
+      long position = dataSpec.position - this.dataSpec.position;
+      if (failure != null
+          || readers.isEmpty()
+          || position < firstBlockPosition
+          || position > bufferedLength + MAX_ATTACH_DISTANCE) {
+        return false;
+      }
+      if (this.dataSpec.length != C.LENGTH_UNSET
+          && (dataSpec.length == C.LENGTH_UNSET
+              || position + dataSpec.length > this.dataSpec.length)) {
+        return false;
+      }
+      reader.transferPosition = position;
+      reader.detachedFromTransfer = false;
+      readers.add(reader);
+      return true;
+    }
+
+    /**
+     * Returns the length of the transfer, or {@link C#LENGTH_UNSET} if unknown. If the transfer
+     * hasn't been opened yet, the reader opens it unless another reader is already doing so, in
+     * which case it blocks until that has completed.
+     *
+     * @param reader The reader.
+     * @return The length of the transfer, or {@link C#LENGTH_UNSET} if unknown.
+     * @throws IOException If an error occurs opening the upstream data source.
+     */
+    public long awaitOpened(CoalescingDataSource reader) throws IOException {
+      while (true) {
+        synchronized (this) {
+          if (opened) {
+            return length;
+          }
+          throwIfFailed();
+          if (readingUpstream) {
+            waitForUpdate();
+            continue;
+          }
+          readingUpstream = true;
+        }
+        openUpstream(reader);
+      }
+    }
+
+    @Nullable
+    public synchronized Uri getUri() {
+      return uri;
+    }
+
+    public synchronized Map<String, List<String>> getResponseHeaders() {
+      return responseHeaders;
+    }
+
+    /**
+     * Reads bytes for a reader, from the buffer if they've arrived and otherwise from upstream.
+     * Blocks whilst another reader is reading from upstream. Returns {@link #RESULT_DETACHED} if
+     * the reader has been detached for falling too far behind.
+     */
+    public int read(CoalescingDataSource reader, byte[] buffer, int offset, int length)
+        throws IOException {
+      while (true) {
+        @Nullable byte[] block;
+        int blockOffset;
+        int blockLength;
+        @Nullable DataSource upstream;
+        synchronized (this) {
+          while (true) {
+            if (reader.detachedFromTransfer) {
+              return RESULT_DETACHED;
+            }
+            long position = reader.transferPosition;
+            if (position < bufferedLength) {
+              block = blocks.get((int) ((position - firstBlockPosition) / BLOCK_SIZE));
+              blockOffset = (int) ((position - firstBlockPosition) % BLOCK_SIZE);
+              int bytesToCopy =
+                  (int) min(min(length, bufferedLength - position), BLOCK_SIZE - blockOffset);
+              System.arraycopy(block, blockOffset, buffer, offset, bytesToCopy);
+              reader.transferPosition += bytesToCopy;
+              maybeDiscardBlocks();
+              return bytesToCopy;
+            }
+            throwIfFailed();
+            if (ended) {
+              return C.RESULT_END_OF_INPUT;
+            }
+            if (!readingUpstream) {
+              break;
+            }
+            waitForUpdate();
+          }
+          readingUpstream = true;
+          if (!upstreamOpenRequired) {
+            if (bufferedLength - firstBlockPosition == (long) blocks.size() * BLOCK_SIZE) {
+              detachLaggingReaders(/* leader= */ reader);
+              blocks.add(new byte[BLOCK_SIZE]);
+            }
+            long bufferedLengthInBlocks = bufferedLength - firstBlockPosition;
+            block = blocks.get(blocks.size() - 1);
+            blockOffset = (int) (bufferedLengthInBlocks % BLOCK_SIZE);
+            blockLength = BLOCK_SIZE - blockOffset;
+            upstream = checkNotNull(this.upstream);
+          } else {
+            block = null;
+            blockOffset = 0;
+            blockLength = 0;
+            upstream = null;
+          }
+        }
+        if (block == null || upstream == null) {
+          openUpstream(reader);
+          continue;
+        }
+        int bytesRead;
+        try {
+          bytesRead = upstream.read(block, blockOffset, blockLength);
+        } catch (IOException e) {
+          onUpstreamError(e);
+          throw e;
+        }
+        synchronized (this) {
+          if (bytesRead == C.RESULT_END_OF_INPUT) {
+            ended = true;
+          } else {
+            bufferedLength += bytesRead;
+          }
+          readingUpstream = false;
+          notifyAll();
+        }
+      }
+    }
+
+    /** Detaches a reader, returning whether it was the last. */
+    public synchronized boolean detach(CoalescingDataSource reader) {
+      readers.remove(reader);
+      if (readers.isEmpty()) {
+        blocks.clear();
+        return true;
+      }
+      maybeDiscardBlocks();
+      return false;
+    }
+
+    public void closeUpstream() throws IOException {
+      @Nullable DataSource upstream;
+      synchronized (this) {
+        upstream = this.upstream;
+        this.upstream = null;
+      }
+      if (upstream != null) {
+        upstream.close();
+      }
+    }
+
+    /**
+     * Opens a new upstream data source for the bytes that haven't been buffered yet, first closing
+     * the previous one if any. Must only be called by the reader that's reading upstream.
+     */
+    private void openUpstream(CoalescingDataSource reader) throws IOException {
+      @Nullable DataSource previousUpstream;
+      DataSpec upstreamDataSpec;
+      synchronized (this) {
+        previousUpstream = this.upstream;
+        this.upstream = null;
+        upstreamDataSpec = dataSpec.subrange(bufferedLength);
+      }
+      DataSource upstream = reader.createUpstream();
+      long upstreamLength;
+      try {
+        if (previousUpstream != null) {
+          previousUpstream.close();
+        }
+        synchronized (this) {
+          this.upstream = upstream;
+        }
+        upstreamLength = upstream.open(upstreamDataSpec);
+      } catch (IOException e) {
+        onUpstreamError(e);
+        throw e;
+      }
+      synchronized (this) {
+        if (!opened) {
+          length = upstreamLength;
+          uri = upstream.getUri();
+          responseHeaders = upstream.getResponseHeaders();
+          opened = true;
+        }
+        upstreamOpenRequired = false;
+        readingUpstream = false;
+        notifyAll();
+      }
+    }
+
+    /**
+     * Stops reading upstream after an error. Interruptions only affect the interrupted reader, so
+     * the next reader to read upstream reopens the transfer instead. Other errors are thrown to
+     * all readers.
+     */
+    private synchronized void onUpstreamError(IOException e) {
+      if (isInterruption(e)) {
+        upstreamOpenRequired = true;
+      } else {
+        failure = e;
+      }
+      readingUpstream = false;
+      notifyAll();
+    }
+
+    /**
+     * Detaches the readers that are so far behind the leader, which is about to buffer another
+     * block, that keeping their unread bytes would exceed the maximum retained bytes plus the
+     * maximum lead, and discards the blocks only they needed.
+     */
+    private void detachLaggingReaders(CoalescingDataSource leader) {
+      long minKeptPosition = bufferedLength + BLOCK_SIZE - ((long) maxRetainedBytes + maxLeadBytes);
+      if (minKeptPosition <= firstBlockPosition) {
+        return;
+      }
+      for (int i = readers.size() - 1; i >= 0; i--) {
+        CoalescingDataSource reader = readers.get(i);
+        if (reader != leader && reader.transferPosition < minKeptPosition) {
+          reader.detachedFromTransfer = true;
+          readers.remove(i);
+        }
+      }
+      maybeDiscardBlocks();
+    }
+
+    private void maybeDiscardBlocks() {
+      if (bufferedLength - firstBlockPosition <= maxRetainedBytes) {
+        return;
+      }
+      long minReaderPosition = bufferedLength;
+      for (int i = 0; i < readers.size(); i++) {
+        minReaderPosition = min(minReaderPosition, readers.get(i).transferPosition);
+      }
+      // The last block is kept, since it may be being written.
+      while (blocks.size() > 1
+          && firstBlockPosition + BLOCK_SIZE <= minReaderPosition
+          && bufferedLength - firstBlockPosition > maxRetainedBytes) {
+        blocks.remove(0);
+        firstBlockPosition += BLOCK_SIZE;
+      }
+    }
+
+    private void throwIfFailed() throws IOException {
+      if (failure != null) {
+        throw failure;
+      }
+    }
+
+    private static boolean isInterruption(IOException e) {
+      if (Thread.currentThread().isInterrupted()) {
+        return true;
+      }
+      // Upstream data sources may wrap the exception, for example in an HttpDataSourceException.
+      @Nullable Throwable cause = e;
+      while (cause != null) {
+        if ((cause instanceof InterruptedIOException && !(cause instanceof SocketTimeoutException))
+            || cause instanceof ClosedByInterruptException) {
+          return true;
+        }
+        cause = cause.getCause();
+      }
+      return false;
+    }
+
+    private void waitForUpdate() throws InterruptedIOException {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+    }
+  }
+}
@@ -15,14 +15,20 @@
  */
 package com.google.android.exoplayer2.upstream;
 
+import static java.lang.Math.min;
+
 import androidx.annotation.Nullable;
 import com.google.android.exoplayer2.C;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /** Utility methods for {@link DataSource}. */
 public final class DataSourceUtil {
 
+  /** The size of the scratch arrays through which direct buffers are read into. */
+  /* package */ static final int SCRATCH_BUFFER_SIZE = 32 * 1024;
+
   private DataSourceUtil() {}
 
   /**
@@ -73,6 +79,44 @@ public final class DataSourceUtil {
     return data;
   }
 
+  /**
+   * Reads up to {@link ByteBuffer#remaining()} bytes from a {@link DataReader} into {@code buffer}
+   * using {@link DataReader#read(byte[], int, int)}, and advances the position of the buffer by
+   * the number of bytes read.
+   *
+   * <p>Heap buffers are read into directly through their backing array. Other buffers are read
+   * into through {@code scratchBuffer}, so at most {@code scratchBuffer.length} bytes are read.
+   *
+   * @param dataReader The reader from which to read.
+   * @param buffer The buffer into which the data should be read.
+   * @param scratchBuffer An array through which data is copied into buffers without a backing
+   *     array.
+   * @return The number of bytes read, or {@link C#RESULT_END_OF_INPUT} if the input has ended.
+   * @throws IOException If an error occurs reading from the reader.
+   */
+  public static int readToByteBuffer(
+      DataReader dataReader, ByteBuffer buffer, byte[] scratchBuffer) throws IOException {
+    int length = buffer.remaining();
+    if (length == 0) {
+      return 0;
+    }
+    int position = buffer.position();
+    int bytesRead;
+    if (buffer.hasArray()) {
+      bytesRead = dataReader.read(buffer.array(), buffer.arrayOffset() + position, length);
+      if (bytesRead > 0) {
+        buffer.position(position + bytesRead);
+      }
+    } else {
+      bytesRead =
+          dataReader.read(scratchBuffer, /* offset= */ 0, min(length, scratchBuffer.length));
+      if (bytesRead > 0) {
+        buffer.put(scratchBuffer, /* offset= */ 0, bytesRead);
+      }
+    }
+    return bytesRead;
+  }
+
   /**
    * Closes a {@link DataSource}, suppressing any {@link IOException} that may occur.
    *
@@ -26,6 +26,7 @@ import com.google.android.exoplayer2.util.Log;
 import com.google.android.exoplayer2.util.Util;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -277,6 +278,11 @@ public final class DefaultDataSource implements DataSource {
         return Assertions.checkNotNull(dataSource).read(buffer, offset, length);
     }
     
+    @Override
+    public int read(ByteBuffer buffer) throws IOException {
+        return Assertions.checkNotNull(dataSource).read(buffer);
+    }
+    
     @Override
     @Nullable
     public Uri getUri() {
@@ -32,6 +32,7 @@ import com.google.android.exoplayer2.util.Util;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 
 /** A {@link DataSource} for reading local files. */
 public final class FileDataSource extends BaseDataSource {
@@ -149,6 +150,48 @@ public final class FileDataSource extends BaseDataSource {
     }
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Direct buffers are read into from the {@link java.nio.channels.FileChannel} of the file,
+   * without copying through a heap array.
+   */
+  @Override
+  public int read(ByteBuffer buffer) throws FileDataSourceException {
+    int length = buffer.remaining();
+    if (length == 0) {
+      return 0;
+    } else if (bytesRemaining == 0) {
+      return C.RESULT_END_OF_INPUT;
+    } else if (buffer.hasArray()) {
+      // Channels read into heap buffers through a temporary direct buffer, so read into the
+      // backing array instead.
+      int position = buffer.position();
+      int bytesRead = read(buffer.array(), buffer.arrayOffset() + position, length);
+      if (bytesRead > 0) {
+        buffer.position(position + bytesRead);
+      }
+      return bytesRead;
+    }
+    int limit = buffer.limit();
+    buffer.limit(buffer.position() + (int) min(bytesRemaining, length));
+    int bytesRead;
+    try {
+      bytesRead = castNonNull(file).getChannel().read(buffer);
+    } catch (IOException e) {
+      throw new FileDataSourceException(e, PlaybackException.ERROR_CODE_IO_UNSPECIFIED);
+    } finally {
+      buffer.limit(limit);
+    }
+
+    if (bytesRead > 0) {
+      bytesRemaining -= bytesRead;
+      bytesTransferred(bytesRead);
+    }
+
+    return bytesRead;
+  }
+
   @Override
   @Nullable
   public Uri getUri() {
@@ -173,7 +216,7 @@ public final class FileDataSource extends BaseDataSource {
     }
   }
 
-  private static RandomAccessFile openLocalFile(Uri uri) throws FileDataSourceException {
+  /* package */ static RandomAccessFile openLocalFile(Uri uri) throws FileDataSourceException {
     try {
       return new RandomAccessFile(Assertions.checkNotNull(uri.getPath()), "r");
     } catch (FileNotFoundException e) {
@@ -15,6 +15,7 @@
  */
 package com.google.android.exoplayer2.upstream;
 
+import static com.google.android.exoplayer2.util.Assertions.checkArgument;
 import static com.google.android.exoplayer2.util.Assertions.checkNotNull;
 import static java.lang.Math.max;
 
@@ -24,6 +25,7 @@ import androidx.annotation.Nullable;
 
 import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.util.Log;
+import com.google.android.exoplayer2.util.Util;
 import com.google.common.net.HttpHeaders;
 
 import java.util.regex.Matcher;
@@ -34,7 +36,19 @@ import java.util.regex.Pattern;
  */
 public final class HttpUtil {
     
+    /**
+     * The name of the {@code Priority} request header, which signals the urgency of a request as
+     * defined by RFC 9218.
+     */
+    public static final String PRIORITY_HEADER = "Priority";
+    /**
+     * The urgency of a request without a {@link #PRIORITY_HEADER Priority header}. Urgencies range
+     * from 0, the most urgent, to 7, the least urgent.
+     */
+    public static final int DEFAULT_PRIORITY_URGENCY = 3;
+    
     private static final String TAG = "HttpUtil";
+    private static final int MAX_PRIORITY_URGENCY = 7;
     private static final Pattern CONTENT_RANGE_WITH_START_AND_END =
             Pattern.compile("bytes (\\d+)-(\\d+)/(?:\\d+|\\*)");
     private static final Pattern CONTENT_RANGE_WITH_SIZE =
@@ -69,6 +83,40 @@ public final class HttpUtil {
         return rangeValue.toString();
     }
     
+    /**
+     * Builds a {@link #PRIORITY_HEADER Priority header} for the given urgency.
+     *
+     * @param urgency The urgency of the request, from 0, the most urgent, to 7, the least urgent.
+     * @return The corresponding priority header.
+     */
+    public static String buildPriorityHeader(int urgency) {
+        checkArgument(urgency >= 0 && urgency <= MAX_PRIORITY_URGENCY);
+        return "u=" + urgency;
+    }
+    
+    /**
+     * Parses the urgency from a {@link #PRIORITY_HEADER Priority header}.
+     *
+     * @param priorityHeader The {@link #PRIORITY_HEADER Priority header}, or {@code null} if not set.
+     * @return The urgency, or {@link #DEFAULT_PRIORITY_URGENCY} if the header doesn't specify a valid
+     * urgency.
+     */
+    public static int getPriorityUrgency(@Nullable String priorityHeader) {
+        if (TextUtils.isEmpty(priorityHeader)) {
+            return DEFAULT_PRIORITY_URGENCY;
+        }
+        for (String parameter : Util.split(priorityHeader, ",")) {
+            parameter = parameter.trim();
+            if (parameter.length() == 3 && parameter.startsWith("u=")) {
+                int urgency = parameter.charAt(2) - '0';
+                if (urgency >= 0 && urgency <= MAX_PRIORITY_URGENCY) {
+                    return urgency;
+                }
+            }
+        }
+        return DEFAULT_PRIORITY_URGENCY;
+    }
+    
     /**
      * Attempts to parse the document size from a {@link HttpHeaders#CONTENT_RANGE Content-Range
      * header}.
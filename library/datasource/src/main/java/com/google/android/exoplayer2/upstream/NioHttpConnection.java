@@ -0,0 +1,514 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import static com.google.android.exoplayer2.util.Assertions.checkState;
+import static java.lang.Math.min;
+
+import android.os.SystemClock;
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.util.Util;
+import com.google.common.base.Charsets;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * A non-blocking HTTP/1.1 connection managed by a {@link NioHttpConnectionPool}.
+ *
+ * <p>The pool's selector thread connects the channel, writes queued request bytes, and reads
+ * response bytes into an input buffer. Readers block on the connection until the bytes they need
+ * are buffered. When the input buffer is full the connection stops reading from the channel, so a
+ * slow reader applies back pressure to the server.
+ *
+ * <p>Requests are made as {@link Exchange exchanges}. Several exchanges may be pipelined on a
+ * connection, in which case their responses are read in the order in which the requests were
+ * written. Response bytes are only ever consumed exactly, so one exchange never consumes bytes
+ * belonging to the next.
+ */
+/* package */ final class NioHttpConnection {
+
+  /** A request and its response, exchanged over a connection. */
+  public static final class Exchange {
+
+    /** The connection. */
+    public final NioHttpConnection connection;
+    /** Whether the exchange was started on a connection that had been used before. */
+    public final boolean isReused;
+
+    private final long id;
+    private final Thread ownerThread;
+
+    private Exchange(NioHttpConnection connection, long id, boolean isReused) {
+      this.connection = connection;
+      this.id = id;
+      this.isReused = isReused;
+      ownerThread = Thread.currentThread();
+    }
+  }
+
+  private static final int INPUT_BUFFER_SIZE = 64 * 1024;
+
+  /** The host and port to which the connection is made, which keys it in the pool. */
+  public final String hostKey;
+
+  private final NioHttpConnectionPool pool;
+  private final SocketChannel channel;
+  private final ByteBuffer inputBuffer;
+  private final ArrayDeque<ByteBuffer> outputBuffers;
+  private final ArrayDeque<Exchange> exchanges;
+
+  @Nullable private SelectionKey selectionKey;
+  private boolean connected;
+  private boolean endOfInput;
+  private boolean closed;
+  private boolean persistent;
+  @Nullable private IOException error;
+  private long nextExchangeId;
+  private long idleSinceMs;
+  private long lastProgressMs;
+
+  /**
+   * Creates an instance.
+   *
+   * @param pool The pool that manages the connection.
+   * @param hostKey The host and port to which the connection is made.
+   * @param channel The non-blocking channel, on which a connection has been initiated.
+   * @param connected Whether the channel is already connected.
+   */
+  public NioHttpConnection(
+      NioHttpConnectionPool pool, String hostKey, SocketChannel channel, boolean connected) {
+    this.pool = pool;
+    this.hostKey = hostKey;
+    this.channel = channel;
+    this.connected = connected;
+    inputBuffer = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+    outputBuffers = new ArrayDeque<>();
+    exchanges = new ArrayDeque<>();
+    idleSinceMs = SystemClock.elapsedRealtime();
+    lastProgressMs = idleSinceMs;
+  }
+
+  /**
+   * Starts an exchange. Its response can be read once the responses of all exchanges started
+   * before it have been read.
+   *
+   * @param isReused Whether the connection has been used before.
+   * @return The exchange.
+   */
+  public synchronized Exchange startExchange(boolean isReused) {
+    Exchange exchange = new Exchange(this, nextExchangeId++, isReused);
+    exchanges.add(exchange);
+    return exchange;
+  }
+
+  /**
+   * Completes the exchange whose response is being read, allowing the response of the next
+   * exchange to be read.
+   *
+   * @param exchange The exchange, which must be the one whose response is being read.
+   */
+  public synchronized void completeExchange(Exchange exchange) {
+    checkState(exchanges.peek() == exchange);
+    exchanges.remove();
+    idleSinceMs = SystemClock.elapsedRealtime();
+    lastProgressMs = idleSinceMs;
+    notifyAll();
+  }
+
+  /** Returns the number of exchanges that have been started but not completed. */
+  public synchronized int getPendingExchangeCount() {
+    return exchanges.size();
+  }
+
+  /** Returns the time at which the last exchange was completed. */
+  public synchronized long getIdleSinceMs() {
+    return idleSinceMs;
+  }
+
+  /** Records that a response has confirmed that the server keeps the connection alive. */
+  public synchronized void setPersistent() {
+    persistent = true;
+  }
+
+  /**
+   * Returns whether the connection is open and idle, and may be used for a new exchange.
+   *
+   * @param nowMs The current time.
+   * @param keepAliveDurationMs The maximum time for which a connection may be idle.
+   */
+  public synchronized boolean isReusable(long nowMs, long keepAliveDurationMs) {
+    return isOpen()
+        && exchanges.isEmpty()
+        && inputBuffer.position() == 0
+        && nowMs - idleSinceMs < keepAliveDurationMs;
+  }
+
+  /**
+   * Returns whether a new exchange may be pipelined behind the pending ones. Exchanges are only
+   * pipelined on connections that the server is known to keep alive, and never behind an exchange
+   * owned by the calling thread, since the thread would then wait for itself.
+   *
+   * @param maxPipelineDepth The maximum number of pending exchanges.
+   */
+  public synchronized boolean canPipeline(int maxPipelineDepth) {
+    if (!persistent || !isOpen() || exchanges.size() >= maxPipelineDepth) {
+      return false;
+    }
+    Thread currentThread = Thread.currentThread();
+    for (Exchange exchange : exchanges) {
+      if (exchange.ownerThread == currentThread) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Blocks until the connection is established.
+   *
+   * @param timeoutMs The connect timeout.
+   * @throws IOException If the connection fails, or isn't established before the timeout.
+   */
+  public synchronized void awaitConnected(long timeoutMs) throws IOException {
+    long deadlineMs = SystemClock.elapsedRealtime() + timeoutMs;
+    while (!connected) {
+      throwIfFailed();
+      long remainingMs = deadlineMs - SystemClock.elapsedRealtime();
+      if (remainingMs <= 0) {
+        close();
+        throw new SocketTimeoutException("Connect timed out");
+      }
+      waitInterruptibly(remainingMs);
+    }
+  }
+
+  /**
+   * Blocks until the response of an exchange can be read.
+   *
+   * @param exchange The exchange.
+   * @param timeoutMs The maximum time for which to wait without the preceding exchanges making
+   *     progress.
+   * @throws IOException If the connection fails, or if the preceding exchanges stall.
+   */
+  public synchronized void awaitTurn(Exchange exchange, long timeoutMs) throws IOException {
+    while (exchanges.peek() != exchange) {
+      throwIfFailed();
+      long remainingMs = lastProgressMs + timeoutMs - SystemClock.elapsedRealtime();
+      if (remainingMs <= 0) {
+        throw new SocketTimeoutException("Pipelined request timed out");
+      }
+      waitInterruptibly(remainingMs);
+    }
+  }
+
+  /**
+   * Queues bytes to be written to the connection.
+   *
+   * @param data The bytes to write.
+   * @throws IOException If the connection has failed.
+   */
+  public void write(byte[] data) throws IOException {
+    synchronized (this) {
+      throwIfFailed();
+      outputBuffers.add(ByteBuffer.wrap(data));
+    }
+    pool.updateInterestOps(this);
+  }
+
+  /**
+   * Reads up to {@code length} bytes, blocking until at least one byte is available.
+   *
+   * @param buffer The buffer into which the bytes should be read.
+   * @param offset The offset in {@code buffer} at which to start writing.
+   * @param length The maximum number of bytes to read.
+   * @param timeoutMs The read timeout.
+   * @return The number of bytes read, or {@link C#RESULT_END_OF_INPUT} if the server closed the
+   *     connection.
+   * @throws IOException If the connection fails, or if no bytes are received before the timeout.
+   */
+  public int read(byte[] buffer, int offset, int length, long timeoutMs) throws IOException {
+    int bytesRead;
+    boolean bufferWasFull;
+    synchronized (this) {
+      awaitInput(timeoutMs);
+      if (inputBuffer.position() == 0) {
+        return C.RESULT_END_OF_INPUT;
+      }
+      bufferWasFull = !inputBuffer.hasRemaining();
+      inputBuffer.flip();
+      bytesRead = min(length, inputBuffer.remaining());
+      inputBuffer.get(buffer, offset, bytesRead);
+      inputBuffer.compact();
+      lastProgressMs = SystemClock.elapsedRealtime();
+    }
+    if (bufferWasFull) {
+      pool.updateInterestOps(this);
+    }
+    return bytesRead;
+  }
+
+  /**
+   * Reads up to {@code length} bytes into a {@link ByteBuffer}, blocking until at least one byte is
+   * available.
+   *
+   * @param target The buffer into which the bytes should be read. Must have at least {@code
+   *     length} bytes remaining.
+   * @param length The maximum number of bytes to read.
+   * @param timeoutMs The read timeout.
+   * @return The number of bytes read, or {@link C#RESULT_END_OF_INPUT} if the server closed the
+   *     connection.
+   * @throws IOException If the connection fails, or if no bytes are received before the timeout.
+   */
+  public int read(ByteBuffer target, int length, long timeoutMs) throws IOException {
+    int bytesRead;
+    boolean bufferWasFull;
+    synchronized (this) {
+      awaitInput(timeoutMs);
+      if (inputBuffer.position() == 0) {
+        return C.RESULT_END_OF_INPUT;
+      }
+      bufferWasFull = !inputBuffer.hasRemaining();
+      inputBuffer.flip();
+      bytesRead = min(length, inputBuffer.remaining());
+      int inputLimit = inputBuffer.limit();
+      inputBuffer.limit(inputBuffer.position() + bytesRead);
+      target.put(inputBuffer);
+      inputBuffer.limit(inputLimit);
+      inputBuffer.compact();
+      lastProgressMs = SystemClock.elapsedRealtime();
+    }
+    if (bufferWasFull) {
+      pool.updateInterestOps(this);
+    }
+    return bytesRead;
+  }
+
+  /**
+   * Reads a line terminated by {@code \n} or {@code \r\n}, blocking until the whole line is
+   * available.
+   *
+   * @param timeoutMs The maximum time for which to wait without receiving any bytes.
+   * @return The line, without its terminator.
+   * @throws IOException If the connection fails or is closed before the end of the line, if the
+   *     line doesn't fit in the input buffer, or if no bytes are received before the timeout.
+   */
+  public String readLine(long timeoutMs) throws IOException {
+    String line;
+    boolean bufferWasFull;
+    synchronized (this) {
+      int scannedLength = 0;
+      int lineLength = C.INDEX_UNSET;
+      while (lineLength == C.INDEX_UNSET) {
+        int bufferedLength = inputBuffer.position();
+        for (int i = scannedLength; i < bufferedLength; i++) {
+          if (inputBuffer.get(i) == '\n') {
+            lineLength = i;
+            break;
+          }
+        }
+        if (lineLength != C.INDEX_UNSET) {
+          break;
+        } else if (!inputBuffer.hasRemaining()) {
+          throw new IOException("Response line too long");
+        }
+        scannedLength = bufferedLength;
+        awaitInput(timeoutMs, /* minLength= */ bufferedLength + 1);
+        if (inputBuffer.position() == bufferedLength) {
+          throw new EOFException();
+        }
+      }
+      bufferWasFull = !inputBuffer.hasRemaining();
+      byte[] lineBytes = new byte[lineLength];
+      inputBuffer.flip();
+      inputBuffer.get(lineBytes);
+      inputBuffer.get(); // Skip the \n.
+      inputBuffer.compact();
+      lastProgressMs = SystemClock.elapsedRealtime();
+      int trimmedLength =
+          lineLength > 0 && lineBytes[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+      line = new String(lineBytes, /* offset= */ 0, trimmedLength, Charsets.ISO_8859_1);
+    }
+    if (bufferWasFull) {
+      pool.updateInterestOps(this);
+    }
+    return line;
+  }
+
+  /** Closes the connection. Pending and future operations fail. */
+  public void close() {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      Util.closeQuietly(channel);
+      notifyAll();
+    }
+    pool.wakeUp();
+  }
+
+  // Methods called on the pool's selector thread.
+
+  /** Registers the connection with a selector. */
+  /* package */ synchronized void register(Selector selector) {
+    if (closed) {
+      return;
+    }
+    try {
+      selectionKey = channel.register(selector, /* ops= */ 0, /* att= */ this);
+    } catch (IOException e) {
+      fail(e);
+      return;
+    }
+    updateInterestOps();
+  }
+
+  /** Handles the channel becoming connectable. */
+  /* package */ synchronized void onConnectable() {
+    try {
+      if (channel.finishConnect()) {
+        connected = true;
+        notifyAll();
+      }
+    } catch (IOException e) {
+      fail(e);
+      return;
+    }
+    updateInterestOps();
+  }
+
+  /** Handles the channel becoming readable. */
+  /* package */ synchronized void onReadable() {
+    try {
+      int bytesRead = channel.read(inputBuffer);
+      if (bytesRead == C.RESULT_END_OF_INPUT) {
+        endOfInput = true;
+        notifyAll();
+      } else if (bytesRead > 0) {
+        notifyAll();
+      }
+    } catch (IOException e) {
+      fail(e);
+      return;
+    }
+    updateInterestOps();
+  }
+
+  /** Handles the channel becoming writable. */
+  /* package */ synchronized void onWritable() {
+    try {
+      while (!outputBuffers.isEmpty()) {
+        ByteBuffer outputBuffer = outputBuffers.element();
+        channel.write(outputBuffer);
+        if (outputBuffer.hasRemaining()) {
+          break;
+        }
+        outputBuffers.remove();
+      }
+    } catch (IOException e) {
+      fail(e);
+      return;
+    }
+    updateInterestOps();
+  }
+
+  /** Updates the operations for which the selector should wait. */
+  /* package */ synchronized void updateInterestOps() {
+    @Nullable SelectionKey selectionKey = this.selectionKey;
+    if (selectionKey == null || !selectionKey.isValid()) {
+      return;
+    }
+    int interestOps = 0;
+    if (!connected) {
+      interestOps = SelectionKey.OP_CONNECT;
+    } else {
+      if (!endOfInput && inputBuffer.hasRemaining()) {
+        interestOps |= SelectionKey.OP_READ;
+      }
+      if (!outputBuffers.isEmpty()) {
+        interestOps |= SelectionKey.OP_WRITE;
+      }
+    }
+    try {
+      selectionKey.interestOps(interestOps);
+    } catch (CancelledKeyException e) {
+      // The connection was closed concurrently.
+    }
+  }
+
+  /** Fails the connection. */
+  /* package */ synchronized void fail(IOException e) {
+    if (error == null) {
+      error = e;
+    }
+    closed = true;
+    Util.closeQuietly(channel);
+    notifyAll();
+  }
+
+  private boolean isOpen() {
+    return !closed && error == null && !endOfInput;
+  }
+
+  private void awaitInput(long timeoutMs) throws IOException {
+    awaitInput(timeoutMs, /* minLength= */ 1);
+  }
+
+  /**
+   * Blocks until at least {@code minLength} bytes are buffered, the server closes the connection,
+   * or the input buffer is full.
+   */
+  private void awaitInput(long timeoutMs, int minLength) throws IOException {
+    long deadlineMs = SystemClock.elapsedRealtime() + timeoutMs;
+    while (inputBuffer.position() < minLength && inputBuffer.hasRemaining() && !endOfInput) {
+      throwIfFailed();
+      long remainingMs = deadlineMs - SystemClock.elapsedRealtime();
+      if (remainingMs <= 0) {
+        throw new SocketTimeoutException("Read timed out");
+      }
+      waitInterruptibly(remainingMs);
+    }
+    if (inputBuffer.position() == 0) {
+      throwIfFailed();
+    }
+  }
+
+  private void throwIfFailed() throws IOException {
+    if (error != null) {
+      throw error;
+    } else if (closed) {
+      throw new IOException("Connection closed");
+    }
+  }
+
+  private void waitInterruptibly(long timeoutMs) throws InterruptedIOException {
+    try {
+      wait(timeoutMs);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+  }
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import static com.google.android.exoplayer2.util.Assertions.checkArgument;
+
+import android.os.SystemClock;
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.util.Log;
+import com.google.android.exoplayer2.util.Util;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A pool of non-blocking HTTP/1.1 connections used by {@link NioHttpDataSource}.
+ *
+ * <p>All connections in a pool are served by a single selector thread, which is started when the
+ * first connection is made. Connections are kept alive after use, and are reused by later requests
+ * to the same host. Optionally, requests can be pipelined on a connection whose response is still
+ * being read, so that the server can start sending the next response without waiting for another
+ * round trip.
+ *
+ * <p>A pool may be shared by any number of data sources. It should be {@link #release() released}
+ * when no longer needed.
+ */
+public final class NioHttpConnectionPool {
+
+  /** The default maximum number of idle connections kept alive per host. */
+  public static final int DEFAULT_MAX_IDLE_CONNECTIONS_PER_HOST = 5;
+  /** The default maximum time for which an idle connection is kept alive, in milliseconds. */
+  public static final long DEFAULT_KEEP_ALIVE_DURATION_MS = 5 * 60 * 1000;
+  /** The default maximum number of requests pipelined on a connection. */
+  public static final int DEFAULT_MAX_PIPELINE_DEPTH = 2;
+
+  private static final String TAG = "NioHttpConnectionPool";
+
+  private final int maxIdleConnectionsPerHost;
+  private final long keepAliveDurationMs;
+  private final int maxPipelineDepth;
+  private final HashMap<String, ArrayList<NioHttpConnection>> connectionsByHost;
+  private final ConcurrentLinkedQueue<Runnable> selectorTasks;
+
+  @Nullable private volatile Selector selector;
+  private volatile boolean released;
+  private int connectionCount;
+  private int reuseCount;
+
+  /** Creates an instance using default limits. */
+  public NioHttpConnectionPool() {
+    this(
+        DEFAULT_MAX_IDLE_CONNECTIONS_PER_HOST,
+        DEFAULT_KEEP_ALIVE_DURATION_MS,
+        DEFAULT_MAX_PIPELINE_DEPTH);
+  }
+
+  /**
+   * Creates an instance.
+   *
+   * @param maxIdleConnectionsPerHost The maximum number of idle connections kept alive per host.
+   * @param keepAliveDurationMs The maximum time for which an idle connection is kept alive, in
+   *     milliseconds.
+   * @param maxPipelineDepth The maximum number of requests pipelined on a connection. Pipelining
+   *     is disabled if 1.
+   */
+  public NioHttpConnectionPool(
+      int maxIdleConnectionsPerHost, long keepAliveDurationMs, int maxPipelineDepth) {
+    checkArgument(maxIdleConnectionsPerHost >= 0);
+    checkArgument(keepAliveDurationMs >= 0);
+    checkArgument(maxPipelineDepth >= 1);
+    this.maxIdleConnectionsPerHost = maxIdleConnectionsPerHost;
+    this.keepAliveDurationMs = keepAliveDurationMs;
+    this.maxPipelineDepth = maxPipelineDepth;
+    connectionsByHost = new HashMap<>();
+    selectorTasks = new ConcurrentLinkedQueue<>();
+  }
+
+  /** Returns the number of connections that have been made. */
+  public synchronized int getConnectionCount() {
+    return connectionCount;
+  }
+
+  /**
+   * Returns the number of requests that were made on an existing connection, either because it
+   * was idle or by pipelining.
+   */
+  public synchronized int getReuseCount() {
+    return reuseCount;
+  }
+
+  /** Returns the number of connections that are currently open. */
+  public synchronized int getOpenConnectionCount() {
+    int openConnectionCount = 0;
+    for (ArrayList<NioHttpConnection> connections : connectionsByHost.values()) {
+      openConnectionCount += connections.size();
+    }
+    return openConnectionCount;
+  }
+
+  /** Closes all connections and stops the selector thread. The pool must not be used afterwards. */
+  public void release() {
+    synchronized (this) {
+      if (released) {
+        return;
+      }
+      released = true;
+      for (ArrayList<NioHttpConnection> connections : connectionsByHost.values()) {
+        for (int i = 0; i < connections.size(); i++) {
+          connections.get(i).close();
+        }
+      }
+      connectionsByHost.clear();
+    }
+    wakeUp();
+  }
+
+  /**
+   * Starts an exchange with a host, reusing a connection if possible and making a new one
+   * otherwise.
+   *
+   * <p>Making a new connection resolves the host on the calling thread, which blocks until the
+   * lookup completes. Reused connections don't need a lookup, and the selector thread never makes
+   * one. {@link #preconnect} can be used to resolve and connect ahead of time.
+   *
+   * @param host The host.
+   * @param port The port.
+   * @param allowReuse Whether an existing connection may be used.
+   * @param allowPipelining Whether the request may be pipelined behind the pending requests of an
+   *     existing connection. Only idempotent requests should be pipelined.
+   * @param connectTimeoutMs The connect timeout, in milliseconds.
+   * @return The exchange.
+   * @throws IOException If an error occurs connecting to the host.
+   */
+  /* package */ NioHttpConnection.Exchange acquire(
+      String host, int port, boolean allowReuse, boolean allowPipelining, int connectTimeoutMs)
+      throws IOException {
+    String hostKey = host + ":" + port;
+    if (allowReuse) {
+      synchronized (this) {
+        throwIfReleased();
+        @Nullable
+        NioHttpConnection connection =
+            getReusableConnection(hostKey, allowPipelining && maxPipelineDepth > 1);
+        if (connection != null) {
+          reuseCount++;
+          return connection.startExchange(/* isReused= */ true);
+        }
+      }
+    }
+
+    InetSocketAddress address = new InetSocketAddress(host, port);
+    if (address.isUnresolved()) {
+      throw new UnknownHostException(host);
+    }
+    SocketChannel channel = SocketChannel.open();
+    NioHttpConnection connection;
+    try {
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+      boolean connected = channel.connect(address);
+      connection = new NioHttpConnection(this, hostKey, channel, connected);
+    } catch (IOException e) {
+      Util.closeQuietly(channel);
+      throw e;
+    }
+
+    Selector selector;
+    NioHttpConnection.Exchange exchange;
+    synchronized (this) {
+      if (released) {
+        connection.close();
+        throwIfReleased();
+      }
+      selector = getSelector();
+      @Nullable ArrayList<NioHttpConnection> connections = connectionsByHost.get(hostKey);
+      if (connections == null) {
+        connections = new ArrayList<>();
+        connectionsByHost.put(hostKey, connections);
+      }
+      connections.add(connection);
+      connectionCount++;
+      exchange = connection.startExchange(/* isReused= */ false);
+    }
+    execute(() -> connection.register(selector));
+    try {
+      connection.awaitConnected(connectTimeoutMs);
+    } catch (IOException e) {
+      release(exchange, /* reusable= */ false);
+      throw e;
+    }
+    return exchange;
+  }
+
+  /**
+   * Opens a connection to a host and leaves it idle in the pool, unless an idle connection to the
+   * host is already available.
+   *
+   * @param host The host.
+   * @param port The port.
+   * @param connectTimeoutMs The connect timeout, in milliseconds.
+   * @return Whether a new connection was opened.
+   * @throws IOException If an error occurs connecting to the host.
+   */
+  /* package */ boolean preconnect(String host, int port, int connectTimeoutMs)
+      throws IOException {
+    synchronized (this) {
+      throwIfReleased();
+      if (getReusableConnection(host + ":" + port, /* allowPipelining= */ false) != null) {
+        return false;
+      }
+    }
+    NioHttpConnection.Exchange exchange =
+        acquire(
+            host,
+            port,
+            /* allowReuse= */ false,
+            /* allowPipelining= */ false,
+            connectTimeoutMs);
+    synchronized (this) {
+      NioHttpConnection connection = exchange.connection;
+      if (released) {
+        connection.close();
+        removeConnection(connection);
+        return true;
+      }
+      // The connection isn't marked as persistent, since no response has confirmed that the server
+      // keeps it alive. It's reused when idle, but requests aren't pipelined on it.
+      connection.completeExchange(exchange);
+      trimIdleConnections(connection.hostKey);
+    }
+    return true;
+  }
+
+  /**
+   * Releases an exchange.
+   *
+   * @param exchange The exchange.
+   * @param reusable Whether the exchange's response has been read completely and the connection
+   *     may be reused. If false, the connection is closed, failing any exchanges pipelined on it.
+   */
+  /* package */ synchronized void release(NioHttpConnection.Exchange exchange, boolean reusable) {
+    NioHttpConnection connection = exchange.connection;
+    if (!reusable || released) {
+      connection.close();
+      removeConnection(connection);
+      return;
+    }
+    connection.setPersistent();
+    connection.completeExchange(exchange);
+    if (connection.getPendingExchangeCount() == 0) {
+      trimIdleConnections(connection.hostKey);
+    }
+  }
+
+  /** Asks the selector thread to update the operations for which it waits on a connection. */
+  /* package */ void updateInterestOps(NioHttpConnection connection) {
+    execute(connection::updateInterestOps);
+  }
+
+  /** Wakes up the selector thread, so that it notices closed connections promptly. */
+  /* package */ void wakeUp() {
+    @Nullable Selector selector = this.selector;
+    if (selector != null) {
+      selector.wakeup();
+    }
+  }
+
+  @Nullable
+  private NioHttpConnection getReusableConnection(String hostKey, boolean allowPipelining) {
+    @Nullable ArrayList<NioHttpConnection> connections = connectionsByHost.get(hostKey);
+    if (connections == null) {
+      return null;
+    }
+    long nowMs = SystemClock.elapsedRealtime();
+    @Nullable NioHttpConnection pipelineConnection = null;
+    // Prefer the most recently made connections, which are the least likely to have gone stale.
+    for (int i = connections.size() - 1; i >= 0; i--) {
+      NioHttpConnection connection = connections.get(i);
+      int pendingExchangeCount = connection.getPendingExchangeCount();
+      if (pendingExchangeCount == 0) {
+        if (connection.isReusable(nowMs, keepAliveDurationMs)) {
+          return connection;
+        }
+        connections.remove(i);
+        connection.close();
+      } else if (allowPipelining
+          && connection.canPipeline(maxPipelineDepth)
+          && (pipelineConnection == null
+              || pendingExchangeCount < pipelineConnection.getPendingExchangeCount())) {
+        pipelineConnection = connection;
+      }
+    }
+    if (connections.isEmpty()) {
+      connectionsByHost.remove(hostKey);
+    }
+    return pipelineConnection;
+  }
+
+  private void trimIdleConnections(String hostKey) {
+    @Nullable ArrayList<NioHttpConnection> connections = connectionsByHost.get(hostKey);
+    if (connections == null) {
+      return;
+    }
+    while (true) {
+      int idleConnectionCount = 0;
+      @Nullable NioHttpConnection oldestIdleConnection = null;
+      for (int i = 0; i < connections.size(); i++) {
+        NioHttpConnection connection = connections.get(i);
+        if (connection.getPendingExchangeCount() == 0) {
+          idleConnectionCount++;
+          if (oldestIdleConnection == null
+              || connection.getIdleSinceMs() < oldestIdleConnection.getIdleSinceMs()) {
+            oldestIdleConnection = connection;
+          }
+        }
+      }
+      if (oldestIdleConnection == null || idleConnectionCount <= maxIdleConnectionsPerHost) {
+        return;
+      }
+      oldestIdleConnection.close();
+      removeConnection(oldestIdleConnection);
+    }
+  }
+
+  private void removeConnection(NioHttpConnection connection) {
+    @Nullable ArrayList<NioHttpConnection> connections = connectionsByHost.get(connection.hostKey);
+    if (connections != null && connections.remove(connection) && connections.isEmpty()) {
+      connectionsByHost.remove(connection.hostKey);
+    }
+  }
+
+  private Selector getSelector() throws IOException {
+    @Nullable Selector selector = this.selector;
+    if (selector == null) {
+      Selector newSelector = Selector.open();
+      Thread selectorThread =
+          new Thread(() -> runSelectorLoop(newSelector), "ExoPlayer:NioHttpSelector");
+      selectorThread.setDaemon(true);
+      selectorThread.start();
+      this.selector = newSelector;
+      selector = newSelector;
+    }
+    return selector;
+  }
+
+  private void execute(Runnable task) {
+    selectorTasks.add(task);
+    wakeUp();
+  }
+
+  private void throwIfReleased() throws IOException {
+    if (released) {
+      throw new IOException("Connection pool released");
+    }
+  }
+
+  private void runSelectorLoop(Selector selector) {
+    try {
+      while (!released) {
+        @Nullable Runnable task;
+        while ((task = selectorTasks.poll()) != null) {
+          task.run();
+        }
+        selector.select();
+        Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+        while (selectedKeys.hasNext()) {
+          SelectionKey key = selectedKeys.next();
+          selectedKeys.remove();
+          NioHttpConnection connection = (NioHttpConnection) key.attachment();
+          try {
+            if (key.isConnectable()) {
+              connection.onConnectable();
+            }
+            if (key.isValid() && key.isReadable()) {
+              connection.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+              connection.onWritable();
+            }
+          } catch (CancelledKeyException e) {
+            // The connection was closed concurrently.
+          }
+        }
+      }
+    } catch (IOException | ClosedSelectorException e) {
+      Log.e(TAG, "Selector failed", e);
+      IOException error = e instanceof IOException ? (IOException) e : new IOException(e);
+      if (selector.isOpen()) {
+        for (SelectionKey key : selector.keys()) {
+          ((NioHttpConnection) key.attachment()).fail(error);
+        }
+      }
+      release();
+    } finally {
+      Util.closeQuietly(selector);
+    }
+  }
+}
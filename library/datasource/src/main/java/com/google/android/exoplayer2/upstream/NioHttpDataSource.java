@@ -0,0 +1,1123 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import static com.google.android.exoplayer2.upstream.HttpUtil.buildRangeRequestHeader;
+import static com.google.android.exoplayer2.util.Assertions.checkNotNull;
+import static com.google.android.exoplayer2.util.Util.castNonNull;
+import static java.lang.Math.min;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.PlaybackException;
+import com.google.android.exoplayer2.upstream.DataSpec.HttpMethod;
+import com.google.android.exoplayer2.util.UriUtil;
+import com.google.android.exoplayer2.util.Util;
+import com.google.common.base.Charsets;
+import com.google.common.base.Predicate;
+import com.google.common.net.HttpHeaders;
+import com.google.common.primitives.Bytes;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.MalformedURLException;
+import java.net.NoRouteToHostException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * An {@link HttpDataSource} that makes HTTP/1.1 requests over non-blocking socket channels.
+ *
+ * <p>Connections are managed by a {@link NioHttpConnectionPool}, which serves all of them from a
+ * single selector thread and keeps them alive for reuse by later requests to the same host. If
+ * {@link Factory#setPipeliningEnabled(boolean) pipelining is enabled}, a GET or HEAD request may be
+ * sent on a connection whose previous response is still being read by another data source, which
+ * saves a round trip when consecutive segments are requested from the same server.
+ *
+ * <p>Only cleartext {@code http} requests are made by this class. Requests for {@code https} URIs,
+ * including those reached by cross-protocol redirects, are delegated to a {@link
+ * DefaultHttpDataSource} configured in the same way.
+ */
+public final class NioHttpDataSource extends BaseDataSource implements HttpDataSource {
+
+  /** {@link DataSource.Factory} for {@link NioHttpDataSource} instances. */
+  public static final class Factory implements HttpDataSource.Factory {
+
+    private final RequestProperties defaultRequestProperties;
+
+    @Nullable private NioHttpConnectionPool connectionPool;
+    @Nullable private TransferListener transferListener;
+    @Nullable private Predicate<String> contentTypePredicate;
+    @Nullable private String userAgent;
+    private int connectTimeoutMs;
+    private int readTimeoutMs;
+    private boolean allowCrossProtocolRedirects;
+    private boolean pipeliningEnabled;
+
+    /** Creates an instance. */
+    public Factory() {
+      defaultRequestProperties = new RequestProperties();
+      connectTimeoutMs = DefaultHttpDataSource.DEFAULT_CONNECT_TIMEOUT_MILLIS;
+      readTimeoutMs = DefaultHttpDataSource.DEFAULT_READ_TIMEOUT_MILLIS;
+    }
+
+    @Override
+    public final Factory setDefaultRequestProperties(Map<String, String> defaultRequestProperties) {
+      this.defaultRequestProperties.clearAndSet(defaultRequestProperties);
+      return this;
+    }
+
+    /**
+     * Sets the {@link NioHttpConnectionPool} used to make connections.
+     *
+     * <p>The default is {@code null}, in which case the factory creates a pool when it first
+     * creates a data source, and shares it between all of the data sources it creates.
+     *
+     * @param connectionPool The {@link NioHttpConnectionPool}, or {@code null} to use a pool owned
+     *     by the factory.
+     * @return This factory.
+     */
+    public Factory setConnectionPool(@Nullable NioHttpConnectionPool connectionPool) {
+      this.connectionPool = connectionPool;
+      return this;
+    }
+
+    /**
+     * Sets whether GET and HEAD requests may be pipelined on connections whose previous response is
+     * still being read.
+     *
+     * <p>The default is {@code false}.
+     *
+     * @param pipeliningEnabled Whether requests may be pipelined.
+     * @return This factory.
+     */
+    public Factory setPipeliningEnabled(boolean pipeliningEnabled) {
+      this.pipeliningEnabled = pipeliningEnabled;
+      return this;
+    }
+
+    /**
+     * Sets the user agent that will be used.
+     *
+     * <p>The default is {@code null}, which causes no user agent header to be sent.
+     *
+     * @param userAgent The user agent that will be used, or {@code null} to send no user agent.
+     * @return This factory.
+     */
+    public Factory setUserAgent(@Nullable String userAgent) {
+      this.userAgent = userAgent;
+      return this;
+    }
+
+    /**
+     * Sets the connect timeout, in milliseconds.
+     *
+     * <p>The default is {@link DefaultHttpDataSource#DEFAULT_CONNECT_TIMEOUT_MILLIS}.
+     *
+     * @param connectTimeoutMs The connect timeout, in milliseconds, that will be used.
+     * @return This factory.
+     */
+    public Factory setConnectTimeoutMs(int connectTimeoutMs) {
+      this.connectTimeoutMs = connectTimeoutMs;
+      return this;
+    }
+
+    /**
+     * Sets the read timeout, in milliseconds.
+     *
+     * <p>The default is {@link DefaultHttpDataSource#DEFAULT_READ_TIMEOUT_MILLIS}.
+     *
+     * @param readTimeoutMs The read timeout, in milliseconds, that will be used.
+     * @return This factory.
+     */
+    public Factory setReadTimeoutMs(int readTimeoutMs) {
+      this.readTimeoutMs = readTimeoutMs;
+      return this;
+    }
+
+    /**
+     * Sets whether to allow cross protocol redirects.
+     *
+     * <p>The default is {@code false}.
+     *
+     * @param allowCrossProtocolRedirects Whether to allow cross protocol redirects.
+     * @return This factory.
+     */
+    public Factory setAllowCrossProtocolRedirects(boolean allowCrossProtocolRedirects) {
+      this.allowCrossProtocolRedirects = allowCrossProtocolRedirects;
+      return this;
+    }
+
+    /**
+     * Sets a content type {@link Predicate}. If a content type is rejected by the predicate then a
+     * {@link HttpDataSource.InvalidContentTypeException} is thrown from {@link
+     * NioHttpDataSource#open(DataSpec)}.
+     *
+     * <p>The default is {@code null}.
+     *
+     * @param contentTypePredicate The content type {@link Predicate}, or {@code null} to clear a
+     *     predicate that was previously set.
+     * @return This factory.
+     */
+    public Factory setContentTypePredicate(@Nullable Predicate<String> contentTypePredicate) {
+      this.contentTypePredicate = contentTypePredicate;
+      return this;
+    }
+
+    /**
+     * Sets the {@link TransferListener} that will be used.
+     *
+     * <p>The default is {@code null}.
+     *
+     * <p>See {@link DataSource#addTransferListener(TransferListener)}.
+     *
+     * @param transferListener The listener that will be used.
+     * @return This factory.
+     */
+    public Factory setTransferListener(@Nullable TransferListener transferListener) {
+      this.transferListener = transferListener;
+      return this;
+    }
+
+    @Override
+    public NioHttpDataSource createDataSource() {
+      NioHttpDataSource dataSource =
+          new NioHttpDataSource(
+              getConnectionPool(),
+              createFallbackDataSourceFactory(),
+              userAgent,
+              connectTimeoutMs,
+              readTimeoutMs,
+              allowCrossProtocolRedirects,
+              pipeliningEnabled,
+              defaultRequestProperties,
+              contentTypePredicate);
+      if (transferListener != null) {
+        dataSource.addTransferListener(transferListener);
+      }
+      return dataSource;
+    }
+
+    /**
+     * Creates a {@link Preconnector} that opens connections in the pool used by the data sources
+     * created by this factory.
+     *
+     * <p>For {@code http} URIs, the preconnector resolves the host and leaves a connection to it
+     * idle in the {@link NioHttpConnectionPool}, unless one is already available. {@code https}
+     * URIs are preconnected by a {@link DefaultHttpDataSource.Factory#createPreconnector()
+     * DefaultHttpDataSource preconnector}, since their requests are delegated to a {@link
+     * DefaultHttpDataSource}.
+     */
+    public Preconnector createPreconnector() {
+      NioHttpConnectionPool connectionPool = getConnectionPool();
+      Preconnector fallbackPreconnector = createFallbackDataSourceFactory().createPreconnector();
+      int connectTimeoutMs = this.connectTimeoutMs;
+      return uri -> {
+        if (!isCleartextHttp(uri)) {
+          return fallbackPreconnector.preconnect(uri);
+        }
+        @Nullable String host = uri.getHost();
+        if (TextUtils.isEmpty(host)) {
+          throw new MalformedURLException("Missing host: " + uri);
+        }
+        int port = uri.getPort() != C.INDEX_UNSET ? uri.getPort() : DEFAULT_HTTP_PORT;
+        // The preconnect only resolves the host and connects, so all of its time is saved.
+        long startTimeMs = SystemClock.elapsedRealtime();
+        boolean connected =
+            connectionPool.preconnect(
+                stripIpv6Brackets(castNonNull(host)), port, connectTimeoutMs);
+        return connected ? Util.msToUs(SystemClock.elapsedRealtime() - startTimeMs) : C.TIME_UNSET;
+      };
+    }
+
+    private NioHttpConnectionPool getConnectionPool() {
+      @Nullable NioHttpConnectionPool connectionPool = this.connectionPool;
+      if (connectionPool == null) {
+        connectionPool = new NioHttpConnectionPool();
+        this.connectionPool = connectionPool;
+      }
+      return connectionPool;
+    }
+
+    private DefaultHttpDataSource.Factory createFallbackDataSourceFactory() {
+      return new DefaultHttpDataSource.Factory()
+          .setUserAgent(userAgent)
+          .setConnectTimeoutMs(connectTimeoutMs)
+          .setReadTimeoutMs(readTimeoutMs)
+          .setAllowCrossProtocolRedirects(allowCrossProtocolRedirects)
+          .setContentTypePredicate(contentTypePredicate)
+          .setDefaultRequestProperties(defaultRequestProperties.getSnapshot());
+    }
+  }
+
+  private static final int MAX_REDIRECTS = 20; // Same limit as okhttp.
+  private static final int HTTP_STATUS_TEMPORARY_REDIRECT = 307;
+  private static final int HTTP_STATUS_PERMANENT_REDIRECT = 308;
+  private static final long MAX_BYTES_TO_DRAIN = 2048;
+  private static final int DEFAULT_HTTP_PORT = 80;
+
+  private final NioHttpConnectionPool connectionPool;
+  private final HttpDataSource.Factory fallbackDataSourceFactory;
+  @Nullable private final String userAgent;
+  private final int connectTimeoutMs;
+  private final int readTimeoutMs;
+  private final boolean allowCrossProtocolRedirects;
+  private final boolean pipeliningEnabled;
+  private final RequestProperties defaultRequestProperties;
+  private final RequestProperties requestProperties;
+  @Nullable private final Predicate<String> contentTypePredicate;
+
+  @Nullable private DataSpec dataSpec;
+  @Nullable private Uri uri;
+  @Nullable private HttpDataSource fallbackDataSource;
+  @Nullable private NioHttpConnection.Exchange exchange;
+  @Nullable private ResponseBodyInputStream responseBody;
+  @Nullable private InputStream inputStream;
+  private Map<String, List<String>> responseHeaders;
+  @Nullable private String responseMessage;
+  private int responseCode;
+  private boolean keepAlive;
+  private boolean opened;
+  private long bytesToRead;
+  private long bytesRead;
+
+  private NioHttpDataSource(
+      NioHttpConnectionPool connectionPool,
+      HttpDataSource.Factory fallbackDataSourceFactory,
+      @Nullable String userAgent,
+      int connectTimeoutMs,
+      int readTimeoutMs,
+      boolean allowCrossProtocolRedirects,
+      boolean pipeliningEnabled,
+      RequestProperties defaultRequestProperties,
+      @Nullable Predicate<String> contentTypePredicate) {
+    super(/* isNetwork= */ true);
+    this.connectionPool = connectionPool;
+    this.fallbackDataSourceFactory = fallbackDataSourceFactory;
+    this.userAgent = userAgent;
+    this.connectTimeoutMs = connectTimeoutMs;
+    this.readTimeoutMs = readTimeoutMs;
+    this.allowCrossProtocolRedirects = allowCrossProtocolRedirects;
+    this.pipeliningEnabled = pipeliningEnabled;
+    this.defaultRequestProperties = defaultRequestProperties;
+    this.contentTypePredicate = contentTypePredicate;
+    requestProperties = new RequestProperties();
+    responseHeaders = Collections.emptyMap();
+  }
+
+  @Override
+  @Nullable
+  public Uri getUri() {
+    if (fallbackDataSource != null) {
+      return fallbackDataSource.getUri();
+    }
+    return exchange == null ? null : uri;
+  }
+
+  @Override
+  public int getResponseCode() {
+    if (fallbackDataSource != null) {
+      return fallbackDataSource.getResponseCode();
+    }
+    return exchange == null || responseCode <= 0 ? -1 : responseCode;
+  }
+
+  @Override
+  public Map<String, List<String>> getResponseHeaders() {
+    if (fallbackDataSource != null) {
+      return fallbackDataSource.getResponseHeaders();
+    }
+    return exchange == null ? Collections.emptyMap() : responseHeaders;
+  }
+
+  @Override
+  public void setRequestProperty(String name, String value) {
+    checkNotNull(name);
+    checkNotNull(value);
+    requestProperties.set(name, value);
+  }
+
+  @Override
+  public void clearRequestProperty(String name) {
+    checkNotNull(name);
+    requestProperties.remove(name);
+  }
+
+  @Override
+  public void clearAllRequestProperties() {
+    requestProperties.clear();
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws HttpDataSourceException {
+    this.dataSpec = dataSpec;
+    bytesRead = 0;
+    bytesToRead = 0;
+    transferInitializing(dataSpec);
+
+    if (!isCleartextHttp(dataSpec.uri)) {
+      return openFallback(dataSpec, dataSpec);
+    }
+
+    @Nullable DataSpec fallbackDataSpec;
+    try {
+      fallbackDataSpec = makeConnection(dataSpec);
+    } catch (IOException e) {
+      closeExchangeQuietly();
+      throw HttpDataSourceException.createForIOException(
+          e, dataSpec, HttpDataSourceException.TYPE_OPEN);
+    }
+    if (fallbackDataSpec != null) {
+      return openFallback(dataSpec, fallbackDataSpec);
+    }
+    ResponseBodyInputStream responseBody = checkNotNull(this.responseBody);
+
+    // Check for a valid response code.
+    if (responseCode < 200 || responseCode > 299) {
+      Map<String, List<String>> headers = responseHeaders;
+      if (responseCode == 416) {
+        long documentSize = HttpUtil.getDocumentSize(getResponseHeader(HttpHeaders.CONTENT_RANGE));
+        if (dataSpec.position == documentSize) {
+          opened = true;
+          transferStarted(dataSpec);
+          return dataSpec.length != C.LENGTH_UNSET ? dataSpec.length : 0;
+        }
+      }
+
+      byte[] errorResponseBody;
+      try {
+        errorResponseBody = Util.toByteArray(responseBody);
+      } catch (IOException e) {
+        errorResponseBody = Util.EMPTY_BYTE_ARRAY;
+      }
+      closeExchangeQuietly();
+      @Nullable
+      IOException cause =
+          responseCode == 416
+              ? new DataSourceException(PlaybackException.ERROR_CODE_IO_READ_POSITION_OUT_OF_RANGE)
+              : null;
+      throw new InvalidResponseCodeException(
+          responseCode, responseMessage, cause, headers, dataSpec, errorResponseBody);
+    }
+
+    // Check for a valid content type.
+    @Nullable String contentType = getResponseHeader(HttpHeaders.CONTENT_TYPE);
+    if (contentTypePredicate != null && !contentTypePredicate.apply(contentType)) {
+      closeExchangeQuietly();
+      throw new InvalidContentTypeException(contentType, dataSpec);
+    }
+
+    // If we requested a range starting from a non-zero position and received a 200 rather than a
+    // 206, then the server does not support partial requests. We'll need to manually skip to the
+    // requested position.
+    long bytesToSkip = responseCode == 200 && dataSpec.position != 0 ? dataSpec.position : 0;
+
+    // Determine the length of the data to be read, after skipping.
+    boolean isCompressed = "gzip".equalsIgnoreCase(getResponseHeader(HttpHeaders.CONTENT_ENCODING));
+    if (!isCompressed) {
+      if (dataSpec.length != C.LENGTH_UNSET) {
+        bytesToRead = dataSpec.length;
+      } else {
+        long contentLength =
+            HttpUtil.getContentLength(
+                getResponseHeader(HttpHeaders.CONTENT_LENGTH),
+                getResponseHeader(HttpHeaders.CONTENT_RANGE));
+        bytesToRead =
+            contentLength != C.LENGTH_UNSET ? (contentLength - bytesToSkip) : C.LENGTH_UNSET;
+      }
+    } else {
+      // Gzip is enabled. If the server opts to use gzip then the content length in the response
+      // will be that of the compressed data, which isn't what we want. Always use the dataSpec
+      // length in this case.
+      bytesToRead = dataSpec.length;
+    }
+
+    try {
+      inputStream = isCompressed ? new GZIPInputStream(responseBody) : responseBody;
+    } catch (IOException e) {
+      closeExchangeQuietly();
+      throw new HttpDataSourceException(
+          e,
+          dataSpec,
+          PlaybackException.ERROR_CODE_IO_UNSPECIFIED,
+          HttpDataSourceException.TYPE_OPEN);
+    }
+
+    opened = true;
+    transferStarted(dataSpec);
+
+    try {
+      skipFully(bytesToSkip, dataSpec);
+    } catch (IOException e) {
+      closeExchangeQuietly();
+      if (e instanceof HttpDataSourceException) {
+        throw (HttpDataSourceException) e;
+      }
+      throw new HttpDataSourceException(
+          e,
+          dataSpec,
+          PlaybackException.ERROR_CODE_IO_UNSPECIFIED,
+          HttpDataSourceException.TYPE_OPEN);
+    }
+
+    return bytesToRead;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws HttpDataSourceException {
+    try {
+      return readInternal(buffer, offset, length);
+    } catch (IOException e) {
+      throw HttpDataSourceException.createForIOException(
+          e, castNonNull(dataSpec), HttpDataSourceException.TYPE_READ);
+    }
+  }
+
+  @Override
+  public int read(ByteBuffer buffer) throws HttpDataSourceException {
+    try {
+      return readInternal(buffer);
+    } catch (IOException e) {
+      throw HttpDataSourceException.createForIOException(
+          e, castNonNull(dataSpec), HttpDataSourceException.TYPE_READ);
+    }
+  }
+
+  @Override
+  public void close() throws HttpDataSourceException {
+    try {
+      if (fallbackDataSource != null) {
+        fallbackDataSource.close();
+      }
+    } finally {
+      fallbackDataSource = null;
+      closeExchangeQuietly();
+      if (opened) {
+        opened = false;
+        transferEnded();
+      }
+    }
+  }
+
+  private long openFallback(DataSpec dataSpec, DataSpec fallbackDataSpec)
+      throws HttpDataSourceException {
+    HttpDataSource fallbackDataSource = fallbackDataSourceFactory.createDataSource();
+    for (Map.Entry<String, String> property : requestProperties.getSnapshot().entrySet()) {
+      fallbackDataSource.setRequestProperty(property.getKey(), property.getValue());
+    }
+    this.fallbackDataSource = fallbackDataSource;
+    long length = fallbackDataSource.open(fallbackDataSpec);
+    opened = true;
+    transferStarted(dataSpec);
+    return length;
+  }
+
+  /**
+   * Makes a request, following redirects where permitted.
+   *
+   * @return {@code null} if a response is ready to be read, or the {@link DataSpec} with which the
+   *     request should be made by the fallback data source if it was redirected to an {@code https}
+   *     URI.
+   */
+  @Nullable
+  private DataSpec makeConnection(DataSpec dataSpec) throws IOException {
+    Uri uri = dataSpec.uri;
+    @HttpMethod int httpMethod = dataSpec.httpMethod;
+    @Nullable byte[] httpBody = dataSpec.httpBody;
+    int redirectCount = 0;
+    while (redirectCount++ <= MAX_REDIRECTS) {
+      makeRequest(
+          uri,
+          httpMethod,
+          httpBody,
+          dataSpec.position,
+          dataSpec.length,
+          dataSpec.isFlagSet(DataSpec.FLAG_ALLOW_GZIP),
+          dataSpec.httpRequestHeaders);
+      if ((httpMethod == DataSpec.HTTP_METHOD_GET || httpMethod == DataSpec.HTTP_METHOD_HEAD)
+          && (isMovedRedirect(responseCode)
+              || responseCode == HTTP_STATUS_TEMPORARY_REDIRECT
+              || responseCode == HTTP_STATUS_PERMANENT_REDIRECT)) {
+        uri = handleRedirect(uri, getResponseHeader(HttpHeaders.LOCATION), dataSpec);
+      } else if (httpMethod == DataSpec.HTTP_METHOD_POST && isMovedRedirect(responseCode)) {
+        // POST request follows the redirect and is transformed into a GET request.
+        httpMethod = DataSpec.HTTP_METHOD_GET;
+        httpBody = null;
+        uri = handleRedirect(uri, getResponseHeader(HttpHeaders.LOCATION), dataSpec);
+      } else {
+        return null;
+      }
+      if (!isCleartextHttp(uri)) {
+        return dataSpec
+            .buildUpon()
+            .setUri(uri)
+            .setHttpMethod(httpMethod)
+            .setHttpBody(httpBody)
+            .build();
+      }
+    }
+
+    // If we get here we've been redirected more times than are permitted.
+    throw new HttpDataSourceException(
+        new NoRouteToHostException("Too many redirects: " + redirectCount),
+        dataSpec,
+        PlaybackException.ERROR_CODE_IO_NETWORK_CONNECTION_FAILED,
+        HttpDataSourceException.TYPE_OPEN);
+  }
+
+  /**
+   * Makes a single request and reads the response headers. A request made on a connection that
+   * was reused is retried on a new connection if the connection fails before the response starts,
+   * since this normally means that the server closed it whilst it was idle.
+   */
+  private void makeRequest(
+      Uri uri,
+      @HttpMethod int httpMethod,
+      @Nullable byte[] httpBody,
+      long position,
+      long length,
+      boolean allowGzip,
+      Map<String, String> requestParameters)
+      throws IOException {
+    closeExchangeQuietly();
+    this.uri = uri;
+    @Nullable String host = uri.getHost();
+    if (TextUtils.isEmpty(host)) {
+      throw new MalformedURLException("Missing host: " + uri);
+    }
+    int port = uri.getPort() != C.INDEX_UNSET ? uri.getPort() : DEFAULT_HTTP_PORT;
+    byte[] request =
+        buildRequest(uri, httpMethod, httpBody, position, length, allowGzip, requestParameters);
+    boolean isIdempotent =
+        httpBody == null
+            && (httpMethod == DataSpec.HTTP_METHOD_GET || httpMethod == DataSpec.HTTP_METHOD_HEAD);
+    boolean allowReuse = isIdempotent;
+    while (true) {
+      NioHttpConnection.Exchange exchange =
+          connectionPool.acquire(
+              stripIpv6Brackets(castNonNull(host)),
+              port,
+              allowReuse,
+              /* allowPipelining= */ pipeliningEnabled && isIdempotent,
+              connectTimeoutMs);
+      this.exchange = exchange;
+      responseCode = -1;
+      try {
+        exchange.connection.write(request);
+        exchange.connection.awaitTurn(exchange, readTimeoutMs);
+        readResponseHeaders(exchange.connection, httpMethod);
+        return;
+      } catch (IOException e) {
+        // If the exchange was pipelined and its turn hasn't come, this closes the connection and
+        // fails the exchanges ahead of it, since HTTP/1.1 has no way to cancel a pipelined request.
+        closeExchangeQuietly();
+        if (!exchange.isReused || responseCode != -1 || e instanceof InterruptedIOException) {
+          throw e;
+        }
+        allowReuse = false;
+      }
+    }
+  }
+
+  private byte[] buildRequest(
+      Uri uri,
+      @HttpMethod int httpMethod,
+      @Nullable byte[] httpBody,
+      long position,
+      long length,
+      boolean allowGzip,
+      Map<String, String> requestParameters)
+      throws ProtocolException {
+    Map<String, String> requestHeaders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    String host = checkNotNull(uri.getHost());
+    requestHeaders.put(
+        HttpHeaders.HOST, uri.getPort() == C.INDEX_UNSET ? host : host + ":" + uri.getPort());
+    requestHeaders.putAll(defaultRequestProperties.getSnapshot());
+    requestHeaders.putAll(requestProperties.getSnapshot());
+    requestHeaders.putAll(requestParameters);
+    @Nullable String rangeHeader = buildRangeRequestHeader(position, length);
+    if (rangeHeader != null) {
+      requestHeaders.put(HttpHeaders.RANGE, rangeHeader);
+    }
+    if (userAgent != null) {
+      requestHeaders.put(HttpHeaders.USER_AGENT, userAgent);
+    }
+    requestHeaders.put(HttpHeaders.ACCEPT_ENCODING, allowGzip ? "gzip" : "identity");
+    if (httpBody != null) {
+      requestHeaders.put(HttpHeaders.CONTENT_LENGTH, Integer.toString(httpBody.length));
+    }
+
+    @Nullable String path = uri.getEncodedPath();
+    @Nullable String query = uri.getEncodedQuery();
+    // Line breaks would let the caller inject headers or requests, since the head is written as is.
+    if (containsLineBreak(path) || containsLineBreak(query)) {
+      throw new ProtocolException("Line break in request target: " + uri);
+    }
+    for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+      if (containsLineBreak(header.getKey()) || containsLineBreak(header.getValue())) {
+        throw new ProtocolException("Line break in request header: " + header.getKey());
+      }
+    }
+    StringBuilder requestHead = new StringBuilder();
+    requestHead
+        .append(DataSpec.getStringForHttpMethod(httpMethod))
+        .append(' ')
+        .append(TextUtils.isEmpty(path) ? "/" : path)
+        .append(query != null ? "?" + query : "")
+        .append(" HTTP/1.1\r\n");
+    for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+      requestHead.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+    }
+    requestHead.append("\r\n");
+    byte[] requestHeadBytes = requestHead.toString().getBytes(Charsets.ISO_8859_1);
+    return httpBody == null ? requestHeadBytes : Bytes.concat(requestHeadBytes, httpBody);
+  }
+
+  private static boolean containsLineBreak(@Nullable String value) {
+    return value != null && (value.indexOf('\r') != -1 || value.indexOf('\n') != -1);
+  }
+
+  private void readResponseHeaders(NioHttpConnection connection, @HttpMethod int httpMethod)
+      throws IOException {
+    boolean isHttp10;
+    TreeMap<String, List<String>> headers;
+    do {
+      String statusLine = connection.readLine(readTimeoutMs);
+      String[] statusLineParts = Util.split(statusLine, " ");
+      if (statusLineParts.length < 2 || !statusLineParts[0].startsWith("HTTP/1.")) {
+        throw new ProtocolException("Unexpected status line: " + statusLine);
+      }
+      try {
+        responseCode = Integer.parseInt(statusLineParts[1]);
+      } catch (NumberFormatException e) {
+        throw new ProtocolException("Unexpected status line: " + statusLine);
+      }
+      isHttp10 = statusLineParts[0].equals("HTTP/1.0");
+      responseMessage =
+          statusLineParts.length > 2
+              ? statusLine.substring(statusLineParts[0].length() + statusLineParts[1].length() + 2)
+              : "";
+      headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+      String headerLine;
+      while (!(headerLine = connection.readLine(readTimeoutMs)).isEmpty()) {
+        int separatorIndex = headerLine.indexOf(':');
+        if (separatorIndex <= 0) {
+          throw new ProtocolException("Unexpected header line: " + headerLine);
+        }
+        String name = headerLine.substring(0, separatorIndex).trim();
+        String value = headerLine.substring(separatorIndex + 1).trim();
+        @Nullable List<String> values = headers.get(name);
+        if (values == null) {
+          values = new ArrayList<>();
+          headers.put(name, values);
+        }
+        values.add(value);
+      }
+      // Skip informational responses, which precede the final response.
+    } while (responseCode >= 100 && responseCode < 200);
+    responseHeaders = Collections.unmodifiableMap(headers);
+
+    @Nullable String connectionHeader = getResponseHeader(HttpHeaders.CONNECTION);
+    keepAlive =
+        isHttp10
+            ? "keep-alive".equalsIgnoreCase(connectionHeader)
+            : !"close".equalsIgnoreCase(connectionHeader);
+    @Nullable String contentLength = getResponseHeader(HttpHeaders.CONTENT_LENGTH);
+    if (httpMethod == DataSpec.HTTP_METHOD_HEAD || responseCode == 204 || responseCode == 304) {
+      responseBody =
+          new ResponseBodyInputStream(
+              connection, /* length= */ 0, /* chunked= */ false, readTimeoutMs);
+    } else if ("chunked".equalsIgnoreCase(getResponseHeader(HttpHeaders.TRANSFER_ENCODING))) {
+      responseBody =
+          new ResponseBodyInputStream(
+              connection, C.LENGTH_UNSET, /* chunked= */ true, readTimeoutMs);
+    } else if (contentLength != null) {
+      long length;
+      try {
+        length = Long.parseLong(contentLength);
+      } catch (NumberFormatException e) {
+        throw new ProtocolException("Unexpected Content-Length: " + contentLength);
+      }
+      responseBody =
+          new ResponseBodyInputStream(connection, length, /* chunked= */ false, readTimeoutMs);
+    } else {
+      // The body is delimited by the end of the connection.
+      keepAlive = false;
+      responseBody =
+          new ResponseBodyInputStream(
+              connection, C.LENGTH_UNSET, /* chunked= */ false, readTimeoutMs);
+    }
+  }
+
+  /**
+   * Handles a redirect.
+   *
+   * @param originalUri The original URI.
+   * @param location The Location header in the response. May be {@code null}.
+   * @param dataSpec The {@link DataSpec}.
+   * @return The next URI.
+   * @throws HttpDataSourceException If redirection isn't possible.
+   */
+  private Uri handleRedirect(Uri originalUri, @Nullable String location, DataSpec dataSpec)
+      throws HttpDataSourceException {
+    closeExchangeQuietly();
+    if (location == null) {
+      throw new HttpDataSourceException(
+          "Null location redirect",
+          dataSpec,
+          PlaybackException.ERROR_CODE_IO_NETWORK_CONNECTION_FAILED,
+          HttpDataSourceException.TYPE_OPEN);
+    }
+    Uri uri = UriUtil.resolveToUri(originalUri.toString(), location);
+    @Nullable String scheme = uri.getScheme();
+    if (!"https".equals(scheme) && !"http".equals(scheme)) {
+      throw new HttpDataSourceException(
+          "Unsupported protocol redirect: " + scheme,
+          dataSpec,
+          PlaybackException.ERROR_CODE_IO_NETWORK_CONNECTION_FAILED,
+          HttpDataSourceException.TYPE_OPEN);
+    }
+    if (!allowCrossProtocolRedirects && !scheme.equals(originalUri.getScheme())) {
+      throw new HttpDataSourceException(
+          "Disallowed cross-protocol redirect ("
+              + originalUri.getScheme()
+              + " to "
+              + scheme
+              + ")",
+          dataSpec,
+          PlaybackException.ERROR_CODE_IO_NETWORK_CONNECTION_FAILED,
+          HttpDataSourceException.TYPE_OPEN);
+    }
+    return uri;
+  }
+
+  /**
+   * Attempts to skip the specified number of bytes in full.
+   *
+   * @param bytesToSkip The number of bytes to skip.
+   * @param dataSpec The {@link DataSpec}.
+   * @throws IOException If the thread is interrupted during the operation, or if the data ended
+   *     before skipping the specified number of bytes.
+   */
+  private void skipFully(long bytesToSkip, DataSpec dataSpec) throws IOException {
+    if (bytesToSkip == 0) {
+      return;
+    }
+    byte[] skipBuffer = new byte[4096];
+    while (bytesToSkip > 0) {
+      int readLength = (int) min(bytesToSkip, skipBuffer.length);
+      int read = castNonNull(inputStream).read(skipBuffer, 0, readLength);
+      if (Thread.currentThread().isInterrupted()) {
+        throw new HttpDataSourceException(
+            new InterruptedIOException(),
+            dataSpec,
+            PlaybackException.ERROR_CODE_IO_UNSPECIFIED,
+            HttpDataSourceException.TYPE_OPEN);
+      }
+      if (read == -1) {
+        throw new HttpDataSourceException(
+            dataSpec,
+            PlaybackException.ERROR_CODE_IO_READ_POSITION_OUT_OF_RANGE,
+            HttpDataSourceException.TYPE_OPEN);
+      }
+      bytesToSkip -= read;
+      bytesTransferred(read);
+    }
+  }
+
+  private int readInternal(byte[] buffer, int offset, int readLength) throws IOException {
+    if (fallbackDataSource != null) {
+      int read = fallbackDataSource.read(buffer, offset, readLength);
+      if (read > 0) {
+        bytesTransferred(read);
+      }
+      return read;
+    }
+    if (readLength == 0) {
+      return 0;
+    }
+    if (bytesToRead != C.LENGTH_UNSET) {
+      long bytesRemaining = bytesToRead - bytesRead;
+      if (bytesRemaining == 0) {
+        return C.RESULT_END_OF_INPUT;
+      }
+      readLength = (int) min(readLength, bytesRemaining);
+    }
+    @Nullable InputStream inputStream = this.inputStream;
+    if (inputStream == null) {
+      // The response to an unsatisfiable range request at the end of the resource has no data.
+      return C.RESULT_END_OF_INPUT;
+    }
+
+    int read = inputStream.read(buffer, offset, readLength);
+    if (read == -1) {
+      return C.RESULT_END_OF_INPUT;
+    }
+
+    bytesRead += read;
+    bytesTransferred(read);
+    return read;
+  }
+
+  private int readInternal(ByteBuffer buffer) throws IOException {
+    if (fallbackDataSource != null) {
+      int read = fallbackDataSource.read(buffer);
+      if (read > 0) {
+        bytesTransferred(read);
+      }
+      return read;
+    }
+    @Nullable ResponseBodyInputStream responseBody = this.responseBody;
+    if (buffer.hasArray() || responseBody == null || inputStream != responseBody) {
+      // Heap buffers are read into their backing array, and compressed bodies through the
+      // decompressing stream.
+      return DataSourceUtil.readToByteBuffer(this::readInternal, buffer, getScratchBuffer());
+    }
+    int readLength = buffer.remaining();
+    if (readLength == 0) {
+      return 0;
+    }
+    if (bytesToRead != C.LENGTH_UNSET) {
+      long bytesRemaining = bytesToRead - bytesRead;
+      if (bytesRemaining == 0) {
+        return C.RESULT_END_OF_INPUT;
+      }
+      readLength = (int) min(readLength, bytesRemaining);
+    }
+
+    int read = responseBody.read(buffer, readLength);
+    if (read == C.RESULT_END_OF_INPUT) {
+      return C.RESULT_END_OF_INPUT;
+    }
+
+    bytesRead += read;
+    bytesTransferred(read);
+    return read;
+  }
+
+  @Nullable
+  private String getResponseHeader(String name) {
+    @Nullable List<String> values = responseHeaders.get(name);
+    return values == null || values.isEmpty() ? null : values.get(0);
+  }
+
+  /**
+   * Releases the current exchange, if there is one. The connection is returned to the pool if the
+   * response has been read, or if little enough of it remains that it can be drained. Otherwise
+   * the connection is closed.
+   */
+  private void closeExchangeQuietly() {
+    @Nullable NioHttpConnection.Exchange exchange = this.exchange;
+    if (exchange == null) {
+      return;
+    }
+    boolean reusable = false;
+    @Nullable ResponseBodyInputStream responseBody = this.responseBody;
+    if (keepAlive && responseBody != null) {
+      try {
+        reusable = responseBody.skipToEnd(MAX_BYTES_TO_DRAIN);
+      } catch (IOException e) {
+        // Close the connection.
+      }
+    }
+    connectionPool.release(exchange, reusable);
+    this.exchange = null;
+    this.responseBody = null;
+    inputStream = null;
+    responseHeaders = Collections.emptyMap();
+    keepAlive = false;
+  }
+
+  private static boolean isCleartextHttp(Uri uri) {
+    return "http".equals(uri.getScheme());
+  }
+
+  private static boolean isMovedRedirect(int responseCode) {
+    return responseCode >= 300 && responseCode <= 303;
+  }
+
+  private static String stripIpv6Brackets(String host) {
+    return host.startsWith("[") && host.endsWith("]") ? host.substring(1, host.length() - 1) : host;
+  }
+
+  /** Reads the body of a response, as delimited by its length or chunked transfer encoding. */
+  private static final class ResponseBodyInputStream extends InputStream {
+
+    private final NioHttpConnection connection;
+    private final boolean chunked;
+    private final int readTimeoutMs;
+    private final byte[] singleByteBuffer;
+
+    private long bytesRemaining;
+    private boolean readFirstChunk;
+    private boolean endOfBody;
+
+    /**
+     * Creates an instance.
+     *
+     * @param connection The connection from which to read.
+     * @param length The length of the body, or {@link C#LENGTH_UNSET} if the body is chunked or
+     *     delimited by the end of the connection.
+     * @param chunked Whether the body is chunked.
+     * @param readTimeoutMs The read timeout.
+     */
+    public ResponseBodyInputStream(
+        NioHttpConnection connection, long length, boolean chunked, int readTimeoutMs) {
+      this.connection = connection;
+      this.chunked = chunked;
+      this.readTimeoutMs = readTimeoutMs;
+      singleByteBuffer = new byte[1];
+      bytesRemaining = chunked ? 0 : length;
+      endOfBody = !chunked && length == 0;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int read = read(singleByteBuffer, /* off= */ 0, /* len= */ 1);
+      return read == C.RESULT_END_OF_INPUT ? read : (singleByteBuffer[0] & 0xFF);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int readLength = getReadLength(length);
+      if (readLength <= 0) {
+        return readLength;
+      }
+      return onRead(connection.read(buffer, offset, readLength, readTimeoutMs));
+    }
+
+    /**
+     * Reads up to {@code length} bytes into a {@link ByteBuffer}.
+     *
+     * @param buffer The buffer into which the bytes should be read. Must have at least {@code
+     *     length} bytes remaining.
+     * @param length The maximum number of bytes to read.
+     * @return The number of bytes read, or {@link C#RESULT_END_OF_INPUT} at the end of the body.
+     * @throws IOException If an error occurs reading from the connection.
+     */
+    public int read(ByteBuffer buffer, int length) throws IOException {
+      int readLength = getReadLength(length);
+      if (readLength <= 0) {
+        return readLength;
+      }
+      return onRead(connection.read(buffer, readLength, readTimeoutMs));
+    }
+
+    /**
+     * Returns the number of bytes that a read of up to {@code length} bytes should request from the
+     * connection, 0 if {@code length} is 0, or {@link C#RESULT_END_OF_INPUT} at the end of the
+     * body.
+     */
+    private int getReadLength(int length) throws IOException {
+      if (length == 0) {
+        return 0;
+      } else if (endOfBody) {
+        return C.RESULT_END_OF_INPUT;
+      }
+      if (chunked && bytesRemaining == 0) {
+        readChunkHeader();
+        if (endOfBody) {
+          return C.RESULT_END_OF_INPUT;
+        }
+      }
+      return bytesRemaining == C.LENGTH_UNSET ? length : (int) min(length, bytesRemaining);
+    }
+
+    /** Updates the state of the body after a read from the connection, and returns its result. */
+    private int onRead(int read) throws IOException {
+      if (read == C.RESULT_END_OF_INPUT) {
+        if (bytesRemaining != C.LENGTH_UNSET) {
+          throw new EOFException("Unexpected end of response body");
+        }
+        endOfBody = true;
+        return C.RESULT_END_OF_INPUT;
+      }
+      if (bytesRemaining != C.LENGTH_UNSET) {
+        bytesRemaining -= read;
+        if (!chunked && bytesRemaining == 0) {
+          endOfBody = true;
+        }
+      }
+      return read;
+    }
+
+    /**
+     * Reads and discards the rest of the body, unless more than approximately {@code maxBytes}
+     * remain.
+     *
+     * @param maxBytes The maximum number of bytes to discard.
+     * @return Whether the end of the body was reached.
+     * @throws IOException If an error occurs reading from the connection.
+     */
+    public boolean skipToEnd(long maxBytes) throws IOException {
+      if (!chunked && bytesRemaining > maxBytes) {
+        return false;
+      }
+      byte[] skipBuffer = new byte[(int) min(maxBytes + 1, 4096)];
+      long bytesSkipped = 0;
+      while (!endOfBody) {
+        if (bytesSkipped > maxBytes) {
+          return false;
+        }
+        int read = read(skipBuffer, /* offset= */ 0, skipBuffer.length);
+        if (read == C.RESULT_END_OF_INPUT) {
+          break;
+        }
+        bytesSkipped += read;
+      }
+      return true;
+    }
+
+    private void readChunkHeader() throws IOException {
+      if (readFirstChunk) {
+        // Consume the line break that ends the previous chunk.
+        if (!connection.readLine(readTimeoutMs).isEmpty()) {
+          throw new ProtocolException("Unexpected data after chunk");
+        }
+      }
+      readFirstChunk = true;
+      String chunkSizeLine = connection.readLine(readTimeoutMs);
+      int extensionsIndex = chunkSizeLine.indexOf(';');
+      String chunkSize =
+          (extensionsIndex == C.INDEX_UNSET
+                  ? chunkSizeLine
+                  : chunkSizeLine.substring(0, extensionsIndex))
+              .trim();
+      try {
+        bytesRemaining = Long.parseLong(chunkSize, /* radix= */ 16);
+      } catch (NumberFormatException e) {
+        throw new ProtocolException("Unexpected chunk size: " + chunkSizeLine);
+      }
+      if (bytesRemaining < 0) {
+        throw new ProtocolException("Unexpected chunk size: " + chunkSizeLine);
+      } else if (bytesRemaining == 0) {
+        // Skip the trailer, which ends with an empty line.
+        while (!connection.readLine(readTimeoutMs).isEmpty()) {}
+        endOfBody = true;
+      }
+    }
+  }
+}
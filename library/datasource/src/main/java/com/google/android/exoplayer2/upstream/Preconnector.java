@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import android.net.Uri;
+import com.google.android.exoplayer2.C;
+import java.io.IOException;
+
+/**
+ * Prepares the network for requests that are expected to be made soon, so that their time to
+ * first byte is shorter.
+ *
+ * <p>A preconnector typically resolves the host of a URI and opens a connection to it, which it
+ * leaves idle in the connection pool of the {@link HttpDataSource} that will later make the
+ * requests.
+ */
+public interface Preconnector {
+
+  /**
+   * Prepares the network for requests to the given URI. Blocks until done, so should not be called
+   * on a thread that must stay responsive.
+   *
+   * @param uri The URI.
+   * @return The time spent on the parts of the connection setup that a later request to the URI
+   *     no longer waits for, in microseconds, or {@link C#TIME_UNSET} if nothing was set up, for
+   *     example because a connection was already available. Time spent waiting for a server
+   *     response isn't included.
+   * @throws IOException If an error occurs resolving the host or connecting to it.
+   */
+  long preconnect(Uri uri) throws IOException;
+}
@@ -20,6 +20,7 @@ import androidx.annotation.Nullable;
 import com.google.android.exoplayer2.util.Assertions;
 import com.google.android.exoplayer2.util.PriorityTaskManager;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Map;
 
@@ -103,6 +104,12 @@ public final class PriorityDataSource implements DataSource {
     return upstream.read(buffer, offset, length);
   }
 
+  @Override
+  public int read(ByteBuffer buffer) throws IOException {
+    priorityTaskManager.proceedOrThrow(priority);
+    return upstream.read(buffer);
+  }
+
   @Override
   @Nullable
   public Uri getUri() {
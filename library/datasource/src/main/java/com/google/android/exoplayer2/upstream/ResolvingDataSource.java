@@ -20,6 +20,7 @@ import static com.google.android.exoplayer2.util.Assertions.checkNotNull;
 import android.net.Uri;
 import androidx.annotation.Nullable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Map;
 
@@ -113,6 +114,11 @@ public final class ResolvingDataSource implements DataSource {
     return upstreamDataSource.read(buffer, offset, length);
   }
 
+  @Override
+  public int read(ByteBuffer buffer) throws IOException {
+    return upstreamDataSource.read(buffer);
+  }
+
   @Override
   @Nullable
   public Uri getUri() {
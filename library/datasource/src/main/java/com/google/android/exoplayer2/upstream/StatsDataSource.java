@@ -23,6 +23,7 @@ import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.util.Assertions;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -105,6 +106,15 @@ public final class StatsDataSource implements DataSource {
         return bytesRead;
     }
     
+    @Override
+    public int read(ByteBuffer buffer) throws IOException {
+        int bytesRead = dataSource.read(buffer);
+        if (bytesRead != C.RESULT_END_OF_INPUT) {
+            this.bytesRead += bytesRead;
+        }
+        return bytesRead;
+    }
+    
     @Override
     @Nullable
     public Uri getUri() {
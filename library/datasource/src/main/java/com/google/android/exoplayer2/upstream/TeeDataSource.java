@@ -20,6 +20,7 @@ import androidx.annotation.Nullable;
 import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.util.Assertions;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Map;
 
@@ -31,6 +32,7 @@ public final class TeeDataSource implements DataSource {
 
   private boolean dataSinkNeedsClosing;
   private long bytesRemaining;
+  @Nullable private byte[] sinkBuffer;
 
   /**
    * @param upstream The upstream {@link DataSource}.
@@ -78,6 +80,32 @@ public final class TeeDataSource implements DataSource {
     return bytesRead;
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Data is read from the upstream {@link DataSource} directly into the buffer. Data read into
+   * a direct buffer is then copied into a heap array to be written to the {@link DataSink}.
+   */
+  @Override
+  public int read(ByteBuffer buffer) throws IOException {
+    if (bytesRemaining == 0) {
+      return C.RESULT_END_OF_INPUT;
+    }
+    int position = buffer.position();
+    int bytesRead = upstream.read(buffer);
+    if (bytesRead > 0) {
+      if (buffer.hasArray()) {
+        dataSink.write(buffer.array(), buffer.arrayOffset() + position, bytesRead);
+      } else {
+        writeToDataSink(buffer, position, bytesRead);
+      }
+      if (bytesRemaining != C.LENGTH_UNSET) {
+        bytesRemaining -= bytesRead;
+      }
+    }
+    return bytesRead;
+  }
+
   @Override
   @Nullable
   public Uri getUri() {
@@ -100,4 +128,16 @@ public final class TeeDataSource implements DataSource {
       }
     }
   }
+
+  private void writeToDataSink(ByteBuffer buffer, int position, int length) throws IOException {
+    @Nullable byte[] sinkBuffer = this.sinkBuffer;
+    if (sinkBuffer == null || sinkBuffer.length < length) {
+      sinkBuffer = new byte[length];
+      this.sinkBuffer = sinkBuffer;
+    }
+    // Reading the data again leaves the position of the buffer after it.
+    buffer.position(position);
+    buffer.get(sinkBuffer, /* offset= */ 0, length);
+    dataSink.write(sinkBuffer, /* offset= */ 0, length);
+  }
 }
@@ -20,6 +20,7 @@ import androidx.annotation.WorkerThread;
 import com.google.android.exoplayer2.C;
 import java.io.File;
 import java.io.IOException;
+import java.util.Map;
 import java.util.NavigableSet;
 import java.util.Set;
 
@@ -148,9 +149,24 @@ public interface Cache {
   /** Returns the cache keys of all of the resources that are at least partially cached. */
   Set<String> getKeys();
 
-  /** Returns the total disk space in bytes used by the cache. */
+  /**
+   * Returns the total disk space in bytes used by the cache. If the cache {@link
+   * #isDeduplicatingContent() deduplicates content}, content that's stored once for multiple spans
+   * is only counted once.
+   */
   long getCacheSpace();
 
+  /**
+   * Returns whether the cache stores identical content committed for different spans only once. If
+   * so, writers should compute a SHA-256 hash of the content of each file they write, and pass it
+   * when committing the file.
+   *
+   * <p>The default implementation returns {@code false}.
+   */
+  default boolean isDeduplicatingContent() {
+    return false;
+  }
+
   /**
    * A caller should invoke this method when they require data starting from a given position in a
    * given resource.
@@ -231,6 +247,69 @@ public interface Cache {
   @WorkerThread
   void commitFile(File file, long length) throws CacheException;
 
+  /**
+   * Commits a file into the cache, along with a hash of its content. Must only be called when
+   * holding a corresponding hole {@link CacheSpan} obtained from {@link #startReadWrite(String,
+   * long, long)}.
+   *
+   * <p>The default implementation calls {@link #commitFile(File, long)}, ignoring the hash. Caches
+   * that {@link #isDeduplicatingContent() deduplicate content} use it to find identical content
+   * that's already cached.
+   *
+   * <p>This method may be slow and shouldn't normally be called on the main thread.
+   *
+   * @param file A newly written cache file.
+   * @param length The length of the newly written cache file in bytes.
+   * @param contentHash The SHA-256 hash of the file's content, or {@code null} if unknown.
+   * @throws CacheException If an error is encountered.
+   */
+  @WorkerThread
+  default void commitFile(File file, long length, @Nullable byte[] contentHash)
+      throws CacheException {
+    commitFile(file, length);
+  }
+
+  /**
+   * Commits a batch of files into the cache. Must only be called when holding the corresponding
+   * hole {@link CacheSpan CacheSpans} obtained from {@link #startReadWrite(String, long, long)}.
+   *
+   * <p>The default implementation calls {@link #commitFile(File, long)} for each file. Caches that
+   * persist an index may override it to persist the index once for the whole batch.
+   *
+   * <p>This method may be slow and shouldn't normally be called on the main thread.
+   *
+   * @param files A map from newly written cache files to their lengths in bytes, in the order in
+   *     which the files should be committed.
+   * @throws CacheException If an error is encountered.
+   */
+  @WorkerThread
+  default void commitFiles(Map<File, Long> files) throws CacheException {
+    for (Map.Entry<File, Long> entry : files.entrySet()) {
+      commitFile(entry.getKey(), entry.getValue());
+    }
+  }
+
+  /**
+   * Commits a batch of files into the cache, along with hashes of their content. Must only be
+   * called when holding the corresponding hole {@link CacheSpan CacheSpans} obtained from {@link
+   * #startReadWrite(String, long, long)}.
+   *
+   * <p>The default implementation calls {@link #commitFiles(Map)}, ignoring the hashes.
+   *
+   * <p>This method may be slow and shouldn't normally be called on the main thread.
+   *
+   * @param files A map from newly written cache files to their lengths in bytes, in the order in
+   *     which the files should be committed.
+   * @param contentHashes A map from newly written cache files to the SHA-256 hashes of their
+   *     content. Files whose hashes are unknown may be omitted.
+   * @throws CacheException If an error is encountered.
+   */
+  @WorkerThread
+  default void commitFiles(Map<File, Long> files, Map<File, byte[]> contentHashes)
+      throws CacheException {
+    commitFiles(files);
+  }
+
   /**
    * Releases a {@link CacheSpan} obtained from {@link #startReadWrite(String, long, long)} which
    * corresponded to a hole in the cache.
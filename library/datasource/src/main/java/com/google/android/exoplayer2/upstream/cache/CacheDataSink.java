@@ -31,6 +31,10 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 
 /**
@@ -39,6 +43,16 @@ import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
  * <p>If the {@link DataSpec} passed to {@link #open(DataSpec)} has the {@code length} field set to
  * {@link C#LENGTH_UNSET} and {@link DataSpec#FLAG_DONT_CACHE_IF_LENGTH_UNKNOWN} set, then {@link
  * #write(byte[], int, int)} calls are ignored.
+ *
+ * <p>By default each cache file is committed on the writing thread as soon as it's complete. If a
+ * {@link CacheFileCommitter} is set, completed files are instead committed in groups on the
+ * committer's thread. When the sink is used by a {@link CacheDataSource}, {@link #close()} then
+ * returns without waiting for the files to be committed, and the source's hole span is released by
+ * the committer once they have been. Otherwise {@link #close()} waits for the files written by the
+ * sink to be committed.
+ *
+ * <p>If the cache {@link Cache#isDeduplicatingContent() deduplicates content}, a SHA-256 hash of
+ * each file is computed as it's written, and passed to the cache when the file is committed.
  */
 public final class CacheDataSink implements DataSink {
 
@@ -48,6 +62,7 @@ public final class CacheDataSink implements DataSink {
     private @MonotonicNonNull Cache cache;
     private long fragmentSize;
     private int bufferSize;
+    @Nullable private CacheFileCommitter committer;
 
     /** Creates an instance. */
     public Factory() {
@@ -100,9 +115,25 @@ public final class CacheDataSink implements DataSink {
       return this;
     }
 
+    /**
+     * Sets a {@link CacheFileCommitter} to which completed cache files are handed, or {@code null}
+     * to commit each file synchronously when it's completed. Using a committer moves committing
+     * files off the writing thread, and allows files written by one or more sinks to be
+     * committed in groups. The committer is not released by the sinks.
+     *
+     * <p>The default value is {@code null}.
+     *
+     * @param committer The {@link CacheFileCommitter}, or {@code null}.
+     * @return This factory.
+     */
+    public Factory setCommitter(@Nullable CacheFileCommitter committer) {
+      this.committer = committer;
+      return this;
+    }
+
     @Override
     public DataSink createDataSink() {
-      return new CacheDataSink(checkNotNull(cache), fragmentSize, bufferSize);
+      return new CacheDataSink(checkNotNull(cache), fragmentSize, bufferSize, committer);
     }
   }
 
@@ -125,6 +156,8 @@ public final class CacheDataSink implements DataSink {
   private final Cache cache;
   private final long fragmentSize;
   private final int bufferSize;
+  @Nullable private final CacheFileCommitter committer;
+  private final List<CacheFileCommitter.PendingFile> pendingFiles;
 
   @Nullable private DataSpec dataSpec;
   private long dataSpecFragmentSize;
@@ -133,6 +166,9 @@ public final class CacheDataSink implements DataSink {
   private long outputStreamBytesWritten;
   private long dataSpecBytesWritten;
   private @MonotonicNonNull ReusableBufferedOutputStream bufferedOutputStream;
+  private @MonotonicNonNull MessageDigest contentDigest;
+  private boolean hashingContent;
+  private boolean releasesHoleSpans;
 
   /**
    * Constructs an instance using {@link #DEFAULT_BUFFER_SIZE}.
@@ -159,6 +195,25 @@ public final class CacheDataSink implements DataSink {
    *     value disables buffering.
    */
   public CacheDataSink(Cache cache, long fragmentSize, int bufferSize) {
+    this(cache, fragmentSize, bufferSize, /* committer= */ null);
+  }
+
+  /**
+   * @param cache The cache into which data should be written.
+   * @param fragmentSize For requests that should be fragmented into multiple cache files, this is
+   *     the maximum size of a cache file in bytes. If set to {@link C#LENGTH_UNSET} then no
+   *     fragmentation will occur. Using a small value allows for finer-grained cache eviction
+   *     policies, at the cost of increased overhead both on the cache implementation and the file
+   *     system. Values under {@code (2 * 1024 * 1024)} are not recommended.
+   * @param bufferSize The buffer size in bytes for writing to a cache file. A zero or negative
+   *     value disables buffering.
+   * @param committer A {@link CacheFileCommitter} to which completed cache files are handed, or
+   *     {@code null} to commit each file synchronously when it's completed. If set, {@link
+   *     #close()} blocks until all files written by the sink have been committed, unless the sink
+   *     is used by a {@link CacheDataSource}.
+   */
+  public CacheDataSink(
+      Cache cache, long fragmentSize, int bufferSize, @Nullable CacheFileCommitter committer) {
     Assertions.checkState(
         fragmentSize > 0 || fragmentSize == C.LENGTH_UNSET,
         "fragmentSize must be positive or C.LENGTH_UNSET.");
@@ -172,6 +227,8 @@ public final class CacheDataSink implements DataSink {
     this.cache = checkNotNull(cache);
     this.fragmentSize = fragmentSize == C.LENGTH_UNSET ? Long.MAX_VALUE : fragmentSize;
     this.bufferSize = bufferSize;
+    this.committer = committer;
+    pendingFiles = new ArrayList<>();
   }
 
   @Override
@@ -186,6 +243,10 @@ public final class CacheDataSink implements DataSink {
     this.dataSpecFragmentSize =
         dataSpec.isFlagSet(DataSpec.FLAG_ALLOW_CACHE_FRAGMENTATION) ? fragmentSize : Long.MAX_VALUE;
     dataSpecBytesWritten = 0;
+    hashingContent = cache.isDeduplicatingContent();
+    if (hashingContent && contentDigest == null) {
+      contentDigest = createContentDigest();
+    }
     try {
       openNextOutputStream(dataSpec);
     } catch (IOException e) {
@@ -209,6 +270,9 @@ public final class CacheDataSink implements DataSink {
         int bytesToWrite =
             (int) min(length - bytesWritten, dataSpecFragmentSize - outputStreamBytesWritten);
         castNonNull(outputStream).write(buffer, offset + bytesWritten, bytesToWrite);
+        if (hashingContent) {
+          castNonNull(contentDigest).update(buffer, offset + bytesWritten, bytesToWrite);
+        }
         bytesWritten += bytesToWrite;
         outputStreamBytesWritten += bytesToWrite;
         dataSpecBytesWritten += bytesToWrite;
@@ -224,12 +288,45 @@ public final class CacheDataSink implements DataSink {
       return;
     }
     try {
-      closeCurrentOutputStream();
+      try {
+        closeCurrentOutputStream();
+      } finally {
+        // Files must be committed whilst the caller still holds the corresponding hole span, so
+        // wait for pending commits even if closing the current file failed, unless the committer
+        // releases the hole span.
+        if (!releasesHoleSpans) {
+          awaitPendingCommits();
+        }
+      }
     } catch (IOException e) {
       throw new CacheDataSinkException(e);
     }
   }
 
+  /**
+   * Makes {@link #close()} return without waiting for files to be committed. After closing the
+   * sink, the caller must pass the hole span it holds to {@link
+   * #releaseHoleSpanWhenCommitted(CacheSpan)} rather than releasing it itself.
+   */
+  /* package */ void setReleasesHoleSpans() {
+    releasesHoleSpans = true;
+  }
+
+  /**
+   * Releases a hole span once the files written by the sink since the hole span was last released
+   * have been committed. Must only be called after {@link #setReleasesHoleSpans()}.
+   *
+   * @param holeSpan The hole span held whilst writing through the sink.
+   */
+  /* package */ void releaseHoleSpanWhenCommitted(CacheSpan holeSpan) {
+    if (committer == null || pendingFiles.isEmpty()) {
+      cache.releaseHoleSpan(holeSpan);
+      return;
+    }
+    committer.releaseHoleSpanWhenCommitted(cache, holeSpan, new ArrayList<>(pendingFiles));
+    pendingFiles.clear();
+  }
+
   private void openNextOutputStream(DataSpec dataSpec) throws IOException {
     long length =
         dataSpec.length == C.LENGTH_UNSET
@@ -251,6 +348,9 @@ public final class CacheDataSink implements DataSink {
       outputStream = underlyingFileOutputStream;
     }
     outputStreamBytesWritten = 0;
+    if (hashingContent) {
+      castNonNull(contentDigest).reset();
+    }
   }
 
   private void closeCurrentOutputStream() throws IOException {
@@ -267,11 +367,35 @@ public final class CacheDataSink implements DataSink {
       outputStream = null;
       File fileToCommit = castNonNull(file);
       file = null;
-      if (success) {
-        cache.commitFile(fileToCommit, outputStreamBytesWritten);
-      } else {
+      @Nullable byte[] contentHash = hashingContent ? castNonNull(contentDigest).digest() : null;
+      if (!success) {
         fileToCommit.delete();
+      } else if (committer != null) {
+        pendingFiles.add(
+            committer.enqueue(cache, fileToCommit, outputStreamBytesWritten, contentHash));
+      } else {
+        cache.commitFile(fileToCommit, outputStreamBytesWritten, contentHash);
       }
     }
   }
+
+  private static MessageDigest createContentDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      // Every implementation of the Java platform is required to support SHA-256.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private void awaitPendingCommits() throws IOException {
+    if (committer == null || pendingFiles.isEmpty()) {
+      return;
+    }
+    try {
+      committer.awaitCommit(pendingFiles);
+    } finally {
+      pendingFiles.clear();
+    }
+  }
 }
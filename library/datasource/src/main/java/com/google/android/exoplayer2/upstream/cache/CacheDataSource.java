@@ -32,6 +32,7 @@ import com.google.android.exoplayer2.upstream.DataSourceException;
 import com.google.android.exoplayer2.upstream.DataSpec;
 import com.google.android.exoplayer2.upstream.DummyDataSource;
 import com.google.android.exoplayer2.upstream.FileDataSource;
+import com.google.android.exoplayer2.upstream.MappedFileDataSource;
 import com.google.android.exoplayer2.upstream.PriorityDataSource;
 import com.google.android.exoplayer2.upstream.TeeDataSource;
 import com.google.android.exoplayer2.upstream.TransferListener;
@@ -44,9 +45,11 @@ import java.io.InterruptedIOException;
 import java.lang.annotation.Documented;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 
@@ -65,6 +68,8 @@ public final class CacheDataSource implements DataSource {
         private @MonotonicNonNull Cache cache;
         private DataSource.Factory cacheReadDataSourceFactory;
         @Nullable
+        private MemoryCacheTier memoryCacheTier;
+        @Nullable
         private DataSink.Factory cacheWriteDataSinkFactory;
         private CacheKeyFactory cacheKeyFactory;
         private boolean cacheIsReadOnly;
@@ -77,10 +82,16 @@ public final class CacheDataSource implements DataSource {
         private int flags;
         @Nullable
         private CacheDataSource.EventListener eventListener;
+        @Nullable
+        private Executor readaheadExecutor;
+        private long readaheadLength;
+        private final CacheReadahead.Tracker readaheadTracker;
         
         public Factory() {
             cacheReadDataSourceFactory = new FileDataSource.Factory();
             cacheKeyFactory = CacheKeyFactory.DEFAULT;
+            readaheadLength = DEFAULT_READAHEAD_LENGTH;
+            readaheadTracker = new CacheReadahead.Tracker();
         }
         
         /**
@@ -109,7 +120,9 @@ public final class CacheDataSource implements DataSource {
          * Sets the {@link DataSource.Factory} for {@link DataSource DataSources} for reading from the
          * cache.
          *
-         * <p>The default is a {@link FileDataSource.Factory} in its default configuration.
+         * <p>The default is a {@link FileDataSource.Factory} in its default configuration. Passing a
+         * {@link MappedFileDataSource.Factory} allows {@link CacheDataSource#read(ByteBuffer)} to copy
+         * cached data straight from a mapping of the cache file.
          *
          * @param cacheReadDataSourceFactory The {@link DataSource.Factory} for reading from the cache.
          * @return This factory.
@@ -119,6 +132,24 @@ public final class CacheDataSource implements DataSource {
             return this;
         }
         
+        /**
+         * Sets a {@link MemoryCacheTier} in which to hold small, recently read cache files, so that
+         * reading them again doesn't require reading from disk.
+         *
+         * <p>Reads that aren't served by the tier are made using {@link DataSource DataSources}
+         * created by the factory set by {@link #setCacheReadDataSourceFactory}.
+         *
+         * <p>The default is {@code null}.
+         *
+         * @param memoryCacheTier The {@link MemoryCacheTier}, or {@code null} to read directly from
+         *                        disk.
+         * @return This factory.
+         */
+        public Factory setMemoryCacheTier(@Nullable MemoryCacheTier memoryCacheTier) {
+            this.memoryCacheTier = memoryCacheTier;
+            return this;
+        }
+        
         /**
          * Sets the {@link DataSink.Factory} for generating {@link DataSink DataSinks} for writing data
          * to the cache. Passing {@code null} causes the cache to be read-only.
@@ -246,12 +277,66 @@ public final class CacheDataSource implements DataSource {
             return this;
         }
         
+        /**
+         * Sets an {@link Executor} on which to read ahead the next uncached range of a resource,
+         * whilst the cached data that precedes it is being read.
+         *
+         * <p>When a created {@link CacheDataSource} starts reading a cached span, the hole that
+         * follows it is requested from upstream and written to the cache in the background, so that
+         * the read doesn't stall when it reaches the end of the span. If the read reaches the hole
+         * whilst it's still being read ahead, it waits for the background request to finish rather
+         * than competing with it. Other instances created by this factory that reach the hole wait
+         * in the same way, rather than bypassing the cache whilst the hole is locked. Closing an
+         * instance cancels its readahead. Readahead is only used by instances created by {@link
+         * #createDataSource()}, and only if the cache is writable.
+         *
+         * <p>The default is {@code null}, meaning that nothing is read ahead.
+         *
+         * @param readaheadExecutor The {@link Executor} on which to read ahead, or {@code null} to
+         *                          disable readahead.
+         * @return This factory.
+         */
+        public Factory setReadaheadExecutor(@Nullable Executor readaheadExecutor) {
+            this.readaheadExecutor = readaheadExecutor;
+            return this;
+        }
+        
+        /**
+         * Sets the maximum number of bytes that are read ahead at a time. Only used if an executor
+         * is set by calling {@link #setReadaheadExecutor}.
+         *
+         * <p>The default is {@link #DEFAULT_READAHEAD_LENGTH}.
+         *
+         * @param readaheadLength The maximum number of bytes to read ahead at a time.
+         * @return This factory.
+         */
+        public Factory setReadaheadLength(long readaheadLength) {
+            Assertions.checkArgument(readaheadLength > 0);
+            this.readaheadLength = readaheadLength;
+            return this;
+        }
+        
         @Override
         public CacheDataSource createDataSource() {
+            @Nullable CacheReadahead readahead = null;
+            if (readaheadExecutor != null && upstreamDataSourceFactory != null && !cacheIsReadOnly) {
+                CacheDataSource readaheadDataSource =
+                        createDataSourceInternal(
+                                upstreamDataSourceFactory.createDataSource(),
+                                flags | FLAG_BLOCK_ON_CACHE,
+                                upstreamPriority,
+                                /* eventListener= */ null,
+                                /* readahead= */ null);
+                readahead =
+                        new CacheReadahead(
+                                readaheadDataSource, readaheadExecutor, readaheadLength, readaheadTracker);
+            }
             return createDataSourceInternal(
                     upstreamDataSourceFactory != null ? upstreamDataSourceFactory.createDataSource() : null,
                     flags,
-                    upstreamPriority);
+                    upstreamPriority,
+                    eventListener,
+                    readahead);
         }
         
         /**
@@ -269,7 +354,9 @@ public final class CacheDataSource implements DataSource {
             return createDataSourceInternal(
                     upstreamDataSourceFactory != null ? upstreamDataSourceFactory.createDataSource() : null,
                     flags | FLAG_BLOCK_ON_CACHE,
-                    C.PRIORITY_DOWNLOAD);
+                    C.PRIORITY_DOWNLOAD,
+                    eventListener,
+                    /* readahead= */ null);
         }
         
         /**
@@ -288,11 +375,19 @@ public final class CacheDataSource implements DataSource {
          */
         public CacheDataSource createDataSourceForRemovingDownload() {
             return createDataSourceInternal(
-                    /* upstreamDataSource= */ null, flags | FLAG_BLOCK_ON_CACHE, C.PRIORITY_DOWNLOAD);
+                    /* upstreamDataSource= */ null,
+                    flags | FLAG_BLOCK_ON_CACHE,
+                    C.PRIORITY_DOWNLOAD,
+                    eventListener,
+                    /* readahead= */ null);
         }
         
         private CacheDataSource createDataSourceInternal(
-                @Nullable DataSource upstreamDataSource, @Flags int flags, int upstreamPriority) {
+                @Nullable DataSource upstreamDataSource,
+                @Flags int flags,
+                int upstreamPriority,
+                @Nullable EventListener eventListener,
+                @Nullable CacheReadahead readahead) {
             Cache cache = checkNotNull(this.cache);
             @Nullable DataSink cacheWriteDataSink;
             if (cacheIsReadOnly || upstreamDataSource == null) {
@@ -302,16 +397,22 @@ public final class CacheDataSource implements DataSource {
             } else {
                 cacheWriteDataSink = new CacheDataSink.Factory().setCache(cache).createDataSink();
             }
+            DataSource cacheReadDataSource = cacheReadDataSourceFactory.createDataSource();
+            if (memoryCacheTier != null) {
+                cacheReadDataSource =
+                        new MemoryCacheTierDataSource(memoryCacheTier, cacheReadDataSource);
+            }
             return new CacheDataSource(
                     cache,
                     upstreamDataSource,
-                    cacheReadDataSourceFactory.createDataSource(),
+                    cacheReadDataSource,
                     cacheWriteDataSink,
                     cacheKeyFactory,
                     flags,
                     upstreamPriorityTaskManager,
                     upstreamPriority,
-                    eventListener);
+                    eventListener,
+                    readahead);
         }
     }
     
@@ -402,14 +503,24 @@ public final class CacheDataSource implements DataSource {
      */
     private static final long MIN_READ_BEFORE_CHECKING_CACHE = 100 * 1024;
     
+    /**
+     * The default maximum number of bytes that are read ahead at a time, if readahead is enabled by
+     * calling {@link Factory#setReadaheadExecutor}.
+     */
+    public static final long DEFAULT_READAHEAD_LENGTH = 512 * 1024;
+    
     private final Cache cache;
     private final DataSource cacheReadDataSource;
     @Nullable
     private final DataSource cacheWriteDataSource;
+    @Nullable
+    private final CacheDataSink cacheDataSink;
     private final DataSource upstreamDataSource;
     private final CacheKeyFactory cacheKeyFactory;
     @Nullable
     private final EventListener eventListener;
+    @Nullable
+    private final CacheReadahead readahead;
     
     private final boolean blockOnCache;
     private final boolean ignoreCacheOnError;
@@ -530,7 +641,8 @@ public final class CacheDataSource implements DataSource {
                 flags,
                 /* upstreamPriorityTaskManager= */ null,
                 /* upstreamPriority= */ C.PRIORITY_PLAYBACK,
-                eventListener);
+                eventListener,
+                /* readahead= */ null);
     }
     
     private CacheDataSource(
@@ -542,7 +654,8 @@ public final class CacheDataSource implements DataSource {
             @Flags int flags,
             @Nullable PriorityTaskManager upstreamPriorityTaskManager,
             int upstreamPriority,
-            @Nullable EventListener eventListener) {
+            @Nullable EventListener eventListener,
+            @Nullable CacheReadahead readahead) {
         this.cache = cache;
         this.cacheReadDataSource = cacheReadDataSource;
         this.cacheKeyFactory = cacheKeyFactory != null ? cacheKeyFactory : CacheKeyFactory.DEFAULT;
@@ -561,11 +674,21 @@ public final class CacheDataSource implements DataSource {
                     cacheWriteDataSink != null
                             ? new TeeDataSource(upstreamDataSource, cacheWriteDataSink)
                             : null;
+            if (cacheWriteDataSink instanceof CacheDataSink) {
+                // Let the sink's committer release hole spans, so that closing the sink doesn't
+                // wait for its files to be committed.
+                cacheDataSink = (CacheDataSink) cacheWriteDataSink;
+                cacheDataSink.setReleasesHoleSpans();
+            } else {
+                cacheDataSink = null;
+            }
         } else {
             this.upstreamDataSource = DummyDataSource.INSTANCE;
             this.cacheWriteDataSource = null;
+            this.cacheDataSink = null;
         }
         this.eventListener = eventListener;
+        this.readahead = readahead;
     }
     
     /**
@@ -637,6 +760,30 @@ public final class CacheDataSource implements DataSource {
         if (length == 0) {
             return 0;
         }
+        return readInternal(buffer, offset, length, /* byteBuffer= */ null);
+    }
+    
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The buffer is passed to the {@link DataSource} that is currently being read from, so that
+     * it's read into directly from the cache file or from upstream.
+     */
+    @Override
+    public int read(ByteBuffer buffer) throws IOException {
+        int length = buffer.remaining();
+        if (length == 0) {
+            return 0;
+        }
+        return readInternal(/* buffer= */ null, /* offset= */ 0, length, buffer);
+    }
+    
+    /**
+     * Reads into {@code byteBuffer} if it's not null, or into {@code buffer} otherwise.
+     */
+    private int readInternal(
+            @Nullable byte[] buffer, int offset, int length, @Nullable ByteBuffer byteBuffer)
+            throws IOException {
         if (bytesRemaining == 0) {
             return C.RESULT_END_OF_INPUT;
         }
@@ -646,7 +793,11 @@ public final class CacheDataSource implements DataSource {
             if (readPosition >= checkCachePosition) {
                 openNextSource(requestDataSpec, true);
             }
-            int bytesRead = checkNotNull(currentDataSource).read(buffer, offset, length);
+            DataSource currentDataSource = checkNotNull(this.currentDataSource);
+            int bytesRead =
+                    byteBuffer != null
+                            ? currentDataSource.read(byteBuffer)
+                            : currentDataSource.read(castNonNull(buffer), offset, length);
             if (bytesRead != C.RESULT_END_OF_INPUT) {
                 if (isReadingFromCache()) {
                     totalCachedBytesRead += bytesRead;
@@ -666,7 +817,7 @@ public final class CacheDataSource implements DataSource {
             } else if (bytesRemaining > 0 || bytesRemaining == C.LENGTH_UNSET) {
                 closeCurrentSource();
                 openNextSource(requestDataSpec, false);
-                return read(buffer, offset, length);
+                return readInternal(buffer, offset, length, byteBuffer);
             }
             return bytesRead;
         } catch (Throwable e) {
@@ -695,6 +846,9 @@ public final class CacheDataSource implements DataSource {
         actualUri = null;
         readPosition = 0;
         notifyBytesRead();
+        if (readahead != null) {
+            readahead.cancel();
+        }
         try {
             closeCurrentSource();
         } catch (Throwable e) {
@@ -721,6 +875,11 @@ public final class CacheDataSource implements DataSource {
     private void openNextSource(DataSpec requestDataSpec, boolean checkCache) throws IOException {
         @Nullable CacheSpan nextSpan;
         String key = castNonNull(requestDataSpec.key);
+        if (readahead != null && !currentRequestIgnoresCache) {
+            // Wait for data that's being read ahead, rather than bypassing the cache because it's
+            // locked.
+            readahead.maybeAwait(key, readPosition);
+        }
         if (currentRequestIgnoresCache) {
             nextSpan = null;
         } else if (blockOnCache) {
@@ -760,6 +919,14 @@ public final class CacheDataSource implements DataSource {
                             .setLength(length)
                             .build();
             nextDataSource = cacheReadDataSource;
+            if (readahead != null) {
+                readahead.maybeStart(
+                        requestDataSpec,
+                        /* position= */ nextSpan.position + nextSpan.length,
+                        /* endPosition= */ bytesRemaining == C.LENGTH_UNSET
+                                ? C.POSITION_UNSET
+                                : readPosition + bytesRemaining);
+            }
         } else {
             // Data is not cached, and data is not locked, read from upstream with cache backing.
             long length;
@@ -862,13 +1029,18 @@ public final class CacheDataSource implements DataSource {
         if (currentDataSource == null) {
             return;
         }
+        boolean wasWritingToCache = isWritingToCache();
         try {
             currentDataSource.close();
         } finally {
             currentDataSpec = null;
             currentDataSource = null;
             if (currentHoleSpan != null) {
-                cache.releaseHoleSpan(currentHoleSpan);
+                if (wasWritingToCache && cacheDataSink != null) {
+                    cacheDataSink.releaseHoleSpanWhenCommitted(currentHoleSpan);
+                } else {
+                    cache.releaseHoleSpan(currentHoleSpan);
+                }
                 currentHoleSpan = null;
             }
         }
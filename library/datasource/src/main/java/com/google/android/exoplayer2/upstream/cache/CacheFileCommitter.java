@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import static com.google.android.exoplayer2.util.Assertions.checkState;
+import static java.lang.Math.max;
+
+import android.os.SystemClock;
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.util.Log;
+import com.google.android.exoplayer2.util.Util;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Commits files written by {@link CacheDataSink} instances on a background thread.
+ *
+ * <p>Files handed to the committer are committed in groups. A file is committed at most {@code
+ * durabilityWindowMs} after it was handed over, or earlier if the sink that wrote it is closed.
+ * All files that are pending at that point are committed to their {@link Cache} with a single
+ * {@link Cache#commitFiles(Map)} call, so that the cache index is persisted once per group rather
+ * than once per file. A single committer may be shared by any number of sinks, in which case
+ * concurrent writes to the same cache share their index writes.
+ *
+ * <p>Like files committed directly by a {@link CacheDataSink}, files aren't synced to disk before
+ * they're committed by default, so data written shortly before a power loss may be missing from
+ * files that the index refers to. Syncing can be enabled with {@link #CacheFileCommitter(long,
+ * boolean)}, at the cost of one sync per file.
+ *
+ * <p>{@link #release()} must be called when the committer is no longer needed.
+ */
+public final class CacheFileCommitter {
+
+  /** A file that has been handed to the committer. */
+  /* package */ static final class PendingFile {
+
+    public final Cache cache;
+    public final File file;
+    public final long length;
+    @Nullable public final byte[] contentHash;
+    public final long enqueueTimeMs;
+
+    private boolean committed;
+    @Nullable private IOException error;
+
+    private PendingFile(
+        Cache cache, File file, long length, @Nullable byte[] contentHash, long enqueueTimeMs) {
+      this.cache = cache;
+      this.file = file;
+      this.length = length;
+      this.contentHash = contentHash;
+      this.enqueueTimeMs = enqueueTimeMs;
+    }
+  }
+
+  /** A hole span that's released once the files written whilst holding it have been committed. */
+  private static final class PendingRelease {
+
+    public final Cache cache;
+    public final CacheSpan holeSpan;
+    public final List<PendingFile> files;
+
+    public PendingRelease(Cache cache, CacheSpan holeSpan, List<PendingFile> files) {
+      this.cache = cache;
+      this.holeSpan = holeSpan;
+      this.files = files;
+    }
+  }
+
+  /** Default durability window in milliseconds. */
+  public static final long DEFAULT_DURABILITY_WINDOW_MS = 1000;
+
+  private static final String TAG = "CacheFileCommitter";
+
+  private final long durabilityWindowMs;
+  private final boolean syncFiles;
+  private final ExecutorService executorService;
+  private final ArrayDeque<PendingFile> pendingFiles;
+  private final ArrayList<PendingRelease> pendingReleases;
+
+  private boolean flushRequested;
+  private boolean released;
+
+  /** Creates an instance using {@link #DEFAULT_DURABILITY_WINDOW_MS}. */
+  public CacheFileCommitter() {
+    this(DEFAULT_DURABILITY_WINDOW_MS);
+  }
+
+  /**
+   * Creates an instance that doesn't sync files before committing them.
+   *
+   * @param durabilityWindowMs The maximum time in milliseconds for which a completed file may
+   *     remain uncommitted while the sink that wrote it is still open. Longer windows allow more
+   *     files to be committed together, at the cost of losing more data if the process dies.
+   */
+  public CacheFileCommitter(long durabilityWindowMs) {
+    this(durabilityWindowMs, /* syncFiles= */ false);
+  }
+
+  /**
+   * Creates an instance.
+   *
+   * @param durabilityWindowMs The maximum time in milliseconds for which a completed file may
+   *     remain uncommitted while the sink that wrote it is still open. Longer windows allow more
+   *     files to be committed together, at the cost of losing more data if the process dies.
+   * @param syncFiles Whether each file's data is synced to disk before the file is committed, so
+   *     that the index never refers to data that's lost by a power failure. Each file is synced
+   *     separately, which may be slow on some storage.
+   */
+  public CacheFileCommitter(long durabilityWindowMs, boolean syncFiles) {
+    checkState(durabilityWindowMs >= 0);
+    this.durabilityWindowMs = durabilityWindowMs;
+    this.syncFiles = syncFiles;
+    pendingFiles = new ArrayDeque<>();
+    pendingReleases = new ArrayList<>();
+    executorService = Util.newSingleThreadExecutor("ExoPlayer:CacheFileCommitter");
+    executorService.execute(this::commitLoop);
+  }
+
+  /**
+   * Releases the committer. Files that are still pending are committed before the background
+   * thread exits. No further files may be handed to the committer.
+   */
+  public void release() {
+    synchronized (this) {
+      released = true;
+      notifyAll();
+    }
+    executorService.shutdown();
+  }
+
+  /**
+   * Hands a completed file to the committer.
+   *
+   * @param cache The cache into which the file should be committed.
+   * @param file The file.
+   * @param length The length of the file in bytes.
+   * @param contentHash The hash of the file's content, or {@code null} if it wasn't computed.
+   * @return A {@link PendingFile} to pass to {@link #awaitCommit(List)}.
+   */
+  /* package */ synchronized PendingFile enqueue(
+      Cache cache, File file, long length, @Nullable byte[] contentHash) {
+    checkState(!released);
+    PendingFile pendingFile =
+        new PendingFile(cache, file, length, contentHash, SystemClock.elapsedRealtime());
+    pendingFiles.add(pendingFile);
+    notifyAll();
+    return pendingFile;
+  }
+
+  /**
+   * Requests that all pending files are committed immediately, and blocks until the given files
+   * have been committed.
+   *
+   * @param files The files to wait for.
+   * @throws IOException If syncing or committing any of the files failed, or if the calling thread
+   *     was interrupted.
+   */
+  /* package */ synchronized void awaitCommit(List<PendingFile> files) throws IOException {
+    flushRequested = true;
+    notifyAll();
+    @Nullable IOException error = null;
+    try {
+      for (int i = 0; i < files.size(); i++) {
+        PendingFile file = files.get(i);
+        while (!file.committed) {
+          wait();
+        }
+        if (error == null) {
+          error = file.error;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  /**
+   * Requests that all pending files are committed immediately, and releases a hole span once the
+   * given files have been committed. Doesn't block.
+   *
+   * @param cache The cache from which the hole span was obtained.
+   * @param holeSpan The hole span to release.
+   * @param files The files written whilst holding the hole span.
+   */
+  /* package */ void releaseHoleSpanWhenCommitted(
+      Cache cache, CacheSpan holeSpan, List<PendingFile> files) {
+    PendingRelease pendingRelease = new PendingRelease(cache, holeSpan, files);
+    synchronized (this) {
+      if (!isCommitted(files)) {
+        pendingReleases.add(pendingRelease);
+        flushRequested = true;
+        notifyAll();
+        return;
+      }
+    }
+    releaseHoleSpan(pendingRelease);
+  }
+
+  private void commitLoop() {
+    while (true) {
+      ArrayList<PendingFile> group;
+      synchronized (this) {
+        while (!shouldCommit()) {
+          if (released && pendingFiles.isEmpty()) {
+            return;
+          }
+          try {
+            if (pendingFiles.isEmpty()) {
+              wait();
+            } else {
+              long commitTimeMs = pendingFiles.getFirst().enqueueTimeMs + durabilityWindowMs;
+              wait(max(1, commitTimeMs - SystemClock.elapsedRealtime()));
+            }
+          } catch (InterruptedException e) {
+            // Commit whatever is pending and exit, so that waiting sinks are not blocked forever.
+            released = true;
+          }
+        }
+        group = new ArrayList<>(pendingFiles);
+        pendingFiles.clear();
+        flushRequested = false;
+      }
+      commitGroup(group, syncFiles);
+      ArrayList<PendingRelease> releases = new ArrayList<>();
+      synchronized (this) {
+        for (int i = 0; i < group.size(); i++) {
+          group.get(i).committed = true;
+        }
+        for (int i = pendingReleases.size() - 1; i >= 0; i--) {
+          if (isCommitted(pendingReleases.get(i).files)) {
+            releases.add(pendingReleases.remove(i));
+          }
+        }
+        notifyAll();
+      }
+      // Release hole spans outside of the lock, since doing so takes the cache's lock.
+      for (int i = 0; i < releases.size(); i++) {
+        releaseHoleSpan(releases.get(i));
+      }
+    }
+  }
+
+  private static boolean isCommitted(List<PendingFile> files) {
+    for (int i = 0; i < files.size(); i++) {
+      if (!files.get(i).committed) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void releaseHoleSpan(PendingRelease pendingRelease) {
+    for (int i = 0; i < pendingRelease.files.size(); i++) {
+      @Nullable IOException error = pendingRelease.files.get(i).error;
+      if (error != null) {
+        Log.w(TAG, "Failed to commit cache file", error);
+      }
+    }
+    pendingRelease.cache.releaseHoleSpan(pendingRelease.holeSpan);
+  }
+
+  private boolean shouldCommit() {
+    if (pendingFiles.isEmpty()) {
+      return false;
+    }
+    return flushRequested
+        || released
+        || SystemClock.elapsedRealtime()
+            >= pendingFiles.getFirst().enqueueTimeMs + durabilityWindowMs;
+  }
+
+  private static void commitGroup(List<PendingFile> group, boolean syncFiles) {
+    // If syncing, sync every file before committing any of them, so that the index never refers to
+    // data that hasn't reached the disk.
+    Map<Cache, List<PendingFile>> filesByCache = new LinkedHashMap<>();
+    for (int i = 0; i < group.size(); i++) {
+      PendingFile pendingFile = group.get(i);
+      if (syncFiles) {
+        try {
+          syncFile(pendingFile.file);
+        } catch (IOException e) {
+          pendingFile.error = e;
+          pendingFile.file.delete();
+          continue;
+        }
+      }
+      List<PendingFile> cacheFiles = filesByCache.get(pendingFile.cache);
+      if (cacheFiles == null) {
+        cacheFiles = new ArrayList<>();
+        filesByCache.put(pendingFile.cache, cacheFiles);
+      }
+      cacheFiles.add(pendingFile);
+    }
+    for (Map.Entry<Cache, List<PendingFile>> entry : filesByCache.entrySet()) {
+      List<PendingFile> cacheFiles = entry.getValue();
+      Map<File, Long> filesToCommit = new LinkedHashMap<>();
+      Map<File, byte[]> contentHashes = new HashMap<>();
+      for (int i = 0; i < cacheFiles.size(); i++) {
+        PendingFile pendingFile = cacheFiles.get(i);
+        filesToCommit.put(pendingFile.file, pendingFile.length);
+        if (pendingFile.contentHash != null) {
+          contentHashes.put(pendingFile.file, pendingFile.contentHash);
+        }
+      }
+      try {
+        if (contentHashes.isEmpty()) {
+          entry.getKey().commitFiles(filesToCommit);
+        } else {
+          entry.getKey().commitFiles(filesToCommit, contentHashes);
+        }
+      } catch (IOException | RuntimeException e) {
+        IOException error = e instanceof IOException ? (IOException) e : new IOException(e);
+        for (int i = 0; i < cacheFiles.size(); i++) {
+          cacheFiles.get(i).error = error;
+        }
+      }
+    }
+  }
+
+  private static void syncFile(File file) throws IOException {
+    if (!file.exists()) {
+      // The cache directory may have been deleted. Cache.commitFiles ignores missing files.
+      return;
+    }
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      // The file's length is flushed with its data, which is all that's needed to read it back.
+      randomAccessFile.getChannel().force(/* metaData= */ false);
+    } finally {
+      randomAccessFile.close();
+    }
+  }
+}
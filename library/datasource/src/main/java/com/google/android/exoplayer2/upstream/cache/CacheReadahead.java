@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import static com.google.android.exoplayer2.util.Assertions.checkNotNull;
+import static java.lang.Math.min;
+
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.util.RunnableFutureTask;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Speculatively caches the start of the next uncached range of a resource, whilst a {@link
+ * CacheDataSource} is reading the cached data that precedes it.
+ *
+ * <p>Without readahead, a read that crosses from cached data into a hole stalls whilst the upstream
+ * connection is established. With readahead the connection is established in the background, so
+ * by the time the reader reaches the hole the data is normally cached or being cached already.
+ *
+ * <p>At most one range is read ahead at a time by each instance. Instances that share a {@link
+ * Tracker} wait for each other's ranges too, rather than bypassing the cache whilst they're locked.
+ * Errors are ignored, since the reader falls back to reading from upstream itself.
+ */
+/* package */ final class CacheReadahead {
+
+  /** Tracks the ranges being read ahead by any number of instances. */
+  public static final class Tracker {
+
+    private final List<ReadaheadTask> tasks;
+
+    public Tracker() {
+      tasks = new ArrayList<>();
+    }
+
+    private synchronized void add(ReadaheadTask task) {
+      tasks.add(task);
+    }
+
+    private synchronized void remove(ReadaheadTask task) {
+      tasks.remove(task);
+    }
+
+    @Nullable
+    private synchronized ReadaheadTask get(Cache cache, String key, long position) {
+      for (int i = 0; i < tasks.size(); i++) {
+        ReadaheadTask task = tasks.get(i);
+        if (task.contains(cache, key, position)) {
+          return task;
+        }
+      }
+      return null;
+    }
+  }
+
+  private final Cache cache;
+  private final CacheDataSource dataSource;
+  private final Executor executor;
+  private final long maxLength;
+  private final Tracker tracker;
+
+  @Nullable private ReadaheadTask task;
+
+  /**
+   * Creates an instance.
+   *
+   * @param dataSource The {@link CacheDataSource} used to read ahead. It must write to the cache,
+   *     and should set {@link CacheDataSource#FLAG_BLOCK_ON_CACHE}.
+   * @param executor The {@link Executor} on which ranges are read ahead.
+   * @param maxLength The maximum number of bytes to read ahead at a time.
+   * @param tracker The {@link Tracker} of ranges being read ahead by this and other instances.
+   */
+  public CacheReadahead(
+      CacheDataSource dataSource, Executor executor, long maxLength, Tracker tracker) {
+    this.cache = dataSource.getCache();
+    this.dataSource = dataSource;
+    this.executor = executor;
+    this.maxLength = maxLength;
+    this.tracker = tracker;
+  }
+
+  /**
+   * Starts reading ahead from the given position if it's the start of a hole, and if neither this
+   * instance nor another one is already reading ahead from it.
+   *
+   * @param requestDataSpec The {@link DataSpec} of the request being read, with its key set.
+   * @param position The position from which to read ahead.
+   * @param endPosition The end position of the request being read, or {@link C#POSITION_UNSET} if
+   *     unbounded.
+   */
+  public void maybeStart(DataSpec requestDataSpec, long position, long endPosition) {
+    if ((task != null && !task.isDone())
+        || (endPosition != C.POSITION_UNSET && position >= endPosition)) {
+      return;
+    }
+    String key = checkNotNull(requestDataSpec.key);
+    if (tracker.get(cache, key, position) != null) {
+      return;
+    }
+    long maxLength = this.maxLength;
+    if (endPosition != C.POSITION_UNSET) {
+      maxLength = min(maxLength, endPosition - position);
+    }
+    long holeLength = -cache.getCachedLength(key, position, maxLength);
+    if (holeLength <= 0) {
+      return;
+    }
+    DataSpec dataSpec =
+        requestDataSpec.buildUpon().setPosition(position).setLength(holeLength).build();
+    CacheWriter cacheWriter =
+        new CacheWriter(
+            dataSource, dataSpec, /* temporaryBuffer= */ null, /* progressListener= */ null);
+    ReadaheadTask task = new ReadaheadTask(tracker, cache, cacheWriter, dataSpec);
+    this.task = task;
+    tracker.add(task);
+    executor.execute(task);
+  }
+
+  /**
+   * Waits for the range being read ahead by this or another instance to be cached, if it contains
+   * the given position. If reading ahead hasn't started yet then it's canceled instead, since the
+   * caller can establish its own connection just as quickly.
+   *
+   * @param key The cache key of the resource being read.
+   * @param position The position that's about to be read.
+   * @throws InterruptedIOException If the thread is interrupted whilst waiting.
+   */
+  public void maybeAwait(String key, long position) throws InterruptedIOException {
+    @Nullable ReadaheadTask task = tracker.get(cache, key, position);
+    if (task == null) {
+      return;
+    }
+    if (!task.isStarted) {
+      // If the task starts concurrently then canceling it stops it promptly instead.
+      task.cancel(/* interruptIfRunning= */ false);
+    }
+    try {
+      task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    } catch (ExecutionException | CancellationException e) {
+      // Ignore. The caller will read from upstream itself.
+    }
+  }
+
+  /**
+   * Cancels reading ahead by this instance, if a range is being read ahead. Doesn't wait for the
+   * range to stop being read ahead.
+   */
+  public void cancel() {
+    // The task isn't cleared, so that this instance doesn't start reading ahead again until the
+    // data source that's used to read ahead has been closed.
+    @Nullable ReadaheadTask task = this.task;
+    if (task != null) {
+      task.cancel(/* interruptIfRunning= */ false);
+    }
+  }
+
+  private static final class ReadaheadTask extends RunnableFutureTask<Void, IOException> {
+
+    private final Tracker tracker;
+    private final Cache cache;
+    private final CacheWriter cacheWriter;
+    private final String key;
+    private final long position;
+    private final long length;
+
+    private volatile boolean isStarted;
+
+    public ReadaheadTask(Tracker tracker, Cache cache, CacheWriter cacheWriter, DataSpec dataSpec) {
+      this.tracker = tracker;
+      this.cache = cache;
+      this.cacheWriter = cacheWriter;
+      key = checkNotNull(dataSpec.key);
+      position = dataSpec.position;
+      length = dataSpec.length;
+    }
+
+    public boolean contains(Cache cache, String key, long position) {
+      return this.cache == cache
+          && this.key.equals(key)
+          && this.position <= position
+          && position < this.position + length;
+    }
+
+    @Override
+    protected Void doWork() throws IOException {
+      isStarted = true;
+      try {
+        cacheWriter.cache();
+      } finally {
+        tracker.remove(this);
+      }
+      return null;
+    }
+
+    @Override
+    protected void cancelWork() {
+      // If the task hasn't started then it never will, so it's removed here.
+      tracker.remove(this);
+      cacheWriter.cancel();
+    }
+  }
+}
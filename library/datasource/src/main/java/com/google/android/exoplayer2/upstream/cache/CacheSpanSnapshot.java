@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import static com.google.android.exoplayer2.util.Assertions.checkNotNull;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+import com.google.android.exoplayer2.util.AtomicFile;
+import com.google.android.exoplayer2.util.Util;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A snapshot of the cached spans of a {@link SimpleCache}, written when the cache is released.
+ *
+ * <p>The snapshot records the file, length and last touch timestamp of every span, so that a cache
+ * that was released cleanly can be initialized without listing and inspecting every file in the
+ * cache directory. The snapshot is deleted when it's read, so that it's only ever trusted for the
+ * session that immediately follows a clean release.
+ */
+/* package */ final class CacheSpanSnapshot {
+
+  /** A span recorded in a snapshot. */
+  public static final class Entry {
+
+    /** The cache file. */
+    public final File file;
+    /** The length of the cache file in bytes. */
+    public final long length;
+    /** The last touch timestamp of the span. */
+    public final long lastTouchTimestamp;
+
+    public Entry(File file, long length, long lastTouchTimestamp) {
+      this.file = file;
+      this.length = length;
+      this.lastTouchTimestamp = lastTouchTimestamp;
+    }
+  }
+
+  /* package */ static final String FILE_NAME = "cached_spans.snapshot";
+
+  private static final int VERSION = 1;
+
+  private final File cacheDir;
+  private final AtomicFile atomicFile;
+
+  /** Returns whether the file is a snapshot file. */
+  public static boolean isSnapshotFile(String fileName) {
+    // Atomic file backups add additional suffixes to the file name.
+    return fileName.startsWith(FILE_NAME);
+  }
+
+  /**
+   * Creates an instance.
+   *
+   * @param cacheDir The cache directory, in which the snapshot is stored.
+   */
+  public CacheSpanSnapshot(File cacheDir) {
+    this.cacheDir = cacheDir;
+    atomicFile = new AtomicFile(new File(cacheDir, FILE_NAME));
+  }
+
+  /**
+   * Reads and deletes the snapshot.
+   *
+   * @param uid The UID of the cache. A snapshot written for a different UID is ignored.
+   * @return The recorded spans, or {@code null} if there's no valid snapshot, or if the snapshot
+   *     could not be deleted.
+   */
+  @WorkerThread
+  @Nullable
+  public List<Entry> readAndDelete(long uid) {
+    if (!atomicFile.exists()) {
+      return null;
+    }
+    @Nullable List<Entry> entries = read(uid);
+    atomicFile.delete();
+    if (atomicFile.exists()) {
+      // Trusting a snapshot that outlives the next session could resurrect stale spans.
+      return null;
+    }
+    return entries;
+  }
+
+  /**
+   * Writes the snapshot.
+   *
+   * @param uid The UID of the cache.
+   * @param contents The contents whose spans should be recorded.
+   * @throws IOException If an error occurs writing the snapshot.
+   */
+  @WorkerThread
+  public void write(long uid, Collection<CachedContent> contents) throws IOException {
+    @Nullable DataOutputStream output = null;
+    try {
+      OutputStream outputStream = new BufferedOutputStream(atomicFile.startWrite());
+      CRC32 crc32 = new CRC32();
+      output = new DataOutputStream(new CheckedOutputStream(outputStream, crc32));
+      output.writeInt(VERSION);
+      output.writeLong(uid);
+      List<SimpleCacheSpan> spans = new ArrayList<>();
+      for (CachedContent cachedContent : contents) {
+        spans.addAll(cachedContent.getSpans());
+      }
+      output.writeInt(spans.size());
+      for (int i = 0; i < spans.size(); i++) {
+        SimpleCacheSpan span = spans.get(i);
+        File file = checkNotNull(span.file);
+        @Nullable File parent = file.getParentFile();
+        output.writeUTF(parent == null || parent.equals(cacheDir) ? "" : parent.getName());
+        output.writeUTF(file.getName());
+        output.writeLong(span.length);
+        output.writeLong(span.lastTouchTimestamp);
+      }
+      output.flush();
+      new DataOutputStream(outputStream).writeInt((int) crc32.getValue());
+      atomicFile.endWrite(output);
+      output = null;
+    } finally {
+      Util.closeQuietly(output);
+    }
+  }
+
+  /** Deletes the snapshot. */
+  @WorkerThread
+  public void delete() {
+    atomicFile.delete();
+  }
+
+  @Nullable
+  private List<Entry> read(long uid) {
+    @Nullable InputStream inputStream = null;
+    try {
+      inputStream = new BufferedInputStream(atomicFile.openRead());
+      CRC32 crc32 = new CRC32();
+      DataInputStream input = new DataInputStream(new CheckedInputStream(inputStream, crc32));
+      if (input.readInt() != VERSION || input.readLong() != uid) {
+        return null;
+      }
+      int spanCount = input.readInt();
+      if (spanCount < 0) {
+        return null;
+      }
+      List<Entry> entries = new ArrayList<>();
+      for (int i = 0; i < spanCount; i++) {
+        String parentName = input.readUTF();
+        String fileName = input.readUTF();
+        long length = input.readLong();
+        long lastTouchTimestamp = input.readLong();
+        File parent = parentName.isEmpty() ? cacheDir : new File(cacheDir, parentName);
+        entries.add(new Entry(new File(parent, fileName), length, lastTouchTimestamp));
+      }
+      int checksum = (int) crc32.getValue();
+      DataInputStream trailer = new DataInputStream(inputStream);
+      if (trailer.readInt() != checksum || trailer.read() != -1) {
+        return null;
+      }
+      return entries;
+    } catch (IOException e) {
+      return null;
+    } finally {
+      Util.closeQuietly(inputStream);
+    }
+  }
+}
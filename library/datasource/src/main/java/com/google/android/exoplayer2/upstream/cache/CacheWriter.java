@@ -15,15 +15,28 @@
  */
 package com.google.android.exoplayer2.upstream.cache;
 
+import static com.google.android.exoplayer2.util.Assertions.checkArgument;
+import static com.google.android.exoplayer2.util.Assertions.checkNotNull;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
 import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
 import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.upstream.DataSourceUtil;
 import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.HttpUtil;
 import com.google.android.exoplayer2.util.PriorityTaskManager;
 import com.google.android.exoplayer2.util.PriorityTaskManager.PriorityTooLowException;
+import com.google.android.exoplayer2.util.Util;
+import com.google.common.net.HttpHeaders;
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 
 /** Caching related utility methods. */
 public final class CacheWriter {
@@ -46,18 +59,30 @@ public final class CacheWriter {
   /** Default buffer size to be used while caching. */
   public static final int DEFAULT_BUFFER_SIZE_BYTES = 128 * 1024;
 
+  /**
+   * The minimum length of a range that's requested in parallel with other ranges. Smaller ranges
+   * aren't worth the cost of an additional request.
+   */
+  /* package */ static final long MIN_PARALLEL_RANGE_LENGTH = 256 * 1024;
+
   private final CacheDataSource dataSource;
   private final Cache cache;
   private final DataSpec dataSpec;
   private final String cacheKey;
   private final byte[] temporaryBuffer;
   @Nullable private final ProgressListener progressListener;
+  @Nullable private final CacheDataSource.Factory parallelDataSourceFactory;
+  @Nullable private final Executor parallelExecutor;
+  private final int maxParallelRequests;
+  private final ConcurrentLinkedQueue<long[]> pendingRanges;
 
   private long nextPosition;
   private long endPosition;
   private long bytesCached;
+  @Nullable private Throwable parallelError;
 
   private volatile boolean isCanceled;
+  private volatile boolean isParallelStopped;
 
   /**
    * @param dataSource A {@link CacheDataSource} that writes to the target cache.
@@ -71,12 +96,73 @@ public final class CacheWriter {
       DataSpec dataSpec,
       @Nullable byte[] temporaryBuffer,
       @Nullable ProgressListener progressListener) {
+    this(
+        dataSource,
+        dataSpec,
+        temporaryBuffer,
+        progressListener,
+        /* parallelDataSourceFactory= */ null,
+        /* parallelExecutor= */ null,
+        /* maxParallelRequests= */ 1);
+  }
+
+  /**
+   * Creates a writer that fetches content in up to {@code maxParallelRequests} byte ranges
+   * concurrently, which can be faster than a single request if the throughput of individual
+   * connections is limited.
+   *
+   * <p>Content is only split into ranges once its length is known. If the length isn't known in
+   * advance then the first range is requested on its own, and the length is resolved from the
+   * response's {@code Content-Range} header. The first range is then read while the others are
+   * fetched. If the response doesn't resolve the length, then the first range is read before the
+   * length is resolved by an unbounded request, which is closed as soon as it's opened. If that
+   * doesn't resolve the length either then the content is read from it sequentially. Each range is
+   * written to the cache as independent spans. Progress updates may be delivered on the threads of
+   * {@code executor}, but are never delivered concurrently.
+   *
+   * @param dataSourceFactory A {@link CacheDataSource.Factory} for the target cache. Data sources
+   *     are created using {@link CacheDataSource.Factory#createDataSourceForDownloading()}.
+   * @param dataSpec Defines the data to be written.
+   * @param progressListener An optional progress listener.
+   * @param executor An {@link Executor} on which ranges are fetched in parallel with the thread that
+   *     calls {@link #cache()}.
+   * @param maxParallelRequests The maximum number of ranges that are fetched concurrently.
+   */
+  public CacheWriter(
+      CacheDataSource.Factory dataSourceFactory,
+      DataSpec dataSpec,
+      @Nullable ProgressListener progressListener,
+      Executor executor,
+      int maxParallelRequests) {
+    this(
+        dataSourceFactory.createDataSourceForDownloading(),
+        dataSpec,
+        /* temporaryBuffer= */ null,
+        progressListener,
+        dataSourceFactory,
+        executor,
+        maxParallelRequests);
+  }
+
+  private CacheWriter(
+      CacheDataSource dataSource,
+      DataSpec dataSpec,
+      @Nullable byte[] temporaryBuffer,
+      @Nullable ProgressListener progressListener,
+      @Nullable CacheDataSource.Factory parallelDataSourceFactory,
+      @Nullable Executor parallelExecutor,
+      int maxParallelRequests) {
+    checkArgument(maxParallelRequests > 0);
     this.dataSource = dataSource;
     this.cache = dataSource.getCache();
     this.dataSpec = dataSpec;
     this.temporaryBuffer =
         temporaryBuffer == null ? new byte[DEFAULT_BUFFER_SIZE_BYTES] : temporaryBuffer;
     this.progressListener = progressListener;
+    this.parallelDataSourceFactory = parallelDataSourceFactory;
+    this.parallelExecutor = parallelExecutor;
+    this.maxParallelRequests = maxParallelRequests;
+    pendingRanges = new ConcurrentLinkedQueue<>();
     cacheKey = dataSource.getCacheKeyFactory().buildCacheKey(dataSpec);
     nextPosition = dataSpec.position;
   }
@@ -120,6 +206,12 @@ public final class CacheWriter {
       progressListener.onProgress(getLength(), bytesCached, /* newBytesCached= */ 0);
     }
 
+    if (maxParallelRequests > 1) {
+      cacheInParallel();
+    }
+
+    // Cache whatever remains sequentially. If the content was cached in parallel then normally
+    // nothing remains, but this also handles content that's shorter than expected.
     while (endPosition == C.POSITION_UNSET || nextPosition < endPosition) {
       throwIfCanceled();
       long maxRemainingLength =
@@ -136,6 +228,246 @@ public final class CacheWriter {
     }
   }
 
+  /**
+   * Caches holes in parallel if the content length is known or can be resolved. Anything that's
+   * left uncached is cached sequentially by {@link #cache()}.
+   */
+  private void cacheInParallel() throws IOException {
+    // The length of the first range, if it's been requested by dataSource to resolve the end
+    // position.
+    long openFirstRangeLength = 0;
+    if (endPosition == C.POSITION_UNSET) {
+      long blockLength;
+      while ((blockLength = cache.getCachedLength(cacheKey, nextPosition, C.LENGTH_UNSET)) > 0) {
+        nextPosition += blockLength;
+      }
+      // The first hole has length -blockLength.
+      long firstRangeLength = min(MIN_PARALLEL_RANGE_LENGTH, -blockLength);
+      if (!openFirstRange(firstRangeLength)) {
+        return;
+      }
+      if (endPosition != C.POSITION_UNSET) {
+        openFirstRangeLength = firstRangeLength;
+      } else {
+        // The response doesn't say how long the content is.
+        long bytesRead;
+        try {
+          bytesRead = readOpenDataSource(dataSource, temporaryBuffer, firstRangeLength);
+        } catch (IOException e) {
+          DataSourceUtil.closeQuietly(dataSource);
+          throw e;
+        }
+        dataSource.close();
+        if (bytesRead < firstRangeLength) {
+          onRequestEndPosition(nextPosition + bytesRead);
+          return;
+        }
+        nextPosition += bytesRead;
+        if (!resolveEndPosition()) {
+          return;
+        }
+      }
+    }
+
+    // Split the holes into ranges of roughly equal length.
+    long holeBytes = getLength() - cache.getCachedBytes(cacheKey, dataSpec.position, getLength());
+    if (holeBytes <= 0 && openFirstRangeLength == 0) {
+      return;
+    }
+    long rangeLength =
+        openFirstRangeLength > 0
+            ? Util.ceilDivide(holeBytes - openFirstRangeLength, maxParallelRequests - 1)
+            : Util.ceilDivide(holeBytes, maxParallelRequests);
+    rangeLength = max(MIN_PARALLEL_RANGE_LENGTH, rangeLength);
+    int rangeCount = 0;
+    long position = nextPosition + openFirstRangeLength;
+    while (position < endPosition) {
+      long blockLength = cache.getCachedLength(cacheKey, position, endPosition - position);
+      if (blockLength > 0) {
+        position += blockLength;
+        continue;
+      }
+      long holeEndPosition = position - blockLength;
+      while (position < holeEndPosition) {
+        long length = min(rangeLength, holeEndPosition - position);
+        pendingRanges.add(new long[] {position, length});
+        rangeCount++;
+        position += length;
+      }
+    }
+
+    // Fetch the ranges on the executor, using this thread as one of the workers.
+    CacheDataSource.Factory dataSourceFactory = checkNotNull(parallelDataSourceFactory);
+    Executor parallelExecutor = checkNotNull(this.parallelExecutor);
+    CountDownLatch rangesRemaining = new CountDownLatch(rangeCount);
+    isParallelStopped = false;
+    parallelError = null;
+    int executorWorkerCount =
+        openFirstRangeLength > 0
+            ? min(maxParallelRequests - 1, rangeCount)
+            : min(maxParallelRequests, rangeCount) - 1;
+    for (int i = 0; i < executorWorkerCount; i++) {
+      parallelExecutor.execute(
+          () ->
+              cacheRanges(
+                  dataSourceFactory.createDataSourceForDownloading(),
+                  new byte[temporaryBuffer.length],
+                  rangesRemaining));
+    }
+    if (openFirstRangeLength > 0) {
+      try {
+        readOpenDataSource(dataSource, temporaryBuffer, openFirstRangeLength);
+        dataSource.close();
+      } catch (Throwable e) {
+        DataSourceUtil.closeQuietly(dataSource);
+        onParallelError(e);
+      }
+    }
+    cacheRanges(dataSource, temporaryBuffer, rangesRemaining);
+    awaitUninterruptibly(rangesRemaining);
+
+    @Nullable Throwable parallelError = this.parallelError;
+    if (parallelError != null) {
+      if (parallelError instanceof IOException) {
+        throw (IOException) parallelError;
+      }
+      Util.sneakyThrow(parallelError);
+    }
+  }
+
+  /**
+   * Opens {@link #dataSource} to read the first range of the content, resolving the end position
+   * if the response states the length of the content.
+   *
+   * @param length The length of the first range.
+   * @return Whether the data source was opened. If not, the content should be cached sequentially.
+   */
+  private boolean openFirstRange(long length) throws IOException {
+    DataSpec boundedDataSpec =
+        dataSpec.buildUpon().setPosition(nextPosition).setLength(length).build();
+    try {
+      dataSource.open(boundedDataSpec);
+    } catch (IOException e) {
+      // The content may be shorter than the range. Sequential caching handles this.
+      DataSourceUtil.closeQuietly(dataSource);
+      throwIfCanceled();
+      return false;
+    }
+    long documentSize = HttpUtil.getDocumentSize(getContentRangeHeader(dataSource));
+    if (documentSize != C.LENGTH_UNSET) {
+      try {
+        ContentMetadataMutations mutations = new ContentMetadataMutations();
+        ContentMetadataMutations.setContentLength(mutations, documentSize);
+        cache.applyContentMetadataMutations(cacheKey, mutations);
+      } catch (IOException e) {
+        DataSourceUtil.closeQuietly(dataSource);
+        throw e;
+      }
+      onRequestEndPosition(documentSize);
+    }
+    return true;
+  }
+
+  /**
+   * Resolves the end position by making an unbounded request at the start of the first hole at or
+   * after {@link #nextPosition}.
+   *
+   * @return Whether the end position was resolved. If not, all of the content has been cached.
+   */
+  private boolean resolveEndPosition() throws IOException {
+    long blockLength;
+    while ((blockLength = cache.getCachedLength(cacheKey, nextPosition, C.LENGTH_UNSET)) > 0) {
+      nextPosition += blockLength;
+    }
+    // The request locks the remainder of the content in the cache, so it's closed before any
+    // ranges are requested.
+    DataSpec unboundedDataSpec =
+        dataSpec.buildUpon().setPosition(nextPosition).setLength(C.LENGTH_UNSET).build();
+    long resolvedLength;
+    try {
+      resolvedLength = dataSource.open(unboundedDataSpec);
+      if (resolvedLength == C.LENGTH_UNSET) {
+        // The content can't be split into ranges, so read all of it using this request.
+        long bytesRead = readOpenDataSource(dataSource, temporaryBuffer, Long.MAX_VALUE);
+        onRequestEndPosition(nextPosition + bytesRead);
+      }
+    } catch (IOException e) {
+      DataSourceUtil.closeQuietly(dataSource);
+      throw e;
+    }
+    dataSource.close();
+    if (resolvedLength == C.LENGTH_UNSET) {
+      return false;
+    }
+    onRequestEndPosition(nextPosition + resolvedLength);
+    return true;
+  }
+
+  /**
+   * Caches pending ranges until there are none left. Once an error has occurred, any remaining
+   * ranges are discarded rather than cached.
+   */
+  private void cacheRanges(
+      CacheDataSource dataSource, byte[] temporaryBuffer, CountDownLatch rangesRemaining) {
+    @Nullable long[] range;
+    while ((range = pendingRanges.poll()) != null) {
+      try {
+        if (!isParallelStopped) {
+          cacheRange(dataSource, temporaryBuffer, /* position= */ range[0], /* length= */ range[1]);
+        }
+      } catch (Throwable e) {
+        onParallelError(e);
+      } finally {
+        rangesRemaining.countDown();
+      }
+    }
+  }
+
+  private synchronized void onParallelError(Throwable error) {
+    if (parallelError == null) {
+      parallelError = error;
+    }
+    isParallelStopped = true;
+  }
+
+  private void cacheRange(
+      CacheDataSource dataSource, byte[] temporaryBuffer, long position, long length)
+      throws IOException {
+    throwIfStopped();
+    DataSpec boundedDataSpec = dataSpec.buildUpon().setPosition(position).setLength(length).build();
+    try {
+      dataSource.open(boundedDataSpec);
+      readOpenDataSource(dataSource, temporaryBuffer, length);
+    } catch (IOException e) {
+      DataSourceUtil.closeQuietly(dataSource);
+      throw e;
+    }
+    // As in readBlockToCache, it's important that an exception is thrown if closing fails.
+    dataSource.close();
+  }
+
+  /**
+   * Reads up to {@code length} bytes from an open data source, writing them into the cache.
+   *
+   * @return The number of bytes read.
+   */
+  private long readOpenDataSource(CacheDataSource dataSource, byte[] temporaryBuffer, long length)
+      throws IOException {
+    long bytesRemaining = length;
+    while (bytesRemaining > 0) {
+      throwIfStopped();
+      int bytesRead =
+          dataSource.read(
+              temporaryBuffer, /* offset= */ 0, (int) min(temporaryBuffer.length, bytesRemaining));
+      if (bytesRead == C.RESULT_END_OF_INPUT) {
+        break;
+      }
+      onNewBytesCached(bytesRead);
+      bytesRemaining -= bytesRead;
+    }
+    return length - bytesRemaining;
+  }
+
   /**
    * Reads the specified block of data, writing it into the cache.
    *
@@ -205,7 +537,18 @@ public final class CacheWriter {
     return totalBytesRead;
   }
 
-  private void onRequestEndPosition(long endPosition) {
+  @Nullable
+  private static String getContentRangeHeader(CacheDataSource dataSource) {
+    for (Map.Entry<String, List<String>> header : dataSource.getResponseHeaders().entrySet()) {
+      if (HttpHeaders.CONTENT_RANGE.equalsIgnoreCase(header.getKey())
+          && !header.getValue().isEmpty()) {
+        return header.getValue().get(0);
+      }
+    }
+    return null;
+  }
+
+  private synchronized void onRequestEndPosition(long endPosition) {
     if (this.endPosition == endPosition) {
       return;
     }
@@ -215,7 +558,7 @@ public final class CacheWriter {
     }
   }
 
-  private void onNewBytesCached(long newBytesCached) {
+  private synchronized void onNewBytesCached(long newBytesCached) {
     bytesCached += newBytesCached;
     if (progressListener != null) {
       progressListener.onProgress(getLength(), bytesCached, newBytesCached);
@@ -231,4 +574,31 @@ public final class CacheWriter {
       throw new InterruptedIOException();
     }
   }
+
+  private void throwIfStopped() throws InterruptedIOException {
+    throwIfCanceled();
+    if (isParallelStopped) {
+      // Another range failed, and its error will be thrown instead.
+      throw new InterruptedIOException();
+    }
+  }
+
+  /**
+   * Waits for all ranges being cached by other threads. Workers check for cancelation between
+   * reads, so waiting for them is bounded even if this thread is interrupted.
+   */
+  private static void awaitUninterruptibly(CountDownLatch latch) {
+    boolean wasInterrupted = false;
+    while (true) {
+      try {
+        latch.await();
+        break;
+      } catch (InterruptedException e) {
+        wasInterrupted = true;
+      }
+    }
+    if (wasInterrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
 }
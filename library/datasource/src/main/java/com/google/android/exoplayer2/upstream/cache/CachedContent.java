@@ -24,11 +24,21 @@ import static java.lang.Math.min;
 import androidx.annotation.Nullable;
 import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.util.Log;
+import com.google.android.exoplayer2.util.Util;
 import java.io.File;
 import java.util.ArrayList;
-import java.util.TreeSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
 
-/** Defines the cached content for a single resource. */
+/**
+ * Defines the cached content for a single resource.
+ *
+ * <p>Mutations must be serialized by the caller. The span and metadata accessors may additionally
+ * be called concurrently with mutations from other threads, in which case they observe a weakly
+ * consistent view of the content.
+ */
 /* package */ final class CachedContent {
 
   private static final String TAG = "CachedContent";
@@ -37,13 +47,16 @@ import java.util.TreeSet;
   public final int id;
   /** The cache key that uniquely identifies the resource. */
   public final String key;
-  /** The cached spans of this content. */
-  private final TreeSet<SimpleCacheSpan> cachedSpans;
+  /**
+   * The cached spans of this content, keyed by position. A span that's touched is replaced in a
+   * single operation, so concurrent readers never observe it as missing.
+   */
+  private final ConcurrentSkipListMap<Long, SimpleCacheSpan> cachedSpans;
   /** Currently locked ranges. */
   private final ArrayList<Range> lockedRanges;
 
   /** Metadata values. */
-  private DefaultContentMetadata metadata;
+  private volatile DefaultContentMetadata metadata;
 
   /**
    * Creates a CachedContent.
@@ -59,7 +72,7 @@ import java.util.TreeSet;
     this.id = id;
     this.key = key;
     this.metadata = metadata;
-    cachedSpans = new TreeSet<>();
+    cachedSpans = new ConcurrentSkipListMap<>();
     lockedRanges = new ArrayList<>();
   }
 
@@ -135,12 +148,15 @@ import java.util.TreeSet;
 
   /** Adds the given {@link SimpleCacheSpan} which contains a part of the content. */
   public void addSpan(SimpleCacheSpan span) {
-    cachedSpans.add(span);
+    cachedSpans.put(span.position, span);
   }
 
-  /** Returns a set of all {@link SimpleCacheSpan}s. */
-  public TreeSet<SimpleCacheSpan> getSpans() {
-    return cachedSpans;
+  /**
+   * Returns a live view of all {@link SimpleCacheSpan}s, in ascending order of position. The view
+   * is weakly consistent if the content is modified whilst iterating over it.
+   */
+  public Collection<SimpleCacheSpan> getSpans() {
+    return cachedSpans.values();
   }
 
   /**
@@ -152,13 +168,16 @@ import java.util.TreeSet;
    * @return The corresponding cache {@link SimpleCacheSpan}.
    */
   public SimpleCacheSpan getSpan(long position, long length) {
-    SimpleCacheSpan lookupSpan = SimpleCacheSpan.createLookup(key, position);
-    SimpleCacheSpan floorSpan = cachedSpans.floor(lookupSpan);
-    if (floorSpan != null && floorSpan.position + floorSpan.length > position) {
-      return floorSpan;
+    @Nullable Map.Entry<Long, SimpleCacheSpan> floorEntry = cachedSpans.floorEntry(position);
+    if (floorEntry != null) {
+      SimpleCacheSpan floorSpan = floorEntry.getValue();
+      if (floorSpan.position + floorSpan.length > position) {
+        return floorSpan;
+      }
     }
-    SimpleCacheSpan ceilSpan = cachedSpans.ceiling(lookupSpan);
-    if (ceilSpan != null) {
+    @Nullable Map.Entry<Long, SimpleCacheSpan> ceilEntry = cachedSpans.ceilingEntry(position);
+    if (ceilEntry != null) {
+      SimpleCacheSpan ceilSpan = ceilEntry.getValue();
       long holeLength = ceilSpan.position - position;
       length = length == C.LENGTH_UNSET ? holeLength : min(holeLength, length);
     }
@@ -191,7 +210,7 @@ import java.util.TreeSet;
     }
     long currentEndPosition = span.position + span.length;
     if (currentEndPosition < queryEndPosition) {
-      for (SimpleCacheSpan next : cachedSpans.tailSet(span, false)) {
+      for (SimpleCacheSpan next : cachedSpans.tailMap(span.position, false).values()) {
         if (next.position > currentEndPosition) {
           // There's a hole in the cache within the queried region.
           break;
@@ -219,7 +238,7 @@ import java.util.TreeSet;
    */
   public SimpleCacheSpan setLastTouchTimestamp(
       SimpleCacheSpan cacheSpan, long lastTouchTimestamp, boolean updateFile) {
-    checkState(cachedSpans.remove(cacheSpan));
+    checkState(cachedSpans.containsKey(cacheSpan.position));
     File file = checkNotNull(cacheSpan.file);
     if (updateFile) {
       File directory = checkNotNull(file.getParentFile());
@@ -233,7 +252,7 @@ import java.util.TreeSet;
     }
     SimpleCacheSpan newCacheSpan =
         cacheSpan.copyWithFileAndLastTouchTimestamp(file, lastTouchTimestamp);
-    cachedSpans.add(newCacheSpan);
+    cachedSpans.put(newCacheSpan.position, newCacheSpan);
     return newCacheSpan;
   }
 
@@ -244,7 +263,7 @@ import java.util.TreeSet;
 
   /** Removes the given span from cache. */
   public boolean removeSpan(CacheSpan span) {
-    if (cachedSpans.remove(span)) {
+    if (cachedSpans.remove(span.position) != null) {
       if (span.file != null) {
         span.file.delete();
       }
@@ -272,10 +291,29 @@ import java.util.TreeSet;
     CachedContent that = (CachedContent) o;
     return id == that.id
         && key.equals(that.key)
-        && cachedSpans.equals(that.cachedSpans)
+        && spansEqual(cachedSpans.values(), that.cachedSpans.values())
         && metadata.equals(that.metadata);
   }
 
+  private static boolean spansEqual(
+      Collection<SimpleCacheSpan> spans, Collection<SimpleCacheSpan> otherSpans) {
+    if (spans.size() != otherSpans.size()) {
+      return false;
+    }
+    Iterator<SimpleCacheSpan> otherIterator = otherSpans.iterator();
+    for (SimpleCacheSpan span : spans) {
+      SimpleCacheSpan otherSpan = otherIterator.next();
+      if (span.position != otherSpan.position
+          || span.length != otherSpan.length
+          || span.isCached != otherSpan.isCached
+          || span.lastTouchTimestamp != otherSpan.lastTouchTimestamp
+          || !Util.areEqual(span.file, otherSpan.file)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   private static final class Range {
 
     /** The starting position of the range. */
@@ -15,6 +15,7 @@
  */
 package com.google.android.exoplayer2.upstream.cache;
 
+import static com.google.android.exoplayer2.util.Assertions.checkArgument;
 import static com.google.android.exoplayer2.util.Assertions.checkNotNull;
 import static com.google.android.exoplayer2.util.Assertions.checkState;
 import static com.google.android.exoplayer2.util.Util.castNonNull;
@@ -31,6 +32,7 @@ import android.util.SparseBooleanArray;
 import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 import androidx.annotation.WorkerThread;
+import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.database.DatabaseIOException;
 import com.google.android.exoplayer2.database.DatabaseProvider;
 import com.google.android.exoplayer2.database.VersionTable;
@@ -39,14 +41,18 @@ import com.google.android.exoplayer2.util.AtomicFile;
 import com.google.android.exoplayer2.util.Util;
 import com.google.common.collect.ImmutableSet;
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
@@ -57,6 +63,8 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
 import javax.crypto.CipherOutputStream;
@@ -66,14 +74,20 @@ import javax.crypto.spec.SecretKeySpec;
 import org.checkerframework.checker.nullness.compatqual.NullableType;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 
-/** Maintains the index of cached content. */
+/**
+ * Maintains the index of cached content.
+ *
+ * <p>Mutations must be serialized by the caller. {@link #get(String)}, {@link #getKeys()} and
+ * {@link #getContentMetadata(String)} may additionally be called concurrently with mutations.
+ */
 /* package */ class CachedContentIndex {
 
   /* package */ static final String FILE_NAME_ATOMIC = "cached_content_index.exi";
+  /* package */ static final String FILE_NAME_JOURNAL = "cached_content_index.journal";
 
   private static final int INCREMENTAL_METADATA_READ_LENGTH = 10 * 1024 * 1024;
 
-  private final HashMap<String, CachedContent> keyToContent;
+  private final ConcurrentHashMap<String, CachedContent> keyToContent;
   /**
    * Maps assigned ids to their corresponding keys. Also contains (id -> null) entries for ids that
    * have been removed from the index since it was last stored. This prevents reuse of these ids,
@@ -102,11 +116,12 @@ import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 
   private Storage storage;
   @Nullable private Storage previousStorage;
+  @Nullable private Storage previousJournalStorage;
 
   /** Returns whether the file is an index file. */
   public static boolean isIndexFile(String fileName) {
     // Atomic file backups add additional suffixes to the file name.
-    return fileName.startsWith(FILE_NAME_ATOMIC);
+    return fileName.startsWith(FILE_NAME_ATOMIC) || fileName.startsWith(FILE_NAME_JOURNAL);
   }
 
   /**
@@ -159,8 +174,46 @@ import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
       @Nullable byte[] legacyStorageSecretKey,
       boolean legacyStorageEncrypt,
       boolean preferLegacyStorage) {
-    checkState(databaseProvider != null || legacyStorageDir != null);
-    keyToContent = new HashMap<>();
+    this(
+        databaseProvider,
+        legacyStorageDir,
+        legacyStorageSecretKey,
+        legacyStorageEncrypt,
+        preferLegacyStorage,
+        /* journalStorageDir= */ null);
+  }
+
+  /**
+   * Creates an instance supporting any combination of database, legacy and journal storage.
+   *
+   * @param databaseProvider Provides the database in which the index is stored, or {@code null} to
+   *     not use database storage.
+   * @param legacyStorageDir The directory in which any legacy storage is stored, or {@code null} to
+   *     not use legacy storage.
+   * @param legacyStorageSecretKey A 16 byte AES key for reading, and optionally writing, legacy
+   *     storage.
+   * @param legacyStorageEncrypt Whether to encrypt when writing to legacy storage. Must be false if
+   *     {@code legacyStorageSecretKey} is null, or if {@code journalStorageDir} is set, since
+   *     journal storage is not encrypted.
+   * @param preferLegacyStorage Whether to use prefer legacy storage if both database and legacy
+   *     storage are enabled. Ignored if journal storage is enabled.
+   * @param journalStorageDir The directory in which journal storage is stored, or {@code null} to
+   *     not use journal storage. If set, journal storage is used, and an index found in database
+   *     storage (or legacy storage if there's no database) is migrated into it, after which the
+   *     index is removed from that storage. If {@code null}, an index found in journal storage in
+   *     {@code legacyStorageDir} is migrated back into database or legacy storage, so that journal
+   *     storage can be turned off again without losing the index.
+   */
+  public CachedContentIndex(
+      @Nullable DatabaseProvider databaseProvider,
+      @Nullable File legacyStorageDir,
+      @Nullable byte[] legacyStorageSecretKey,
+      boolean legacyStorageEncrypt,
+      boolean preferLegacyStorage,
+      @Nullable File journalStorageDir) {
+    checkState(databaseProvider != null || legacyStorageDir != null || journalStorageDir != null);
+    checkArgument(journalStorageDir == null || !legacyStorageEncrypt);
+    keyToContent = new ConcurrentHashMap<>();
     idToKey = new SparseArray<>();
     removedIds = new SparseBooleanArray();
     newIds = new SparseBooleanArray();
@@ -175,13 +228,19 @@ import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
                 legacyStorageSecretKey,
                 legacyStorageEncrypt)
             : null;
-    if (databaseStorage == null || (legacyStorage != null && preferLegacyStorage)) {
+    if (journalStorageDir != null) {
+      storage = new JournalStorage(new File(journalStorageDir, FILE_NAME_JOURNAL));
+      previousStorage = databaseStorage != null ? databaseStorage : legacyStorage;
+    } else if (databaseStorage == null || (legacyStorage != null && preferLegacyStorage)) {
       storage = castNonNull(legacyStorage);
       previousStorage = databaseStorage;
     } else {
       storage = databaseStorage;
       previousStorage = legacyStorage;
     }
+    if (journalStorageDir == null && legacyStorageDir != null) {
+      previousJournalStorage = new JournalStorage(new File(legacyStorageDir, FILE_NAME_JOURNAL));
+    }
   }
 
   /**
@@ -198,9 +257,22 @@ import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
     if (previousStorage != null) {
       previousStorage.initialize(uid);
     }
-    if (!storage.exists() && previousStorage != null && previousStorage.exists()) {
+    if (previousJournalStorage != null) {
+      previousJournalStorage.initialize(uid);
+    }
+    @Nullable Storage sourceStorage = null;
+    if (!storage.exists()) {
+      // Migrating to journal storage removes the index from other storage, so a journal that's
+      // left over from a configuration that used it holds the most recent index.
+      if (previousJournalStorage != null && previousJournalStorage.exists()) {
+        sourceStorage = previousJournalStorage;
+      } else if (previousStorage != null && previousStorage.exists()) {
+        sourceStorage = previousStorage;
+      }
+    }
+    if (sourceStorage != null) {
       // Copy from previous storage into current storage.
-      previousStorage.load(keyToContent, idToKey);
+      sourceStorage.load(keyToContent, idToKey);
       storage.storeFully(keyToContent);
     } else {
       // Load from the current storage.
@@ -210,6 +282,10 @@ import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
       previousStorage.delete();
       previousStorage = null;
     }
+    if (previousJournalStorage != null) {
+      previousJournalStorage.delete();
+      previousJournalStorage = null;
+    }
   }
 
   /**
@@ -310,8 +386,7 @@ import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
   /**
    * Returns a set of all content keys. The set is backed by the {@code keyToContent} map, so
    * changes to the map are reflected in the set, and vice-versa. If the map is modified while an
-   * iteration over the set is in progress (except through the iterator's own remove operation), the
-   * results of the iteration are undefined.
+   * iteration over the set is in progress, the iteration is weakly consistent.
    */
   public Set<String> getKeys() {
     return keyToContent.keySet();
@@ -461,7 +536,7 @@ import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
      * @param idToKey The id to key map to populate with persisted data.
      * @throws IOException If an error occurs loading the index.
      */
-    void load(HashMap<String, CachedContent> content, SparseArray<@NullableType String> idToKey)
+    void load(Map<String, CachedContent> content, SparseArray<@NullableType String> idToKey)
         throws IOException;
 
     /**
@@ -471,17 +546,17 @@ import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
      * @param content The key to content map to persist.
      * @throws IOException If an error occurs persisting the index.
      */
-    void storeFully(HashMap<String, CachedContent> content) throws IOException;
+    void storeFully(Map<String, CachedContent> content) throws IOException;
 
     /**
      * Ensures incremental changes to the index since the initial {@link #initialize(long)} or last
-     * {@link #storeFully(HashMap)} are persisted. The storage will have been notified of all such
+     * {@link #storeFully(Map)} are persisted. The storage will have been notified of all such
      * changes via {@link #onUpdate(CachedContent)} and {@link #onRemove(CachedContent, boolean)}.
      *
      * @param content The key to content map to persist.
      * @throws IOException If an error occurs persisting the index.
      */
-    void storeIncremental(HashMap<String, CachedContent> content) throws IOException;
+    void storeIncremental(Map<String, CachedContent> content) throws IOException;
 
     /**
      * Called when a {@link CachedContent} is added or updated.
@@ -555,7 +630,7 @@ import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 
     @Override
     public void load(
-        HashMap<String, CachedContent> content, SparseArray<@NullableType String> idToKey) {
+        Map<String, CachedContent> content, SparseArray<@NullableType String> idToKey) {
       checkState(!changed);
       if (!readFile(content, idToKey)) {
         content.clear();
@@ -565,13 +640,13 @@ import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
     }
 
     @Override
-    public void storeFully(HashMap<String, CachedContent> content) throws IOException {
+    public void storeFully(Map<String, CachedContent> content) throws IOException {
       writeFile(content);
       changed = false;
     }
 
     @Override
-    public void storeIncremental(HashMap<String, CachedContent> content) throws IOException {
+    public void storeIncremental(Map<String, CachedContent> content) throws IOException {
       if (!changed) {
         return;
       }
@@ -589,7 +664,7 @@ import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
     }
 
     private boolean readFile(
-        HashMap<String, CachedContent> content, SparseArray<@NullableType String> idToKey) {
+        Map<String, CachedContent> content, SparseArray<@NullableType String> idToKey) {
       if (!atomicFile.exists()) {
         return true;
       }
@@ -644,7 +719,7 @@ import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
       return true;
     }
 
-    private void writeFile(HashMap<String, CachedContent> content) throws IOException {
+    private void writeFile(Map<String, CachedContent> content) throws IOException {
       @Nullable DataOutputStream output = null;
       try {
         OutputStream outputStream = atomicFile.startWrite();
@@ -808,7 +883,7 @@ import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 
     @Override
     public void load(
-        HashMap<String, CachedContent> content, SparseArray<@NullableType String> idToKey)
+        Map<String, CachedContent> content, SparseArray<@NullableType String> idToKey)
         throws IOException {
       checkState(pendingUpdates.size() == 0);
       try {
@@ -851,7 +926,7 @@ import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
     }
 
     @Override
-    public void storeFully(HashMap<String, CachedContent> content) throws IOException {
+    public void storeFully(Map<String, CachedContent> content) throws IOException {
       try {
         SQLiteDatabase writableDatabase = databaseProvider.getWritableDatabase();
         writableDatabase.beginTransactionNonExclusive();
@@ -871,7 +946,7 @@ import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
     }
 
     @Override
-    public void storeIncremental(HashMap<String, CachedContent> content) throws IOException {
+    public void storeIncremental(Map<String, CachedContent> content) throws IOException {
       if (pendingUpdates.size() == 0) {
         return;
       }
@@ -979,4 +1054,285 @@ import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
       return TABLE_PREFIX + hexUid;
     }
   }
+
+  /**
+   * {@link Storage} implementation that persists the index as an append-only journal of updates
+   * and removals. Storing incremental changes appends one record per changed {@link
+   * CachedContent}, so its cost is proportional to the size of the change rather than the size of
+   * the index. The journal is compacted by rewriting it from the in-memory index once most of its
+   * records have been superseded.
+   *
+   * <p>Each record is written as its length, its payload and a CRC32 of its payload. A record that
+   * was only partially written, for example because the process was killed, is detected when the
+   * journal is loaded and truncated away together with anything after it.
+   */
+  private static final class JournalStorage implements Storage {
+
+    private static final int VERSION = 1;
+
+    private static final int RECORD_TYPE_UPDATE = 0;
+    private static final int RECORD_TYPE_REMOVE = 1;
+
+    /** The minimum number of records the journal must contain before it's compacted. */
+    private static final int MIN_COMPACTION_RECORD_COUNT = 1024;
+    /** The journal is compacted when it holds more than this many records per indexed content. */
+    private static final int MAX_RECORDS_PER_CONTENT = 2;
+
+    private final File file;
+    private final AtomicFile atomicFile;
+    private final SparseArray<@NullableType CachedContent> pendingUpdates;
+    private final ByteArrayOutputStream recordOutputStream;
+    private final RecordPayloadOutputStream payloadOutputStream;
+    private final DataOutputStream payload;
+    private final CRC32 crc32;
+
+    private int recordCount;
+    private boolean requiresCompaction;
+
+    public JournalStorage(File file) {
+      this.file = file;
+      atomicFile = new AtomicFile(file);
+      pendingUpdates = new SparseArray<>();
+      recordOutputStream = new ByteArrayOutputStream();
+      payloadOutputStream = new RecordPayloadOutputStream();
+      payload = new DataOutputStream(payloadOutputStream);
+      crc32 = new CRC32();
+    }
+
+    @Override
+    public void initialize(long uid) {
+      // Do nothing. Journal storage uses a separate file for each cache.
+    }
+
+    @Override
+    public boolean exists() {
+      return atomicFile.exists();
+    }
+
+    @Override
+    public void delete() {
+      atomicFile.delete();
+      recordCount = 0;
+    }
+
+    @Override
+    public void load(
+        Map<String, CachedContent> content, SparseArray<@NullableType String> idToKey)
+        throws IOException {
+      checkState(pendingUpdates.size() == 0);
+      if (!atomicFile.exists()) {
+        return;
+      }
+      SparseArray<CachedContent> idToContent = new SparseArray<>();
+      long validLength = readJournal(idToContent);
+      if (validLength == C.LENGTH_UNSET) {
+        // The journal is unreadable.
+        recordCount = 0;
+        atomicFile.delete();
+        return;
+      }
+      if (validLength < file.length()) {
+        // Drop a partially written tail, so that new records are appended after the last valid one.
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+          randomAccessFile.setLength(validLength);
+        }
+      }
+      for (int i = 0; i < idToContent.size(); i++) {
+        CachedContent cachedContent = idToContent.valueAt(i);
+        content.put(cachedContent.key, cachedContent);
+        idToKey.put(cachedContent.id, cachedContent.key);
+      }
+    }
+
+    @Override
+    public void storeFully(Map<String, CachedContent> content) throws IOException {
+      requiresCompaction = true;
+      @Nullable DataOutputStream output = null;
+      try {
+        OutputStream outputStream = atomicFile.startWrite();
+        output = new DataOutputStream(new BufferedOutputStream(outputStream));
+        output.writeInt(VERSION);
+        for (CachedContent cachedContent : content.values()) {
+          writeRecord(cachedContent.id, cachedContent, output);
+        }
+        atomicFile.endWrite(output);
+        output = null;
+      } finally {
+        Util.closeQuietly(output);
+      }
+      recordCount = content.size();
+      requiresCompaction = false;
+      pendingUpdates.clear();
+    }
+
+    @Override
+    public void storeIncremental(Map<String, CachedContent> content) throws IOException {
+      if (pendingUpdates.size() == 0) {
+        return;
+      }
+      int newRecordCount = recordCount + pendingUpdates.size();
+      // Records are appended to the base file directly. If a backup exists then the base file is
+      // invalid, and would be replaced by the backup when read, so rewrite the journal instead.
+      if (requiresCompaction
+          || !file.exists()
+          || atomicFile.hasBackup()
+          || (newRecordCount >= MIN_COMPACTION_RECORD_COUNT
+              && newRecordCount > MAX_RECORDS_PER_CONTENT * content.size())) {
+        storeFully(content);
+        return;
+      }
+      recordOutputStream.reset();
+      DataOutputStream output = new DataOutputStream(recordOutputStream);
+      for (int i = 0; i < pendingUpdates.size(); i++) {
+        writeRecord(pendingUpdates.keyAt(i), pendingUpdates.valueAt(i), output);
+      }
+      output.flush();
+      // If appending fails part way through, the journal may end with a partial record. Records
+      // appended after it would be lost when the journal is next loaded, so rewrite the journal
+      // instead of appending to it next time.
+      requiresCompaction = true;
+      try (FileOutputStream fileOutputStream = new FileOutputStream(file, /* append= */ true)) {
+        recordOutputStream.writeTo(fileOutputStream);
+        fileOutputStream.getFD().sync();
+      }
+      requiresCompaction = false;
+      recordCount = newRecordCount;
+      pendingUpdates.clear();
+    }
+
+    @Override
+    public void onUpdate(CachedContent cachedContent) {
+      pendingUpdates.put(cachedContent.id, cachedContent);
+    }
+
+    @Override
+    public void onRemove(CachedContent cachedContent, boolean neverStored) {
+      if (neverStored) {
+        pendingUpdates.delete(cachedContent.id);
+      } else {
+        pendingUpdates.put(cachedContent.id, null);
+      }
+    }
+
+    /**
+     * Replays the journal into {@code idToContent}.
+     *
+     * @return The length of the valid prefix of the journal in bytes, or {@link C#LENGTH_UNSET} if
+     *     the journal is unreadable.
+     * @throws IOException If an error occurs reading the journal.
+     */
+    private long readJournal(SparseArray<CachedContent> idToContent) throws IOException {
+      recordCount = 0;
+      try (DataInputStream input =
+          new DataInputStream(new BufferedInputStream(atomicFile.openRead()))) {
+        long fileLength = file.length();
+        int version;
+        try {
+          version = input.readInt();
+        } catch (EOFException e) {
+          return C.LENGTH_UNSET;
+        }
+        if (version != VERSION) {
+          return C.LENGTH_UNSET;
+        }
+        long validLength = 4;
+        while (true) {
+          @Nullable byte[] record = readRecord(input, fileLength - validLength);
+          if (record == null || !applyRecord(record, idToContent)) {
+            return validLength;
+          }
+          validLength += record.length + 8;
+          recordCount++;
+        }
+      }
+    }
+
+    /**
+     * Reads the next record from the journal.
+     *
+     * @return The record payload, or {@code null} if the end of the journal has been reached or if
+     *     the next record is incomplete or corrupt.
+     */
+    @Nullable
+    private byte[] readRecord(DataInputStream input, long maxLength) throws IOException {
+      try {
+        int length = input.readInt();
+        if (length < 0 || length > maxLength - 8) {
+          return null;
+        }
+        byte[] record = new byte[length];
+        input.readFully(record);
+        int checksum = input.readInt();
+        crc32.reset();
+        crc32.update(record);
+        return (int) crc32.getValue() == checksum ? record : null;
+      } catch (EOFException e) {
+        return null;
+      }
+    }
+
+    /**
+     * Applies a record to {@code idToContent}.
+     *
+     * @return Whether the record was well formed.
+     */
+    private static boolean applyRecord(byte[] record, SparseArray<CachedContent> idToContent) {
+      DataInputStream input = new DataInputStream(new ByteArrayInputStream(record));
+      try {
+        int type = input.readByte();
+        int id = input.readInt();
+        if (type == RECORD_TYPE_REMOVE) {
+          idToContent.remove(id);
+        } else if (type == RECORD_TYPE_UPDATE) {
+          String key = input.readUTF();
+          DefaultContentMetadata metadata = readContentMetadata(input);
+          idToContent.put(id, new CachedContent(id, key, metadata));
+        } else {
+          return false;
+        }
+        return input.read() == -1;
+      } catch (IOException e) {
+        return false;
+      }
+    }
+
+    /**
+     * Writes a record for the {@link CachedContent} with the given id.
+     *
+     * @param id The id of the {@link CachedContent}.
+     * @param cachedContent The {@link CachedContent}, or {@code null} if it's been removed.
+     * @param output The stream to write to.
+     * @throws IOException If an error occurs writing to the output.
+     */
+    private void writeRecord(int id, @Nullable CachedContent cachedContent, DataOutputStream output)
+        throws IOException {
+      payloadOutputStream.reset();
+      if (cachedContent == null) {
+        payload.writeByte(RECORD_TYPE_REMOVE);
+        payload.writeInt(id);
+      } else {
+        payload.writeByte(RECORD_TYPE_UPDATE);
+        payload.writeInt(id);
+        payload.writeUTF(cachedContent.key);
+        writeContentMetadata(cachedContent.getMetadata(), payload);
+      }
+      payload.flush();
+      byte[] record = payloadOutputStream.getBuffer();
+      int recordLength = payloadOutputStream.size();
+      crc32.reset();
+      crc32.update(record, 0, recordLength);
+      output.writeInt(recordLength);
+      output.write(record, 0, recordLength);
+      output.writeInt((int) crc32.getValue());
+    }
+  }
+
+  /** A {@link ByteArrayOutputStream} whose buffer can be read without copying it. */
+  private static final class RecordPayloadOutputStream extends ByteArrayOutputStream {
+
+    /** Returns the buffer, of which the first {@link #size()} bytes are valid. */
+    public byte[] getBuffer() {
+      return buf;
+    }
+  }
 }
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import androidx.annotation.DoNotInline;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import com.google.android.exoplayer2.util.Util;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Indexes cache files by the hash of their content, so that a newly written file whose content is
+ * identical to that of a file already in the cache can be replaced by a hard link to it.
+ *
+ * <p>Files with identical content form a group. Hard links share storage until the last of them is
+ * deleted, so only one file in each group occupies disk space, and removing any file in a group
+ * leaves the content available to the others.
+ *
+ * <p>The index is only held in memory. Files that were linked before the cache was last released
+ * continue to share storage, but are not indexed or accounted for as deduplicated.
+ */
+/* package */ final class ContentDeduplicationIndex {
+
+  private static final class ContentGroup {
+
+    public final String hash;
+    public final long length;
+    public final ArrayList<File> files;
+
+    public ContentGroup(String hash, long length) {
+      this.hash = hash;
+      this.length = length;
+      files = new ArrayList<>();
+    }
+  }
+
+  private final HashMap<String, ContentGroup> groupsByHash;
+  private final HashMap<File, ContentGroup> groupsByFile;
+
+  private long deduplicatedBytes;
+
+  public ContentDeduplicationIndex() {
+    groupsByHash = new HashMap<>();
+    groupsByFile = new HashMap<>();
+  }
+
+  /**
+   * Returns an indexed file with the given content, or {@code null} if there's none.
+   *
+   * @param contentHash The hash of the content.
+   * @param length The length of the content in bytes.
+   */
+  @Nullable
+  public File getFileWithContent(byte[] contentHash, long length) {
+    @Nullable ContentGroup group = groupsByHash.get(Util.toHexString(contentHash));
+    return group != null && group.length == length ? group.files.get(0) : null;
+  }
+
+  /**
+   * Adds a file to the index. If the index already contains files with the same content, the file
+   * must be a hard link to them.
+   *
+   * @param file The file.
+   * @param contentHash The hash of the file's content.
+   * @param length The length of the file in bytes.
+   */
+  public void add(File file, byte[] contentHash, long length) {
+    String hash = Util.toHexString(contentHash);
+    @Nullable ContentGroup group = groupsByHash.get(hash);
+    if (group == null) {
+      group = new ContentGroup(hash, length);
+      groupsByHash.put(hash, group);
+    } else if (group.length != length) {
+      // A hash collision. Leave the file unindexed rather than conflating different content.
+      return;
+    } else {
+      deduplicatedBytes += length;
+    }
+    group.files.add(file);
+    groupsByFile.put(file, group);
+  }
+
+  /**
+   * Removes a file from the index, if it's indexed.
+   *
+   * @param file The file.
+   */
+  public void remove(File file) {
+    @Nullable ContentGroup group = groupsByFile.remove(file);
+    if (group == null) {
+      return;
+    }
+    group.files.remove(file);
+    if (group.files.isEmpty()) {
+      groupsByHash.remove(group.hash);
+    } else {
+      deduplicatedBytes -= group.length;
+    }
+  }
+
+  /**
+   * Updates the index when a file is renamed.
+   *
+   * @param oldFile The file before it was renamed.
+   * @param newFile The file after it was renamed.
+   */
+  public void onFileRenamed(File oldFile, File newFile) {
+    @Nullable ContentGroup group = groupsByFile.remove(oldFile);
+    if (group == null) {
+      return;
+    }
+    group.files.set(group.files.indexOf(oldFile), newFile);
+    groupsByFile.put(newFile, group);
+  }
+
+  /**
+   * Returns the number of bytes of disk space saved by deduplication. This is the total length of
+   * all indexed files, minus the length of one file from each group.
+   */
+  public long getDeduplicatedBytes() {
+    return deduplicatedBytes;
+  }
+
+  /**
+   * Replaces a file with a hard link to another file.
+   *
+   * @param file The file to replace.
+   * @param target The file to which the replacement should be linked.
+   * @return Whether the file was replaced. If not, the file is left unchanged.
+   */
+  public static boolean replaceWithLink(File file, File target) {
+    File link = new File(file.getPath() + ".link");
+    boolean linked;
+    if (Util.SDK_INT >= 26) {
+      linked = Api26.createLink(link, target);
+    } else if (Util.SDK_INT >= 21) {
+      linked = Api21.createLink(link, target);
+    } else {
+      linked = false;
+    }
+    if (!linked) {
+      return false;
+    }
+    if (!link.renameTo(file)) {
+      link.delete();
+      return false;
+    }
+    return true;
+  }
+
+  @RequiresApi(21)
+  private static final class Api21 {
+    @DoNotInline
+    public static boolean createLink(File link, File target) {
+      try {
+        Os.link(target.getPath(), link.getPath());
+        return true;
+      } catch (ErrnoException e) {
+        // For example, the file system doesn't support hard links.
+        return false;
+      }
+    }
+  }
+
+  @RequiresApi(26)
+  private static final class Api26 {
+    @DoNotInline
+    public static boolean createLink(File link, File target) {
+      try {
+        Files.createLink(link.toPath(), target.toPath());
+        return true;
+      } catch (IOException | UnsupportedOperationException e) {
+        // For example, the file system doesn't support hard links.
+        return false;
+      }
+    }
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+/**
+ * A count-min sketch that estimates how often items have been accessed recently.
+ *
+ * <p>Each item is counted in {@link #HASH_COUNT} small saturating counters, and its frequency is
+ * estimated as the minimum of them. The counters are halved once the number of recorded accesses
+ * reaches ten times the expected number of items, so that the estimates favor recent accesses.
+ */
+/* package */ final class FrequencySketch {
+
+  /** The maximum frequency that can be estimated. */
+  public static final int MAX_FREQUENCY = 15;
+
+  private static final int HASH_COUNT = 4;
+  // Enough counters that a scan over sampleSize distinct items doesn't saturate them.
+  private static final int COUNTERS_PER_ITEM = 16;
+  private static final int MIN_TABLE_SIZE = 64 * COUNTERS_PER_ITEM;
+  private static final int MAX_TABLE_SIZE = 1 << 24;
+  private static final int SAMPLE_SIZE_FACTOR = 10;
+
+  private final byte[] table;
+  private final int mask;
+  private final int sampleSize;
+
+  private int accessCount;
+
+  /**
+   * Creates an instance.
+   *
+   * @param expectedItemCount The number of items expected to be tracked at once. Used to size the
+   *     sketch.
+   */
+  public FrequencySketch(int expectedItemCount) {
+    long counterCount = (long) COUNTERS_PER_ITEM * max(1, expectedItemCount);
+    int tableSize = (int) min(MAX_TABLE_SIZE, max(MIN_TABLE_SIZE, counterCount));
+    tableSize = Integer.highestOneBit(tableSize - 1) << 1;
+    table = new byte[tableSize];
+    mask = tableSize - 1;
+    sampleSize = SAMPLE_SIZE_FACTOR * (tableSize / COUNTERS_PER_ITEM);
+  }
+
+  /** Returns the estimated number of recent accesses to the item with the given hash. */
+  public int getFrequency(long itemHash) {
+    long hash = mix(itemHash);
+    int frequency = MAX_FREQUENCY;
+    for (int i = 0; i < HASH_COUNT; i++) {
+      frequency = min(frequency, table[getIndex(hash, i)]);
+    }
+    return frequency;
+  }
+
+  /** Records an access to the item with the given hash. */
+  public void recordAccess(long itemHash) {
+    long hash = mix(itemHash);
+    boolean incremented = false;
+    for (int i = 0; i < HASH_COUNT; i++) {
+      int index = getIndex(hash, i);
+      if (table[index] < MAX_FREQUENCY) {
+        table[index]++;
+        incremented = true;
+      }
+    }
+    if (incremented && ++accessCount >= sampleSize) {
+      age();
+    }
+  }
+
+  private int getIndex(long hash, int i) {
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32) | 1;
+    return (h1 + i * h2) & mask;
+  }
+
+  /** Halves all counters. */
+  private void age() {
+    for (int i = 0; i < table.length; i++) {
+      table[i] = (byte) (table[i] >> 1);
+    }
+    accessCount /= 2;
+  }
+
+  /** Spreads the bits of a hash, so that similar item hashes map to unrelated counters. */
+  private static long mix(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import static com.google.android.exoplayer2.util.Assertions.checkArgument;
+
+import androidx.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A bounded in-memory tier that holds copies of small, recently read cache files.
+ *
+ * <p>The tier is used by passing it to {@link CacheDataSource.Factory#setMemoryCacheTier}. Cache
+ * files that are no larger than the maximum span size are promoted into the tier when they're read
+ * from disk in full, so that subsequent reads of the same file don't touch the disk. Data is copied
+ * into the tier as it's read, so promotion doesn't read anything from disk that the reader didn't
+ * request, and reads of part of a file don't promote it. This suits data that's read repeatedly,
+ * such as initialization segments, encryption keys and small manifests. When the tier is full, the
+ * least recently read files are demoted, which leaves them on disk only.
+ *
+ * <p>Data is held off-heap in fixed size direct {@link ByteBuffer} slabs. Slabs are allocated
+ * lazily and are recycled rather than released when files are demoted, so that the tier doesn't
+ * repeatedly allocate direct memory. A single tier can be shared by any number of data sources.
+ *
+ * <p>Cache files are identified by the cache key of their resource and their position within it,
+ * which stay the same when {@link SimpleCache} renames a file as it's touched. An entry is only
+ * used if its length matches the length of the file on disk, and is demoted otherwise. Entries for
+ * files that have been removed from the disk cache are never read again, and are demoted once they
+ * become the least recently read.
+ */
+public final class MemoryCacheTier {
+
+  /** The default maximum size of a cache file that's promoted into the tier, in bytes. */
+  public static final long DEFAULT_MAX_SPAN_SIZE = 1024 * 1024;
+  /** The default size of each slab, in bytes. */
+  public static final int DEFAULT_SLAB_SIZE = 64 * 1024;
+
+  /** A cache file held in the tier. */
+  /* package */ static final class Entry {
+
+    /** The slabs holding the file's data. */
+    public final ByteBuffer[] slabs;
+    /** The length of the file in bytes. */
+    public final long length;
+
+    private int referenceCount;
+    private boolean demoted;
+
+    private Entry(ByteBuffer[] slabs, long length) {
+      this.slabs = slabs;
+      this.length = length;
+    }
+  }
+
+  private final long maxSpanSize;
+  private final int slabSize;
+  private final int maxSlabCount;
+  private final LinkedHashMap<String, Entry> entries;
+  private final ArrayDeque<ByteBuffer> freeSlabs;
+
+  private int allocatedSlabCount;
+  private long hitCount;
+  private long missCount;
+  private long promotionCount;
+  private long demotionCount;
+
+  /**
+   * Creates an instance using {@link #DEFAULT_MAX_SPAN_SIZE} and {@link #DEFAULT_SLAB_SIZE}.
+   *
+   * @param maxBytes The maximum number of bytes of memory used by the tier.
+   */
+  public MemoryCacheTier(long maxBytes) {
+    this(maxBytes, DEFAULT_MAX_SPAN_SIZE, DEFAULT_SLAB_SIZE);
+  }
+
+  /**
+   * Creates an instance.
+   *
+   * @param maxBytes The maximum number of bytes of memory used by the tier. Rounded down to a
+   *     multiple of {@code slabSize}.
+   * @param maxSpanSize The maximum size of a cache file that's promoted into the tier, in bytes.
+   * @param slabSize The size of each slab, in bytes. Each file held in the tier occupies a whole
+   *     number of slabs, so smaller slabs waste less memory but require more of them.
+   */
+  public MemoryCacheTier(long maxBytes, long maxSpanSize, int slabSize) {
+    checkArgument(slabSize > 0);
+    this.maxSpanSize = maxSpanSize;
+    this.slabSize = slabSize;
+    maxSlabCount = (int) Math.min(Integer.MAX_VALUE, maxBytes / slabSize);
+    entries =
+        new LinkedHashMap<>(
+            /* initialCapacity= */ 16, /* loadFactor= */ 0.75f, /* accessOrder= */ true);
+    freeSlabs = new ArrayDeque<>();
+  }
+
+  /** Returns the number of reads that were served by the tier. */
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  /** Returns the number of reads that were served from disk because the tier missed. */
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+
+  /**
+   * Returns the fraction of reads that were served by the tier, or 0 if there haven't been any
+   * reads. The remaining reads were served from disk.
+   */
+  public synchronized double getHitRatio() {
+    long readCount = hitCount + missCount;
+    return readCount == 0 ? 0 : (double) hitCount / readCount;
+  }
+
+  /** Returns the number of cache files that have been promoted into the tier. */
+  public synchronized long getPromotionCount() {
+    return promotionCount;
+  }
+
+  /** Returns the number of cache files that have been demoted out of the tier. */
+  public synchronized long getDemotionCount() {
+    return demotionCount;
+  }
+
+  /** Returns the number of bytes of memory currently allocated by the tier. */
+  public synchronized long getAllocatedBytes() {
+    return (long) allocatedSlabCount * slabSize;
+  }
+
+  /** Demotes all cache files out of the tier. */
+  public synchronized void clear() {
+    Iterator<Entry> iterator = entries.values().iterator();
+    while (iterator.hasNext()) {
+      Entry entry = iterator.next();
+      iterator.remove();
+      demote(entry);
+    }
+  }
+
+  /** Returns the size of each slab, in bytes. */
+  /* package */ int getSlabSize() {
+    return slabSize;
+  }
+
+  /** Returns whether a cache file of the given length is eligible for promotion into the tier. */
+  /* package */ boolean canPromote(long length) {
+    return length <= maxSpanSize && getSlabCount(length) <= maxSlabCount;
+  }
+
+  /**
+   * Returns the entry for a cache file if it's held in the tier, and records the read as a hit or
+   * a miss. A returned entry must be released by calling {@link #release(Entry)}.
+   *
+   * @param key The cache key of the file's resource.
+   * @param position The position of the file's data within the resource.
+   * @param length The length of the file on disk, in bytes.
+   * @return The entry, or {@code null} if the file isn't held in the tier.
+   */
+  @Nullable
+  /* package */ synchronized Entry acquire(String key, long position, long length) {
+    String id = getEntryId(key, position);
+    @Nullable Entry entry = entries.get(id);
+    if (entry != null && entry.length != length) {
+      // The file has been replaced on disk.
+      entries.remove(id);
+      demote(entry);
+      entry = null;
+    }
+    if (entry == null) {
+      missCount++;
+      return null;
+    }
+    hitCount++;
+    entry.referenceCount++;
+    return entry;
+  }
+
+  /**
+   * Allocates slabs to hold a cache file of the given length, demoting the least recently read
+   * files if necessary. The slabs must be passed to {@link #promote} or {@link #free}.
+   *
+   * @param length The length of the cache file in bytes.
+   * @return The slabs, or {@code null} if they could not be allocated because the tier is occupied
+   *     by files that are being read.
+   */
+  @Nullable
+  /* package */ synchronized ByteBuffer[] allocate(long length) {
+    int slabCount = getSlabCount(length);
+    Iterator<Entry> iterator = entries.values().iterator();
+    while (freeSlabs.size() + maxSlabCount - allocatedSlabCount < slabCount) {
+      if (!iterator.hasNext()) {
+        return null;
+      }
+      Entry entry = iterator.next();
+      if (entry.referenceCount == 0) {
+        // Files that are being read are skipped, since demoting them wouldn't free their slabs.
+        iterator.remove();
+        demote(entry);
+      }
+    }
+    ByteBuffer[] slabs = new ByteBuffer[slabCount];
+    for (int i = 0; i < slabCount; i++) {
+      @Nullable ByteBuffer slab = freeSlabs.poll();
+      if (slab == null) {
+        slab = ByteBuffer.allocateDirect(slabSize);
+        allocatedSlabCount++;
+      }
+      slabs[i] = slab;
+    }
+    return slabs;
+  }
+
+  /**
+   * Promotes a cache file into the tier.
+   *
+   * @param key The cache key of the file's resource.
+   * @param position The position of the file's data within the resource.
+   * @param slabs Slabs obtained from {@link #allocate(long)}, holding the file's data.
+   * @param length The length of the cache file in bytes.
+   */
+  /* package */ synchronized void promote(
+      String key, long position, ByteBuffer[] slabs, long length) {
+    String id = getEntryId(key, position);
+    @Nullable Entry entry = entries.get(id);
+    if (entry != null && entry.length == length) {
+      // The file was promoted concurrently by another reader.
+      free(slabs);
+      return;
+    } else if (entry != null) {
+      entries.remove(id);
+      demote(entry);
+    }
+    entries.put(id, new Entry(slabs, length));
+    promotionCount++;
+  }
+
+  /** Releases an entry obtained from {@link #acquire(String, long, long)}. */
+  /* package */ synchronized void release(Entry entry) {
+    entry.referenceCount--;
+    if (entry.referenceCount == 0 && entry.demoted) {
+      free(entry.slabs);
+    }
+  }
+
+  /** Returns slabs obtained from {@link #allocate(long)} without promoting a file. */
+  /* package */ synchronized void free(ByteBuffer[] slabs) {
+    for (ByteBuffer slab : slabs) {
+      slab.clear();
+      freeSlabs.add(slab);
+    }
+  }
+
+  private void demote(Entry entry) {
+    entry.demoted = true;
+    demotionCount++;
+    if (entry.referenceCount == 0) {
+      free(entry.slabs);
+    }
+    // Else the slabs are freed when the last reader releases the entry.
+  }
+
+  private static String getEntryId(String key, long position) {
+    // Positions don't contain the separator, so ids are unique.
+    return position + ":" + key;
+  }
+
+  private int getSlabCount(long length) {
+    return (int) Math.min(Integer.MAX_VALUE, (length + slabSize - 1) / slabSize);
+  }
+}
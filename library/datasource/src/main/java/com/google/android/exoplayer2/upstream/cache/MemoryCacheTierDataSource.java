@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import static com.google.android.exoplayer2.util.Util.castNonNull;
+import static java.lang.Math.min;
+
+import android.net.Uri;
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.PlaybackException;
+import com.google.android.exoplayer2.upstream.BaseDataSource;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSourceException;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link DataSource} for reading cache files that serves reads from a {@link MemoryCacheTier}
+ * where possible, and from a disk {@link DataSource} otherwise.
+ *
+ * <p>Files that are read from disk in full are promoted into the memory tier by copying the data as
+ * it's read. Transfers are reported to this source's listeners regardless of which tier serves
+ * them, so listeners should not also be added to the disk source.
+ */
+/* package */ final class MemoryCacheTierDataSource extends BaseDataSource {
+
+  private final MemoryCacheTier memoryCacheTier;
+  private final DataSource diskDataSource;
+
+  @Nullable private Uri uri;
+  @Nullable private MemoryCacheTier.Entry entry;
+  @Nullable private ByteBuffer[] slabViews;
+  private long readPosition;
+  private long bytesRemaining;
+  private boolean readingFromDisk;
+  private boolean opened;
+
+  @Nullable private String promotionKey;
+  @Nullable private ByteBuffer[] promotionSlabs;
+  private long promotionFilePosition;
+  private long promotionLength;
+  private long promotionBytesCopied;
+
+  /**
+   * Creates an instance.
+   *
+   * @param memoryCacheTier The {@link MemoryCacheTier}.
+   * @param diskDataSource The {@link DataSource} used to read cache files that aren't held in the
+   *     memory tier.
+   */
+  public MemoryCacheTierDataSource(MemoryCacheTier memoryCacheTier, DataSource diskDataSource) {
+    super(/* isNetwork= */ false);
+    this.memoryCacheTier = memoryCacheTier;
+    this.diskDataSource = diskDataSource;
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws IOException {
+    uri = dataSpec.uri;
+    transferInitializing(dataSpec);
+    @Nullable String path = dataSpec.uri.getPath();
+    @Nullable String key = dataSpec.key;
+    @Nullable MemoryCacheTier.Entry entry = null;
+    long fileLength = 0;
+    if (path != null && key != null) {
+      fileLength = new File(path).length();
+      entry = memoryCacheTier.acquire(key, dataSpec.uriPositionOffset, fileLength);
+    }
+    if (entry != null) {
+      this.entry = entry;
+      if (dataSpec.position > entry.length) {
+        throw new DataSourceException(PlaybackException.ERROR_CODE_IO_READ_POSITION_OUT_OF_RANGE);
+      }
+      ByteBuffer[] slabViews = new ByteBuffer[entry.slabs.length];
+      for (int i = 0; i < slabViews.length; i++) {
+        slabViews[i] = entry.slabs[i].duplicate();
+      }
+      this.slabViews = slabViews;
+      readPosition = dataSpec.position;
+      bytesRemaining =
+          dataSpec.length == C.LENGTH_UNSET ? entry.length - dataSpec.position : dataSpec.length;
+    } else {
+      readingFromDisk = true;
+      bytesRemaining = diskDataSource.open(dataSpec);
+      if (key != null
+          && dataSpec.position == 0
+          && (dataSpec.length == C.LENGTH_UNSET || dataSpec.length >= fileLength)) {
+        maybeStartPromotion(key, dataSpec.uriPositionOffset, fileLength);
+      }
+    }
+    opened = true;
+    transferStarted(dataSpec);
+    return bytesRemaining;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    if (length == 0) {
+      return 0;
+    } else if (readingFromDisk) {
+      int bytesRead = diskDataSource.read(buffer, offset, length);
+      if (bytesRead != C.RESULT_END_OF_INPUT) {
+        if (promotionSlabs != null) {
+          continuePromotion(buffer, offset, bytesRead);
+        }
+        bytesTransferred(bytesRead);
+      }
+      return bytesRead;
+    }
+    MemoryCacheTier.Entry entry = castNonNull(this.entry);
+    if (bytesRemaining == 0 || readPosition >= entry.length) {
+      return C.RESULT_END_OF_INPUT;
+    }
+    int slabSize = memoryCacheTier.getSlabSize();
+    int slabIndex = (int) (readPosition / slabSize);
+    int slabOffset = (int) (readPosition % slabSize);
+    long bytesAvailable = min(bytesRemaining, entry.length - readPosition);
+    int bytesRead = (int) min(min(length, slabSize - slabOffset), bytesAvailable);
+    ByteBuffer slabView = castNonNull(slabViews)[slabIndex];
+    slabView.position(slabOffset);
+    slabView.get(buffer, offset, bytesRead);
+    readPosition += bytesRead;
+    bytesRemaining -= bytesRead;
+    bytesTransferred(bytesRead);
+    return bytesRead;
+  }
+
+  @Override
+  @Nullable
+  public Uri getUri() {
+    return uri;
+  }
+
+  @Override
+  public void close() throws IOException {
+    uri = null;
+    slabViews = null;
+    try {
+      if (readingFromDisk) {
+        diskDataSource.close();
+      }
+    } finally {
+      readingFromDisk = false;
+      if (promotionSlabs != null) {
+        // The file wasn't read in full.
+        memoryCacheTier.free(promotionSlabs);
+        clearPromotion();
+      }
+      if (entry != null) {
+        memoryCacheTier.release(entry);
+        entry = null;
+      }
+      if (opened) {
+        opened = false;
+        transferEnded();
+      }
+    }
+  }
+
+  /**
+   * Allocates slabs into which a cache file that's being read from disk is copied, if the file is
+   * eligible for promotion.
+   */
+  private void maybeStartPromotion(String key, long filePosition, long length) {
+    if (length == 0 || !memoryCacheTier.canPromote(length)) {
+      return;
+    }
+    @Nullable ByteBuffer[] slabs = memoryCacheTier.allocate(length);
+    if (slabs == null) {
+      return;
+    }
+    promotionKey = key;
+    promotionSlabs = slabs;
+    promotionFilePosition = filePosition;
+    promotionLength = length;
+    promotionBytesCopied = 0;
+  }
+
+  /**
+   * Copies data read from disk into the promotion slabs, and promotes the file once all of it has
+   * been copied.
+   */
+  private void continuePromotion(byte[] buffer, int offset, int length) {
+    ByteBuffer[] slabs = castNonNull(promotionSlabs);
+    int slabSize = memoryCacheTier.getSlabSize();
+    int bytesToCopy = (int) min(length, promotionLength - promotionBytesCopied);
+    while (bytesToCopy > 0) {
+      int slabIndex = (int) (promotionBytesCopied / slabSize);
+      int slabOffset = (int) (promotionBytesCopied % slabSize);
+      int slabBytesToCopy = min(bytesToCopy, slabSize - slabOffset);
+      ByteBuffer slab = slabs[slabIndex];
+      slab.position(slabOffset);
+      slab.put(buffer, offset, slabBytesToCopy);
+      offset += slabBytesToCopy;
+      bytesToCopy -= slabBytesToCopy;
+      promotionBytesCopied += slabBytesToCopy;
+    }
+    if (promotionBytesCopied == promotionLength) {
+      memoryCacheTier.promote(
+          castNonNull(promotionKey), promotionFilePosition, slabs, promotionLength);
+      clearPromotion();
+    }
+  }
+
+  private void clearPromotion() {
+    promotionKey = null;
+    promotionSlabs = null;
+  }
+}
@@ -15,7 +15,10 @@
  */
 package com.google.android.exoplayer2.upstream.cache;
 
+import static java.lang.Math.min;
+
 import android.os.ConditionVariable;
+import android.os.SystemClock;
 import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
 import com.google.android.exoplayer2.C;
@@ -28,13 +31,19 @@ import java.io.File;
 import java.io.IOException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableSet;
 import java.util.Random;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 
 /**
@@ -42,12 +51,46 @@ import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
  *
  * <p>Only one instance of SimpleCache is allowed for a given directory at a given time.
  *
+ * <p>Operations that modify the cache are serialized, so that {@link Cache.Listener} and {@link
+ * CacheEvictor} events are delivered one at a time. Queries that don't modify the cache, such as
+ * {@link #getCachedSpans(String)}, {@link #getCachedLength(String, long, long)} and {@link
+ * #getCacheSpace()}, don't block on modifications and may be called concurrently from any number
+ * of threads. The same applies to {@link #startReadWrite(String, long, long)} calls that are
+ * satisfied by cached data, provided the evictor doesn't {@link
+ * CacheEvictor#requiresCacheSpanTouches() require cache spans to be touched}.
+ *
+ * <p>When the cache is released whilst no data is being written to it, a snapshot of its spans is
+ * written to the cache directory. The next instance for the same directory loads its spans from
+ * the snapshot instead of scanning the directory, which makes initialization of large caches
+ * considerably faster. Otherwise the directory is scanned, using multiple threads. Use {@link
+ * #addInitializationListener(InitializationListener)} to find out how initialization went.
+ *
+ * <p>Content deduplication can be enabled by calling {@link #setDeduplicatingContent(boolean)}.
+ * Files whose content is identical to that of a file that's already cached are then replaced by
+ * hard links to it, so that the content is stored once however many spans refer to it.
+ *
  * <p>To delete a SimpleCache, use {@link #delete(File, DatabaseProvider)} rather than deleting the
  * directory and its contents directly. This is necessary to ensure that associated index data is
  * also removed.
  */
 public final class SimpleCache implements Cache {
 
+  /** Receives information about the initialization of a {@link SimpleCache}. */
+  public interface InitializationListener {
+
+    /**
+     * Called when a cache has been initialized successfully.
+     *
+     * @param cache The cache.
+     * @param initializationTimeMs The time taken to initialize the cache, in milliseconds.
+     * @param spanCount The number of cached spans that were loaded.
+     * @param loadedFromSnapshot Whether the spans were loaded from a snapshot written when the
+     *     cache was last released, rather than by scanning the cache directory.
+     */
+    void onCacheInitialized(
+        SimpleCache cache, long initializationTimeMs, int spanCount, boolean loadedFromSnapshot);
+  }
+
   private static final String TAG = "SimpleCache";
   /**
    * Cache files are distributed between a number of subdirectories. This helps to avoid poor
@@ -56,6 +99,8 @@ public final class SimpleCache implements Cache {
    * https://github.com/google/ExoPlayer/issues/4253.
    */
   private static final int SUBDIRECTORY_COUNT = 10;
+  /** The maximum number of threads used to scan subdirectories during initialization. */
+  private static final int MAX_SCAN_THREAD_COUNT = 4;
 
   private static final String UID_FILE_SUFFIX = ".uid";
 
@@ -65,14 +110,22 @@ public final class SimpleCache implements Cache {
   private final CacheEvictor evictor;
   private final CachedContentIndex contentIndex;
   @Nullable private final CacheFileMetadataIndex fileIndex;
+  private final CacheSpanSnapshot spanSnapshot;
+  private final ArrayList<InitializationListener> initializationListeners;
   private final HashMap<String, ArrayList<Listener>> listeners;
   private final Random random;
   private final boolean touchCacheSpans;
 
   private long uid;
-  private long totalSpace;
-  private boolean released;
-  private @MonotonicNonNull CacheException initializationException;
+  @Nullable private volatile ContentDeduplicationIndex deduplicationIndex;
+  private volatile long totalSpace;
+  private volatile long deduplicatedSpace;
+  private volatile boolean initialized;
+  private volatile boolean released;
+  private volatile @MonotonicNonNull CacheException initializationException;
+  private long initializationTimeMs;
+  private int initializationSpanCount;
+  private boolean initializationLoadedFromSnapshot;
 
   /**
    * Returns whether {@code cacheFolder} is locked by a {@link SimpleCache} instance. To unlock the
@@ -226,6 +279,51 @@ public final class SimpleCache implements Cache {
       @Nullable byte[] legacyIndexSecretKey,
       boolean legacyIndexEncrypt,
       boolean preferLegacyIndex) {
+    this(
+        cacheDir,
+        evictor,
+        databaseProvider,
+        legacyIndexSecretKey,
+        legacyIndexEncrypt,
+        preferLegacyIndex,
+        /* useJournalIndex= */ false);
+  }
+
+  /**
+   * Constructs the cache. The cache will delete any unrecognized files from the cache directory.
+   * Hence the directory cannot be used to store other files.
+   *
+   * @param cacheDir A dedicated cache directory.
+   * @param evictor The evictor to be used. For download use cases where cache eviction should not
+   *     occur, use {@link NoOpCacheEvictor}.
+   * @param databaseProvider Provides the database in which the cache index is stored, or {@code
+   *     null} to use a legacy index. Using a database index is highly recommended for performance
+   *     reasons. If {@code useJournalIndex} is {@code true}, the database is still used to store
+   *     cache file metadata, and an existing database index is migrated into the journal index.
+   * @param legacyIndexSecretKey A 16 byte AES key for reading, and optionally writing, the legacy
+   *     index. Not used by the database index, however should still be provided when using the
+   *     database index in cases where upgrading from the legacy index may be necessary.
+   * @param legacyIndexEncrypt Whether to encrypt when writing to the legacy index. Must be {@code
+   *     false} if {@code legacyIndexSecretKey} is {@code null}. Not used by the database index.
+   *     Must be {@code false} if {@code useJournalIndex} is {@code true}.
+   * @param preferLegacyIndex Whether to use the legacy index even if a {@code databaseProvider} is
+   *     provided. Should be {@code false} in nearly all cases. Setting this to {@code true} is only
+   *     useful for downgrading from the database index back to the legacy index.
+   * @param useJournalIndex Whether to store the cache index as an append-only journal in the cache
+   *     directory. Storing a journal index costs time proportional to the number of changed
+   *     resources rather than the total number of resources in the cache, which is beneficial for
+   *     caches containing very many resources. The journal is not encrypted. If a cache that used
+   *     the journal index is later constructed with this set to {@code false}, the journal index is
+   *     migrated back into the database or legacy index.
+   */
+  public SimpleCache(
+      File cacheDir,
+      CacheEvictor evictor,
+      @Nullable DatabaseProvider databaseProvider,
+      @Nullable byte[] legacyIndexSecretKey,
+      boolean legacyIndexEncrypt,
+      boolean preferLegacyIndex,
+      boolean useJournalIndex) {
     this(
         cacheDir,
         evictor,
@@ -234,8 +332,9 @@ public final class SimpleCache implements Cache {
             cacheDir,
             legacyIndexSecretKey,
             legacyIndexEncrypt,
-            preferLegacyIndex),
-        databaseProvider != null && !preferLegacyIndex
+            preferLegacyIndex,
+            /* journalStorageDir= */ useJournalIndex ? cacheDir : null),
+        databaseProvider != null && (!preferLegacyIndex || useJournalIndex)
             ? new CacheFileMetadataIndex(databaseProvider)
             : null);
   }
@@ -253,6 +352,8 @@ public final class SimpleCache implements Cache {
     this.evictor = evictor;
     this.contentIndex = contentIndex;
     this.fileIndex = fileIndex;
+    spanSnapshot = new CacheSpanSnapshot(cacheDir);
+    initializationListeners = new ArrayList<>();
     listeners = new HashMap<>();
     random = new Random();
     touchCacheSpans = evictor.requiresCacheSpanTouches();
@@ -267,7 +368,9 @@ public final class SimpleCache implements Cache {
           conditionVariable.open();
           initialize();
           SimpleCache.this.evictor.onCacheInitialized();
+          initialized = true;
         }
+        notifyInitializationListeners();
       }
     }.start();
     conditionVariable.block();
@@ -278,12 +381,74 @@ public final class SimpleCache implements Cache {
    *
    * @throws CacheException If an error occurred during initialization.
    */
-  public synchronized void checkInitialization() throws CacheException {
+  public void checkInitialization() throws CacheException {
+    waitForInitialization();
+    @Nullable CacheException initializationException = this.initializationException;
     if (initializationException != null) {
       throw initializationException;
     }
   }
 
+  /**
+   * Adds an {@link InitializationListener}. If the cache has already been initialized
+   * successfully, the listener is called immediately on the calling thread. Otherwise it's called
+   * on the cache initialization thread once initialization has completed.
+   *
+   * @param listener The listener to add.
+   */
+  public void addInitializationListener(InitializationListener listener) {
+    synchronized (initializationListeners) {
+      if (!initialized) {
+        initializationListeners.add(listener);
+        return;
+      }
+    }
+    if (initializationException == null) {
+      listener.onCacheInitialized(
+          this, initializationTimeMs, initializationSpanCount, initializationLoadedFromSnapshot);
+    }
+  }
+
+  /**
+   * Sets whether files whose content is identical to that of a file that's already cached are
+   * stored as hard links to it, rather than as separate copies. Only files committed with a hash
+   * of their content are deduplicated, which {@link CacheDataSink} does if deduplication is
+   * enabled when it's opened. Deduplication requires API level 21 and a file system that supports
+   * hard links. It has no effect otherwise.
+   *
+   * <p>Deduplication is tracked in memory. Files that were deduplicated before the cache was last
+   * released continue to share storage, but aren't accounted for by {@link
+   * #getDeduplicatedSpace()} or {@link #getCacheSpace()}, and new files aren't linked to them.
+   *
+   * <p>The default is {@code false}.
+   *
+   * @param deduplicatingContent Whether to deduplicate content.
+   */
+  public synchronized void setDeduplicatingContent(boolean deduplicatingContent) {
+    if (!deduplicatingContent) {
+      deduplicationIndex = null;
+      deduplicatedSpace = 0;
+    } else if (deduplicationIndex == null) {
+      deduplicationIndex = new ContentDeduplicationIndex();
+    }
+  }
+
+  @Override
+  public boolean isDeduplicatingContent() {
+    // Called whenever a CacheDataSink is opened, so it doesn't acquire the cache's lock.
+    return deduplicationIndex != null;
+  }
+
+  /**
+   * Returns the disk space in bytes saved by deduplicating content. This is the amount by which
+   * the total length of the cached spans exceeds {@link #getCacheSpace()}.
+   */
+  public long getDeduplicatedSpace() {
+    Assertions.checkState(!released);
+    waitForInitialization();
+    return deduplicatedSpace;
+  }
+
   @Override
   public synchronized long getUid() {
     return uid;
@@ -298,6 +463,7 @@ public final class SimpleCache implements Cache {
     removeStaleSpans();
     try {
       contentIndex.store();
+      maybeWriteSpanSnapshot();
     } catch (IOException e) {
       Log.e(TAG, "Storing index file failed", e);
     } finally {
@@ -335,69 +501,70 @@ public final class SimpleCache implements Cache {
   }
 
   @Override
-  public synchronized NavigableSet<CacheSpan> getCachedSpans(String key) {
+  public NavigableSet<CacheSpan> getCachedSpans(String key) {
     Assertions.checkState(!released);
-    CachedContent cachedContent = contentIndex.get(key);
+    waitForInitialization();
+    @Nullable CachedContent cachedContent = contentIndex.get(key);
     return cachedContent == null || cachedContent.isEmpty()
         ? new TreeSet<>()
         : new TreeSet<CacheSpan>(cachedContent.getSpans());
   }
 
   @Override
-  public synchronized Set<String> getKeys() {
+  public Set<String> getKeys() {
     Assertions.checkState(!released);
+    waitForInitialization();
     return new HashSet<>(contentIndex.getKeys());
   }
 
   @Override
-  public synchronized long getCacheSpace() {
+  public long getCacheSpace() {
     Assertions.checkState(!released);
-    return totalSpace;
+    waitForInitialization();
+    return totalSpace - deduplicatedSpace;
   }
 
   @Override
-  public synchronized CacheSpan startReadWrite(String key, long position, long length)
+  public CacheSpan startReadWrite(String key, long position, long length)
       throws InterruptedException, CacheException {
     Assertions.checkState(!released);
     checkInitialization();
 
-    while (true) {
-      CacheSpan span = startReadWriteNonBlocking(key, position, length);
-      if (span != null) {
-        return span;
-      } else {
-        // Lock not available. We'll be woken up when a span is added, or when a locked span is
-        // released. We'll be able to make progress when either:
-        // 1. A span is added for the requested key that covers the requested position, in which
-        //    case a read can be started.
-        // 2. The lock for the requested key is released, in which case a write can be started.
-        wait();
+    @Nullable SimpleCacheSpan cachedSpan = getCachedSpanWithoutLocking(key, position);
+    if (cachedSpan != null) {
+      return cachedSpan;
+    }
+    synchronized (this) {
+      while (true) {
+        @Nullable CacheSpan span = startReadWriteNonBlockingLocked(key, position, length);
+        if (span != null) {
+          return span;
+        } else {
+          // Lock not available. We'll be woken up when a span is added, or when a locked span is
+          // released. We'll be able to make progress when either:
+          // 1. A span is added for the requested key that covers the requested position, in which
+          //    case a read can be started.
+          // 2. The lock for the requested key is released, in which case a write can be started.
+          wait();
+        }
       }
     }
   }
 
   @Override
   @Nullable
-  public synchronized CacheSpan startReadWriteNonBlocking(String key, long position, long length)
+  public CacheSpan startReadWriteNonBlocking(String key, long position, long length)
       throws CacheException {
     Assertions.checkState(!released);
     checkInitialization();
 
-    SimpleCacheSpan span = getSpan(key, position, length);
-
-    if (span.isCached) {
-      // Read case.
-      return touchSpan(key, span);
+    @Nullable SimpleCacheSpan cachedSpan = getCachedSpanWithoutLocking(key, position);
+    if (cachedSpan != null) {
+      return cachedSpan;
     }
-
-    CachedContent cachedContent = contentIndex.getOrAdd(key);
-    if (cachedContent.lockRange(position, span.length)) {
-      // Write case.
-      return span;
+    synchronized (this) {
+      return startReadWriteNonBlockingLocked(key, position, length);
     }
-
-    // Lock not available.
-    return null;
   }
 
   @Override
@@ -427,13 +594,65 @@ public final class SimpleCache implements Cache {
 
   @Override
   public synchronized void commitFile(File file, long length) throws CacheException {
+    commitFile(file, length, /* contentHash= */ null);
+  }
+
+  @Override
+  public synchronized void commitFile(File file, long length, @Nullable byte[] contentHash)
+      throws CacheException {
     Assertions.checkState(!released);
-    if (!file.exists()) {
+    if (!commitFileInternal(file, length, contentHash)) {
       return;
     }
+    try {
+      contentIndex.store();
+    } catch (IOException e) {
+      throw new CacheException(e);
+    }
+    notifyAll();
+  }
+
+  @Override
+  public synchronized void commitFiles(Map<File, Long> files) throws CacheException {
+    commitFiles(files, Collections.emptyMap());
+  }
+
+  @Override
+  public synchronized void commitFiles(Map<File, Long> files, Map<File, byte[]> contentHashes)
+      throws CacheException {
+    Assertions.checkState(!released);
+    boolean committedFiles = false;
+    for (Map.Entry<File, Long> entry : files.entrySet()) {
+      File file = entry.getKey();
+      committedFiles |= commitFileInternal(file, entry.getValue(), contentHashes.get(file));
+    }
+    if (!committedFiles) {
+      return;
+    }
+    try {
+      contentIndex.store();
+    } catch (IOException e) {
+      throw new CacheException(e);
+    }
+    notifyAll();
+  }
+
+  /**
+   * Adds a span for a newly written file without persisting the index.
+   *
+   * @param file The file.
+   * @param length The length of the file in bytes.
+   * @param contentHash The hash of the file's content, or {@code null} if unknown.
+   * @return Whether a span was added.
+   */
+  private boolean commitFileInternal(File file, long length, @Nullable byte[] contentHash)
+      throws CacheException {
+    if (!file.exists()) {
+      return false;
+    }
     if (length == 0) {
       file.delete();
-      return;
+      return false;
     }
 
     SimpleCacheSpan span =
@@ -447,6 +666,11 @@ public final class SimpleCache implements Cache {
       Assertions.checkState((span.position + span.length) <= contentLength);
     }
 
+    @Nullable ContentDeduplicationIndex deduplicationIndex = this.deduplicationIndex;
+    if (deduplicationIndex != null && contentHash != null) {
+      deduplicate(deduplicationIndex, file, length, contentHash);
+    }
+
     if (fileIndex != null) {
       String fileName = file.getName();
       try {
@@ -456,12 +680,7 @@ public final class SimpleCache implements Cache {
       }
     }
     addSpan(span);
-    try {
-      contentIndex.store();
-    } catch (IOException e) {
-      throw new CacheException(e);
-    }
-    notifyAll();
+    return true;
   }
 
   @Override
@@ -488,15 +707,17 @@ public final class SimpleCache implements Cache {
   }
 
   @Override
-  public synchronized boolean isCached(String key, long position, long length) {
+  public boolean isCached(String key, long position, long length) {
     Assertions.checkState(!released);
+    waitForInitialization();
     @Nullable CachedContent cachedContent = contentIndex.get(key);
     return cachedContent != null && cachedContent.getCachedBytesLength(position, length) >= length;
   }
 
   @Override
-  public synchronized long getCachedLength(String key, long position, long length) {
+  public long getCachedLength(String key, long position, long length) {
     Assertions.checkState(!released);
+    waitForInitialization();
     if (length == C.LENGTH_UNSET) {
       length = Long.MAX_VALUE;
     }
@@ -505,7 +726,7 @@ public final class SimpleCache implements Cache {
   }
 
   @Override
-  public synchronized long getCachedBytes(String key, long position, long length) {
+  public long getCachedBytes(String key, long position, long length) {
     long endPosition = length == C.LENGTH_UNSET ? Long.MAX_VALUE : position + length;
     if (endPosition < 0) {
       // The calculation rolled over (length is probably Long.MAX_VALUE).
@@ -542,13 +763,75 @@ public final class SimpleCache implements Cache {
   }
 
   @Override
-  public synchronized ContentMetadata getContentMetadata(String key) {
+  public ContentMetadata getContentMetadata(String key) {
     Assertions.checkState(!released);
+    waitForInitialization();
     return contentIndex.getContentMetadata(key);
   }
 
+  /** Implements {@link #startReadWriteNonBlocking} whilst holding the lock on this instance. */
+  @Nullable
+  private CacheSpan startReadWriteNonBlockingLocked(String key, long position, long length) {
+    Assertions.checkState(!released);
+    SimpleCacheSpan span = getSpan(key, position, length);
+
+    if (span.isCached) {
+      // Read case.
+      return touchSpan(key, span);
+    }
+
+    CachedContent cachedContent = contentIndex.getOrAdd(key);
+    if (cachedContent.lockRange(position, span.length)) {
+      // Write case.
+      return span;
+    }
+
+    // Lock not available.
+    return null;
+  }
+
+  /**
+   * Blocks until the cache's in-memory representation has been initialized. Initialization holds
+   * the lock on this instance throughout, so acquiring it once is sufficient.
+   */
+  private void waitForInitialization() {
+    if (!initialized) {
+      synchronized (this) {
+        // Do nothing.
+      }
+    }
+  }
+
+  /**
+   * Returns the cached span covering {@code position} if it can be returned from {@link
+   * #startReadWrite(String, long, long)} without acquiring the lock on this instance, or {@code
+   * null} if the caller should fall back to the locking path. This is the case if the evictor
+   * requires spans to be touched, if {@code position} isn't cached, or if the span's underlying
+   * file has been modified or deleted.
+   *
+   * @param key The key of the span being requested.
+   * @param position The position of the span being requested.
+   * @return The cached span, or {@code null}.
+   */
+  @Nullable
+  private SimpleCacheSpan getCachedSpanWithoutLocking(String key, long position) {
+    if (touchCacheSpans) {
+      return null;
+    }
+    @Nullable CachedContent cachedContent = contentIndex.get(key);
+    if (cachedContent == null) {
+      return null;
+    }
+    SimpleCacheSpan span = cachedContent.getSpan(position, C.LENGTH_UNSET);
+    if (!span.isCached || Assertions.checkNotNull(span.file).length() != span.length) {
+      return null;
+    }
+    return span;
+  }
+
   /** Ensures that the cache's in-memory representation has been initialized. */
   private void initialize() {
+    long startTimeMs = SystemClock.elapsedRealtime();
     if (!cacheDir.exists()) {
       try {
         createCacheDirectories(cacheDir);
@@ -582,11 +865,24 @@ public final class SimpleCache implements Cache {
       contentIndex.initialize(uid);
       if (fileIndex != null) {
         fileIndex.initialize(uid);
+      }
+      @Nullable List<CacheSpanSnapshot.Entry> snapshotEntries = spanSnapshot.readAndDelete(uid);
+      if (snapshotEntries != null) {
+        // The cache was released cleanly, so the snapshot accounts for every file in the cache
+        // directory. Files that are modified or deleted later are detected when they're read.
+        loadSnapshot(snapshotEntries);
+        initializationLoadedFromSnapshot = true;
+      } else if (fileIndex != null) {
         Map<String, CacheFileMetadata> fileMetadata = fileIndex.getAll();
-        loadDirectory(cacheDir, /* isRoot= */ true, files, fileMetadata);
+        loadDirectory(cacheDir, /* isRoot= */ true, files, /* fileLengths= */ null, fileMetadata);
         fileIndex.removeAll(fileMetadata.keySet());
       } else {
-        loadDirectory(cacheDir, /* isRoot= */ true, files, /* fileMetadata= */ null);
+        loadDirectory(
+            cacheDir,
+            /* isRoot= */ true,
+            files,
+            /* fileLengths= */ null,
+            /* fileMetadata= */ null);
       }
     } catch (IOException e) {
       String message = "Failed to initialize cache indices: " + cacheDir;
@@ -601,6 +897,69 @@ public final class SimpleCache implements Cache {
     } catch (IOException e) {
       Log.e(TAG, "Storing index file failed", e);
     }
+    for (CachedContent cachedContent : contentIndex.getAll()) {
+      initializationSpanCount += cachedContent.getSpans().size();
+    }
+    initializationTimeMs = SystemClock.elapsedRealtime() - startTimeMs;
+  }
+
+  /**
+   * Loads spans recorded in a snapshot.
+   *
+   * @param entries The snapshot entries.
+   */
+  private void loadSnapshot(List<CacheSpanSnapshot.Entry> entries) {
+    for (int i = 0; i < entries.size(); i++) {
+      CacheSpanSnapshot.Entry entry = entries.get(i);
+      @Nullable
+      SimpleCacheSpan span =
+          SimpleCacheSpan.createCacheEntry(
+              entry.file, entry.length, entry.lastTouchTimestamp, contentIndex);
+      if (span != null) {
+        addSpan(span);
+      } else {
+        entry.file.delete();
+      }
+    }
+  }
+
+  /**
+   * Writes a snapshot of the cached spans, if no files are being written. A snapshot is only
+   * trusted if it accounts for every file in the cache directory, which is not the case if files
+   * are being written into locked regions of the cache.
+   */
+  private void maybeWriteSpanSnapshot() {
+    for (CachedContent cachedContent : contentIndex.getAll()) {
+      if (!cachedContent.isFullyUnlocked()) {
+        return;
+      }
+    }
+    try {
+      spanSnapshot.write(uid, contentIndex.getAll());
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to write span snapshot", e);
+      spanSnapshot.delete();
+    }
+  }
+
+  private void notifyInitializationListeners() {
+    ArrayList<InitializationListener> listeners;
+    synchronized (initializationListeners) {
+      listeners = new ArrayList<>(initializationListeners);
+      initializationListeners.clear();
+    }
+    if (initializationException != null) {
+      return;
+    }
+    for (int i = 0; i < listeners.size(); i++) {
+      listeners
+          .get(i)
+          .onCacheInitialized(
+              this,
+              initializationTimeMs,
+              initializationSpanCount,
+              initializationLoadedFromSnapshot);
+    }
   }
 
   /**
@@ -609,6 +968,8 @@ public final class SimpleCache implements Cache {
    * @param directory The directory.
    * @param isRoot Whether the directory is the root directory.
    * @param files The files belonging to the directory.
+   * @param fileLengths The lengths of the files belonging to the directory, or {@code null} if
+   *     they're not known. Lengths are only used for files without metadata.
    * @param fileMetadata A mutable map containing cache file metadata, keyed by file name. The map
    *     is modified by removing entries for all loaded files. When the method call returns, the map
    *     will contain only metadata that was unused. May be null if no file metadata is available.
@@ -617,6 +978,7 @@ public final class SimpleCache implements Cache {
       File directory,
       boolean isRoot,
       @Nullable File[] files,
+      @Nullable long[] fileLengths,
       @Nullable Map<String, CacheFileMetadata> fileMetadata) {
     if (files == null || files.length == 0) {
       // Either (a) directory isn't really a directory (b) it's empty, or (c) listing files failed.
@@ -627,14 +989,25 @@ public final class SimpleCache implements Cache {
       }
       return;
     }
-    for (File file : files) {
+    Map<File, DirectoryScan> subdirectoryScans =
+        isRoot ? scanSubdirectories(files, fileMetadata) : new HashMap<>();
+    for (int i = 0; i < files.length; i++) {
+      File file = files[i];
       String fileName = file.getName();
       if (isRoot && fileName.indexOf('.') == -1) {
-        loadDirectory(file, /* isRoot= */ false, file.listFiles(), fileMetadata);
+        @Nullable DirectoryScan scan = subdirectoryScans.get(file);
+        if (scan != null) {
+          loadDirectory(file, /* isRoot= */ false, scan.files, scan.fileLengths, fileMetadata);
+        } else {
+          loadDirectory(
+              file, /* isRoot= */ false, file.listFiles(), /* fileLengths= */ null, fileMetadata);
+        }
       } else {
         if (isRoot
-            && (CachedContentIndex.isIndexFile(fileName) || fileName.endsWith(UID_FILE_SUFFIX))) {
-          // Skip expected UID and index files in the root directory.
+            && (CachedContentIndex.isIndexFile(fileName)
+                || CacheSpanSnapshot.isSnapshotFile(fileName)
+                || fileName.endsWith(UID_FILE_SUFFIX))) {
+          // Skip expected UID, index and snapshot files in the root directory.
           continue;
         }
         long length = C.LENGTH_UNSET;
@@ -644,6 +1017,8 @@ public final class SimpleCache implements Cache {
         if (metadata != null) {
           length = metadata.length;
           lastTouchTimestamp = metadata.lastTouchTimestamp;
+        } else if (fileLengths != null) {
+          length = fileLengths[i];
         }
         @Nullable
         SimpleCacheSpan span =
@@ -657,6 +1032,53 @@ public final class SimpleCache implements Cache {
     }
   }
 
+  /**
+   * Lists the subdirectories of the root cache directory, and reads the lengths of files for which
+   * there's no metadata, using multiple threads. For large caches this I/O dominates the time
+   * taken to scan the cache directory.
+   *
+   * @param rootFiles The files belonging to the root directory.
+   * @param fileMetadata The cache file metadata, keyed by file name, or {@code null} if no file
+   *     metadata is available. Not modified.
+   * @return The scans that completed, keyed by subdirectory.
+   */
+  private static Map<File, DirectoryScan> scanSubdirectories(
+      File[] rootFiles, @Nullable Map<String, CacheFileMetadata> fileMetadata) {
+    Map<File, DirectoryScan> scans = new HashMap<>();
+    List<File> subdirectories = new ArrayList<>();
+    for (File file : rootFiles) {
+      if (file.getName().indexOf('.') == -1) {
+        subdirectories.add(file);
+      }
+    }
+    if (subdirectories.size() <= 1) {
+      return scans;
+    }
+    ExecutorService executorService =
+        Executors.newFixedThreadPool(
+            min(subdirectories.size(), MAX_SCAN_THREAD_COUNT),
+            runnable -> new Thread(runnable, "ExoPlayer:SimpleCacheScan"));
+    try {
+      List<Future<DirectoryScan>> futures = new ArrayList<>();
+      for (int i = 0; i < subdirectories.size(); i++) {
+        File subdirectory = subdirectories.get(i);
+        futures.add(executorService.submit(() -> DirectoryScan.scan(subdirectory, fileMetadata)));
+      }
+      for (int i = 0; i < futures.size(); i++) {
+        try {
+          scans.put(subdirectories.get(i), futures.get(i).get());
+        } catch (ExecutionException e) {
+          // The subdirectory will be scanned on the calling thread instead.
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      executorService.shutdown();
+    }
+    return scans;
+  }
+
   /**
    * Touches a cache span, returning the updated result. If the evictor does not require cache spans
    * to be touched, then this method does nothing and the span is returned without modification.
@@ -686,6 +1108,11 @@ public final class SimpleCache implements Cache {
     }
     SimpleCacheSpan newSpan =
         contentIndex.get(key).setLastTouchTimestamp(span, lastTouchTimestamp, updateFile);
+    @Nullable ContentDeduplicationIndex deduplicationIndex = this.deduplicationIndex;
+    if (deduplicationIndex != null) {
+      deduplicationIndex.onFileRenamed(
+          Assertions.checkNotNull(span.file), Assertions.checkNotNull(newSpan.file));
+    }
     notifySpanTouched(span, newSpan);
     return newSpan;
   }
@@ -716,6 +1143,22 @@ public final class SimpleCache implements Cache {
     }
   }
 
+  /**
+   * Replaces a newly written file with a hard link to an existing file with the same content, if
+   * there is one, and adds it to the deduplication index.
+   */
+  private void deduplicate(
+      ContentDeduplicationIndex deduplicationIndex, File file, long length, byte[] contentHash) {
+    @Nullable File existingFile = deduplicationIndex.getFileWithContent(contentHash, length);
+    if (existingFile == null) {
+      deduplicationIndex.add(file, contentHash, length);
+    } else if (existingFile.length() == length
+        && ContentDeduplicationIndex.replaceWithLink(file, existingFile)) {
+      deduplicationIndex.add(file, contentHash, length);
+      deduplicatedSpace = deduplicationIndex.getDeduplicatedBytes();
+    }
+  }
+
   /**
    * Adds a cached span to the in-memory representation.
    *
@@ -733,6 +1176,11 @@ public final class SimpleCache implements Cache {
       return;
     }
     totalSpace -= span.length;
+    @Nullable ContentDeduplicationIndex deduplicationIndex = this.deduplicationIndex;
+    if (deduplicationIndex != null) {
+      deduplicationIndex.remove(Assertions.checkNotNull(span.file));
+      deduplicatedSpace = deduplicationIndex.getDeduplicatedBytes();
+    }
     if (fileIndex != null) {
       String fileName = span.file.getName();
       try {
@@ -852,4 +1300,30 @@ public final class SimpleCache implements Cache {
   private static synchronized void unlockFolder(File cacheDir) {
     lockedCacheDirs.remove(cacheDir.getAbsoluteFile());
   }
+
+  /** The result of listing a cache subdirectory. */
+  private static final class DirectoryScan {
+
+    @Nullable public final File[] files;
+    @Nullable public final long[] fileLengths;
+
+    private DirectoryScan(@Nullable File[] files, @Nullable long[] fileLengths) {
+      this.files = files;
+      this.fileLengths = fileLengths;
+    }
+
+    public static DirectoryScan scan(
+        File directory, @Nullable Map<String, CacheFileMetadata> fileMetadata) {
+      @Nullable File[] files = directory.listFiles();
+      if (files == null) {
+        return new DirectoryScan(/* files= */ null, /* fileLengths= */ null);
+      }
+      long[] fileLengths = new long[files.length];
+      for (int i = 0; i < files.length; i++) {
+        boolean hasMetadata = fileMetadata != null && fileMetadata.containsKey(files[i].getName());
+        fileLengths[i] = hasMetadata ? C.LENGTH_UNSET : files[i].length();
+      }
+      return new DirectoryScan(files, fileLengths);
+    }
+  }
 }
@@ -50,17 +50,6 @@ import java.util.regex.Pattern;
     return new File(cacheDir, id + "." + position + "." + timestamp + SUFFIX);
   }
 
-  /**
-   * Creates a lookup span.
-   *
-   * @param key The cache key of the resource.
-   * @param position The position of the span in the resource.
-   * @return The span.
-   */
-  public static SimpleCacheSpan createLookup(String key, long position) {
-    return new SimpleCacheSpan(key, position, C.LENGTH_UNSET, C.TIME_UNSET, null);
-  }
-
   /**
    * Creates a hole span.
    *
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.C;
+import java.util.TreeSet;
+
+/**
+ * Evicts cache files based on both how recently and how frequently they've been accessed.
+ *
+ * <p>The cache is split into a small window region and a main region, in the style of W-TinyLFU.
+ * Newly written spans enter the window, which is managed as a least recently used list. Spans
+ * that overflow the window only displace spans from the main region if they've been accessed more
+ * often, as estimated by a frequency sketch that remembers accesses to spans that are no longer
+ * cached. This stops a single pass over a large resource, such as watching a long movie once,
+ * from flushing out small resources that are accessed repeatedly.
+ *
+ * <p>The main region is a segmented least recently used list. Spans enter its probation segment,
+ * and are promoted to its protected segment if they're accessed again.
+ *
+ * <p>Accesses are counted per span rather than per resource, so that the spans of a resource each
+ * earn their place in the cache. If a window span and a main span have been accessed equally
+ * often, the one further into its resource is evicted, since playbacks commonly stop part way
+ * through a resource but nearly always include its start.
+ *
+ * <p>Like {@link LeastRecentlyUsedCacheEvictor}, this evictor learns about accesses from {@link
+ * #onSpanTouched(Cache, CacheSpan, CacheSpan)}, so it {@link #requiresCacheSpanTouches() requires
+ * cache spans to be touched}. A {@link SimpleCache} using it therefore takes its lock for every
+ * read, including reads of cached data that would otherwise be served without locking, and renames
+ * or updates the index entry of each span that's read. Use {@link NoOpCacheEvictor} or a custom
+ * evictor that doesn't require touches if concurrent reads matter more than the hit rate.
+ */
+public final class WindowTinyLfuCacheEvictor implements CacheEvictor {
+
+  /** The default fraction of the cache used for the window region. */
+  public static final float DEFAULT_WINDOW_FRACTION = 0.01f;
+
+  /** The fraction of the main region used for its protected segment. */
+  private static final float PROTECTED_FRACTION = 0.8f;
+  /** The span length assumed when sizing the frequency sketch. */
+  private static final long EXPECTED_SPAN_LENGTH = 1024 * 1024;
+  /** The minimum number of spans for which the frequency sketch is sized. */
+  private static final int MIN_EXPECTED_SPAN_COUNT = 1024;
+
+  private final long maxBytes;
+  private final long maxWindowBytes;
+  private final long maxProtectedBytes;
+  private final FrequencySketch frequencySketch;
+  private final TreeSet<CacheSpan> window;
+  private final TreeSet<CacheSpan> probation;
+  private final TreeSet<CacheSpan> protectedSpans;
+
+  private boolean initialized;
+  private long windowBytes;
+  private long probationBytes;
+  private long protectedBytes;
+
+  /**
+   * Creates an instance using {@link #DEFAULT_WINDOW_FRACTION}.
+   *
+   * @param maxBytes The maximum size of the cache in bytes.
+   */
+  public WindowTinyLfuCacheEvictor(long maxBytes) {
+    this(maxBytes, DEFAULT_WINDOW_FRACTION);
+  }
+
+  /**
+   * Creates an instance.
+   *
+   * @param maxBytes The maximum size of the cache in bytes.
+   * @param windowFraction The fraction of the cache used for the window region. Larger windows
+   *     favor recency over frequency.
+   */
+  public WindowTinyLfuCacheEvictor(long maxBytes, float windowFraction) {
+    this.maxBytes = maxBytes;
+    maxWindowBytes = (long) (maxBytes * windowFraction);
+    maxProtectedBytes = (long) ((maxBytes - maxWindowBytes) * PROTECTED_FRACTION);
+    long expectedSpanCount = max(MIN_EXPECTED_SPAN_COUNT, maxBytes / EXPECTED_SPAN_LENGTH);
+    frequencySketch = new FrequencySketch((int) min(Integer.MAX_VALUE, expectedSpanCount));
+    window = new TreeSet<>(WindowTinyLfuCacheEvictor::compare);
+    probation = new TreeSet<>(WindowTinyLfuCacheEvictor::compare);
+    protectedSpans = new TreeSet<>(WindowTinyLfuCacheEvictor::compare);
+  }
+
+  @Override
+  public boolean requiresCacheSpanTouches() {
+    // Both the frequency sketch and the recency order of each region depend on touches.
+    return true;
+  }
+
+  @Override
+  public void onCacheInitialized() {
+    initialized = true;
+  }
+
+  @Override
+  public void onStartFile(Cache cache, String key, long position, long length) {
+    if (length != C.LENGTH_UNSET) {
+      evictCache(cache, length);
+    }
+  }
+
+  @Override
+  public void onSpanAdded(Cache cache, CacheSpan span) {
+    if (!initialized) {
+      // Spans loaded when the cache is initialized have no access history, so put them straight
+      // into the main region rather than have them all compete for the window.
+      probation.add(span);
+      probationBytes += span.length;
+      return;
+    }
+    frequencySketch.recordAccess(hash(span));
+    window.add(span);
+    windowBytes += span.length;
+    evictCache(cache, 0);
+  }
+
+  @Override
+  public void onSpanRemoved(Cache cache, CacheSpan span) {
+    if (window.remove(span)) {
+      windowBytes -= span.length;
+    } else if (probation.remove(span)) {
+      probationBytes -= span.length;
+    } else if (protectedSpans.remove(span)) {
+      protectedBytes -= span.length;
+    }
+  }
+
+  @Override
+  public void onSpanTouched(Cache cache, CacheSpan oldSpan, CacheSpan newSpan) {
+    frequencySketch.recordAccess(hash(newSpan));
+    if (window.remove(oldSpan)) {
+      windowBytes -= oldSpan.length;
+      window.add(newSpan);
+      windowBytes += newSpan.length;
+      return;
+    }
+    if (probation.remove(oldSpan)) {
+      probationBytes -= oldSpan.length;
+    } else if (protectedSpans.remove(oldSpan)) {
+      protectedBytes -= oldSpan.length;
+    } else {
+      return;
+    }
+    protectedSpans.add(newSpan);
+    protectedBytes += newSpan.length;
+    while (protectedBytes > maxProtectedBytes && protectedSpans.size() > 1) {
+      CacheSpan demotedSpan = protectedSpans.first();
+      protectedSpans.remove(demotedSpan);
+      protectedBytes -= demotedSpan.length;
+      probation.add(demotedSpan);
+      probationBytes += demotedSpan.length;
+    }
+  }
+
+  private void evictCache(Cache cache, long requiredSpace) {
+    // Spans that overflow the window move into the main region for free whilst there's space.
+    while (windowBytes > maxWindowBytes
+        && getCurrentSize() + requiredSpace <= maxBytes
+        && !window.isEmpty()) {
+      moveToProbation(window.first());
+    }
+    while (getCurrentSize() + requiredSpace > maxBytes) {
+      @Nullable CacheSpan victim = getMainVictim();
+      @Nullable CacheSpan candidate = null;
+      if (!window.isEmpty() && (victim == null || windowBytes > maxWindowBytes)) {
+        candidate = window.first();
+      }
+      if (candidate == null && victim == null) {
+        return;
+      } else if (candidate == null) {
+        cache.removeSpan(victim);
+      } else if (victim == null) {
+        cache.removeSpan(candidate);
+      } else if (admit(candidate, victim)) {
+        moveToProbation(candidate);
+        cache.removeSpan(victim);
+      } else {
+        cache.removeSpan(candidate);
+      }
+    }
+  }
+
+  /** Returns whether a span leaving the window should displace a span from the main region. */
+  private boolean admit(CacheSpan candidate, CacheSpan victim) {
+    int candidateFrequency = frequencySketch.getFrequency(hash(candidate));
+    int victimFrequency = frequencySketch.getFrequency(hash(victim));
+    if (candidateFrequency != victimFrequency) {
+      return candidateFrequency > victimFrequency;
+    }
+    return candidate.position < victim.position;
+  }
+
+  @Nullable
+  private CacheSpan getMainVictim() {
+    if (!probation.isEmpty()) {
+      return probation.first();
+    } else if (!protectedSpans.isEmpty()) {
+      return protectedSpans.first();
+    }
+    return null;
+  }
+
+  private void moveToProbation(CacheSpan span) {
+    window.remove(span);
+    windowBytes -= span.length;
+    probation.add(span);
+    probationBytes += span.length;
+  }
+
+  private long getCurrentSize() {
+    return windowBytes + probationBytes + protectedBytes;
+  }
+
+  private static long hash(CacheSpan span) {
+    return 31L * span.key.hashCode() + span.position;
+  }
+
+  private static int compare(CacheSpan lhs, CacheSpan rhs) {
+    long lastTouchTimestampDelta = lhs.lastTouchTimestamp - rhs.lastTouchTimestamp;
+    if (lastTouchTimestampDelta == 0) {
+      // Use the standard compareTo method as a tie-break.
+      return lhs.compareTo(rhs);
+    }
+    return lhs.lastTouchTimestamp < rhs.lastTouchTimestamp ? -1 : 1;
+  }
+}
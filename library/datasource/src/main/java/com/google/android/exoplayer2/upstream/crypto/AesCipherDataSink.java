@@ -66,12 +66,13 @@ public final class AesCipherDataSink implements DataSink {
   @Override
   public void open(DataSpec dataSpec) throws IOException {
     wrappedDataSink.open(dataSpec);
-    cipher =
-        new AesFlushingCipher(
-            Cipher.ENCRYPT_MODE,
-            secretKey,
-            dataSpec.key,
-            dataSpec.uriPositionOffset + dataSpec.position);
+    long offset = dataSpec.uriPositionOffset + dataSpec.position;
+    @Nullable AesFlushingCipher cipher = this.cipher;
+    if (cipher == null) {
+      this.cipher = new AesFlushingCipher(Cipher.ENCRYPT_MODE, secretKey, dataSpec.key, offset);
+    } else {
+      cipher.reset(dataSpec.key, offset);
+    }
   }
 
   @Override
@@ -95,7 +96,6 @@ public final class AesCipherDataSink implements DataSink {
 
   @Override
   public void close() throws IOException {
-    cipher = null;
     wrappedDataSink.close();
   }
 }
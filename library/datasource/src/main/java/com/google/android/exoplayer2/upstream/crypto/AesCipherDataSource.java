@@ -51,12 +51,14 @@ public final class AesCipherDataSource implements DataSource {
   @Override
   public long open(DataSpec dataSpec) throws IOException {
     long dataLength = upstream.open(dataSpec);
-    cipher =
-        new AesFlushingCipher(
-            Cipher.DECRYPT_MODE,
-            secretKey,
-            dataSpec.key,
-            dataSpec.uriPositionOffset + dataSpec.position);
+    long offset = dataSpec.uriPositionOffset + dataSpec.position;
+    @Nullable AesFlushingCipher cipher = this.cipher;
+    if (cipher == null) {
+      this.cipher = new AesFlushingCipher(Cipher.DECRYPT_MODE, secretKey, dataSpec.key, offset);
+    } else {
+      // Reuse the cipher of a previous open, seeking it to the requested position.
+      cipher.reset(dataSpec.key, offset);
+    }
     return dataLength;
   }
 
@@ -86,7 +88,6 @@ public final class AesCipherDataSource implements DataSource {
 
   @Override
   public void close() throws IOException {
-    cipher = null;
     upstream.close();
   }
 }
@@ -33,10 +33,16 @@ import javax.crypto.spec.SecretKeySpec;
  *
  * <p>Unlike a regular {@link Cipher}, the update methods of this class are guaranteed to process
  * all of the bytes input (and hence output the same number of bytes).
+ *
+ * <p>Since each block of AES/CTR is processed independently of the data before it, an instance can
+ * be {@link #reset reset} to process data from any position. Resetting reuses the underlying {@link
+ * Cipher}, which is cheaper than creating a new instance.
  */
 public final class AesFlushingCipher {
 
   private final Cipher cipher;
+  private final int mode;
+  private final SecretKeySpec secretKeySpec;
   private final int blockSize;
   private final byte[] zerosBlock;
   private final byte[] flushedBlock;
@@ -50,25 +56,53 @@ public final class AesFlushingCipher {
   public AesFlushingCipher(int mode, byte[] secretKey, long nonce, long offset) {
     try {
       cipher = Cipher.getInstance("AES/CTR/NoPadding");
-      blockSize = cipher.getBlockSize();
-      zerosBlock = new byte[blockSize];
-      flushedBlock = new byte[blockSize];
-      long counter = offset / blockSize;
-      int startPadding = (int) (offset % blockSize);
+    } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+      // Should never happen.
+      throw new RuntimeException(e);
+    }
+    this.mode = mode;
+    secretKeySpec =
+        new SecretKeySpec(secretKey, Util.splitAtFirst(cipher.getAlgorithm(), "/")[0]);
+    blockSize = cipher.getBlockSize();
+    zerosBlock = new byte[blockSize];
+    flushedBlock = new byte[blockSize];
+    reset(nonce, offset);
+  }
+
+  /**
+   * Resets the cipher to process the data of a different nonce, or from a different offset.
+   *
+   * @param nonce The nonce, which is hashed to obtain the upper half of the initialization vector.
+   * @param offset The offset in the data of the next byte to be processed.
+   */
+  public void reset(@Nullable String nonce, long offset) {
+    reset(getFNV64Hash(nonce), offset);
+  }
+
+  /**
+   * Resets the cipher to process the data of a different nonce, or from a different offset.
+   *
+   * @param nonce The upper half of the initialization vector.
+   * @param offset The offset in the data of the next byte to be processed.
+   */
+  public void reset(long nonce, long offset) {
+    long counter = offset / blockSize;
+    int startPadding = (int) (offset % blockSize);
+    try {
       cipher.init(
-          mode,
-          new SecretKeySpec(secretKey, Util.splitAtFirst(cipher.getAlgorithm(), "/")[0]),
-          new IvParameterSpec(getInitializationVector(nonce, counter)));
-      if (startPadding != 0) {
-        updateInPlace(new byte[startPadding], 0, startPadding);
-      }
-    } catch (NoSuchAlgorithmException
-        | NoSuchPaddingException
-        | InvalidKeyException
-        | InvalidAlgorithmParameterException e) {
+          mode, secretKeySpec, new IvParameterSpec(getInitializationVector(nonce, counter)));
+    } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
       // Should never happen.
       throw new RuntimeException(e);
     }
+    pendingXorBytes = 0;
+    if (startPadding != 0) {
+      // Generate the key stream of the block containing the offset. The bytes from the offset
+      // onwards transform the next bytes processed, as if the block had been flushed.
+      int written = nonFlushingUpdate(zerosBlock, 0, blockSize, flushedBlock, 0);
+      Assertions.checkState(written == blockSize);
+      pendingXorBytes = blockSize - startPadding;
+    }
   }
 
   public void updateInPlace(byte[] data, int offset, int length) {
@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertThrows;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.exoplayer2.testutil.FakeDataSet;
+import com.google.android.exoplayer2.testutil.FakeDataSource;
+import com.google.android.exoplayer2.testutil.TestUtil;
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link CoalescingDataSource}. */
+@RunWith(AndroidJUnit4.class)
+public final class CoalescingDataSourceTest {
+
+  private static final String URI = "test://test.test/segment";
+  private static final byte[] TEST_DATA = TestUtil.buildTestData(/* length= */ 100);
+
+  private FakeDataSet fakeDataSet;
+  private int upstreamDataSourceCount;
+
+  @Before
+  public void setUp() {
+    fakeDataSet = new FakeDataSet().newData(URI).appendReadData(TEST_DATA).endData();
+  }
+
+  @Test
+  public void concurrentReadersOfSameData_shareUpstreamTransfer() throws Exception {
+    CoalescingDataSource.Factory factory = createFactory();
+    DataSource dataSource1 = factory.createDataSource();
+    DataSource dataSource2 = factory.createDataSource();
+    DataSpec dataSpec = new DataSpec.Builder().setUri(URI).build();
+
+    assertThat(dataSource1.open(dataSpec)).isEqualTo(TEST_DATA.length);
+    assertThat(dataSource2.open(dataSpec)).isEqualTo(TEST_DATA.length);
+    byte[] data1 = DataSourceUtil.readToEnd(dataSource1);
+    byte[] data2 = DataSourceUtil.readToEnd(dataSource2);
+    dataSource1.close();
+    dataSource2.close();
+
+    assertThat(data1).isEqualTo(TEST_DATA);
+    assertThat(data2).isEqualTo(TEST_DATA);
+    assertThat(upstreamDataSourceCount).isEqualTo(1);
+    assertThat(factory.getTransferCount()).isEqualTo(1);
+    assertThat(factory.getCoalescedRequestCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void readerOfIncludedRange_attachesToTransfer() throws Exception {
+    CoalescingDataSource.Factory factory = createFactory();
+    DataSource dataSource1 = factory.createDataSource();
+    DataSource dataSource2 = factory.createDataSource();
+
+    dataSource1.open(new DataSpec.Builder().setUri(URI).build());
+    long length =
+        dataSource2.open(new DataSpec.Builder().setUri(URI).setPosition(10).setLength(20).build());
+    byte[] data2 = DataSourceUtil.readToEnd(dataSource2);
+    byte[] data1 = DataSourceUtil.readToEnd(dataSource1);
+    dataSource1.close();
+    dataSource2.close();
+
+    assertThat(length).isEqualTo(20);
+    assertThat(data1).isEqualTo(TEST_DATA);
+    assertThat(data2).isEqualTo(Arrays.copyOfRange(TEST_DATA, 10, 30));
+    assertThat(upstreamDataSourceCount).isEqualTo(1);
+  }
+
+  @Test
+  public void readerOfLargerRange_startsNewTransfer() throws Exception {
+    CoalescingDataSource.Factory factory = createFactory();
+    DataSource dataSource1 = factory.createDataSource();
+    DataSource dataSource2 = factory.createDataSource();
+
+    dataSource1.open(new DataSpec.Builder().setUri(URI).setLength(50).build());
+    dataSource2.open(new DataSpec.Builder().setUri(URI).setPosition(40).setLength(20).build());
+    byte[] data2 = DataSourceUtil.readToEnd(dataSource2);
+    dataSource1.close();
+    dataSource2.close();
+
+    assertThat(data2).isEqualTo(Arrays.copyOfRange(TEST_DATA, 40, 60));
+    assertThat(upstreamDataSourceCount).isEqualTo(2);
+  }
+
+  @Test
+  public void readerFarAheadOfTransfer_startsNewTransfer() throws Exception {
+    byte[] largeData = TestUtil.buildTestData(/* length= */ 1024 * 1024);
+    fakeDataSet = new FakeDataSet().newData(URI).appendReadData(largeData).endData();
+    CoalescingDataSource.Factory factory = createFactory();
+    DataSource dataSource1 = factory.createDataSource();
+    DataSource dataSource2 = factory.createDataSource();
+
+    dataSource1.open(new DataSpec.Builder().setUri(URI).build());
+    // The first transfer hasn't buffered anything, so attaching would wait for 512 KiB.
+    dataSource2.open(new DataSpec.Builder().setUri(URI).setPosition(512 * 1024).build());
+    byte[] data2 = DataSourceUtil.readToEnd(dataSource2);
+    dataSource1.close();
+    dataSource2.close();
+
+    assertThat(data2).isEqualTo(Arrays.copyOfRange(largeData, 512 * 1024, largeData.length));
+    assertThat(upstreamDataSourceCount).isEqualTo(2);
+    assertThat(factory.getCoalescedRequestCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void readersWithDifferentHeaders_doNotShareTransfer() throws Exception {
+    CoalescingDataSource.Factory factory = createFactory();
+    DataSource dataSource1 = factory.createDataSource();
+    DataSource dataSource2 = factory.createDataSource();
+
+    dataSource1.open(new DataSpec.Builder().setUri(URI).build());
+    dataSource2.open(
+        new DataSpec.Builder()
+            .setUri(URI)
+            .setHttpRequestHeaders(ImmutableMap.of("Authorization", "token"))
+            .build());
+    dataSource1.close();
+    dataSource2.close();
+
+    assertThat(upstreamDataSourceCount).isEqualTo(2);
+    assertThat(factory.getCoalescedRequestCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void openAfterAllReadersClosed_startsNewTransfer() throws Exception {
+    CoalescingDataSource.Factory factory = createFactory();
+    DataSource dataSource = factory.createDataSource();
+    DataSpec dataSpec = new DataSpec.Builder().setUri(URI).build();
+
+    dataSource.open(dataSpec);
+    DataSourceUtil.readToEnd(dataSource);
+    dataSource.close();
+    dataSource.open(dataSpec);
+    byte[] data = DataSourceUtil.readToEnd(dataSource);
+    dataSource.close();
+
+    assertThat(data).isEqualTo(TEST_DATA);
+    assertThat(upstreamDataSourceCount).isEqualTo(2);
+  }
+
+  @Test
+  public void upstreamReadError_isThrownToAllReaders() throws Exception {
+    IOException readError = new IOException();
+    fakeDataSet.newData(URI).appendReadData(10).appendReadError(readError).appendReadData(10);
+    CoalescingDataSource.Factory factory = createFactory();
+    DataSource dataSource1 = factory.createDataSource();
+    DataSource dataSource2 = factory.createDataSource();
+    DataSpec dataSpec = new DataSpec.Builder().setUri(URI).build();
+    dataSource1.open(dataSpec);
+    dataSource2.open(dataSpec);
+
+    assertThat(DataSourceUtil.readExactly(dataSource1, /* length= */ 10)).hasLength(10);
+    IOException exception1 =
+        assertThrows(IOException.class, () -> DataSourceUtil.readToEnd(dataSource1));
+    assertThat(DataSourceUtil.readExactly(dataSource2, /* length= */ 10)).hasLength(10);
+    IOException exception2 =
+        assertThrows(IOException.class, () -> DataSourceUtil.readToEnd(dataSource2));
+    dataSource1.close();
+    dataSource2.close();
+
+    assertThat(exception1).isSameInstanceAs(readError);
+    assertThat(exception2).isSameInstanceAs(readError);
+  }
+
+  @Test
+  public void upstreamReadInterrupted_isOnlyThrownToInterruptedReader() throws Exception {
+    fakeDataSet
+        .newData(URI)
+        .appendReadData(Arrays.copyOf(TEST_DATA, 10))
+        .appendReadError(new InterruptedIOException())
+        .appendReadData(Arrays.copyOfRange(TEST_DATA, 10, TEST_DATA.length));
+    CoalescingDataSource.Factory factory = createFactory();
+    DataSource dataSource1 = factory.createDataSource();
+    DataSource dataSource2 = factory.createDataSource();
+    DataSpec dataSpec = new DataSpec.Builder().setUri(URI).build();
+    dataSource1.open(dataSpec);
+    dataSource2.open(dataSpec);
+
+    assertThat(DataSourceUtil.readExactly(dataSource1, /* length= */ 10)).hasLength(10);
+    assertThrows(InterruptedIOException.class, () -> DataSourceUtil.readToEnd(dataSource1));
+    // The transfer is reopened from where the interrupted read stopped.
+    byte[] data2 = DataSourceUtil.readToEnd(dataSource2);
+    dataSource1.close();
+    dataSource2.close();
+
+    assertThat(data2).isEqualTo(TEST_DATA);
+    assertThat(upstreamDataSourceCount).isEqualTo(2);
+  }
+
+  @Test
+  public void readersOnDifferentThreads_withoutRetainedBytes_readAllData() throws Exception {
+    byte[] largeData = TestUtil.buildTestData(/* length= */ 1024 * 1024);
+    fakeDataSet = new FakeDataSet();
+    FakeDataSet.FakeData fakeData = fakeDataSet.newData(URI);
+    for (int i = 0; i < 64; i++) {
+      fakeData.appendReadData(Arrays.copyOfRange(largeData, i * 16 * 1024, (i + 1) * 16 * 1024));
+    }
+    CoalescingDataSource.Factory factory = createFactory(/* maxRetainedBytes= */ 0);
+    DataSource dataSource1 = factory.createDataSource();
+    DataSource dataSource2 = factory.createDataSource();
+    DataSpec dataSpec = new DataSpec.Builder().setUri(URI).build();
+    dataSource1.open(dataSpec);
+    dataSource2.open(dataSpec);
+    ExecutorService executorService = Executors.newFixedThreadPool(2);
+
+    Future<byte[]> data1 = executorService.submit(() -> DataSourceUtil.readToEnd(dataSource1));
+    Future<byte[]> data2 = executorService.submit(() -> DataSourceUtil.readToEnd(dataSource2));
+
+    assertThat(data1.get(10, SECONDS)).isEqualTo(largeData);
+    assertThat(data2.get(10, SECONDS)).isEqualTo(largeData);
+    assertThat(upstreamDataSourceCount).isEqualTo(1);
+    dataSource1.close();
+    dataSource2.close();
+    executorService.shutdown();
+  }
+
+  @Test
+  public void idleReader_isDetachedWhenActiveReaderGetsTooFarAhead() throws Exception {
+    byte[] largeData = TestUtil.buildTestData(/* length= */ 1024 * 1024);
+    fakeDataSet = new FakeDataSet().newData(URI).appendReadData(largeData).endData();
+    CoalescingDataSource.Factory factory =
+        createFactory(/* maxRetainedBytes= */ 0, /* maxLeadBytes= */ 256 * 1024);
+    DataSource idleDataSource = factory.createDataSource();
+    DataSource activeDataSource = factory.createDataSource();
+    DataSpec dataSpec = new DataSpec.Builder().setUri(URI).build();
+    idleDataSource.open(dataSpec);
+    activeDataSource.open(dataSpec);
+
+    byte[] idleStart = DataSourceUtil.readExactly(idleDataSource, /* length= */ 10);
+    byte[] activeData = DataSourceUtil.readToEnd(activeDataSource);
+    byte[] idleEnd = DataSourceUtil.readToEnd(idleDataSource);
+    idleDataSource.close();
+    activeDataSource.close();
+
+    assertThat(activeData).isEqualTo(largeData);
+    assertThat(idleStart).isEqualTo(Arrays.copyOf(largeData, 10));
+    assertThat(idleEnd).isEqualTo(Arrays.copyOfRange(largeData, 10, largeData.length));
+    assertThat(factory.getCoalescedRequestCount()).isEqualTo(1);
+    assertThat(factory.getDetachedRequestCount()).isEqualTo(1);
+    assertThat(upstreamDataSourceCount).isEqualTo(2);
+  }
+
+  private CoalescingDataSource.Factory createFactory() {
+    return createFactory(CoalescingDataSource.DEFAULT_MAX_RETAINED_BYTES);
+  }
+
+  private CoalescingDataSource.Factory createFactory(int maxRetainedBytes) {
+    return createFactory(maxRetainedBytes, CoalescingDataSource.DEFAULT_MAX_LEAD_BYTES);
+  }
+
+  private CoalescingDataSource.Factory createFactory(int maxRetainedBytes, int maxLeadBytes) {
+    return new CoalescingDataSource.Factory(
+        () -> {
+          upstreamDataSourceCount++;
+          return new FakeDataSource(fakeDataSet);
+        },
+        maxRetainedBytes,
+        maxLeadBytes);
+  }
+}
@@ -15,9 +15,11 @@
  */
 package com.google.android.exoplayer2.upstream;
 
+import static com.google.android.exoplayer2.upstream.HttpUtil.buildPriorityHeader;
 import static com.google.android.exoplayer2.upstream.HttpUtil.buildRangeRequestHeader;
 import static com.google.android.exoplayer2.upstream.HttpUtil.getContentLength;
 import static com.google.android.exoplayer2.upstream.HttpUtil.getDocumentSize;
+import static com.google.android.exoplayer2.upstream.HttpUtil.getPriorityUrgency;
 import static com.google.common.truth.Truth.assertThat;
 
 import androidx.test.ext.junit.runners.AndroidJUnit4;
@@ -97,4 +99,25 @@ public class HttpUtilTest {
     assertThat(getDocumentSize("unhandled */20")).isEqualTo(C.LENGTH_UNSET);
     assertThat(getDocumentSize("unhandled 0-4/20")).isEqualTo(C.LENGTH_UNSET);
   }
+
+  @Test
+  public void buildPriorityHeader_buildsHeader() {
+    assertThat(buildPriorityHeader(0)).isEqualTo("u=0");
+    assertThat(buildPriorityHeader(7)).isEqualTo("u=7");
+  }
+
+  @Test
+  public void getPriorityUrgency_returnsUrgency() {
+    assertThat(getPriorityUrgency("u=1")).isEqualTo(1);
+    assertThat(getPriorityUrgency("i, u=5")).isEqualTo(5);
+    assertThat(getPriorityUrgency(buildPriorityHeader(6))).isEqualTo(6);
+  }
+
+  @Test
+  public void getPriorityUrgency_missingOrInvalidUrgency_returnsDefault() {
+    assertThat(getPriorityUrgency(null)).isEqualTo(HttpUtil.DEFAULT_PRIORITY_URGENCY);
+    assertThat(getPriorityUrgency("")).isEqualTo(HttpUtil.DEFAULT_PRIORITY_URGENCY);
+    assertThat(getPriorityUrgency("i")).isEqualTo(HttpUtil.DEFAULT_PRIORITY_URGENCY);
+    assertThat(getPriorityUrgency("u=8")).isEqualTo(HttpUtil.DEFAULT_PRIORITY_URGENCY);
+  }
 }
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.net.Uri;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.testutil.TestUtil;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link MappedFileDataSource}. */
+@RunWith(AndroidJUnit4.class)
+public final class MappedFileDataSourceTest {
+
+  private static final byte[] DATA = TestUtil.buildTestData(20);
+
+  @Rule public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private Uri uri;
+
+  @Before
+  public void writeFile() throws Exception {
+    File file = tempFolder.newFile();
+    Files.write(Paths.get(file.getAbsolutePath()), DATA);
+    uri = Uri.fromFile(file);
+  }
+
+  @Test
+  public void read_acrossMappingWindows_readsAllData() throws Exception {
+    MappedFileDataSource dataSource = new MappedFileDataSource(/* maxMappingSize= */ 3);
+
+    dataSource.open(new DataSpec.Builder().setUri(uri).build());
+    byte[] data = DataSourceUtil.readToEnd(dataSource);
+    dataSource.close();
+
+    assertThat(data).isEqualTo(DATA);
+  }
+
+  @Test
+  public void readByteBuffer_acrossMappingWindows_readsAtMostWindowSizePerRead() throws Exception {
+    MappedFileDataSource dataSource = new MappedFileDataSource(/* maxMappingSize= */ 3);
+    dataSource.open(new DataSpec.Builder().setUri(uri).setPosition(2).build());
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    ByteBuffer buffer = ByteBuffer.allocateDirect(5);
+    int bytesRead;
+    while ((bytesRead = dataSource.read(buffer)) != C.RESULT_END_OF_INPUT) {
+      assertThat(bytesRead).isAtMost(3);
+      buffer.flip();
+      byte[] bytes = new byte[buffer.remaining()];
+      buffer.get(bytes);
+      output.write(bytes);
+      buffer.clear();
+    }
+    dataSource.close();
+
+    assertThat(output.toByteArray()).isEqualTo(Arrays.copyOfRange(DATA, 2, DATA.length));
+  }
+
+  @Test
+  public void readByteBuffer_interleavedWithRead_readsDataInOrder() throws Exception {
+    MappedFileDataSource dataSource = new MappedFileDataSource();
+    dataSource.open(new DataSpec.Builder().setUri(uri).setLength(10).build());
+
+    ByteBuffer byteBuffer = ByteBuffer.allocateDirect(4);
+    int byteBufferBytesRead = dataSource.read(byteBuffer);
+    byte[] buffer = new byte[10];
+    int bytesRead = dataSource.read(buffer, /* offset= */ 0, buffer.length);
+
+    assertThat(byteBufferBytesRead).isEqualTo(4);
+    assertThat(byteBuffer.get(0)).isEqualTo(DATA[0]);
+    assertThat(bytesRead).isEqualTo(6);
+    assertThat(Arrays.copyOf(buffer, bytesRead)).isEqualTo(Arrays.copyOfRange(DATA, 4, 10));
+    byteBuffer.clear();
+    assertThat(dataSource.read(byteBuffer)).isEqualTo(C.RESULT_END_OF_INPUT);
+    assertThat(dataSource.read(buffer, /* offset= */ 0, buffer.length))
+        .isEqualTo(C.RESULT_END_OF_INPUT);
+    dataSource.close();
+  }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import android.net.Uri;
+import com.google.android.exoplayer2.C;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+/**
+ * Microbenchmark of segment requests to a local HTTP server made by {@link NioHttpDataSource},
+ * with and without pipelining, and by {@link DefaultHttpDataSource}.
+ *
+ * <p>Each round requests the same number of segments from a {@link MockWebServer}, using one or
+ * more loader threads that each open, read and close one segment at a time, as {@code Loader}
+ * threads do. Each configuration creates its data sources from a single factory, so that they
+ * share connections. The number of segments per second and the median and 90th percentile
+ * request latency, from opening a data source until its segment has been read, are printed for
+ * each configuration. Run it on a JVM with {@code main}, passing no arguments.
+ */
+public final class NioHttpDataSourceBenchmark {
+
+  private static final int WARM_UP_ROUNDS = 3;
+  private static final int MEASURED_ROUNDS = 5;
+  private static final int SEGMENTS_PER_ROUND = 200;
+  private static final int SEGMENT_LENGTH = 64 * 1024;
+  private static final int[] LOADER_COUNTS = {1, 2};
+  private static final String[] CONFIGURATIONS = {
+    "DefaultHttpDataSource", "NioHttpDataSource", "NioHttpDataSource, pipelining"
+  };
+
+  private NioHttpDataSourceBenchmark() {}
+
+  public static void main(String[] args) throws Exception {
+    byte[] segmentData = new byte[SEGMENT_LENGTH];
+    MockWebServer mockWebServer = new MockWebServer();
+    mockWebServer.setDispatcher(
+        new Dispatcher() {
+          @Override
+          public MockResponse dispatch(RecordedRequest request) {
+            return new MockResponse().setBody(new Buffer().write(segmentData));
+          }
+        });
+    mockWebServer.start();
+    Uri uri = Uri.parse(mockWebServer.url("/segment").toString());
+    NioHttpConnectionPool connectionPool = new NioHttpConnectionPool();
+    DataSource.Factory[] factories = {
+      new DefaultHttpDataSource.Factory(),
+      new NioHttpDataSource.Factory().setConnectionPool(connectionPool),
+      new NioHttpDataSource.Factory()
+          .setConnectionPool(connectionPool)
+          .setPipeliningEnabled(true)
+    };
+    try {
+      for (int loaderCount : LOADER_COUNTS) {
+        long[] nanos = new long[factories.length];
+        long[][] latenciesNanos = new long[factories.length][0];
+        // Alternate between the configurations, so that all run with the same compiled code.
+        for (int round = 0; round < WARM_UP_ROUNDS + MEASURED_ROUNDS; round++) {
+          for (int i = 0; i < factories.length; i++) {
+            long[] roundLatenciesNanos = new long[SEGMENTS_PER_ROUND];
+            long roundNanos = runRound(factories[i], uri, loaderCount, roundLatenciesNanos);
+            if (round >= WARM_UP_ROUNDS) {
+              nanos[i] += roundNanos;
+              latenciesNanos[i] = concat(latenciesNanos[i], roundLatenciesNanos);
+            }
+          }
+        }
+        for (int i = 0; i < factories.length; i++) {
+          Arrays.sort(latenciesNanos[i]);
+          long[] latencies = latenciesNanos[i];
+          System.out.println(
+              String.format(
+                  Locale.US,
+                  "%d loader(s), %s: %.0f segments/s, latency median %.2f ms, p90 %.2f ms",
+                  loaderCount,
+                  CONFIGURATIONS[i],
+                  MEASURED_ROUNDS * SEGMENTS_PER_ROUND / (nanos[i] / 1e9),
+                  latencies[latencies.length / 2] / 1e6,
+                  latencies[latencies.length * 9 / 10] / 1e6));
+        }
+      }
+    } finally {
+      connectionPool.release();
+      mockWebServer.shutdown();
+    }
+  }
+
+  /**
+   * Requests the segments of one round, returning the duration in nanoseconds.
+   *
+   * @param factory The factory of the data sources making the requests.
+   * @param uri The URI of the segments.
+   * @param loaderCount The number of threads making requests concurrently.
+   * @param latenciesNanos Array to which the latency of each request is written.
+   */
+  private static long runRound(
+      DataSource.Factory factory, Uri uri, int loaderCount, long[] latenciesNanos)
+      throws Exception {
+    AtomicInteger nextSegmentIndex = new AtomicInteger();
+    AtomicReference<Exception> error = new AtomicReference<>();
+    CountDownLatch finished = new CountDownLatch(loaderCount);
+    long startNanos = System.nanoTime();
+    for (int i = 0; i < loaderCount; i++) {
+      new Thread(
+              () -> {
+                try {
+                  byte[] buffer = new byte[16 * 1024];
+                  int segmentIndex;
+                  while ((segmentIndex = nextSegmentIndex.getAndIncrement())
+                      < SEGMENTS_PER_ROUND) {
+                    long requestStartNanos = System.nanoTime();
+                    loadSegment(factory.createDataSource(), uri, buffer);
+                    latenciesNanos[segmentIndex] = System.nanoTime() - requestStartNanos;
+                  }
+                } catch (Exception e) {
+                  error.compareAndSet(null, e);
+                } finally {
+                  finished.countDown();
+                }
+              })
+          .start();
+    }
+    finished.await();
+    long durationNanos = System.nanoTime() - startNanos;
+    if (error.get() != null) {
+      throw error.get();
+    }
+    return durationNanos;
+  }
+
+  private static void loadSegment(DataSource dataSource, Uri uri, byte[] buffer)
+      throws IOException {
+    long bytesRead = 0;
+    try {
+      dataSource.open(new DataSpec(uri));
+      int result;
+      while ((result = dataSource.read(buffer, 0, buffer.length)) != C.RESULT_END_OF_INPUT) {
+        bytesRead += result;
+      }
+    } finally {
+      dataSource.close();
+    }
+    if (bytesRead != SEGMENT_LENGTH) {
+      throw new IOException("Unexpected segment length: " + bytesRead);
+    }
+  }
+
+  private static long[] concat(long[] first, long[] second) {
+    long[] result = Arrays.copyOf(first, first.length + second.length);
+    System.arraycopy(second, 0, result, first.length, second.length);
+    return result;
+  }
+}
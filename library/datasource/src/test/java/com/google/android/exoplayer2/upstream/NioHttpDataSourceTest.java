@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertThrows;
+
+import android.net.Uri;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.testutil.TestUtil;
+import com.google.android.exoplayer2.upstream.HttpDataSource.HttpDataSourceException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link NioHttpDataSource}. */
+@RunWith(AndroidJUnit4.class)
+public class NioHttpDataSourceTest {
+
+  private static final byte[] TEST_DATA = TestUtil.buildTestData(/* length= */ 20);
+
+  private MockWebServer mockWebServer;
+  private NioHttpConnectionPool connectionPool;
+
+  @Before
+  public void setUp() {
+    mockWebServer = new MockWebServer();
+    connectionPool = new NioHttpConnectionPool();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    connectionPool.release();
+    mockWebServer.shutdown();
+  }
+
+  @Test
+  public void open_withRange_sendsRangeHeader() throws Exception {
+    mockWebServer.enqueue(
+        new MockResponse()
+            .setResponseCode(206)
+            .setHeader("Content-Range", "bytes 5-9/20")
+            .setBody(new Buffer().write(TEST_DATA, /* offset= */ 5, /* byteCount= */ 5)));
+    NioHttpDataSource dataSource = createDataSource(/* pipeliningEnabled= */ false);
+    DataSpec dataSpec =
+        new DataSpec.Builder().setUri(getUri()).setPosition(5).setLength(5).build();
+
+    byte[] data = readToEnd(dataSource, dataSpec);
+
+    assertThat(data).isEqualTo(Arrays.copyOfRange(TEST_DATA, 5, 10));
+    assertThat(mockWebServer.takeRequest(10, SECONDS).getHeader("Range")).isEqualTo("bytes=5-9");
+  }
+
+  @Test
+  public void open_consecutiveRequests_reuseConnection() throws Exception {
+    for (int i = 0; i < 3; i++) {
+      mockWebServer.enqueue(new MockResponse().setBody(new Buffer().write(TEST_DATA)));
+    }
+    NioHttpDataSource dataSource = createDataSource(/* pipeliningEnabled= */ false);
+    DataSpec dataSpec = new DataSpec(getUri());
+
+    for (int i = 0; i < 3; i++) {
+      assertThat(readToEnd(dataSource, dataSpec)).isEqualTo(TEST_DATA);
+      RecordedRequest request = mockWebServer.takeRequest(10, SECONDS);
+      assertThat(request.getSequenceNumber()).isEqualTo(i);
+    }
+    assertThat(connectionPool.getConnectionCount()).isEqualTo(1);
+    assertThat(connectionPool.getReuseCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void open_afterPreconnect_reusesPreconnectedConnection() throws Exception {
+    mockWebServer.enqueue(new MockResponse().setBody(new Buffer().write(TEST_DATA)));
+    Preconnector preconnector =
+        new NioHttpDataSource.Factory()
+            .setConnectionPool(connectionPool)
+            .setConnectTimeoutMs(1000)
+            .createPreconnector();
+
+    long firstSetupTimeUs = preconnector.preconnect(getUri());
+    // An idle connection to the host is already available, so nothing is set up.
+    long secondSetupTimeUs = preconnector.preconnect(getUri());
+    NioHttpDataSource dataSource = createDataSource(/* pipeliningEnabled= */ false);
+    byte[] data = readToEnd(dataSource, new DataSpec(getUri()));
+
+    assertThat(firstSetupTimeUs).isAtLeast(0);
+    assertThat(secondSetupTimeUs).isEqualTo(C.TIME_UNSET);
+    assertThat(data).isEqualTo(TEST_DATA);
+    assertThat(connectionPool.getConnectionCount()).isEqualTo(1);
+    assertThat(connectionPool.getReuseCount()).isEqualTo(1);
+    assertThat(mockWebServer.getRequestCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void read_chunkedResponse_readsBodyAndReusesConnection() throws Exception {
+    mockWebServer.enqueue(new MockResponse().setChunkedBody(new Buffer().write(TEST_DATA), 3));
+    mockWebServer.enqueue(new MockResponse().setBody(new Buffer().write(TEST_DATA)));
+    NioHttpDataSource dataSource = createDataSource(/* pipeliningEnabled= */ false);
+    DataSpec dataSpec = new DataSpec(getUri());
+
+    assertThat(readToEnd(dataSource, dataSpec)).isEqualTo(TEST_DATA);
+    assertThat(readToEnd(dataSource, dataSpec)).isEqualTo(TEST_DATA);
+
+    assertThat(connectionPool.getConnectionCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void close_withLargeUnreadBody_closesConnection() throws Exception {
+    byte[] largeData = TestUtil.buildTestData(/* length= */ 256 * 1024);
+    mockWebServer.enqueue(new MockResponse().setBody(new Buffer().write(largeData)));
+    mockWebServer.enqueue(new MockResponse().setBody(new Buffer().write(TEST_DATA)));
+    NioHttpDataSource dataSource = createDataSource(/* pipeliningEnabled= */ false);
+    DataSpec dataSpec = new DataSpec(getUri());
+
+    dataSource.open(dataSpec);
+    byte[] buffer = new byte[10];
+    assertThat(dataSource.read(buffer, /* offset= */ 0, buffer.length)).isGreaterThan(0);
+    dataSource.close();
+
+    assertThat(readToEnd(dataSource, dataSpec)).isEqualTo(TEST_DATA);
+    assertThat(connectionPool.getConnectionCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void open_withPipelining_sendsRequestBeforePreviousResponseIsRead() throws Exception {
+    for (int i = 0; i < 3; i++) {
+      mockWebServer.enqueue(new MockResponse().setBody(new Buffer().write(TEST_DATA)));
+    }
+    NioHttpDataSource firstDataSource = createDataSource(/* pipeliningEnabled= */ true);
+    NioHttpDataSource secondDataSource = createDataSource(/* pipeliningEnabled= */ true);
+    DataSpec dataSpec = new DataSpec(getUri());
+    // Requests are only pipelined on connections that are known to be kept alive.
+    readToEnd(firstDataSource, dataSpec);
+    mockWebServer.takeRequest(10, SECONDS);
+
+    firstDataSource.open(dataSpec);
+    mockWebServer.takeRequest(10, SECONDS);
+    ExecutorService executorService = Executors.newSingleThreadExecutor();
+    Future<byte[]> secondData =
+        executorService.submit(() -> readToEnd(secondDataSource, dataSpec));
+    // The second request is received whilst the first response is still unread.
+    RecordedRequest pipelinedRequest = mockWebServer.takeRequest(10, SECONDS);
+    byte[] firstData = DataSourceUtil.readToEnd(firstDataSource);
+    firstDataSource.close();
+
+    assertThat(firstData).isEqualTo(TEST_DATA);
+    assertThat(secondData.get(10, SECONDS)).isEqualTo(TEST_DATA);
+    assertThat(pipelinedRequest.getSequenceNumber()).isEqualTo(2);
+    assertThat(connectionPool.getConnectionCount()).isEqualTo(1);
+    executorService.shutdown();
+  }
+
+  @Test
+  public void open_withLineBreakInHeader_throwsWithoutSendingRequest() throws Exception {
+    NioHttpDataSource dataSource = createDataSource(/* pipeliningEnabled= */ false);
+    dataSource.setRequestProperty("X-Test", "value\r\nX-Injected: value");
+    DataSpec dataSpec = new DataSpec(getUri());
+
+    assertThrows(HttpDataSourceException.class, () -> dataSource.open(dataSpec));
+    assertThat(mockWebServer.getRequestCount()).isEqualTo(0);
+    assertThat(connectionPool.getConnectionCount()).isEqualTo(0);
+  }
+
+  private NioHttpDataSource createDataSource(boolean pipeliningEnabled) {
+    return new NioHttpDataSource.Factory()
+        .setConnectionPool(connectionPool)
+        .setPipeliningEnabled(pipeliningEnabled)
+        .setConnectTimeoutMs(1000)
+        .setReadTimeoutMs(1000)
+        .createDataSource();
+  }
+
+  private Uri getUri() {
+    return Uri.parse(mockWebServer.url("/test-path").toString());
+  }
+
+  private static byte[] readToEnd(DataSource dataSource, DataSpec dataSpec) throws Exception {
+    try {
+      dataSource.open(dataSpec);
+      return DataSourceUtil.readToEnd(dataSource);
+    } finally {
+      dataSource.close();
+    }
+  }
+}
@@ -88,6 +88,11 @@ public class UdpDataSourceContractTest extends DataSourceContractTest {
   @Override
   public void dataSpecWithPositionAndLength_readExpectedRange() {}
 
+  @Test
+  @Ignore("UdpDataSource doesn't support DataSpec's position or length [internal: b/175856954]")
+  @Override
+  public void dataSpecWithPositionAndLength_readIntoByteBuffer_readExpectedRange() {}
+
   @Test
   @Ignore("UdpDataSource doesn't support DataSpec's position or length [internal: b/175856954]")
   @Override
@@ -32,11 +32,16 @@ import com.google.android.exoplayer2.testutil.TestUtil;
 import com.google.android.exoplayer2.upstream.DataSourceUtil;
 import com.google.android.exoplayer2.upstream.DataSpec;
 import com.google.android.exoplayer2.upstream.FileDataSource;
+import com.google.android.exoplayer2.upstream.MappedFileDataSource;
 import com.google.android.exoplayer2.util.Util;
 import java.io.File;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableSet;
 import org.junit.After;
@@ -522,6 +527,110 @@ public final class CacheDataSourceTest {
     cacheDataSource.close();
   }
 
+  @Test
+  public void readByteBuffer_withMappedCacheReadDataSource_readsCachedData() throws Exception {
+    // Read all data from upstream and write it to the cache in multiple fragments.
+    CacheDataSource cacheDataSource =
+        createCacheDataSource(/* setReadException= */ false, /* unknownLength= */ false);
+    cacheDataSource.open(unboundedDataSpec);
+    DataSourceUtil.readToEnd(cacheDataSource);
+    cacheDataSource.close();
+
+    cacheDataSource =
+        new CacheDataSource(
+            cache,
+            upstreamDataSource,
+            new MappedFileDataSource(),
+            /* cacheWriteDataSink= */ null,
+            CacheDataSource.FLAG_BLOCK_ON_CACHE,
+            /* eventListener= */ null);
+    cacheDataSource.open(unboundedDataSpec);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    ByteBuffer buffer = ByteBuffer.allocateDirect(TEST_DATA.length);
+    int bytesRead;
+    while ((bytesRead = cacheDataSource.read(buffer)) != C.RESULT_END_OF_INPUT) {
+      // Each read is served from a single cache span.
+      assertThat(bytesRead).isAtMost(CACHE_FRAGMENT_SIZE);
+      buffer.flip();
+      byte[] bytes = new byte[buffer.remaining()];
+      buffer.get(bytes);
+      output.write(bytes);
+      buffer.clear();
+    }
+    cacheDataSource.close();
+
+    assertThat(output.toByteArray()).isEqualTo(TEST_DATA);
+  }
+
+  @Test
+  public void readahead_cachesHoleAfterCachedSpanAndCancelsReadaheadNotYetStarted()
+      throws Exception {
+    upstreamDataSource.getDataSet().newDefaultData().appendReadData(TEST_DATA);
+    // Cache the first 3 bytes.
+    new CacheWriter(
+            new CacheDataSource(cache, upstreamDataSource),
+            buildDataSpec(/* position= */ 0, /* length= */ 3),
+            /* temporaryBuffer= */ null,
+            /* progressListener= */ null)
+        .cache();
+    List<Runnable> readaheadTasks = new ArrayList<>();
+    CacheDataSource cacheDataSource =
+        new CacheDataSource.Factory()
+            .setCache(cache)
+            .setUpstreamDataSourceFactory(
+                () -> new FakeDataSource(upstreamDataSource.getDataSet()))
+            .setReadaheadExecutor(readaheadTasks::add)
+            .setReadaheadLength(4)
+            .createDataSource();
+
+    // Opening the cached span should read ahead the first 4 bytes of the hole that follows it.
+    cacheDataSource.open(boundedDataSpec);
+    assertThat(readaheadTasks).hasSize(1);
+    readaheadTasks.get(0).run();
+    assertThat(cache.getCachedBytes(defaultCacheKey, /* position= */ 0, TEST_DATA.length))
+        .isEqualTo(7);
+
+    // Reading the span cached by readahead should queue readahead of the rest of the hole, which is
+    // canceled when the read reaches the hole before the readahead starts.
+    byte[] data = DataSourceUtil.readToEnd(cacheDataSource);
+    cacheDataSource.close();
+    assertThat(readaheadTasks).hasSize(2);
+    readaheadTasks.get(1).run();
+
+    assertThat(data).isEqualTo(TEST_DATA);
+    assertThat(cache.getCachedBytes(defaultCacheKey, /* position= */ 0, TEST_DATA.length))
+        .isEqualTo(TEST_DATA.length);
+  }
+
+  @Test
+  public void readahead_closeCancelsReadahead() throws Exception {
+    upstreamDataSource.getDataSet().newDefaultData().appendReadData(TEST_DATA);
+    // Cache the first 3 bytes.
+    new CacheWriter(
+            new CacheDataSource(cache, upstreamDataSource),
+            buildDataSpec(/* position= */ 0, /* length= */ 3),
+            /* temporaryBuffer= */ null,
+            /* progressListener= */ null)
+        .cache();
+    List<Runnable> readaheadTasks = new ArrayList<>();
+    CacheDataSource cacheDataSource =
+        new CacheDataSource.Factory()
+            .setCache(cache)
+            .setUpstreamDataSourceFactory(
+                () -> new FakeDataSource(upstreamDataSource.getDataSet()))
+            .setReadaheadExecutor(readaheadTasks::add)
+            .setReadaheadLength(4)
+            .createDataSource();
+
+    cacheDataSource.open(boundedDataSpec);
+    cacheDataSource.close();
+    assertThat(readaheadTasks).hasSize(1);
+    readaheadTasks.get(0).run();
+
+    assertThat(cache.getCachedBytes(defaultCacheKey, /* position= */ 0, TEST_DATA.length))
+        .isEqualTo(3);
+  }
+
   private void assertCacheAndRead(DataSpec dataSpec, boolean unknownLength) throws IOException {
     assertCacheAndRead(dataSpec, unknownLength, /* cacheKeyFactory= */ null);
   }
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.util.Util;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Microbenchmark of the rate at which spans are committed to a {@link SimpleCache}, with and
+ * without a {@link CacheFileCommitter}, as when a download prefetches many small segments.
+ *
+ * <p>Each round writes the same number of span files. In the "synchronous" configurations every
+ * file is committed on the writing thread as soon as it's complete, each commit storing the cache
+ * index, as {@link CacheDataSink} does without a committer. In the "grouped" configurations the
+ * files are handed to a committer, which commits them in groups on its own thread. Each
+ * configuration runs with and without syncing every file to disk before committing it. The number
+ * of spans committed per second in the measured rounds is printed for each configuration. Run it
+ * on a JVM with {@code main}, passing no arguments.
+ */
+public final class CacheFileCommitterBenchmark {
+
+  private static final int WARM_UP_ROUNDS = 3;
+  private static final int MEASURED_ROUNDS = 5;
+  private static final int SPANS_PER_ROUND = 500;
+  private static final int SPAN_LENGTH = 16 * 1024;
+  private static final String KEY = "segment";
+
+  private CacheFileCommitterBenchmark() {}
+
+  @SuppressWarnings("deprecation") // Avoids the need for a database provider.
+  public static void main(String[] args) throws Exception {
+    File cacheDir = Files.createTempDirectory("CacheFileCommitterBenchmark").toFile();
+    SimpleCache cache = new SimpleCache(cacheDir, new NoOpCacheEvictor());
+    CacheFileCommitter committer = new CacheFileCommitter();
+    CacheFileCommitter syncingCommitter =
+        new CacheFileCommitter(
+            CacheFileCommitter.DEFAULT_DURABILITY_WINDOW_MS, /* syncFiles= */ true);
+    byte[] spanData = new byte[SPAN_LENGTH];
+    try {
+      // Alternate between the configurations, so that all run with the same compiled code.
+      long[] nanos = new long[4];
+      for (int round = 0; round < WARM_UP_ROUNDS + MEASURED_ROUNDS; round++) {
+        long[] roundNanos = {
+          runRound(cache, /* committer= */ null, /* syncFiles= */ false, spanData),
+          runRound(cache, committer, /* syncFiles= */ false, spanData),
+          runRound(cache, /* committer= */ null, /* syncFiles= */ true, spanData),
+          runRound(cache, syncingCommitter, /* syncFiles= */ true, spanData)
+        };
+        if (round >= WARM_UP_ROUNDS) {
+          for (int i = 0; i < nanos.length; i++) {
+            nanos[i] += roundNanos[i];
+          }
+        }
+      }
+      printSpansPerSecond("without syncs", nanos[0], nanos[1]);
+      printSpansPerSecond("with syncs", nanos[2], nanos[3]);
+    } finally {
+      committer.release();
+      syncingCommitter.release();
+      cache.release();
+      Util.recursiveDelete(cacheDir);
+    }
+  }
+
+  /**
+   * Writes and commits the spans of one round, returning the duration in nanoseconds until all of
+   * them have been committed.
+   *
+   * @param cache The cache.
+   * @param committer The committer, or null to commit each file on the writing thread.
+   * @param syncFiles Whether files are synced to disk before they're committed. Must match the
+   *     configuration of the {@code committer}, if set.
+   * @param spanData The data of each span.
+   */
+  private static long runRound(
+      SimpleCache cache,
+      @Nullable CacheFileCommitter committer,
+      boolean syncFiles,
+      byte[] spanData)
+      throws Exception {
+    CacheSpan holeSpan = cache.startReadWrite(KEY, /* position= */ 0, C.LENGTH_UNSET);
+    ArrayList<CacheFileCommitter.PendingFile> pendingFiles = new ArrayList<>();
+    long startNanos = System.nanoTime();
+    for (int i = 0; i < SPANS_PER_ROUND; i++) {
+      long position = (long) i * SPAN_LENGTH;
+      File file = cache.startFile(KEY, position, SPAN_LENGTH);
+      try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+        randomAccessFile.write(spanData);
+        if (committer == null && syncFiles) {
+          randomAccessFile.getChannel().force(/* metaData= */ false);
+        }
+      }
+      if (committer == null) {
+        cache.commitFile(file, SPAN_LENGTH);
+      } else {
+        pendingFiles.add(committer.enqueue(cache, file, SPAN_LENGTH, /* contentHash= */ null));
+      }
+    }
+    if (committer != null) {
+      committer.awaitCommit(pendingFiles);
+    }
+    long durationNanos = System.nanoTime() - startNanos;
+    cache.releaseHoleSpan(holeSpan);
+    if (cache.getCachedBytes(KEY, /* position= */ 0, C.LENGTH_UNSET)
+        != (long) SPANS_PER_ROUND * SPAN_LENGTH) {
+      throw new IOException("Not all spans were committed");
+    }
+    cache.removeResource(KEY);
+    return durationNanos;
+  }
+
+  private static void printSpansPerSecond(
+      String configuration, long synchronousNanos, long groupedNanos) {
+    double spans = (double) MEASURED_ROUNDS * SPANS_PER_ROUND;
+    double synchronousSpansPerSecond = spans / (synchronousNanos / 1e9);
+    double groupedSpansPerSecond = spans / (groupedNanos / 1e9);
+    System.out.println(
+        String.format(
+            Locale.US,
+            "%s: synchronous %.0f spans/s, grouped %.0f spans/s (%.1fx)",
+            configuration,
+            synchronousSpansPerSecond,
+            groupedSpansPerSecond,
+            groupedSpansPerSecond / synchronousSpansPerSecond));
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import static com.google.android.exoplayer2.C.LENGTH_UNSET;
+import static com.google.common.truth.Truth.assertThat;
+
+import android.net.Uri;
+import androidx.annotation.Nullable;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.exoplayer2.testutil.TestUtil;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.util.Util;
+import java.io.File;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link CacheFileCommitter}. */
+@RunWith(AndroidJUnit4.class)
+public final class CacheFileCommitterTest {
+
+  private static final String KEY_1 = "key1";
+  private static final String KEY_2 = "key2";
+  private static final int FRAGMENT_SIZE = 3;
+  private static final long LONG_DURABILITY_WINDOW_MS = 60 * 60 * 1000;
+
+  private File testDir;
+  private SimpleCache cache;
+  private CacheFileCommitter committer;
+
+  @Before
+  public void setUp() throws Exception {
+    testDir =
+        Util.createTempFile(ApplicationProvider.getApplicationContext(), "CacheFileCommitterTest");
+    assertThat(testDir.delete()).isTrue();
+    assertThat(testDir.mkdirs()).isTrue();
+    cache =
+        new SimpleCache(
+            new File(testDir, "cache"),
+            new NoOpCacheEvictor(),
+            TestUtil.getInMemoryDatabaseProvider());
+    committer = new CacheFileCommitter(LONG_DURABILITY_WINDOW_MS);
+  }
+
+  @After
+  public void tearDown() {
+    committer.release();
+    cache.release();
+    Util.recursiveDelete(testDir);
+  }
+
+  @Test
+  public void write_withCommitter_defersCommitsUntilClose() throws Exception {
+    byte[] data = TestUtil.buildTestData(10);
+    CacheSpan holeSpan = cache.startReadWrite(KEY_1, /* position= */ 0, LENGTH_UNSET);
+    CacheDataSink dataSink = createCacheDataSink();
+
+    dataSink.open(buildDataSpec(KEY_1));
+    dataSink.write(data, 0, data.length);
+
+    // Completed fragments are not committed until the durability window elapses.
+    assertThat(cache.getCachedSpans(KEY_1)).isEmpty();
+
+    dataSink.close();
+    cache.releaseHoleSpan(holeSpan);
+
+    assertThat(cache.getCachedSpans(KEY_1)).hasSize(4);
+    assertThat(cache.getCachedBytes(KEY_1, /* position= */ 0, LENGTH_UNSET)).isEqualTo(10);
+  }
+
+  @Test
+  public void write_withSharedCommitter_commitsFilesFromAllSinks() throws Exception {
+    byte[] data = TestUtil.buildTestData(10);
+    CacheSpan holeSpan1 = cache.startReadWrite(KEY_1, /* position= */ 0, LENGTH_UNSET);
+    CacheSpan holeSpan2 = cache.startReadWrite(KEY_2, /* position= */ 0, LENGTH_UNSET);
+    CacheDataSink dataSink1 = createCacheDataSink();
+    CacheDataSink dataSink2 = createCacheDataSink();
+
+    dataSink1.open(buildDataSpec(KEY_1));
+    dataSink2.open(buildDataSpec(KEY_2));
+    dataSink1.write(data, 0, data.length);
+    dataSink2.write(data, 0, data.length);
+    dataSink2.close();
+    dataSink1.close();
+    cache.releaseHoleSpan(holeSpan1);
+    cache.releaseHoleSpan(holeSpan2);
+
+    assertThat(cache.getCachedBytes(KEY_1, /* position= */ 0, LENGTH_UNSET)).isEqualTo(10);
+    assertThat(cache.getCachedBytes(KEY_2, /* position= */ 0, LENGTH_UNSET)).isEqualTo(10);
+  }
+
+  @Test
+  public void write_withZeroDurabilityWindow_commitsBeforeClose() throws Exception {
+    committer.release();
+    committer = new CacheFileCommitter(/* durabilityWindowMs= */ 0);
+    byte[] data = TestUtil.buildTestData(10);
+    CacheSpan holeSpan = cache.startReadWrite(KEY_1, /* position= */ 0, LENGTH_UNSET);
+    CacheDataSink dataSink = createCacheDataSink();
+
+    dataSink.open(buildDataSpec(KEY_1));
+    dataSink.write(data, 0, data.length);
+    // The first three fragments are complete, so they're committed without waiting for close.
+    while (cache.getCachedBytes(KEY_1, /* position= */ 0, LENGTH_UNSET) < 9) {
+      Thread.sleep(1);
+    }
+    dataSink.close();
+    cache.releaseHoleSpan(holeSpan);
+
+    assertThat(cache.getCachedBytes(KEY_1, /* position= */ 0, LENGTH_UNSET)).isEqualTo(10);
+  }
+
+  @Test
+  public void close_withSinkReleasingHoleSpans_releasesHoleSpanAfterCommit() throws Exception {
+    byte[] data = TestUtil.buildTestData(10);
+    CacheSpan holeSpan = cache.startReadWrite(KEY_1, /* position= */ 0, LENGTH_UNSET);
+    CacheDataSink dataSink = createCacheDataSink();
+    dataSink.setReleasesHoleSpans();
+
+    dataSink.open(buildDataSpec(KEY_1));
+    dataSink.write(data, 0, data.length);
+    dataSink.close();
+
+    // Closing the sink doesn't wait for the durability window to elapse.
+    assertThat(cache.getCachedSpans(KEY_1)).isEmpty();
+
+    dataSink.releaseHoleSpanWhenCommitted(holeSpan);
+    @Nullable CacheSpan nextHoleSpan;
+    while ((nextHoleSpan = cache.startReadWriteNonBlocking(KEY_1, 10, LENGTH_UNSET)) == null) {
+      Thread.sleep(1);
+    }
+    cache.releaseHoleSpan(nextHoleSpan);
+
+    assertThat(cache.getCachedBytes(KEY_1, /* position= */ 0, LENGTH_UNSET)).isEqualTo(10);
+  }
+
+  @Test
+  public void write_withSyncFiles_commitsFiles() throws Exception {
+    committer.release();
+    committer = new CacheFileCommitter(LONG_DURABILITY_WINDOW_MS, /* syncFiles= */ true);
+    byte[] data = TestUtil.buildTestData(10);
+    CacheSpan holeSpan = cache.startReadWrite(KEY_1, /* position= */ 0, LENGTH_UNSET);
+    CacheDataSink dataSink = createCacheDataSink();
+
+    dataSink.open(buildDataSpec(KEY_1));
+    dataSink.write(data, 0, data.length);
+    dataSink.close();
+    cache.releaseHoleSpan(holeSpan);
+
+    assertThat(cache.getCachedBytes(KEY_1, /* position= */ 0, LENGTH_UNSET)).isEqualTo(10);
+  }
+
+  private CacheDataSink createCacheDataSink() {
+    return new CacheDataSink(cache, FRAGMENT_SIZE, CacheDataSink.DEFAULT_BUFFER_SIZE, committer);
+  }
+
+  private static DataSpec buildDataSpec(String key) {
+    return new DataSpec.Builder()
+        .setUri(Uri.parse("test://" + key))
+        .setKey(key)
+        .setFlags(DataSpec.FLAG_ALLOW_CACHE_FRAGMENTATION)
+        .build();
+  }
+}
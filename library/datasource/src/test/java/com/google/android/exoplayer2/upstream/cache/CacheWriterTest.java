@@ -27,12 +27,25 @@ import com.google.android.exoplayer2.testutil.FailOnCloseDataSink;
 import com.google.android.exoplayer2.testutil.FakeDataSet;
 import com.google.android.exoplayer2.testutil.FakeDataSource;
 import com.google.android.exoplayer2.testutil.TestUtil;
+import com.google.android.exoplayer2.testutil.WebServerDispatcher;
+import com.google.android.exoplayer2.upstream.DataSource;
 import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.DefaultHttpDataSource;
 import com.google.android.exoplayer2.upstream.FileDataSource;
+import com.google.android.exoplayer2.upstream.TransferListener;
 import com.google.android.exoplayer2.util.Util;
+import com.google.common.collect.ImmutableList;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import okhttp3.mockwebserver.MockWebServer;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -263,6 +276,153 @@ public final class CacheWriterTest {
     assertCachedData(cache, fakeDataSet);
   }
 
+  @Test
+  public void cache_withParallelRequests_cachesRangesAsIndependentSpans() throws Exception {
+    int dataLength = (int) (4 * CacheWriter.MIN_PARALLEL_RANGE_LENGTH);
+    FakeDataSet fakeDataSet = new FakeDataSet().setRandomData("test_data", dataLength);
+    CacheDataSource.Factory cacheDataSourceFactory =
+        new CacheDataSource.Factory()
+            .setCache(cache)
+            .setUpstreamDataSourceFactory(new FakeDataSource.Factory().setFakeDataSet(fakeDataSet));
+    CachingCounters counters = new CachingCounters();
+    ExecutorService executorService = Executors.newFixedThreadPool(3);
+
+    CacheWriter cacheWriter =
+        new CacheWriter(
+            cacheDataSourceFactory,
+            new DataSpec(Uri.parse("test_data")),
+            counters,
+            executorService,
+            /* maxParallelRequests= */ 4);
+    try {
+      cacheWriter.cache();
+    } finally {
+      executorService.shutdown();
+    }
+
+    counters.assertValues(0, dataLength, dataLength);
+    assertCachedData(cache, fakeDataSet);
+    List<Long> spanPositions = new ArrayList<>();
+    for (CacheSpan span : cache.getCachedSpans("test_data")) {
+      spanPositions.add(span.position);
+    }
+    assertThat(spanPositions)
+        .containsExactly(
+            0L,
+            CacheWriter.MIN_PARALLEL_RANGE_LENGTH,
+            2 * CacheWriter.MIN_PARALLEL_RANGE_LENGTH,
+            3 * CacheWriter.MIN_PARALLEL_RANGE_LENGTH)
+        .inOrder();
+  }
+
+  @Test
+  public void cache_withParallelRequests_fetchesRangesConcurrently() throws Exception {
+    int dataLength = (int) (4 * CacheWriter.MIN_PARALLEL_RANGE_LENGTH);
+    FakeDataSet fakeDataSet = new FakeDataSet().setRandomData("test_data", dataLength);
+    CountDownLatch allRangesOpened = new CountDownLatch(4);
+    AtomicInteger openCount = new AtomicInteger();
+    AtomicInteger maxOpenCount = new AtomicInteger();
+    TransferListener transferListener =
+        new TransferListener() {
+          @Override
+          public void onTransferInitializing(
+              DataSource source, DataSpec dataSpec, boolean isNetwork) {}
+
+          @Override
+          public void onTransferStart(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+            maxOpenCount.accumulateAndGet(openCount.incrementAndGet(), Math::max);
+            // Hold each range open until all of them are, which only happens if they're fetched
+            // concurrently.
+            allRangesOpened.countDown();
+            try {
+              allRangesOpened.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+
+          @Override
+          public void onBytesTransferred(
+              DataSource source, DataSpec dataSpec, boolean isNetwork, int bytesTransferred) {}
+
+          @Override
+          public void onTransferEnd(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+            openCount.decrementAndGet();
+          }
+        };
+    FakeDataSource.Factory fakeDataSourceFactory =
+        new FakeDataSource.Factory().setFakeDataSet(fakeDataSet);
+    CacheDataSource.Factory cacheDataSourceFactory =
+        new CacheDataSource.Factory()
+            .setCache(cache)
+            .setUpstreamDataSourceFactory(
+                () -> {
+                  FakeDataSource dataSource = fakeDataSourceFactory.createDataSource();
+                  dataSource.addTransferListener(transferListener);
+                  return dataSource;
+                });
+    ExecutorService executorService = Executors.newFixedThreadPool(3);
+
+    CacheWriter cacheWriter =
+        new CacheWriter(
+            cacheDataSourceFactory,
+            new DataSpec.Builder().setUri("test_data").setLength(dataLength).build(),
+            /* progressListener= */ null,
+            executorService,
+            /* maxParallelRequests= */ 4);
+    try {
+      cacheWriter.cache();
+    } finally {
+      executorService.shutdown();
+    }
+
+    assertCachedData(cache, fakeDataSet);
+    assertThat(maxOpenCount.get()).isEqualTo(4);
+  }
+
+  @Test
+  public void cache_withParallelRequestsAndUnknownLength_readsFirstRangeFromLengthRequest()
+      throws Exception {
+    byte[] data = TestUtil.buildTestData((int) (4 * CacheWriter.MIN_PARALLEL_RANGE_LENGTH));
+    MockWebServer mockWebServer = new MockWebServer();
+    mockWebServer.setDispatcher(
+        WebServerDispatcher.forResources(
+            ImmutableList.of(
+                new WebServerDispatcher.Resource.Builder()
+                    .setPath("/data")
+                    .setData(data)
+                    .supportsRangeRequests(true)
+                    .build())));
+    CacheDataSource.Factory cacheDataSourceFactory =
+        new CacheDataSource.Factory()
+            .setCache(cache)
+            .setUpstreamDataSourceFactory(new DefaultHttpDataSource.Factory());
+    CachingCounters counters = new CachingCounters();
+    ExecutorService executorService = Executors.newFixedThreadPool(3);
+
+    String key = mockWebServer.url("/data").toString();
+    try {
+      CacheWriter cacheWriter =
+          new CacheWriter(
+              cacheDataSourceFactory,
+              new DataSpec(Uri.parse(key)),
+              counters,
+              executorService,
+              /* maxParallelRequests= */ 4);
+      cacheWriter.cache();
+    } finally {
+      executorService.shutdown();
+      mockWebServer.shutdown();
+    }
+
+    counters.assertValues(0, data.length, data.length);
+    assertThat(cache.getCachedBytes(key, 0, C.LENGTH_UNSET)).isEqualTo(data.length);
+    assertThat(ContentMetadata.getContentLength(cache.getContentMetadata(key)))
+        .isEqualTo(data.length);
+    // The length is resolved from the first range's response, so no other request is made.
+    assertThat(mockWebServer.getRequestCount()).isEqualTo(4);
+  }
+
   private static final class CachingCounters implements CacheWriter.ProgressListener {
 
     private long contentLength = C.LENGTH_UNSET;
@@ -18,12 +18,14 @@ package com.google.android.exoplayer2.upstream.cache;
 import static com.google.android.exoplayer2.testutil.TestUtil.createTestFile;
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.Truth.assertWithMessage;
+import static org.junit.Assert.assertThrows;
 
 import android.net.Uri;
 import android.util.SparseArray;
 import androidx.annotation.Nullable;
 import androidx.test.core.app.ApplicationProvider;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.exoplayer2.database.DatabaseProvider;
 import com.google.android.exoplayer2.testutil.TestUtil;
 import com.google.android.exoplayer2.util.Util;
 import java.io.File;
@@ -402,6 +404,112 @@ public class CachedContentIndexTest {
     assertStoredAndLoadedEqual(index, newLegacyInstance(key));
   }
 
+  @Test
+  public void journalStoreAndLoad() throws Exception {
+    assertStoredAndLoadedEqual(newJournalInstance(), newJournalInstance());
+  }
+
+  @Test
+  public void journalStoreIncremental_appendsChangesToJournal() throws Exception {
+    CachedContentIndex index = newJournalInstance();
+    index.initialize(/* uid= */ 0);
+    index.getOrAdd("key1");
+    index.getOrAdd("key2");
+    index.store();
+    File journalFile = new File(cacheDir, CachedContentIndex.FILE_NAME_JOURNAL);
+    long journalLength = journalFile.length();
+
+    index.maybeRemove("key1");
+    index.getOrAdd("key3");
+    ContentMetadataMutations mutations = new ContentMetadataMutations();
+    ContentMetadataMutations.setContentLength(mutations, 10);
+    index.applyContentMetadataMutations("key2", mutations);
+    index.store();
+
+    assertThat(journalFile.length()).isGreaterThan(journalLength);
+    CachedContentIndex index2 = newJournalInstance();
+    index2.initialize(/* uid= */ 0);
+    assertThat(index2.getKeys()).containsExactly("key2", "key3");
+    assertThat(index2.get("key2")).isEqualTo(index.get("key2"));
+    assertThat(index2.get("key3")).isEqualTo(index.get("key3"));
+  }
+
+  @Test
+  public void journalLoad_withPartiallyWrittenRecord_dropsPartialRecord() throws Exception {
+    CachedContentIndex index = newJournalInstance();
+    index.initialize(/* uid= */ 0);
+    index.getOrAdd("key1");
+    index.store();
+    File journalFile = new File(cacheDir, CachedContentIndex.FILE_NAME_JOURNAL);
+    long journalLength = journalFile.length();
+    try (FileOutputStream fos = new FileOutputStream(journalFile, /* append= */ true)) {
+      fos.write(new byte[] {0, 0, 0, 100, 0, 1, 2});
+    }
+
+    CachedContentIndex index2 = newJournalInstance();
+    index2.initialize(/* uid= */ 0);
+    assertThat(index2.getKeys()).containsExactly("key1");
+    assertThat(journalFile.length()).isEqualTo(journalLength);
+
+    // Records appended after loading are replayed.
+    index2.getOrAdd("key2");
+    index2.store();
+    CachedContentIndex index3 = newJournalInstance();
+    index3.initialize(/* uid= */ 0);
+    assertThat(index3.getKeys()).containsExactly("key1", "key2");
+  }
+
+  @Test
+  public void journalInitialize_withDatabaseIndex_migratesDatabaseIndex() throws Exception {
+    DatabaseProvider databaseProvider = TestUtil.getInMemoryDatabaseProvider();
+    CachedContentIndex databaseIndex = new CachedContentIndex(databaseProvider);
+    databaseIndex.initialize(/* uid= */ 0);
+    databaseIndex.getOrAdd("key1");
+    databaseIndex.store();
+
+    CachedContentIndex journalIndex =
+        new CachedContentIndex(
+            databaseProvider,
+            /* legacyStorageDir= */ null,
+            /* legacyStorageSecretKey= */ null,
+            /* legacyStorageEncrypt= */ false,
+            /* preferLegacyStorage= */ false,
+            /* journalStorageDir= */ cacheDir);
+    journalIndex.initialize(/* uid= */ 0);
+
+    assertThat(journalIndex.getKeys()).containsExactly("key1");
+    assertThat(new File(cacheDir, CachedContentIndex.FILE_NAME_JOURNAL).exists()).isTrue();
+  }
+
+  @Test
+  public void initialize_withJournalIndexAndJournalDisabled_migratesJournalIndex()
+      throws Exception {
+    CachedContentIndex journalIndex = newJournalInstance();
+    journalIndex.initialize(/* uid= */ 0);
+    journalIndex.getOrAdd("key1");
+    journalIndex.store();
+
+    CachedContentIndex legacyIndex = newLegacyInstance();
+    legacyIndex.initialize(/* uid= */ 0);
+
+    assertThat(legacyIndex.getKeys()).containsExactly("key1");
+    assertThat(new File(cacheDir, CachedContentIndex.FILE_NAME_JOURNAL).exists()).isFalse();
+  }
+
+  @Test
+  public void newInstance_withJournalStorageAndEncryption_throws() {
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            new CachedContentIndex(
+                /* databaseProvider= */ null,
+                /* legacyStorageDir= */ null,
+                /* legacyStorageSecretKey= */ new byte[16],
+                /* legacyStorageEncrypt= */ true,
+                /* preferLegacyStorage= */ false,
+                /* journalStorageDir= */ cacheDir));
+  }
+
   @Test
   public void removeEmptyNotLockedCachedContent() {
     CachedContentIndex index = newInstance();
@@ -430,6 +538,23 @@ public class CachedContentIndexTest {
     assertThat(index.get(cachedContent.key)).isNotNull();
   }
 
+  @Test
+  public void cachedContentEquals_withSpansAtSamePositionOfDifferentLength_returnsFalse()
+      throws Exception {
+    CachedContentIndex index = newInstance();
+    CachedContent cachedContent = index.getOrAdd("key1");
+    CachedContent otherCachedContent = new CachedContent(cachedContent.id, cachedContent.key);
+    File cacheFile =
+        SimpleCacheSpan.getCacheFile(
+            cacheDir, cachedContent.id, /* position= */ 10, /* timestamp= */ 30);
+    createTestFile(cacheFile, /* length= */ 20);
+    cachedContent.addSpan(SimpleCacheSpan.createCacheEntry(cacheFile, /* length= */ 20, index));
+    otherCachedContent.addSpan(
+        SimpleCacheSpan.createCacheEntry(cacheFile, /* length= */ 10, index));
+
+    assertThat(cachedContent).isNotEqualTo(otherCachedContent);
+  }
+
   @Test
   public void cantRemoveLockedCachedContent() {
     CachedContentIndex index = newInstance();
@@ -465,6 +590,16 @@ public class CachedContentIndexTest {
     return new CachedContentIndex(TestUtil.getInMemoryDatabaseProvider());
   }
 
+  private CachedContentIndex newJournalInstance() {
+    return new CachedContentIndex(
+        /* databaseProvider= */ null,
+        /* legacyStorageDir= */ null,
+        /* legacyStorageSecretKey= */ null,
+        /* legacyStorageEncrypt= */ false,
+        /* preferLegacyStorage= */ false,
+        /* journalStorageDir= */ cacheDir);
+  }
+
   private CachedContentIndex newLegacyInstance() {
     return newLegacyInstance(null);
   }
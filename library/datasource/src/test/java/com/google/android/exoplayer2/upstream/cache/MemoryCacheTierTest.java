@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.net.Uri;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.testutil.FakeDataSource;
+import com.google.android.exoplayer2.testutil.TestUtil;
+import com.google.android.exoplayer2.upstream.DataSourceUtil;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.util.Util;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link MemoryCacheTier}. */
+@RunWith(AndroidJUnit4.class)
+public final class MemoryCacheTierTest {
+
+  private static final byte[] TEST_DATA = TestUtil.buildTestData(10);
+  private static final int CACHE_FRAGMENT_SIZE = 3;
+  private static final int SLAB_SIZE = 4;
+
+  private File tempFolder;
+  private SimpleCache cache;
+  private FakeDataSource upstreamDataSource;
+  private DataSpec dataSpec;
+
+  @Before
+  public void setUp() throws Exception {
+    tempFolder =
+        Util.createTempDirectory(ApplicationProvider.getApplicationContext(), "ExoPlayerTest");
+    cache =
+        new SimpleCache(tempFolder, new NoOpCacheEvictor(), TestUtil.getInMemoryDatabaseProvider());
+    upstreamDataSource = new FakeDataSource();
+    upstreamDataSource.getDataSet().newDefaultData().appendReadData(TEST_DATA);
+    dataSpec =
+        new DataSpec.Builder()
+            .setUri(Uri.parse("https://www.test.com/data"))
+            .setFlags(DataSpec.FLAG_ALLOW_CACHE_FRAGMENTATION)
+            .build();
+  }
+
+  @After
+  public void tearDown() {
+    cache.release();
+    Util.recursiveDelete(tempFolder);
+  }
+
+  @Test
+  public void read_promotesCacheFilesAndServesLaterReadsFromMemory() throws Exception {
+    MemoryCacheTier memoryCacheTier =
+        new MemoryCacheTier(/* maxBytes= */ 4 * SLAB_SIZE, /* maxSpanSize= */ SLAB_SIZE, SLAB_SIZE);
+
+    // Read from upstream, writing to the cache.
+    assertThat(read(memoryCacheTier)).isEqualTo(TEST_DATA);
+    assertThat(memoryCacheTier.getPromotionCount()).isEqualTo(0);
+    // Read each of the 4 cache files from disk, promoting them.
+    assertThat(read(memoryCacheTier)).isEqualTo(TEST_DATA);
+    assertThat(memoryCacheTier.getPromotionCount()).isEqualTo(4);
+    assertThat(memoryCacheTier.getMissCount()).isEqualTo(4);
+    // Read each of the 4 cache files from memory.
+    assertThat(read(memoryCacheTier)).isEqualTo(TEST_DATA);
+
+    assertThat(memoryCacheTier.getHitCount()).isEqualTo(4);
+    assertThat(memoryCacheTier.getHitRatio()).isEqualTo(0.5);
+    assertThat(memoryCacheTier.getAllocatedBytes()).isEqualTo(4 * SLAB_SIZE);
+  }
+
+  @Test
+  public void read_withFullTier_demotesLeastRecentlyReadCacheFiles() throws Exception {
+    MemoryCacheTier memoryCacheTier =
+        new MemoryCacheTier(/* maxBytes= */ 2 * SLAB_SIZE, /* maxSpanSize= */ SLAB_SIZE, SLAB_SIZE);
+
+    read(memoryCacheTier);
+    read(memoryCacheTier);
+    assertThat(read(memoryCacheTier)).isEqualTo(TEST_DATA);
+
+    // Reading the files in order means each file is demoted before it's read again.
+    assertThat(memoryCacheTier.getHitCount()).isEqualTo(0);
+    assertThat(memoryCacheTier.getPromotionCount()).isEqualTo(8);
+    assertThat(memoryCacheTier.getDemotionCount()).isEqualTo(6);
+    assertThat(memoryCacheTier.getAllocatedBytes()).isEqualTo(2 * SLAB_SIZE);
+  }
+
+  @Test
+  public void read_withCacheFilesLargerThanMaxSpanSize_readsFromDisk() throws Exception {
+    MemoryCacheTier memoryCacheTier =
+        new MemoryCacheTier(/* maxBytes= */ 4 * SLAB_SIZE, /* maxSpanSize= */ 2, SLAB_SIZE);
+
+    read(memoryCacheTier);
+    read(memoryCacheTier);
+    assertThat(read(memoryCacheTier)).isEqualTo(TEST_DATA);
+
+    // Only the last cache file, which holds a single byte, is small enough to be promoted.
+    assertThat(memoryCacheTier.getPromotionCount()).isEqualTo(1);
+    assertThat(memoryCacheTier.getHitCount()).isEqualTo(1);
+    assertThat(memoryCacheTier.getMissCount()).isEqualTo(7);
+  }
+
+  @Test
+  public void readByteBuffer_servesReadsFromMemory() throws Exception {
+    MemoryCacheTier memoryCacheTier =
+        new MemoryCacheTier(/* maxBytes= */ 4 * SLAB_SIZE, /* maxSpanSize= */ SLAB_SIZE, SLAB_SIZE);
+    read(memoryCacheTier);
+    read(memoryCacheTier);
+
+    assertThat(readByteBuffer(memoryCacheTier)).isEqualTo(TEST_DATA);
+    assertThat(memoryCacheTier.getHitCount()).isEqualTo(4);
+  }
+
+  @Test
+  public void clear_demotesAllCacheFiles() throws Exception {
+    MemoryCacheTier memoryCacheTier =
+        new MemoryCacheTier(/* maxBytes= */ 4 * SLAB_SIZE, /* maxSpanSize= */ SLAB_SIZE, SLAB_SIZE);
+    read(memoryCacheTier);
+    read(memoryCacheTier);
+
+    memoryCacheTier.clear();
+
+    assertThat(read(memoryCacheTier)).isEqualTo(TEST_DATA);
+    assertThat(memoryCacheTier.getHitCount()).isEqualTo(0);
+    assertThat(memoryCacheTier.getDemotionCount()).isEqualTo(4);
+    // Slabs freed by demotion are reused rather than allocating more memory.
+    assertThat(memoryCacheTier.getAllocatedBytes()).isEqualTo(4 * SLAB_SIZE);
+  }
+
+  private byte[] read(MemoryCacheTier memoryCacheTier) throws IOException {
+    CacheDataSource cacheDataSource =
+        new CacheDataSource.Factory()
+            .setCache(cache)
+            .setUpstreamDataSourceFactory(() -> upstreamDataSource)
+            .setCacheWriteDataSinkFactory(
+                new CacheDataSink.Factory().setCache(cache).setFragmentSize(CACHE_FRAGMENT_SIZE))
+            .setMemoryCacheTier(memoryCacheTier)
+            .createDataSource();
+    try {
+      cacheDataSource.open(dataSpec);
+      return DataSourceUtil.readToEnd(cacheDataSource);
+    } finally {
+      cacheDataSource.close();
+    }
+  }
+
+  private byte[] readByteBuffer(MemoryCacheTier memoryCacheTier) throws IOException {
+    CacheDataSource cacheDataSource =
+        new CacheDataSource.Factory()
+            .setCache(cache)
+            .setUpstreamDataSourceFactory(() -> upstreamDataSource)
+            .setMemoryCacheTier(memoryCacheTier)
+            .createDataSource();
+    ByteBuffer buffer = ByteBuffer.allocateDirect(TEST_DATA.length);
+    try {
+      cacheDataSource.open(dataSpec);
+      while (buffer.hasRemaining() && cacheDataSource.read(buffer) != C.RESULT_END_OF_INPUT) {}
+    } finally {
+      cacheDataSource.close();
+    }
+    buffer.flip();
+    byte[] data = new byte[buffer.remaining()];
+    buffer.get(data);
+    return data;
+  }
+}
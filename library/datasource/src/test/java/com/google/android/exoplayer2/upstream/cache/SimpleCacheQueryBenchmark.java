@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.util.Util;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Microbenchmark of {@link SimpleCache} queries made by parallel readers while a writer commits
+ * spans, as when several {@link CacheDataSource CacheDataSources} read while another one writes.
+ *
+ * <p>Reader threads query the spans of a cached resource, while a writer thread commits spans of
+ * another resource. In the "locked" configuration each query holds the cache lock, as all queries
+ * did before they were made lock-free. The number of queries per second in the measured rounds is
+ * printed for each configuration. Run it on a JVM with {@code main}, passing no arguments.
+ */
+public final class SimpleCacheQueryBenchmark {
+
+  private static final int WARM_UP_ROUNDS = 3;
+  private static final int MEASURED_ROUNDS = 5;
+  private static final long ROUND_DURATION_MS = 1_000;
+  private static final int READER_COUNT = 4;
+  private static final int SPAN_COUNT = 100;
+  private static final int SPAN_LENGTH = 4 * 1024;
+  private static final int WRITER_SPANS_PER_RESOURCE = 100;
+  private static final String READER_KEY = "reader";
+  private static final String WRITER_KEY = "writer";
+
+  private SimpleCacheQueryBenchmark() {}
+
+  @SuppressWarnings("deprecation") // Avoids the need for a database provider.
+  public static void main(String[] args) throws Exception {
+    File cacheDir = Files.createTempDirectory("SimpleCacheQueryBenchmark").toFile();
+    SimpleCache cache = new SimpleCache(cacheDir, new NoOpCacheEvictor());
+    try {
+      for (int i = 0; i < SPAN_COUNT; i++) {
+        CacheSpan holeSpan = cache.startReadWrite(READER_KEY, (long) i * SPAN_LENGTH, SPAN_LENGTH);
+        addSpan(cache, READER_KEY, (long) i * SPAN_LENGTH);
+        cache.releaseHoleSpan(holeSpan);
+      }
+      // Alternate between the configurations, so that both run with the same compiled code.
+      long lockedQueries = 0;
+      long lockFreeQueries = 0;
+      for (int round = 0; round < WARM_UP_ROUNDS + MEASURED_ROUNDS; round++) {
+        long locked = runRound(cache, /* locked= */ true);
+        long lockFree = runRound(cache, /* locked= */ false);
+        if (round >= WARM_UP_ROUNDS) {
+          lockedQueries += locked;
+          lockFreeQueries += lockFree;
+        }
+      }
+      double measuredSeconds = MEASURED_ROUNDS * ROUND_DURATION_MS / 1000d;
+      double lockedQueriesPerSecond = lockedQueries / measuredSeconds;
+      double lockFreeQueriesPerSecond = lockFreeQueries / measuredSeconds;
+      System.out.println(
+          String.format(
+              Locale.US,
+              "%d readers, 1 writer: locked %.2fM queries/s, lock-free %.2fM queries/s (%.1fx)",
+              READER_COUNT,
+              lockedQueriesPerSecond / 1_000_000,
+              lockFreeQueriesPerSecond / 1_000_000,
+              lockFreeQueriesPerSecond / lockedQueriesPerSecond));
+    } finally {
+      cache.release();
+      Util.recursiveDelete(cacheDir);
+    }
+  }
+
+  /** Runs readers against a writer for one round, returning the number of queries made. */
+  private static long runRound(SimpleCache cache, boolean locked) throws Exception {
+    AtomicBoolean running = new AtomicBoolean(true);
+    AtomicLong queryCount = new AtomicLong();
+    CountDownLatch finished = new CountDownLatch(READER_COUNT + 1);
+    Thread writer =
+        new Thread(
+            () -> {
+              try {
+                writeSpans(cache, running);
+              } catch (Exception e) {
+                throw new IllegalStateException(e);
+              } finally {
+                finished.countDown();
+              }
+            });
+    writer.start();
+    for (int i = 0; i < READER_COUNT; i++) {
+      Random random = new Random(i);
+      new Thread(
+              () -> {
+                queryCount.addAndGet(query(cache, locked, random, running));
+                finished.countDown();
+              })
+          .start();
+    }
+    Thread.sleep(ROUND_DURATION_MS);
+    running.set(false);
+    finished.await();
+    cache.removeResource(WRITER_KEY);
+    return queryCount.get();
+  }
+
+  private static long query(
+      SimpleCache cache, boolean locked, Random random, AtomicBoolean running) {
+    long queryCount = 0;
+    long checksum = 0;
+    long contentLength = (long) SPAN_COUNT * SPAN_LENGTH;
+    while (running.get()) {
+      long position = random.nextInt((int) contentLength);
+      if (locked) {
+        synchronized (cache) {
+          checksum += cache.getCachedLength(READER_KEY, position, C.LENGTH_UNSET);
+          checksum += cache.isCached(READER_KEY, position, SPAN_LENGTH) ? 1 : 0;
+        }
+      } else {
+        checksum += cache.getCachedLength(READER_KEY, position, C.LENGTH_UNSET);
+        checksum += cache.isCached(READER_KEY, position, SPAN_LENGTH) ? 1 : 0;
+      }
+      queryCount += 2;
+    }
+    if (checksum == 0) {
+      // Prevent the queries from being optimized away.
+      System.out.println("Unexpected checksum");
+    }
+    return queryCount;
+  }
+
+  private static void writeSpans(SimpleCache cache, AtomicBoolean running)
+      throws IOException, InterruptedException, Cache.CacheException {
+    int spanIndex = 0;
+    while (running.get()) {
+      if (spanIndex == WRITER_SPANS_PER_RESOURCE) {
+        cache.removeResource(WRITER_KEY);
+        spanIndex = 0;
+      }
+      long position = (long) spanIndex * SPAN_LENGTH;
+      CacheSpan holeSpan = cache.startReadWrite(WRITER_KEY, position, SPAN_LENGTH);
+      addSpan(cache, WRITER_KEY, position);
+      cache.releaseHoleSpan(holeSpan);
+      spanIndex++;
+    }
+  }
+
+  private static void addSpan(SimpleCache cache, String key, long position)
+      throws Cache.CacheException, IOException {
+    File file = cache.startFile(key, position, SPAN_LENGTH);
+    try (FileOutputStream outputStream = new FileOutputStream(file)) {
+      outputStream.write(new byte[SPAN_LENGTH]);
+    }
+    cache.commitFile(file, SPAN_LENGTH);
+  }
+}
@@ -26,8 +26,8 @@ import com.google.android.exoplayer2.testutil.TestUtil;
 import com.google.android.exoplayer2.util.Util;
 import java.io.File;
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Set;
-import java.util.TreeSet;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -103,7 +103,7 @@ public class SimpleCacheSpanTest {
     assertWithMessage("There should be only one key for all files.").that(keys).hasSize(1);
     assertThat(keys).contains(key);
 
-    TreeSet<SimpleCacheSpan> spans = index.get(key).getSpans();
+    Collection<SimpleCacheSpan> spans = index.get(key).getSpans();
     assertWithMessage("upgradeOldFiles() shouldn't add any spans.").that(spans.isEmpty()).isTrue();
 
     LongSparseArray<Long> cachedPositions = new LongSparseArray<>();
@@ -22,18 +22,24 @@ import static org.junit.Assert.assertThrows;
 import static org.mockito.Mockito.doAnswer;
 
 import android.net.Uri;
+import androidx.annotation.Nullable;
 import androidx.test.core.app.ApplicationProvider;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 import com.google.android.exoplayer2.database.DatabaseProvider;
 import com.google.android.exoplayer2.testutil.TestUtil;
+import com.google.android.exoplayer2.upstream.DataSpec;
 import com.google.android.exoplayer2.upstream.cache.Cache.CacheException;
 import com.google.android.exoplayer2.util.Util;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.NavigableSet;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -51,6 +57,7 @@ public class SimpleCacheTest {
   private File testDir;
   private File cacheDir;
   private DatabaseProvider databaseProvider;
+  @Nullable private SimpleCache unreleasedCache;
 
   @Before
   public void createTestDir() throws Exception {
@@ -67,6 +74,10 @@ public class SimpleCacheTest {
 
   @After
   public void deleteTestDir() {
+    if (unreleasedCache != null) {
+      // Unlocks the cache folder for other tests.
+      unreleasedCache.release();
+    }
     Util.recursiveDelete(testDir);
   }
 
@@ -149,6 +160,77 @@ public class SimpleCacheTest {
         .isEqualTo(Uri.parse("https://redirect.google.com"));
   }
 
+  @Test
+  public void newInstance_afterRelease_loadsSpansFromSnapshot() throws Exception {
+    SimpleCache simpleCache = getSimpleCache();
+    CacheSpan holeSpan = simpleCache.startReadWrite(KEY_1, 0, LENGTH_UNSET);
+    addCache(simpleCache, KEY_1, 0, 15);
+    addCache(simpleCache, KEY_1, 15, 15);
+    simpleCache.releaseHoleSpan(holeSpan);
+    simpleCache.release();
+    assertThat(new File(cacheDir, CacheSpanSnapshot.FILE_NAME).exists()).isTrue();
+
+    simpleCache = getSimpleCache();
+    simpleCache.checkInitialization();
+    AtomicReference<Boolean> loadedFromSnapshot = new AtomicReference<>();
+    AtomicReference<Integer> spanCount = new AtomicReference<>();
+    simpleCache.addInitializationListener(
+        (cache, initializationTimeMs, count, fromSnapshot) -> {
+          spanCount.set(count);
+          loadedFromSnapshot.set(fromSnapshot);
+        });
+
+    assertThat(loadedFromSnapshot.get()).isTrue();
+    assertThat(spanCount.get()).isEqualTo(2);
+    assertThat(new File(cacheDir, CacheSpanSnapshot.FILE_NAME).exists()).isFalse();
+    for (CacheSpan cachedSpan : simpleCache.getCachedSpans(KEY_1)) {
+      assertCachedDataReadCorrect(cachedSpan);
+    }
+  }
+
+  @Test
+  public void newInstance_withoutRelease_scansCacheDirectory() throws Exception {
+    SimpleCache simpleCache = getSimpleCache();
+    CacheSpan holeSpan = simpleCache.startReadWrite(KEY_1, 0, LENGTH_UNSET);
+    addCache(simpleCache, KEY_1, 0, 15);
+    simpleCache.releaseHoleSpan(holeSpan);
+    holeSpan = simpleCache.startReadWrite(KEY_2, 0, LENGTH_UNSET);
+    addCache(simpleCache, KEY_2, 0, 15);
+    simpleCache.releaseHoleSpan(holeSpan);
+
+    // Don't release the cache until the test has finished, so that no snapshot is written. Move the
+    // cache directory instead, so we can reload it without failing the folder locking check.
+    unreleasedCache = simpleCache;
+    File cacheDir2 = new File(testDir, "cache2");
+    assertThat(cacheDir.renameTo(cacheDir2)).isTrue();
+    simpleCache = new SimpleCache(cacheDir2, new NoOpCacheEvictor(), databaseProvider);
+    simpleCache.checkInitialization();
+    AtomicReference<Boolean> loadedFromSnapshot = new AtomicReference<>();
+    AtomicReference<Integer> spanCount = new AtomicReference<>();
+    simpleCache.addInitializationListener(
+        (cache, initializationTimeMs, count, fromSnapshot) -> {
+          spanCount.set(count);
+          loadedFromSnapshot.set(fromSnapshot);
+        });
+
+    assertThat(loadedFromSnapshot.get()).isFalse();
+    assertThat(spanCount.get()).isEqualTo(2);
+    assertCachedDataReadCorrect(simpleCache.getCachedSpans(KEY_1).first());
+    assertCachedDataReadCorrect(simpleCache.getCachedSpans(KEY_2).first());
+    simpleCache.release();
+  }
+
+  @Test
+  public void release_whileWriting_doesNotWriteSnapshot() throws Exception {
+    SimpleCache simpleCache = getSimpleCache();
+    simpleCache.startReadWrite(KEY_1, 0, LENGTH_UNSET);
+    addCache(simpleCache, KEY_1, 0, 15);
+
+    simpleCache.release();
+
+    assertThat(new File(cacheDir, CacheSpanSnapshot.FILE_NAME).exists()).isFalse();
+  }
+
   @Test
   public void newInstance_withExistingCacheInstance_fails() {
     getSimpleCache();
@@ -676,6 +758,95 @@ public class SimpleCacheTest {
     assertThat(fileSpan.length).isEqualTo(15);
   }
 
+  @Test
+  public void readMethods_withCacheLockHeldByAnotherThread_doNotBlock() throws Exception {
+    SimpleCache simpleCache = getSimpleCache();
+    CacheSpan holeSpan = simpleCache.startReadWrite(KEY_1, 0, LENGTH_UNSET);
+    addCache(simpleCache, KEY_1, 0, 15);
+    simpleCache.releaseHoleSpan(holeSpan);
+
+    CountDownLatch lockAcquired = new CountDownLatch(1);
+    CountDownLatch readsFinished = new CountDownLatch(1);
+    Thread lockingThread =
+        new Thread(
+            () -> {
+              synchronized (simpleCache) {
+                lockAcquired.countDown();
+                try {
+                  readsFinished.await();
+                } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                }
+              }
+            });
+    lockingThread.start();
+    lockAcquired.await();
+
+    try {
+      assertThat(simpleCache.getCacheSpace()).isEqualTo(15);
+      assertThat(simpleCache.getCachedSpans(KEY_1)).hasSize(1);
+      assertThat(simpleCache.getCachedLength(KEY_1, 0, LENGTH_UNSET)).isEqualTo(15);
+      assertThat(simpleCache.isCached(KEY_1, 5, 10)).isTrue();
+      assertCachedDataReadCorrect(simpleCache.startReadWrite(KEY_1, 5, LENGTH_UNSET));
+    } finally {
+      readsFinished.countDown();
+      lockingThread.join();
+    }
+  }
+
+  @Test
+  public void readMethods_concurrentWithWrites_seeConsistentSpans() throws Exception {
+    SimpleCache simpleCache = getSimpleCache();
+    int spanCount = 50;
+    int spanLength = 10;
+    int readerCount = 4;
+    CountDownLatch writesFinished = new CountDownLatch(1);
+    AtomicReference<Throwable> readerError = new AtomicReference<>();
+    Thread[] readers = new Thread[readerCount];
+    for (int i = 0; i < readerCount; i++) {
+      readers[i] =
+          new Thread(
+              () -> {
+                try {
+                  while (writesFinished.getCount() > 0) {
+                    long cachedLength = simpleCache.getCachedLength(KEY_1, 0, LENGTH_UNSET);
+                    // Spans are written contiguously from the start, so the cached bytes are
+                    // always a single block starting at position 0.
+                    assertThat(simpleCache.getCachedBytes(KEY_1, 0, LENGTH_UNSET))
+                        .isAtLeast(Math.max(cachedLength, 0));
+                    if (cachedLength > 0) {
+                      assertThat(simpleCache.isCached(KEY_1, 0, cachedLength)).isTrue();
+                      CacheSpan span = simpleCache.startReadWrite(KEY_1, cachedLength - 1, 1);
+                      assertThat(span.isCached).isTrue();
+                    }
+                  }
+                } catch (Throwable e) {
+                  readerError.compareAndSet(null, e);
+                }
+              });
+      readers[i].start();
+    }
+
+    try {
+      for (int i = 0; i < spanCount; i++) {
+        int position = i * spanLength;
+        CacheSpan holeSpan = simpleCache.startReadWrite(KEY_1, position, spanLength);
+        addCache(simpleCache, KEY_1, position, spanLength);
+        simpleCache.releaseHoleSpan(holeSpan);
+      }
+    } finally {
+      writesFinished.countDown();
+      for (Thread reader : readers) {
+        reader.join();
+      }
+    }
+
+    assertThat(readerError.get()).isNull();
+    assertThat(simpleCache.getCachedLength(KEY_1, 0, LENGTH_UNSET))
+        .isEqualTo(spanCount * spanLength);
+    assertThat(simpleCache.getCacheSpace()).isEqualTo(spanCount * spanLength);
+  }
+
   @Test
   public void usingReleasedCache_throwsException() {
     SimpleCache simpleCache = getSimpleCache();
@@ -685,6 +856,81 @@ public class SimpleCacheTest {
         () -> simpleCache.startReadWriteNonBlocking(KEY_1, 0, LENGTH_UNSET));
   }
 
+  @Test
+  public void commitFiles_addsAllSpansAndPersistsThem() throws Exception {
+    SimpleCache simpleCache = getSimpleCache();
+    CacheSpan holeSpan = simpleCache.startReadWrite(KEY_1, 0, LENGTH_UNSET);
+    File file1 = simpleCache.startFile(KEY_1, 0, 15);
+    File file2 = simpleCache.startFile(KEY_1, 15, 15);
+    try (FileOutputStream fos = new FileOutputStream(file1)) {
+      fos.write(generateData(KEY_1, 0, 15));
+    }
+    try (FileOutputStream fos = new FileOutputStream(file2)) {
+      fos.write(generateData(KEY_1, 15, 15));
+    }
+    Map<File, Long> files = new LinkedHashMap<>();
+    files.put(file1, 15L);
+    files.put(file2, 15L);
+
+    simpleCache.commitFiles(files);
+    simpleCache.releaseHoleSpan(holeSpan);
+    simpleCache.release();
+    simpleCache = getSimpleCache();
+
+    assertThat(simpleCache.getCachedBytes(KEY_1, 0, LENGTH_UNSET)).isEqualTo(30);
+    NavigableSet<CacheSpan> cachedSpans = simpleCache.getCachedSpans(KEY_1);
+    assertThat(cachedSpans).hasSize(2);
+    for (CacheSpan cachedSpan : cachedSpans) {
+      assertCachedDataReadCorrect(cachedSpan);
+    }
+  }
+
+  @Test
+  public void writeIdenticalContent_withDeduplication_storesContentOnce() throws Exception {
+    SimpleCache simpleCache = getSimpleCache();
+    simpleCache.setDeduplicatingContent(true);
+    byte[] data = TestUtil.buildTestData(/* length= */ 100);
+
+    writeWithSink(simpleCache, KEY_1, data);
+    writeWithSink(simpleCache, KEY_2, data);
+
+    assertThat(simpleCache.getCacheSpace()).isEqualTo(100);
+    assertThat(simpleCache.getDeduplicatedSpace()).isEqualTo(100);
+    assertThat(readCachedData(simpleCache, KEY_1)).isEqualTo(data);
+    assertThat(readCachedData(simpleCache, KEY_2)).isEqualTo(data);
+
+    // Removing either copy leaves the content available to the other.
+    simpleCache.removeResource(KEY_1);
+
+    assertThat(simpleCache.getCacheSpace()).isEqualTo(100);
+    assertThat(simpleCache.getDeduplicatedSpace()).isEqualTo(0);
+    assertThat(readCachedData(simpleCache, KEY_2)).isEqualTo(data);
+  }
+
+  @Test
+  public void writeDifferentContent_withDeduplication_storesBothCopies() throws Exception {
+    SimpleCache simpleCache = getSimpleCache();
+    simpleCache.setDeduplicatingContent(true);
+
+    writeWithSink(simpleCache, KEY_1, generateData(KEY_1, /* position= */ 0, /* length= */ 100));
+    writeWithSink(simpleCache, KEY_2, generateData(KEY_2, /* position= */ 0, /* length= */ 100));
+
+    assertThat(simpleCache.getCacheSpace()).isEqualTo(200);
+    assertThat(simpleCache.getDeduplicatedSpace()).isEqualTo(0);
+  }
+
+  @Test
+  public void writeIdenticalContent_withoutDeduplication_storesBothCopies() throws Exception {
+    SimpleCache simpleCache = getSimpleCache();
+    byte[] data = TestUtil.buildTestData(/* length= */ 100);
+
+    writeWithSink(simpleCache, KEY_1, data);
+    writeWithSink(simpleCache, KEY_2, data);
+
+    assertThat(simpleCache.getCacheSpace()).isEqualTo(200);
+    assertThat(simpleCache.getDeduplicatedSpace()).isEqualTo(0);
+  }
+
   private SimpleCache getSimpleCache() {
     return new SimpleCache(cacheDir, new NoOpCacheEvictor(), databaseProvider);
   }
@@ -704,6 +950,24 @@ public class SimpleCacheTest {
     simpleCache.commitFile(file, length);
   }
 
+  private static void writeWithSink(SimpleCache simpleCache, String key, byte[] data)
+      throws Exception {
+    CacheSpan holeSpan = simpleCache.startReadWrite(key, /* position= */ 0, LENGTH_UNSET);
+    CacheDataSink cacheDataSink = new CacheDataSink(simpleCache, /* fragmentSize= */ LENGTH_UNSET);
+    cacheDataSink.open(
+        new DataSpec.Builder().setUri(Uri.EMPTY).setKey(key).setLength(data.length).build());
+    cacheDataSink.write(data, /* offset= */ 0, data.length);
+    cacheDataSink.close();
+    simpleCache.releaseHoleSpan(holeSpan);
+  }
+
+  private static byte[] readCachedData(SimpleCache simpleCache, String key) throws IOException {
+    CacheSpan cacheSpan = simpleCache.getCachedSpans(key).first();
+    try (FileInputStream inputStream = new FileInputStream(cacheSpan.file)) {
+      return toByteArray(inputStream);
+    }
+  }
+
   private static void assertCachedDataReadCorrect(CacheSpan cacheSpan) throws IOException {
     assertThat(cacheSpan.isCached).isTrue();
     byte[] expected = generateData(cacheSpan.key, (int) cacheSpan.position, (int) cacheSpan.length);
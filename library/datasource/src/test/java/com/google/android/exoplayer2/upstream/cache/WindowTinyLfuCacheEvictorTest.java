@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link WindowTinyLfuCacheEvictor}. */
+@RunWith(AndroidJUnit4.class)
+public final class WindowTinyLfuCacheEvictorTest {
+
+  private static final long MAX_BYTES = 100;
+
+  @Test
+  public void contentBiggerThanMaxSizeDoesNotThrowException() {
+    WindowTinyLfuCacheEvictor evictor = new WindowTinyLfuCacheEvictor(MAX_BYTES);
+    evictor.onCacheInitialized();
+    evictor.onStartFile(mock(Cache.class), "key", 0, MAX_BYTES + 1);
+  }
+
+  @Test
+  public void replayTrace_neverExceedsMaxBytes() {
+    TraceSimulator simulator = new TraceSimulator(new WindowTinyLfuCacheEvictor(MAX_BYTES));
+
+    replayTrace(
+        simulator, /* onRequest= */ () -> assertThat(simulator.cachedBytes).isAtMost(MAX_BYTES));
+  }
+
+  @Test
+  public void replayTrace_withPopularClipsAndLongBinges_outperformsLeastRecentlyUsed() {
+    TraceSimulator leastRecentlyUsed =
+        new TraceSimulator(new LeastRecentlyUsedCacheEvictor(MAX_BYTES));
+    TraceSimulator windowTinyLfu = new TraceSimulator(new WindowTinyLfuCacheEvictor(MAX_BYTES));
+
+    replayTrace(leastRecentlyUsed, /* onRequest= */ () -> {});
+    replayTrace(windowTinyLfu, /* onRequest= */ () -> {});
+
+    String report =
+        "LRU: hit ratio "
+            + leastRecentlyUsed.getHitRatio()
+            + ", bytes from network "
+            + leastRecentlyUsed.missBytes
+            + ". W-TinyLFU: hit ratio "
+            + windowTinyLfu.getHitRatio()
+            + ", bytes from network "
+            + windowTinyLfu.missBytes;
+    assertWithMessage(report)
+        .that(windowTinyLfu.getHitRatio())
+        .isGreaterThan(leastRecentlyUsed.getHitRatio());
+    assertWithMessage(report).that(windowTinyLfu.missBytes).isLessThan(leastRecentlyUsed.missBytes);
+  }
+
+  /**
+   * Replays a trace in which a few short clips are replayed frequently, interleaved with long
+   * resources that are each played through once.
+   */
+  private static void replayTrace(TraceSimulator simulator, Runnable onRequest) {
+    Random random = new Random(/* seed= */ 0);
+    int clipCount = 10;
+    int clipSpanCount = 4;
+    int movieSpanCount = 300;
+    int movieSpansPerStep = 10;
+    int movieIndex = 0;
+    int moviePosition = 0;
+    for (int step = 0; step < 5000; step++) {
+      if (random.nextBoolean()) {
+        String clipKey = "clip" + random.nextInt(clipCount);
+        for (int position = 0; position < clipSpanCount; position++) {
+          simulator.request(clipKey, position);
+          onRequest.run();
+        }
+      } else {
+        for (int i = 0; i < movieSpansPerStep; i++) {
+          simulator.request("movie" + movieIndex, moviePosition++);
+          onRequest.run();
+          if (moviePosition == movieSpanCount) {
+            movieIndex++;
+            moviePosition = 0;
+          }
+        }
+      }
+    }
+  }
+
+  /** Simulates a cache of unit length spans that's managed by a {@link CacheEvictor}. */
+  private static final class TraceSimulator {
+
+    private static final File FILE = new File("span");
+
+    private final CacheEvictor evictor;
+    private final Cache cache;
+    private final HashMap<String, CacheSpan> cachedSpans;
+
+    private long timestamp;
+    public long cachedBytes;
+    public long hitBytes;
+    public long missBytes;
+
+    public TraceSimulator(CacheEvictor evictor) {
+      this.evictor = evictor;
+      cachedSpans = new HashMap<>();
+      cache = mock(Cache.class);
+      doAnswer(
+              invocation -> {
+                CacheSpan span = invocation.getArgument(0);
+                cachedSpans.remove(getId(span.key, span.position));
+                cachedBytes -= span.length;
+                evictor.onSpanRemoved(cache, span);
+                return null;
+              })
+          .when(cache)
+          .removeSpan(any());
+      evictor.onCacheInitialized();
+    }
+
+    public void request(String key, long position) {
+      String id = getId(key, position);
+      CacheSpan span = cachedSpans.get(id);
+      if (span != null) {
+        hitBytes++;
+        CacheSpan touchedSpan = new CacheSpan(key, position, 1, ++timestamp, FILE);
+        cachedSpans.put(id, touchedSpan);
+        evictor.onSpanTouched(cache, span, touchedSpan);
+      } else {
+        missBytes++;
+        evictor.onStartFile(cache, key, position, 1);
+        CacheSpan addedSpan = new CacheSpan(key, position, 1, ++timestamp, FILE);
+        cachedSpans.put(id, addedSpan);
+        cachedBytes++;
+        evictor.onSpanAdded(cache, addedSpan);
+      }
+    }
+
+    public double getHitRatio() {
+      return (double) hitBytes / (hitBytes + missBytes);
+    }
+
+    private static String getId(String key, long position) {
+      return key + "@" + position;
+    }
+  }
+}
@@ -21,6 +21,7 @@ import static java.lang.Math.min;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 import com.google.android.exoplayer2.testutil.TestUtil;
 import com.google.android.exoplayer2.util.Util;
+import java.util.Arrays;
 import java.util.Random;
 import javax.crypto.Cipher;
 import org.junit.After;
@@ -196,4 +197,24 @@ public class AesFlushingCipherTest {
     int differingByteCount = getDifferingByteCount(reference, data, originalOffset);
     assertThat(differingByteCount).isEqualTo(0);
   }
+
+  @Test
+  public void reset_decryptsFromArbitraryOffsets() {
+    byte[] reference = TestUtil.buildTestData(DATA_LENGTH);
+    byte[] encrypted = reference.clone();
+    encryptCipher.updateInPlace(encrypted, 0, encrypted.length);
+    Random random = new Random(RANDOM_SEED);
+
+    // Decrypt ranges in random order with the same cipher, resetting it before each range.
+    for (int i = 0; i < 20; i++) {
+      int offset = random.nextInt(DATA_LENGTH);
+      int length = 1 + random.nextInt(DATA_LENGTH - offset);
+      byte[] data = encrypted.clone();
+      decryptCipher.reset(NONCE, offset + START_OFFSET);
+      decryptCipher.updateInPlace(data, offset, length);
+
+      assertThat(Arrays.copyOfRange(data, offset, offset + length))
+          .isEqualTo(Arrays.copyOfRange(reference, offset, offset + length));
+    }
+  }
 }
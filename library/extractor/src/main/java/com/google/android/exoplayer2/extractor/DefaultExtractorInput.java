@@ -25,6 +25,7 @@ import com.google.android.exoplayer2.util.Util;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /** An {@link ExtractorInput} that wraps a {@link DataReader}. */
@@ -72,6 +73,23 @@ public final class DefaultExtractorInput implements ExtractorInput {
     return bytesRead;
   }
 
+  @Override
+  public int read(ByteBuffer target) throws IOException {
+    int length = target.remaining();
+    int bytesRead = min(peekBufferLength, length);
+    if (bytesRead > 0) {
+      target.put(peekBuffer, /* offset= */ 0, bytesRead);
+      updatePeekBuffer(bytesRead);
+    } else if (length > 0) {
+      if (Thread.interrupted()) {
+        throw new InterruptedIOException();
+      }
+      bytesRead = dataReader.read(target);
+    }
+    commitBytesRead(bytesRead);
+    return bytesRead;
+  }
+
   @Override
   public boolean readFully(byte[] target, int offset, int length, boolean allowEndOfInput)
       throws IOException {
@@ -20,6 +20,7 @@ import com.google.android.exoplayer2.upstream.DataReader;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Provides data to be consumed by an {@link Extractor}.
@@ -81,6 +82,22 @@ public interface ExtractorInput extends DataReader {
   @Override
   int read(byte[] buffer, int offset, int length) throws IOException;
 
+  /**
+   * Reads up to {@link ByteBuffer#remaining()} bytes from the input into {@code target}, advancing
+   * its position by the number of bytes read, and resets the peek position.
+   *
+   * <p>This method blocks until at least one byte of data can be read, the end of the input is
+   * detected, or an exception is thrown.
+   *
+   * @param target The buffer into which data should be written.
+   * @return The number of bytes read, or {@link C#RESULT_END_OF_INPUT} if the input has ended.
+   * @throws IOException If an error occurs reading from the input.
+   */
+  @Override
+  default int read(ByteBuffer target) throws IOException {
+    return DataReader.super.read(target);
+  }
+
   /**
    * Like {@link #read(byte[], int, int)}, but reads the requested {@code length} in full.
    *
@@ -28,6 +28,7 @@ import com.google.android.exoplayer2.testutil.FakeDataSource;
 import com.google.android.exoplayer2.upstream.DataSpec;
 import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -91,6 +92,28 @@ public class DefaultExtractorInputTest {
         .isEqualTo(Arrays.copyOf(target, TEST_DATA.length - 1));
   }
 
+  @Test
+  public void readByteBuffer_partiallyPeeked_readsPeekedDataThenUpstream() throws Exception {
+    DefaultExtractorInput input = createDefaultExtractorInput();
+    ByteBuffer target = ByteBuffer.allocateDirect(TEST_DATA.length);
+
+    input.advancePeekPosition(3);
+    int bytesRead = input.read(target);
+    while (target.hasRemaining()) {
+      bytesRead += input.read(target);
+    }
+
+    assertThat(bytesRead).isEqualTo(TEST_DATA.length);
+    assertThat(input.getPosition()).isEqualTo(TEST_DATA.length);
+    assertThat(input.getPeekPosition()).isEqualTo(TEST_DATA.length);
+    byte[] readData = new byte[TEST_DATA.length];
+    ((ByteBuffer) target.flip()).get(readData);
+    assertThat(readData).isEqualTo(TEST_DATA);
+    assertThat(input.read(target)).isEqualTo(0);
+    target.clear();
+    assertThat(input.read(target)).isEqualTo(RESULT_END_OF_INPUT);
+  }
+
   @Test
   public void readEndOfInputBeforeFirstByteRead() throws Exception {
     DefaultExtractorInput input = createDefaultExtractorInput();
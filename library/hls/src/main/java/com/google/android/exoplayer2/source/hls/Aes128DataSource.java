@@ -15,15 +15,17 @@
  */
 package com.google.android.exoplayer2.source.hls;
 
+import static java.lang.Math.min;
+
 import android.net.Uri;
 import androidx.annotation.Nullable;
 import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.upstream.DataSource;
-import com.google.android.exoplayer2.upstream.DataSourceInputStream;
 import com.google.android.exoplayer2.upstream.DataSpec;
 import com.google.android.exoplayer2.upstream.TransferListener;
 import com.google.android.exoplayer2.util.Assertions;
 import java.io.IOException;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.Key;
@@ -32,7 +34,6 @@ import java.security.spec.AlgorithmParameterSpec;
 import java.util.List;
 import java.util.Map;
 import javax.crypto.Cipher;
-import javax.crypto.CipherInputStream;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
@@ -41,17 +42,31 @@ import javax.crypto.spec.SecretKeySpec;
  * A {@link DataSource} that decrypts data read from an upstream source, encrypted with AES-128 with
  * a 128-bit key and PKCS7 padding.
  *
+ * <p>Encrypted data is read from upstream in chunks of up to {@link #ENCRYPTED_BUFFER_SIZE} bytes,
+ * which are decrypted straight into the caller's buffer when it's large enough to hold the output,
+ * and into a reused buffer otherwise. The {@link Cipher} is reused when the data source is
+ * reopened.
+ *
  * <p>Note that this {@link DataSource} does not support being opened from arbitrary offsets. It is
  * designed specifically for reading whole files as defined in an HLS media playlist. For this
  * reason the implementation is private to the HLS package.
  */
 /* package */ class Aes128DataSource implements DataSource {
 
+  /** The maximum number of encrypted bytes read from upstream and decrypted at once. */
+  /* package */ static final int ENCRYPTED_BUFFER_SIZE = 16 * 1024;
+
   private final DataSource upstream;
   private final byte[] encryptionKey;
   private final byte[] encryptionIv;
 
-  @Nullable private CipherInputStream cipherInputStream;
+  @Nullable private Cipher cipher;
+  @Nullable private byte[] encryptedBuffer;
+  @Nullable private byte[] decryptedBuffer;
+  private int decryptedBufferPosition;
+  private int decryptedBufferLimit;
+  private boolean opened;
+  private boolean endOfInput;
 
   /**
    * @param upstream The upstream {@link DataSource}.
@@ -72,36 +87,54 @@ import javax.crypto.spec.SecretKeySpec;
 
   @Override
   public final long open(DataSpec dataSpec) throws IOException {
-    Cipher cipher;
-    try {
-      cipher = getCipherInstance();
-    } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
-      throw new RuntimeException(e);
+    @Nullable Cipher cipher = this.cipher;
+    if (cipher == null) {
+      try {
+        cipher = getCipherInstance();
+      } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+        throw new RuntimeException(e);
+      }
+      this.cipher = cipher;
     }
 
     Key cipherKey = new SecretKeySpec(encryptionKey, "AES");
     AlgorithmParameterSpec cipherIV = new IvParameterSpec(encryptionIv);
 
     try {
+      // Initializing the cipher also resets it if it was used by a previous open.
       cipher.init(Cipher.DECRYPT_MODE, cipherKey, cipherIV);
     } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
       throw new RuntimeException(e);
     }
 
-    DataSourceInputStream inputStream = new DataSourceInputStream(upstream, dataSpec);
-    cipherInputStream = new CipherInputStream(inputStream, cipher);
-    inputStream.open();
+    decryptedBufferPosition = 0;
+    decryptedBufferLimit = 0;
+    endOfInput = false;
+    opened = true;
+    upstream.open(dataSpec);
 
     return C.LENGTH_UNSET;
   }
 
   @Override
   public final int read(byte[] buffer, int offset, int length) throws IOException {
-    Assertions.checkNotNull(cipherInputStream);
-    int bytesRead = cipherInputStream.read(buffer, offset, length);
-    if (bytesRead < 0) {
-      return C.RESULT_END_OF_INPUT;
+    Assertions.checkState(opened);
+    if (length == 0) {
+      return 0;
+    }
+    while (decryptedBufferPosition == decryptedBufferLimit) {
+      if (endOfInput) {
+        return C.RESULT_END_OF_INPUT;
+      }
+      int bytesDecrypted = decryptNextChunk(buffer, offset, length);
+      if (bytesDecrypted > 0) {
+        return bytesDecrypted;
+      }
     }
+    int bytesRead = min(length, decryptedBufferLimit - decryptedBufferPosition);
+    byte[] decryptedBuffer = Assertions.checkNotNull(this.decryptedBuffer);
+    System.arraycopy(decryptedBuffer, decryptedBufferPosition, buffer, offset, bytesRead);
+    decryptedBufferPosition += bytesRead;
     return bytesRead;
   }
 
@@ -118,8 +151,8 @@ import javax.crypto.spec.SecretKeySpec;
 
   @Override
   public void close() throws IOException {
-    if (cipherInputStream != null) {
-      cipherInputStream = null;
+    if (opened) {
+      opened = false;
       upstream.close();
     }
   }
@@ -127,4 +160,56 @@ import javax.crypto.spec.SecretKeySpec;
   protected Cipher getCipherInstance() throws NoSuchPaddingException, NoSuchAlgorithmException {
     return Cipher.getInstance("AES/CBC/PKCS7Padding");
   }
+
+  /**
+   * Reads the next chunk of encrypted data from upstream and decrypts it.
+   *
+   * <p>If the output of the cipher is guaranteed to fit in {@code length} bytes, it's decrypted
+   * directly into {@code buffer}. Otherwise it's decrypted into {@code decryptedBuffer}.
+   *
+   * @return The number of bytes decrypted into {@code buffer}, or 0 if the output was decrypted
+   *     into {@code decryptedBuffer}, or if the cipher produced no output.
+   */
+  private int decryptNextChunk(byte[] buffer, int offset, int length) throws IOException {
+    Cipher cipher = Assertions.checkNotNull(this.cipher);
+    byte[] encryptedBuffer = this.encryptedBuffer;
+    if (encryptedBuffer == null) {
+      encryptedBuffer = new byte[ENCRYPTED_BUFFER_SIZE];
+      this.encryptedBuffer = encryptedBuffer;
+    }
+    // The cipher holds back up to a block, so it may output a block more than it's given. Reads
+    // that are too short for their output to fit fill the whole encrypted buffer instead.
+    int blockSize = cipher.getBlockSize();
+    int readLength =
+        length > 2 * blockSize
+            ? min(encryptedBuffer.length, length - blockSize)
+            : encryptedBuffer.length;
+    int bytesRead = upstream.read(encryptedBuffer, /* offset= */ 0, readLength);
+    if (bytesRead == C.RESULT_END_OF_INPUT) {
+      endOfInput = true;
+    }
+    int inputLength = endOfInput ? 0 : bytesRead;
+    int outputSize = cipher.getOutputSize(inputLength);
+    try {
+      if (outputSize <= length) {
+        return endOfInput
+            ? cipher.doFinal(buffer, offset)
+            : cipher.update(encryptedBuffer, /* inputOffset= */ 0, inputLength, buffer, offset);
+      }
+      byte[] decryptedBuffer = this.decryptedBuffer;
+      if (decryptedBuffer == null || decryptedBuffer.length < outputSize) {
+        decryptedBuffer = new byte[outputSize];
+        this.decryptedBuffer = decryptedBuffer;
+      }
+      decryptedBufferPosition = 0;
+      decryptedBufferLimit =
+          endOfInput
+              ? cipher.doFinal(decryptedBuffer, /* outputOffset= */ 0)
+              : cipher.update(
+                  encryptedBuffer, /* inputOffset= */ 0, inputLength, decryptedBuffer, 0);
+      return 0;
+    } catch (GeneralSecurityException e) {
+      throw new IOException(e);
+    }
+  }
 }
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.source.hls;
+
+import android.net.Uri;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.ByteArrayDataSource;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSourceInputStream;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.Random;
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Microbenchmark comparing the decryption throughput of {@link Aes128DataSource} with the {@link
+ * CipherInputStream} based implementation that it replaced.
+ *
+ * <p>Encrypted segments are read from memory, as they would be from a cache, with the read length
+ * of the TS extractor and with a short read length. Each scenario runs warm-up iterations followed
+ * by measured iterations, and the throughput of the measured iterations is printed. Run it on a JVM
+ * with {@code main}, passing no arguments.
+ */
+public final class Aes128DataSourceBenchmark {
+
+  private static final int WARM_UP_ITERATIONS = 3;
+  private static final int MEASURED_ITERATIONS = 5;
+  private static final int SEGMENT_LENGTH = 2 * 1024 * 1024;
+  private static final int SEGMENT_COUNT = 8;
+  private static final String CIPHER_TRANSFORMATION = "AES/CBC/PKCS5Padding";
+
+  private static final byte[] KEY = new byte[16];
+  private static final byte[] IV = new byte[16];
+
+  /** Reads a whole segment, returning the number of bytes read. */
+  private interface SegmentReader {
+    long readSegment(byte[] buffer) throws Exception;
+  }
+
+  private Aes128DataSourceBenchmark() {}
+
+  public static void main(String[] args) throws Exception {
+    Random random = new Random(/* seed= */ 0);
+    random.nextBytes(KEY);
+    random.nextBytes(IV);
+    byte[] segment = new byte[SEGMENT_LENGTH];
+    random.nextBytes(segment);
+    byte[] encryptedSegment = encrypt(segment);
+
+    // TsExtractor reads up to 50 TS packets at once.
+    runScenario("TS packet reads", encryptedSegment, /* readLength= */ 50 * 188);
+    runScenario("short reads", encryptedSegment, /* readLength= */ 188);
+  }
+
+  private static void runScenario(String name, byte[] encryptedSegment, int readLength)
+      throws Exception {
+    byte[] buffer = new byte[readLength];
+    ByteArrayDataSource upstream = new ByteArrayDataSource(encryptedSegment);
+    DataSpec dataSpec = new DataSpec(Uri.parse("https://test.test/segment.ts"));
+
+    Aes128DataSource dataSource = new TestAes128DataSource(upstream);
+    double megabytesPerSecond =
+        measure(
+            readBuffer -> {
+              dataSource.open(dataSpec);
+              long bytesRead = readToEnd(dataSource, readBuffer);
+              dataSource.close();
+              return bytesRead;
+            },
+            buffer);
+    double legacyMegabytesPerSecond =
+        measure(
+            readBuffer -> {
+              Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+              cipher.init(
+                  Cipher.DECRYPT_MODE, new SecretKeySpec(KEY, "AES"), new IvParameterSpec(IV));
+              InputStream inputStream =
+                  new CipherInputStream(new DataSourceInputStream(upstream, dataSpec), cipher);
+              long bytesRead = 0;
+              int read;
+              while ((read = inputStream.read(readBuffer, 0, readBuffer.length)) != -1) {
+                bytesRead += read;
+              }
+              inputStream.close();
+              return bytesRead;
+            },
+            buffer);
+    System.out.println(
+        String.format(
+            Locale.US,
+            "%s: legacy %.1f MB/s, current %.1f MB/s (%.1fx)",
+            name,
+            legacyMegabytesPerSecond,
+            megabytesPerSecond,
+            megabytesPerSecond / legacyMegabytesPerSecond));
+  }
+
+  private static double measure(SegmentReader segmentReader, byte[] buffer) throws Exception {
+    long measuredNanos = 0;
+    long measuredBytes = 0;
+    for (int iteration = 0; iteration < WARM_UP_ITERATIONS + MEASURED_ITERATIONS; iteration++) {
+      long startNanos = System.nanoTime();
+      long bytesRead = 0;
+      for (int i = 0; i < SEGMENT_COUNT; i++) {
+        bytesRead += segmentReader.readSegment(buffer);
+      }
+      long elapsedNanos = System.nanoTime() - startNanos;
+      if (iteration >= WARM_UP_ITERATIONS) {
+        measuredNanos += elapsedNanos;
+        measuredBytes += bytesRead;
+      }
+    }
+    return (measuredBytes / 1_000_000d) / (measuredNanos / 1_000_000_000d);
+  }
+
+  private static long readToEnd(DataSource dataSource, byte[] buffer) throws IOException {
+    long bytesRead = 0;
+    int read;
+    while ((read = dataSource.read(buffer, 0, buffer.length)) != C.RESULT_END_OF_INPUT) {
+      bytesRead += read;
+    }
+    return bytesRead;
+  }
+
+  private static byte[] encrypt(byte[] data) throws GeneralSecurityException {
+    Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+    cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(KEY, "AES"), new IvParameterSpec(IV));
+    return cipher.doFinal(data);
+  }
+
+  private static final class TestAes128DataSource extends Aes128DataSource {
+
+    public TestAes128DataSource(DataSource upstream) {
+      super(upstream, KEY, IV);
+    }
+
+    @Override
+    protected Cipher getCipherInstance() throws NoSuchPaddingException, NoSuchAlgorithmException {
+      // Not every JVM provides "AES/CBC/PKCS7Padding", but "AES/CBC/PKCS5Padding" is identical.
+      return Cipher.getInstance(CIPHER_TRANSFORMATION);
+    }
+  }
+}
@@ -20,13 +20,18 @@ import static com.google.common.truth.Truth.assertThat;
 import android.net.Uri;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.testutil.TestUtil;
+import com.google.android.exoplayer2.upstream.ByteArrayDataSource;
 import com.google.android.exoplayer2.upstream.DataSource;
 import com.google.android.exoplayer2.upstream.DataSpec;
 import com.google.android.exoplayer2.upstream.TransferListener;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 import javax.crypto.Cipher;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
@@ -75,6 +80,34 @@ public class Aes128DataSourceTest {
     assertThat(upstream.closedCalled).isTrue();
   }
 
+  @Test
+  public void read_withVaryingReadLengths_decryptsData() throws Exception {
+    byte[] data = TestUtil.buildTestData(/* length= */ 100_000);
+    byte[] key = TestUtil.buildTestData(/* length= */ 16, /* seed= */ 1);
+    byte[] iv = TestUtil.buildTestData(/* length= */ 16, /* seed= */ 2);
+    Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+    cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+    Aes128DataSource testInstance =
+        new TestAes123DataSource(new ByteArrayDataSource(cipher.doFinal(data)), key, iv);
+    DataSpec dataSpec = new DataSpec(Uri.parse("http.abc.com/def"));
+
+    // Read twice to check that the data source can be reopened.
+    for (int i = 0; i < 2; i++) {
+      testInstance.open(dataSpec);
+      ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+      byte[] buffer = new byte[20_000];
+      int readCount = 0;
+      int bytesRead;
+      while ((bytesRead = testInstance.read(buffer, 0, readCount++ % 2 == 0 ? 7 : buffer.length))
+          != C.RESULT_END_OF_INPUT) {
+        outputStream.write(buffer, 0, bytesRead);
+      }
+      testInstance.close();
+
+      assertThat(outputStream.toByteArray()).isEqualTo(data);
+    }
+  }
+
   private static class TestAes123DataSource extends Aes128DataSource {
 
     public TestAes123DataSource(DataSource upstream, byte[] encryptionKey, byte[] encryptionIv) {
@@ -19,6 +19,7 @@ import static com.google.android.exoplayer2.util.Assertions.checkArgument;
 import static com.google.android.exoplayer2.util.Assertions.checkNotNull;
 import static com.google.android.exoplayer2.util.Util.castNonNull;
 import static com.google.common.truth.Truth.assertThat;
+import static java.lang.Math.min;
 import static org.junit.Assert.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyBoolean;
@@ -40,7 +41,9 @@ import com.google.android.exoplayer2.upstream.TransferListener;
 import com.google.android.exoplayer2.util.Assertions;
 import com.google.android.exoplayer2.util.Util;
 import com.google.common.collect.ImmutableList;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
@@ -218,6 +221,66 @@ public abstract class DataSourceContractTest {
     }
   }
 
+  @Test
+  public void unboundedDataSpec_readIntoDirectByteBufferUntilEnd() throws Exception {
+    ImmutableList<TestResource> resources = getTestResources();
+    Assertions.checkArgument(!resources.isEmpty(), "Must provide at least one test resource.");
+
+    for (int i = 0; i < resources.size(); i++) {
+      additionalFailureInfo.setInfo(getFailureLabel(resources, i));
+      TestResource resource = resources.get(i);
+      DataSource dataSource = createDataSource();
+      try {
+        dataSource.open(new DataSpec(resource.getUri()));
+        byte[] data =
+            readIntoDirectByteBuffer(
+                dataSource,
+                unboundedReadsAreIndefinite()
+                    ? resource.getExpectedBytes().length
+                    : C.LENGTH_UNSET);
+
+        assertThat(data).isEqualTo(resource.getExpectedBytes());
+      } finally {
+        dataSource.close();
+      }
+      additionalFailureInfo.setInfo(null);
+    }
+  }
+
+  @Test
+  public void dataSpecWithPositionAndLength_readIntoByteBuffer_readExpectedRange()
+      throws Exception {
+    ImmutableList<TestResource> resources = getTestResources();
+    Assertions.checkArgument(!resources.isEmpty(), "Must provide at least one test resource.");
+
+    for (int i = 0; i < resources.size(); i++) {
+      additionalFailureInfo.setInfo(getFailureLabel(resources, i));
+      TestResource resource = resources.get(i);
+      DataSource dataSource = createDataSource();
+      try {
+        dataSource.open(
+            new DataSpec.Builder().setUri(resource.getUri()).setPosition(2).setLength(2).build());
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        buffer.position(1);
+        int bytesRead = 0;
+        while (bytesRead < 2) {
+          int read = dataSource.read(buffer);
+          assertThat(read).isNotEqualTo(C.RESULT_END_OF_INPUT);
+          bytesRead += read;
+        }
+
+        assertThat(dataSource.read(buffer)).isEqualTo(C.RESULT_END_OF_INPUT);
+        assertThat(buffer.position()).isEqualTo(3);
+        byte[] expectedData = new byte[4];
+        System.arraycopy(resource.getExpectedBytes(), 2, expectedData, 1, 2);
+        assertThat(buffer.array()).isEqualTo(expectedData);
+      } finally {
+        dataSource.close();
+      }
+      additionalFailureInfo.setInfo(null);
+    }
+  }
+
   @Test
   public void dataSpecWithPositionAtEnd_readsZeroBytes() throws Exception {
     ImmutableList<TestResource> resources = getTestResources();
@@ -537,6 +600,32 @@ public abstract class DataSourceContractTest {
     assertThat(dataSource.getResponseHeaders()).isEmpty();
   }
 
+  /**
+   * Reads from {@code dataSource} through {@link DataSource#read(ByteBuffer)} with a small direct
+   * buffer, until the end of input or until {@code length} bytes have been read if it's set.
+   */
+  private static byte[] readIntoDirectByteBuffer(DataSource dataSource, int length)
+      throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(5);
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    while (length == C.LENGTH_UNSET || outputStream.size() < length) {
+      buffer.clear();
+      if (length != C.LENGTH_UNSET) {
+        buffer.limit(min(buffer.capacity(), length - outputStream.size()));
+      }
+      int read = dataSource.read(buffer);
+      if (read == C.RESULT_END_OF_INPUT) {
+        break;
+      }
+      assertThat(buffer.position()).isEqualTo(read);
+      byte[] bytes = new byte[read];
+      buffer.flip();
+      buffer.get(bytes);
+      outputStream.write(bytes, /* off= */ 0, read);
+    }
+    return outputStream.toByteArray();
+  }
+
   /** Build a label to make it clear which resource caused a given test failure. */
   private static String getFailureLabel(List<TestResource> resources, int i) {
     if (resources.size() == 1) {
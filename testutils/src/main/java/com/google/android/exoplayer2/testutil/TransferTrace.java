@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.testutil;
+
+import static com.google.android.exoplayer2.util.Assertions.checkArgument;
+import static com.google.android.exoplayer2.util.Assertions.checkNotNull;
+import static java.lang.Math.abs;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import android.net.Uri;
+import com.google.android.exoplayer2.upstream.BandwidthMeter;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * A recorded log of network transfers, together with the actual capacity of the link over time,
+ * that can be replayed into a {@link BandwidthMeter} to score its estimates.
+ *
+ * <p>A trace is a text file with one event per line. Each line holds the time of the event in
+ * milliseconds, its type and its arguments, separated by whitespace. Empty lines and lines starting
+ * with {@code #} are ignored. The event types are:
+ *
+ * <ul>
+ *   <li>{@code capacity <bitsPerSecond>}: The capacity of the link from this time onwards.
+ *   <li>{@code init <transferId>}: A transfer is initialized.
+ *   <li>{@code start <transferId>}: A transfer starts, after its first byte has arrived.
+ *   <li>{@code bytes <transferId> <byteCount>}: A transfer has transferred further bytes.
+ *   <li>{@code end <transferId>}: A transfer ends.
+ * </ul>
+ *
+ * <p>Events must be in order of time. Transfers may overlap.
+ */
+public final class TransferTrace {
+
+  /** The result of replaying a trace into a {@link BandwidthMeter}. */
+  public static final class Score {
+
+    /** The number of estimates that were scored. */
+    public final int estimateCount;
+    /** The mean of the absolute errors of the estimates, relative to the link capacity. */
+    public final double meanAbsoluteRelativeError;
+    /** The largest absolute error of an estimate, relative to the link capacity. */
+    public final double maxAbsoluteRelativeError;
+    /** The final time to first byte estimate of the meter, in microseconds. */
+    public final long timeToFirstByteEstimateUs;
+
+    private Score(
+        int estimateCount,
+        double meanAbsoluteRelativeError,
+        double maxAbsoluteRelativeError,
+        long timeToFirstByteEstimateUs) {
+      this.estimateCount = estimateCount;
+      this.meanAbsoluteRelativeError = meanAbsoluteRelativeError;
+      this.maxAbsoluteRelativeError = maxAbsoluteRelativeError;
+      this.timeToFirstByteEstimateUs = timeToFirstByteEstimateUs;
+    }
+  }
+
+  /** Builder for {@link TransferTrace} instances. */
+  public static final class Builder {
+
+    private final ArrayList<Event> events;
+    private int nextTransferId;
+
+    /** Creates a builder for an empty trace. */
+    public Builder() {
+      events = new ArrayList<>();
+    }
+
+    /**
+     * Sets the capacity of the link from the given time onwards.
+     *
+     * @param timeMs The time, in milliseconds.
+     * @param bitsPerSecond The capacity of the link, in bits per second.
+     * @return This builder.
+     */
+    public Builder setCapacity(long timeMs, long bitsPerSecond) {
+      events.add(new Event(timeMs, Event.TYPE_CAPACITY, /* transferId= */ 0, bitsPerSecond));
+      return this;
+    }
+
+    /**
+     * Adds a transfer whose bytes arrive at a constant rate.
+     *
+     * @param initTimeMs The time at which the transfer is initialized, in milliseconds.
+     * @param timeToFirstByteMs The time from initialization until the transfer starts, in
+     *     milliseconds.
+     * @param durationMs The time from when the transfer starts until it ends, in milliseconds.
+     * @param byteCount The number of bytes transferred.
+     * @param intervalMs The interval at which bytes are reported, in milliseconds.
+     * @return This builder.
+     */
+    public Builder addTransfer(
+        long initTimeMs, long timeToFirstByteMs, long durationMs, long byteCount, long intervalMs) {
+      checkArgument(durationMs > 0 && intervalMs > 0);
+      int transferId = nextTransferId++;
+      long startTimeMs = initTimeMs + timeToFirstByteMs;
+      long endTimeMs = startTimeMs + durationMs;
+      events.add(new Event(initTimeMs, Event.TYPE_INIT, transferId, /* value= */ 0));
+      events.add(new Event(startTimeMs, Event.TYPE_START, transferId, /* value= */ 0));
+      long bytesReported = 0;
+      long timeMs = startTimeMs;
+      while (bytesReported < byteCount) {
+        timeMs = min(timeMs + intervalMs, endTimeMs);
+        long bytes = byteCount * (timeMs - startTimeMs) / durationMs - bytesReported;
+        events.add(new Event(timeMs, Event.TYPE_BYTES, transferId, bytes));
+        bytesReported += bytes;
+      }
+      events.add(new Event(endTimeMs, Event.TYPE_END, transferId, /* value= */ 0));
+      return this;
+    }
+
+    /** Builds the trace. */
+    public TransferTrace build() {
+      // Sorting is stable, so events at the same time stay in the order in which they were added.
+      ArrayList<Event> sortedEvents = new ArrayList<>(events);
+      Collections.sort(
+          sortedEvents, (event1, event2) -> Long.compare(event1.timeMs, event2.timeMs));
+      return new TransferTrace(ImmutableList.copyOf(sortedEvents));
+    }
+  }
+
+  private static final class Event {
+
+    public static final String TYPE_CAPACITY = "capacity";
+    public static final String TYPE_INIT = "init";
+    public static final String TYPE_START = "start";
+    public static final String TYPE_BYTES = "bytes";
+    public static final String TYPE_END = "end";
+
+    public final long timeMs;
+    public final String type;
+    public final int transferId;
+    public final long value;
+
+    public Event(long timeMs, String type, int transferId, long value) {
+      this.timeMs = timeMs;
+      this.type = type;
+      this.transferId = transferId;
+      this.value = value;
+    }
+  }
+
+  private final ImmutableList<Event> events;
+
+  private TransferTrace(ImmutableList<Event> events) {
+    this.events = events;
+  }
+
+  /**
+   * Parses a trace.
+   *
+   * @param trace The text of the trace.
+   * @return The parsed trace.
+   * @throws IllegalArgumentException If the trace is malformed.
+   */
+  public static TransferTrace parse(String trace) {
+    ImmutableList.Builder<Event> events = ImmutableList.builder();
+    long lastTimeMs = 0;
+    for (String line : trace.split("\n")) {
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      String[] fields = line.split("\\s+");
+      checkArgument(fields.length >= 2, line);
+      long timeMs = Long.parseLong(fields[0]);
+      checkArgument(timeMs >= lastTimeMs, line);
+      lastTimeMs = timeMs;
+      String type = fields[1];
+      switch (type) {
+        case Event.TYPE_CAPACITY:
+          checkArgument(fields.length == 3, line);
+          events.add(new Event(timeMs, type, /* transferId= */ 0, Long.parseLong(fields[2])));
+          break;
+        case Event.TYPE_INIT:
+        case Event.TYPE_START:
+        case Event.TYPE_END:
+          checkArgument(fields.length == 3, line);
+          events.add(new Event(timeMs, type, Integer.parseInt(fields[2]), /* value= */ 0));
+          break;
+        case Event.TYPE_BYTES:
+          checkArgument(fields.length == 4, line);
+          events.add(
+              new Event(timeMs, type, Integer.parseInt(fields[2]), Long.parseLong(fields[3])));
+          break;
+        default:
+          throw new IllegalArgumentException(line);
+      }
+    }
+    return new TransferTrace(events.build());
+  }
+
+  /**
+   * Replays the trace into a {@link BandwidthMeter}, scoring its bitrate estimate after each
+   * bytes and end event.
+   *
+   * @param bandwidthMeter The {@link BandwidthMeter}. Its {@link
+   *     BandwidthMeter#getTransferListener() transfer listener} must not be null.
+   * @param clock The {@link FakeClock} used by the bandwidth meter. It's advanced as the trace is
+   *     replayed.
+   * @param warmUpTimeMs The time from the start of the trace during which estimates aren't scored,
+   *     in milliseconds.
+   * @return The {@link Score}.
+   */
+  public Score replay(BandwidthMeter bandwidthMeter, FakeClock clock, long warmUpTimeMs) {
+    TransferListener transferListener = checkNotNull(bandwidthMeter.getTransferListener());
+    DataSource dataSource = new FakeDataSource();
+    HashMap<Integer, DataSpec> dataSpecs = new HashMap<>();
+    long startTimeMs = clock.elapsedRealtime();
+    long capacity = 0;
+    int estimateCount = 0;
+    double sumOfErrors = 0;
+    double maxError = 0;
+    for (int i = 0; i < events.size(); i++) {
+      Event event = events.get(i);
+      clock.advanceTime(max(0, startTimeMs + event.timeMs - clock.elapsedRealtime()));
+      switch (event.type) {
+        case Event.TYPE_CAPACITY:
+          capacity = event.value;
+          break;
+        case Event.TYPE_INIT:
+          DataSpec dataSpec = new DataSpec(Uri.parse("trace://transfer/" + event.transferId));
+          dataSpecs.put(event.transferId, dataSpec);
+          transferListener.onTransferInitializing(dataSource, dataSpec, /* isNetwork= */ true);
+          break;
+        case Event.TYPE_START:
+          transferListener.onTransferStart(
+              dataSource, getDataSpec(dataSpecs, event), /* isNetwork= */ true);
+          break;
+        case Event.TYPE_BYTES:
+          for (long bytes = event.value; bytes > 0; bytes -= Integer.MAX_VALUE) {
+            transferListener.onBytesTransferred(
+                dataSource,
+                getDataSpec(dataSpecs, event),
+                /* isNetwork= */ true,
+                (int) min(bytes, Integer.MAX_VALUE));
+          }
+          break;
+        case Event.TYPE_END:
+          transferListener.onTransferEnd(
+              dataSource, getDataSpec(dataSpecs, event), /* isNetwork= */ true);
+          dataSpecs.remove(event.transferId);
+          break;
+        default:
+          throw new IllegalStateException();
+      }
+      if ((event.type.equals(Event.TYPE_BYTES) || event.type.equals(Event.TYPE_END))
+          && event.timeMs >= warmUpTimeMs
+          && capacity > 0) {
+        double error = abs(bandwidthMeter.getBitrateEstimate() - capacity) / (double) capacity;
+        sumOfErrors += error;
+        maxError = max(maxError, error);
+        estimateCount++;
+      }
+    }
+    return new Score(
+        estimateCount,
+        estimateCount == 0 ? 0 : sumOfErrors / estimateCount,
+        maxError,
+        bandwidthMeter.getTimeToFirstByteEstimateUs());
+  }
+
+  private static DataSpec getDataSpec(HashMap<Integer, DataSpec> dataSpecs, Event event) {
+    return checkNotNull(
+        dataSpecs.get(event.transferId), "Transfer not initialized: " + event.transferId);
+  }
+
+  /** Returns the trace as text, in the format accepted by {@link #parse(String)}. */
+  @Override
+  public String toString() {
+    StringBuilder trace = new StringBuilder();
+    for (int i = 0; i < events.size(); i++) {
+      Event event = events.get(i);
+      trace.append(event.timeMs).append(' ').append(event.type);
+      if (!event.type.equals(Event.TYPE_CAPACITY)) {
+        trace.append(' ').append(event.transferId);
+      }
+      if (event.type.equals(Event.TYPE_CAPACITY) || event.type.equals(Event.TYPE_BYTES)) {
+        trace.append(' ').append(event.value);
+      }
+      trace.append('\n');
+    }
+    return trace.toString();
+  }
+}